@@ -1,21 +1,34 @@
+import java.io.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /*
  Single-file Car Rental System (Ola/Uber-like) demo with:
- - User auth (signup/login)
+ - User auth (signup/login; salted PBKDF2 hashes, session tokens, lockout after repeated failures)
  - Admin panel
  - Driver/car registration
- - Smart driver matching by simulated distance
+ - Smart driver matching by pickup distance (grid spatial index)
  - Fare estimation (distance, car type multiplier, surge, promo codes)
- - ETA calculation
+ - ETA and distance from shortest paths on a road graph (--road-graph=FILE, else a built-in grid city)
  - Promo codes
  - Booking lifecycle: request, active, complete, cancel (with fee)
+ - Fair waiting queue per zone and car type when no driver is free, served as drivers free up
  - Driver ratings
  - Fuel estimation
  - Voice-like messages
- - All data stored in-memory (ArrayLists)
+ - Booking lifecycle events on a ring-buffer bus (--audit-log appends them as JSON lines)
+ - End-of-day driver settlement (fork/join over the archive) written as CSV
+ - Streaming booking export as CSV or JSON Lines, filtered by rider, status and creation date
+ - Headless JSON API over the JDK HttpServer (java Main serve)
+ - All data stored in-memory; optional write-ahead log + snapshots with --data-dir
+
+ Run:        java Main [serve [--port=8080]] [--dispatch-window-ms=N] [--data-dir=DIR [--snapshot-every-s=N] [--archive-after-s=N]]
+             [--audit-log=FILE [--events-wait=blocking|sleeping|yielding|busy_spin]] [--road-graph=FILE]
+ Build:      gradle build (compiles with -Xlint:all -Werror and runs the tests in test/)
+ Benchmarks: java Main bench [matching|bookings|stress|dispatch|hotpaths|wal|archive|city|surge|promo|quotes|metrics|timers|bus|reputation|rollups|settlement|roads|locations|waiting|fleet|shards|auth|export] [key=v1,v2 ...]
 */
 
 public class Main {
@@ -24,9 +37,88 @@ public class Main {
     static final AuthService authService = new AuthService();
     static final PromoService promoService = new PromoService();
     static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    static final String ADMIN_PASSWORD = "admin123";
+    static BatchDispatcher dispatcher; // null = greedy matching per request
+    static Persistence persistence; // null = in-memory only
+    static BookingArchive archive; // closed bookings on disk; only with persistence
+    static EventBus events; // null = no lifecycle consumers
+    static AuditLog auditLog;
+    static RoadGraph roads;
 
     public static void main(String[] args) {
-        seedDemo();
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        rideService.setPromos(promoService);
+        Metrics.gauge("drivers_available", "drivers free to match", rideService::availableDriverCount);
+        Metrics.gauge("drivers_busy", "drivers on a booking", rideService::busyDriverCount);
+        Metrics.gauge("bookings_active", "bookings in progress", rideService::activeBookingCount);
+        Metrics.gauge("riders_waiting", "riders queued for a driver", rideService::waitingCount);
+        Metrics.gauge("location_pings", "driver GPS pings received", rideService::locationPings);
+        Metrics.gauge("auth_sessions", "open login sessions", authService::sessionCount);
+        boolean serve = args.length > 0 && args[0].equals("serve");
+        int port = 8080;
+        String dataDir = null;
+        long snapshotEvery = 300, archiveAfter = 600;
+        String auditFile = null, roadFile = null;
+        EventBus.Wait eventsWait = EventBus.Wait.BLOCKING;
+        for (String a : args) {
+            String v = a.substring(a.indexOf('=') + 1);
+            if (a.startsWith("--port=")) port = Integer.parseInt(v);
+            else if (a.startsWith("--dispatch-window-ms=")) dispatcher = new BatchDispatcher(rideService, Long.parseLong(v));
+            else if (a.startsWith("--data-dir=")) dataDir = v;
+            else if (a.startsWith("--snapshot-every-s=")) snapshotEvery = Long.parseLong(v);
+            else if (a.startsWith("--archive-after-s=")) archiveAfter = Long.parseLong(v);
+            else if (a.startsWith("--audit-log=")) auditFile = v;
+            else if (a.startsWith("--events-wait=")) eventsWait = EventBus.Wait.valueOf(v.toUpperCase(Locale.ROOT));
+            else if (a.startsWith("--road-graph=")) roadFile = v;
+        }
+        try {
+            roads = roadFile == null ? RoadGraph.demoCity() : RoadGraph.load(java.nio.file.Paths.get(roadFile), 100_000);
+        } catch (IOException e) {
+            System.out.println("Cannot load road graph: " + e.getMessage());
+            return;
+        }
+        rideService.setRoads(roads);
+        Metrics.gauge("route_cache_hits", "road routes answered from the LRU", roads::cacheHits);
+        Metrics.gauge("route_cache_misses", "road routes that needed a search", roads::cacheMisses);
+        if (auditFile != null) {
+            try {
+                startEvents(java.nio.file.Paths.get(auditFile), eventsWait);
+            } catch (IOException e) {
+                System.out.println("Cannot open audit log: " + e.getMessage());
+                return;
+            }
+        }
+        if (dataDir != null) {
+            try {
+                archive = new BookingArchive(java.nio.file.Paths.get(dataDir));
+                rideService.setArchive(archive);
+                persistence = Persistence.open(java.nio.file.Paths.get(dataDir), rideService, authService, promoService, true);
+                persistence.snapshotEvery(snapshotEvery);
+                scheduleArchiving(archiveAfter);
+            } catch (IOException e) {
+                System.out.println("Cannot open data dir: " + e.getMessage());
+                return;
+            }
+            System.out.println("Loaded state from " + dataDir + " (" + persistence.stats() + ")");
+        }
+        if (persistence == null || persistence.isEmpty()) seedDemo();
+        scheduleBookingTimers();
+        scheduleLocationTicks();
+        scheduleAuthSweep();
+        if (serve) {
+            try {
+                ApiServer server = ApiServer.start(port, rideService, authService, promoService, dispatcher);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> { server.stop(); shutdown(); }));
+                System.out.println("Serving JSON API on http://localhost:" + port + " (" + server.executorKind() + ")");
+            } catch (IOException e) {
+                System.out.println("Cannot start server: " + e.getMessage());
+                shutdown();
+            }
+            return;
+        }
         System.out.println("=== Car Rental System (Ola/Uber-like) ===");
         boolean running = true;
         while (running) {
@@ -44,9 +136,85 @@ public class Main {
                 default -> System.out.println("Invalid option.");
             }
         }
+        shutdown();
         System.out.println("Goodbye!");
     }
 
+    private static void shutdown() {
+        if (dispatcher != null) dispatcher.close();
+        if (events != null) {
+            events.close(); // drains what was published
+            try { auditLog.close(); } catch (IOException e) { System.out.println("Audit log close failed: " + e.getMessage()); }
+        }
+        if (persistence != null) {
+            try {
+                persistence.close();
+                archive.close();
+            } catch (IOException e) { System.out.println("Final snapshot failed: " + e.getMessage()); }
+        }
+    }
+
+    // audit logging runs on its own consumer thread; a slow disk drops events rather than stalling rides
+    private static void startEvents(java.nio.file.Path file, EventBus.Wait wait) throws IOException {
+        auditLog = new AuditLog(file);
+        events = new EventBus(1 << 14, wait, EventBus.Backpressure.DROP);
+        events.subscribe("audit", auditLog);
+        events.start();
+        rideService.setEvents(events);
+        Metrics.gauge("events_published", "lifecycle events published", events::publishedCount);
+        Metrics.gauge("events_dropped", "lifecycle events dropped on a full ring", events::droppedCount);
+        Metrics.gauge("events_lag", "lifecycle events not yet handled by the slowest consumer", events::lag);
+    }
+
+    // no-show and max-trip timeouts are checked once a second
+    private static void scheduleBookingTimers() {
+        ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "booking-timers");
+            t.setDaemon(true);
+            return t;
+        });
+        ex.scheduleWithFixedDelay(() -> {
+            try { rideService.runDueTimers(); }
+            catch (RuntimeException e) { System.err.println("Booking timers failed: " + e.getMessage()); }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // GPS pings reach matching once per tick, at a fixed rate however fast they arrive
+    private static void scheduleLocationTicks() {
+        ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "location-ticks");
+            t.setDaemon(true);
+            return t;
+        });
+        ex.scheduleAtFixedRate(() -> {
+            try { rideService.applyLocations(); }
+            catch (RuntimeException e) { System.err.println("Location tick failed: " + e.getMessage()); }
+        }, RideService.LOCATION_TICK_MS, RideService.LOCATION_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // expired sessions and stale login-attempt counters are dropped once a minute
+    private static void scheduleAuthSweep() {
+        ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "auth-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        ex.scheduleWithFixedDelay(authService::sweep, 60, 60, TimeUnit.SECONDS);
+    }
+
+    // closed bookings older than the given age move to the on-disk archive once a minute
+    private static void scheduleArchiving(long afterSeconds) {
+        ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        ex.scheduleWithFixedDelay(() -> {
+            try { rideService.archiveClosedBookings(java.time.Duration.ofSeconds(afterSeconds)); }
+            catch (IOException | RuntimeException e) { System.err.println("Archiving failed: " + e); } // the next run retries
+        }, 60, 60, TimeUnit.SECONDS);
+    }
+
     private static void signup() {
         System.out.println("\n--- Sign Up ---");
         String uname = readString("Username: ");
@@ -64,7 +232,8 @@ public class Main {
         String pass = readString("Password: ");
         User u = authService.login(uname, pass);
         if (u == null) {
-            System.out.println("Invalid credentials.");
+            long locked = authService.lockedForMillis(uname);
+            System.out.println(locked > 0 ? "Too many failed attempts. Try again in " + (locked + 999) / 1000 + " s." : "Invalid credentials.");
             return;
         }
         System.out.println("Welcome, " + u.getUsername() + "!");
@@ -78,7 +247,8 @@ public class Main {
             System.out.println("5. Cancel Booking");
             System.out.println("6. Ride History");
             System.out.println("7. Apply Promo Codes (view available)");
-            System.out.println("8. Logout");
+            System.out.println("8. Confirm Pickup (driver arrived)");
+            System.out.println("9. Logout");
             int ch = readInt("Choose: ");
             switch (ch) {
                 case 1 -> listDrivers();
@@ -88,7 +258,8 @@ public class Main {
                 case 5 -> cancelBooking(u);
                 case 6 -> rideHistory(u);
                 case 7 -> promoService.listPromos();
-                case 8 -> exit = true;
+                case 8 -> confirmPickup(u);
+                case 9 -> exit = true;
                 default -> System.out.println("Invalid option.");
             }
         }
@@ -97,7 +268,7 @@ public class Main {
     private static void adminMenu() {
         System.out.println("\n--- Admin Login ---");
         String pass = readString("Enter admin password: ");
-        if (!"admin123".equals(pass)) {
+        if (!ADMIN_PASSWORD.equals(pass)) {
             System.out.println("Wrong admin password.");
             return;
         }
@@ -111,7 +282,13 @@ public class Main {
             System.out.println("4. View all bookings");
             System.out.println("5. Add promo code");
             System.out.println("6. Remove promo code");
-            System.out.println("7. Logout");
+            System.out.println("7. Surge map");
+            System.out.println("8. Metrics");
+            System.out.println("9. Top drivers");
+            System.out.println("10. Operations dashboard");
+            System.out.println("11. End-of-day settlement");
+            System.out.println("12. Export bookings (CSV / JSON Lines)");
+            System.out.println("13. Logout");
             int a = readInt("Choose: ");
             switch (a) {
                 case 1 -> listDrivers();
@@ -120,12 +297,127 @@ public class Main {
                 case 4 -> listAllBookings();
                 case 5 -> adminAddPromo();
                 case 6 -> adminRemovePromo();
-                case 7 -> stop = true;
+                case 7 -> surgeMap();
+                case 8 -> showMetrics();
+                case 9 -> topDrivers();
+                case 10 -> dashboard();
+                case 11 -> settlement();
+                case 12 -> exportBookings();
+                case 13 -> stop = true;
                 default -> System.out.println("Invalid option.");
             }
         }
     }
 
+    private static void showMetrics() {
+        System.out.println("\n--- Metrics ---");
+        System.out.print(Metrics.report());
+        String file = readString("Export Prometheus text to file (Enter to skip): ");
+        if (file.isBlank()) return;
+        try {
+            Metrics.writePrometheus(java.nio.file.Paths.get(file.trim()));
+            System.out.println("Written to " + file.trim());
+        } catch (IOException e) {
+            System.out.println("Cannot write metrics: " + e.getMessage());
+        }
+    }
+
+    private static void dashboard() {
+        int hours = readIntRange("Hours back (1-" + Rollups.HOURS + "): ", 1, Rollups.HOURS);
+        long to = Rollups.hourOf(rideService.now()), from = to - hours + 1;
+        System.out.printf("\n--- Operations %s to %s ---%n", dtf.format(Rollups.startOf(from)), dtf.format(Rollups.startOf(to + 1)));
+        System.out.println("Type   Created Completed Cancelled  Done%    Gross fare   Promo given   Cancel fees   Fuel (L)");
+        for (CarType t : CarType.values()) printRollup(t.name(), rideService.getRollups().query(from, to, t));
+        printRollup("ALL", rideService.getRollups().query(from, to, null));
+    }
+
+    private static void settlement() {
+        String in = readString("Day (yyyy-MM-dd, Enter for today): ").trim();
+        java.time.LocalDate day;
+        try { day = in.isEmpty() ? rideService.now().toLocalDate() : java.time.LocalDate.parse(in); }
+        catch (java.time.format.DateTimeParseException e) { System.out.println("Invalid date."); return; }
+        String file = readString("Settlement file (Enter for settlement-" + day + ".csv): ").trim();
+        if (file.isEmpty()) file = "settlement-" + day + ".csv";
+        long t0 = System.nanoTime();
+        Settlement.Ledger l = rideService.settle(day.atStartOfDay(), day.plusDays(1).atStartOfDay(), Runtime.getRuntime().availableProcessors());
+        try (Writer w = java.nio.file.Files.newBufferedWriter(java.nio.file.Paths.get(file))) {
+            l.write(w);
+        } catch (IOException e) {
+            System.out.println("Cannot write settlement: " + e.getMessage());
+            return;
+        }
+        long[] t = l.totals();
+        System.out.printf("\n--- Settlement %s: %d drivers, %d trips, %d cancellations ---%n", day, l.drivers(), t[Settlement.TRIPS], t[Settlement.CANCELLATIONS]);
+        System.out.printf("Fares ₹%s  Promo subsidy ₹%s  Commission ₹%s  Cancellation fees ₹%s  Driver payouts ₹%s%n",
+                Settlement.money(t[Settlement.FARES]), Settlement.money(t[Settlement.SUBSIDY]), Settlement.money(t[Settlement.COMMISSION]),
+                Settlement.money(t[Settlement.FEES]), Settlement.money(Settlement.payout(t, 0)));
+        System.out.printf("Written to %s in %.1f ms%n", file, (System.nanoTime() - t0) / 1e6);
+    }
+
+    private static void exportBookings() {
+        BookingExport.Format format = readString("Format (csv/jsonl, Enter for csv): ").trim().equalsIgnoreCase("jsonl")
+                ? BookingExport.Format.JSONL : BookingExport.Format.CSV;
+        String rider = readString("Rider (Enter for all): ").trim();
+        String st = readString("Status (active/completed/cancelled, Enter for all): ").trim();
+        BookingExport.Filter filter;
+        try {
+            String from = readString("Created from (yyyy-MM-dd, Enter for any): ").trim();
+            String to = readString("Created to, inclusive (yyyy-MM-dd, Enter for any): ").trim();
+            filter = BookingExport.Filter.of(rider.isEmpty() ? null : rider, st.isEmpty() ? null : BookingStatus.valueOf(st.toUpperCase(Locale.ROOT)),
+                    from.isEmpty() ? null : java.time.LocalDate.parse(from), to.isEmpty() ? null : java.time.LocalDate.parse(to));
+        } catch (IllegalArgumentException | java.time.format.DateTimeParseException e) {
+            System.out.println("Invalid status or date.");
+            return;
+        }
+        String file = readString("File (Enter for the console): ").trim();
+        long t0 = System.nanoTime(), rows;
+        try {
+            if (file.isEmpty()) {
+                System.out.flush();
+                rows = new BookingExport.Writer(format, java.nio.channels.Channels.newChannel(System.out)).writeAll(rideService.history(filter));
+                System.out.flush();
+            } else {
+                try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(java.nio.file.Paths.get(file),
+                        java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+                    rows = new BookingExport.Writer(format, ch).writeAll(rideService.history(filter));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Export failed: " + e.getMessage());
+            return;
+        }
+        System.out.printf("Exported %d bookings%s in %.1f ms%n", rows, file.isEmpty() ? "" : " to " + file, (System.nanoTime() - t0) / 1e6);
+    }
+
+    private static void printRollup(String label, Rollups.Totals t) {
+        System.out.printf("%-6s %7d %9d %9d %5.1f%% ₹%12.2f ₹%12.2f ₹%12.2f %10.2f%n", label, t.created(), t.completed(), t.cancelled(),
+                100 * t.completionRate(), t.grossFare(), t.promoDiscount(), t.cancellationFees(), t.fuelLiters());
+    }
+
+    private static void topDrivers() {
+        System.out.println("Car types: 1. Mini 2. Sedan 3. SUV");
+        CarType type = switch (readInt("Choose car type: ")) {
+            case 2 -> CarType.SEDAN;
+            case 3 -> CarType.SUV;
+            default -> CarType.MINI;
+        };
+        String area = readString("Near area (Enter for whole city): ");
+        List<Driver> top = rideService.topDrivers(type, area.isBlank() ? null : CityMap.locate(area), 10);
+        System.out.printf("\n--- Top %s drivers by reputation (%.0f-day half-life) ---%n", type, ReputationIndex.HALF_LIFE_DAYS);
+        if (top.isEmpty()) System.out.println("No drivers.");
+        for (Driver d : top) System.out.printf("%.2f  %s%n", d.getReputation(), d);
+    }
+
+    private static void surgeMap() {
+        List<SurgeEngine.ZoneStat> zones = rideService.getSurge().zones();
+        System.out.printf("\n--- Surge by zone (%.0f km zones, last %d min of requests) ---%n",
+                SurgeEngine.ZONE_KM, SurgeEngine.WINDOW_MS / 60_000);
+        if (zones.isEmpty()) System.out.println("No activity yet.");
+        for (SurgeEngine.ZoneStat z : zones.subList(0, Math.min(10, zones.size())))
+            System.out.printf("Zone %3d (%.4f, %.4f): x%.2f  requests %d  free drivers %d%n",
+                    z.zone(), z.lat(), z.lon(), z.multiplier(), z.demand(), z.supply());
+    }
+
     private static void listDrivers() {
         System.out.println("\n--- Drivers ---");
         for (Driver d : rideService.getDrivers()) System.out.println(d);
@@ -135,7 +427,10 @@ public class Main {
         System.out.println("\n--- Request Ride ---");
         String pickup = readString("Pickup: ");
         String drop = readString("Drop: ");
-        int kms = readInt("Estimated distance (km): ");
+        GeoPoint at = CityMap.locate(pickup);
+        RoadGraph.Route route = rideService.route(at, CityMap.locate(drop));
+        if (route != null) System.out.printf("Route: %.1f km by road, about %.0f min%n", route.km(), Math.ceil(route.minutes()));
+        int kms = route == null ? readInt("No road route found. Estimated distance (km): ") : 0;
         System.out.println("Car types: 1. Mini 2. Sedan 3. SUV");
         int typeChoice = readInt("Choose car type: ");
         CarType type = switch (typeChoice) {
@@ -149,22 +444,45 @@ public class Main {
         if (promo.isBlank()) promo = null;
 
         System.out.println("Estimating fare...");
-        FareEstimate estimate = FareCalculator.estimateFare(kms, type, promoService, promo);
+        double surge = rideService.surgeAt(at.lat, at.lon);
+        FareEstimate estimate = route == null
+                ? FareCalculator.estimateFare(kms, type, surge, promoService, promo, user.getUsername())
+                : FareCalculator.estimateFare(route, type, surge, promoService, promo, user.getUsername());
+        kms = estimate.km;
+        if (promo != null && estimate.promoCode == null) System.out.println("Promo " + promo + " is not available to you; quoting the regular fare.");
+        if (estimate.surgeMultiplier > 1.0) System.out.printf("High demand near %s: surge x%.2f%n", pickup, estimate.surgeMultiplier);
         System.out.printf("Estimated fare: ₹%.2f  | ETA: %d min  | Fuel est: %.2f L\n",
                 estimate.finalFare, estimate.etaMinutes, estimate.estimatedFuelLiters);
         System.out.println("Voice: \"Searching for nearby drivers...\"");
 
-        Booking b = rideService.requestRide(user.getUsername(), pickup, drop, kms, type, estimate);
+        Booking b = dispatcher == null
+                ? rideService.requestRide(user.getUsername(), pickup, drop, kms, type, estimate)
+                : dispatcher.submit(user.getUsername(), pickup, drop, kms, type, estimate).join();
         if (b == null) {
-            System.out.println("No drivers available currently. Try later.");
-            return;
+            WaitQueue.Ticket t = rideService.waitForDriver(user.getUsername(), pickup, at.lat, at.lon, drop, kms, type, estimate, 0, RideService.DEFAULT_WAIT_MS);
+            if (t.rejected) {
+                System.out.println("All drivers are busy and too many riders are waiting" + waitText(t) + ". Try later.");
+                return;
+            }
+            System.out.printf("All drivers are busy. You are number %d in line%s; waiting up to %d min...%n",
+                    t.ahead + 1, waitText(t), RideService.DEFAULT_WAIT_MS / 60_000);
+            b = t.result.join();
+            if (b == null) {
+                System.out.println("No driver came free in time. Try later.");
+                return;
+            }
         }
-        b.setAppliedPromo(promo);
-        b.setEstimatedFare(estimate.finalFare);
-        b.setEtaMinutes(estimate.etaMinutes);
-        b.setEstimatedFuelLiters(estimate.estimatedFuelLiters);
+        if (estimate.promoCode != null && b.getAppliedPromo() == null)
+            System.out.println("Promo " + estimate.promoCode + " is no longer available to you; booked at the regular fare.");
         System.out.println("Booking created: " + b.summary());
-        System.out.println("Voice: \"Driver " + b.getDriver().getName() + " is on the way (ETA " + b.getEtaMinutes() + " mins).\"");
+        if (b.getPickupMinutes() > 0)
+            System.out.printf("Voice: \"Driver %s is %.1f km away and arrives in %.0f mins; the trip takes about %d mins.\"%n",
+                    b.getDriver().getName(), b.getPickupKm(), Math.ceil(b.getPickupMinutes()), b.getEtaMinutes());
+        else System.out.println("Voice: \"Driver " + b.getDriver().getName() + " is on the way (ETA " + b.getEtaMinutes() + " mins).\"");
+    }
+
+    private static String waitText(WaitQueue.Ticket t) {
+        return t.estimatedWaitMs < 0 ? "" : String.format(" (estimated wait %.0f min)", Math.ceil(t.estimatedWaitMs / 60_000.0));
     }
 
     private static void listActiveBookingsForUser(User user) {
@@ -183,10 +501,19 @@ public class Main {
         rideService.completeBooking(id);
         System.out.println("Booking completed. Thank you for riding.");
         int rating = readIntRange("Rate driver (1-5): ", 1, 5);
-        rideService.rateDriver(b.getDriver().getId(), rating);
+        rideService.rateBooking(id, rating);
         System.out.println("Voice: \"Thanks! Your rating has been submitted.\"");
     }
 
+    private static void confirmPickup(User user) {
+        int id = readInt("Enter booking id you were picked up for: ");
+        Booking b = rideService.findBookingById(id);
+        if (b == null) { System.out.println("Booking not found."); return; }
+        if (!b.getRiderName().equals(user.getUsername())) { System.out.println("This booking isn't yours."); return; }
+        if (!rideService.confirmPickup(id)) { System.out.println("Booking not active or already picked up."); return; }
+        System.out.println("Pickup confirmed. Enjoy your ride.");
+    }
+
     private static void cancelBooking(User user) {
         int id = readInt("Enter booking id to cancel: ");
         Booking b = rideService.findBookingById(id);
@@ -202,16 +529,25 @@ public class Main {
 
     private static void rideHistory(User user) {
         System.out.println("\n--- Ride History ---");
-        List<Booking> hist = rideService.getBookingsForRider(user.getUsername());
-        if (hist.isEmpty()) System.out.println("No rides yet.");
-        else hist.forEach(b -> System.out.println(b.detailed()));
+        printPages("No rides yet.", rideService.history(BookingExport.Filter.rider(user.getUsername())));
     }
 
     private static void listAllBookings() {
         System.out.println("\n--- All Bookings ---");
-        List<Booking> all = rideService.getAllBookings();
-        if (all.isEmpty()) System.out.println("No bookings yet.");
-        else all.forEach(b -> System.out.println(b.detailed()));
+        printPages("No bookings yet.", rideService.history(BookingExport.Filter.ALL));
+    }
+
+    static final int PAGE_SIZE = 20;
+
+    // each page is read off the cursor as it is shown
+    private static void printPages(String emptyMessage, BookingExport.Cursor cursor) {
+        for (int page = 0; ; page++) {
+            List<Booking> rows = cursor.page(PAGE_SIZE);
+            if (page == 0 && rows.isEmpty()) System.out.println(emptyMessage);
+            rows.forEach(b -> System.out.println(b.detailed()));
+            if (rows.size() < PAGE_SIZE) return;
+            if (!readString("Enter for more, q to stop: ").isEmpty()) return;
+        }
     }
 
     private static void adminAddDriver() {
@@ -226,7 +562,9 @@ public class Main {
         };
         String model = readString("Car model: ");
         String plate = readString("Plate: ");
-        Driver d = rideService.registerDriver(name, model, plate, type);
+        String area = readString("Base area: ");
+        GeoPoint base = CityMap.locate(area.isBlank() ? plate : area);
+        Driver d = rideService.registerDriver(name, model, plate, type, base.lat, base.lon);
         System.out.println("Added: " + d);
     }
 
@@ -239,8 +577,20 @@ public class Main {
 
     private static void adminAddPromo() {
         String code = readString("Promo code (uppercase): ").toUpperCase(Locale.ROOT);
-        double discount = Double.parseDouble(readString("Discount percent (e.g. 20 for 20%): "));
-        promoService.addPromo(new Promo(code, discount, 5)); // default uses 5
+        double discount;
+        while (true) {
+            try {
+                discount = Double.parseDouble(readString("Discount percent (e.g. 20 for 20%): "));
+                if (discount > 0 && discount <= 100) break;
+                System.out.println("Discount must be more than 0 and at most 100.");
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter a valid number.");
+            }
+        }
+        int uses, perRider;
+        while ((uses = readIntOr("Total uses (Enter for 5): ", 5)) < 0) System.out.println("Total uses cannot be negative.");
+        while ((perRider = readIntOr("Max uses per rider (Enter for no limit): ", 0)) < 0) System.out.println("Max uses per rider cannot be negative.");
+        promoService.addPromo(new Promo(code, discount, uses, perRider));
         System.out.println("Promo added.");
     }
 
@@ -252,9 +602,10 @@ public class Main {
 
     private static void seedDemo() {
         // drivers
-        rideService.registerDriver("Aarav Etioson", "Toyota Etios", "TN07EX1234", CarType.SEDAN);
-        rideService.registerDriver("Ryder Dzirex", "Swift Dzire", "TN11DZ5521", CarType.SEDAN);
-        rideService.registerDriver("Ethan iDrive", "Hyundai i20", "TN09I27711", CarType.MINI);
+        GeoPoint tn = CityMap.locate("T Nagar"), adyar = CityMap.locate("Adyar"), an = CityMap.locate("Anna Nagar");
+        rideService.registerDriver("Aarav Etioson", "Toyota Etios", "TN07EX1234", CarType.SEDAN, tn.lat, tn.lon);
+        rideService.registerDriver("Ryder Dzirex", "Swift Dzire", "TN11DZ5521", CarType.SEDAN, adyar.lat, adyar.lon);
+        rideService.registerDriver("Ethan iDrive", "Hyundai i20", "TN09I27711", CarType.MINI, an.lat, an.lon);
         // promos
         promoService.addPromo(new Promo("FIRST50", 50.0, 1)); // 50% first ride
         promoService.addPromo(new Promo("SAVE20", 20.0, 5));
@@ -280,6 +631,19 @@ public class Main {
         }
     }
 
+    // as readInt, but Enter alone gives `blank`
+    private static int readIntOr(String prompt, int blank) {
+        while (true) {
+            try {
+                System.out.print(prompt);
+                String l = sc.nextLine().trim();
+                return l.isEmpty() ? blank : Integer.parseInt(l);
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter a valid integer.");
+            }
+        }
+    }
+
     private static int readIntRange(String prompt, int min, int max) {
         while (true) {
             int v = readInt(prompt);
@@ -299,57 +663,513 @@ enum BookingStatus { ACTIVE, COMPLETED, CANCELLED }
 
 class User {
     private final String username;
-    private final String password; // in real app hash it
+    private final String passwordHash; // PasswordHash encoding, never the password itself
 
-    public User(String u, String p) { username = u; password = p; }
+    public User(String u, String passwordHash) { username = u; this.passwordHash = passwordHash; }
     public String getUsername() { return username; }
-    public boolean checkPass(String p) { return Objects.equals(password, p); }
+    String getPasswordHash() { return passwordHash; } // persistence only
+}
+
+/*
+ Salted PBKDF2-HMAC-SHA256, stored as "pbkdf2-sha256$<iterations>$<salt>$<hash>" (base64).
+ The iteration count travels with each hash, so raising ITERATIONS only affects new hashes.
+ A check costs tens of milliseconds by design, which is why AuthService runs it once per
+ login and not once per request.
+*/
+final class PasswordHash {
+    static final int ITERATIONS = 100_000, SALT_BYTES = 16, KEY_BITS = 256;
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final java.security.SecureRandom RANDOM = new java.security.SecureRandom();
+
+    private PasswordHash() {}
+
+    static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(derive(password, salt, iterations));
+    }
+
+    static boolean verify(String password, String encoded) {
+        String[] f = encoded.split("\\$");
+        if (f.length != 4 || !encoded.startsWith(PREFIX)) return false;
+        byte[] expected = Base64.getDecoder().decode(f[3]);
+        return java.security.MessageDigest.isEqual(expected, derive(password, Base64.getDecoder().decode(f[2]), Integer.parseInt(f[1])));
+    }
+
+    // logs and snapshots written before hashing hold the plain password
+    static boolean isHash(String stored) { return stored.startsWith(PREFIX); }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        javax.crypto.spec.PBEKeySpec spec = new javax.crypto.spec.PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return javax.crypto.SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
 }
 
+/*
+ Users, sessions and login throttling. A password is checked against its PBKDF2 hash once,
+ at login, which issues a random session token; later calls present the token and are
+ checked with one ConcurrentHashMap lookup plus an expiry compare. Every session lives
+ SESSION_TTL_MS from issue, so sessions expire in the order they were issued: sweep() pops
+ the head of the issue-order queue until it reaches a live one, costing only the sessions it
+ drops. Basic-auth callers that skip sessions still avoid the hash after their first success,
+ through a cache of a keyed SHA-256 of the credentials (the key is random per process and
+ never stored). Each user name has an attempt counter: MAX_FAILURES wrong passwords in a row
+ lock it for LOCKOUT_MS, doubling per further failure up to MAX_LOCKOUT_MS, and a locked
+ login is refused without hashing. A check reserves one of the attempts left before it hashes
+ (waiting while checks in flight hold them all), so concurrent guesses cannot all pass the
+ limit before any of them has failed. Unknown names are hashed against a dummy, made up front,
+ so they take as long as a wrong password from the very first one.
+*/
 class AuthService {
-    private final Map<String, User> users = new HashMap<>();
+    static final long SESSION_TTL_MS = 12 * 3_600_000L;
+    static final int MAX_FAILURES = 5;
+    static final long LOCKOUT_MS = 30_000, MAX_LOCKOUT_MS = 15 * 60_000;
+
+    record Session(String token, User user, long expiresAt) {}
+
+    private static final class Attempts {
+        int failures; // consecutive
+        int inFlight; // checks reserved and not yet decided
+        long lockedUntil, lastFailure;
+    }
+
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Session> issueOrder = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Attempts> attempts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> verified = new ConcurrentHashMap<>(); // user -> keyed digest of the password
+    private final ThreadLocal<javax.crypto.Mac> cacheMac; // keyed by a random per-process secret
+    private final java.security.SecureRandom random = new java.security.SecureRandom();
+    private final int iterations;
+    private final String dummyHash;
+    private final Map<String, String> legacy = new HashMap<>(); // plain passwords met in replay, hashed once it ends
+    private volatile java.time.Clock clock = java.time.Clock.systemUTC();
+    private Journal journal = Journal.NONE;
+
+    AuthService() { this(PasswordHash.ITERATIONS); }
+    AuthService(int iterations) {
+        this.iterations = iterations;
+        this.dummyHash = PasswordHash.hash("", iterations);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        javax.crypto.spec.SecretKeySpec cacheKey = new javax.crypto.spec.SecretKeySpec(key, "HmacSHA256");
+        cacheMac = ThreadLocal.withInitial(() -> {
+            try {
+                javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
+                mac.init(cacheKey);
+                return mac;
+            } catch (java.security.GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public void setJournal(Journal j) { journal = j; }
+    void setClock(java.time.Clock c) { clock = c; }
+
     public boolean register(String u, String p) {
         if (users.containsKey(u)) return false;
-        users.put(u, new User(u, p));
-        return true;
+        String hash = PasswordHash.hash(p, iterations); // outside the mutation scope: snapshots need not wait on it
+        Journal.Scope mutation = journal.mutation();
+        try {
+            if (users.putIfAbsent(u, new User(u, hash)) != null) return false;
+            journal.userRegistered(u, hash);
+            return true;
+        } finally {
+            mutation.close();
+        }
+    }
+
+    // replay of a log or snapshot record; older ones carry the plain password, which waits for
+    // upgradeLegacyPasswords() unless a later record already has the hash
+    void restoreUser(String u, String stored) {
+        if (!PasswordHash.isHash(stored)) {
+            legacy.put(u, stored);
+            return;
+        }
+        legacy.remove(u);
+        users.put(u, new User(u, stored));
     }
+
+    // after replay: hashes the plain passwords it left and journals the hashes, so the next
+    // replay reads those instead of hashing again
+    void upgradeLegacyPasswords() {
+        for (Map.Entry<String, String> e : legacy.entrySet()) {
+            String hash = PasswordHash.hash(e.getValue(), iterations);
+            Journal.Scope mutation = journal.mutation();
+            try {
+                users.put(e.getKey(), new User(e.getKey(), hash));
+                journal.userRegistered(e.getKey(), hash);
+            } finally {
+                mutation.close();
+            }
+        }
+        legacy.clear();
+    }
+
+    public Collection<User> getUsers() { return Collections.unmodifiableCollection(users.values()); }
+
+    // null on a wrong password or while the name is locked out (see lockedForMillis)
     public User login(String u, String p) {
-        User user = users.get(u);
+        long t0 = Metrics.start();
+        User ok = check(u, p);
+        Metrics.LOGIN.recordSince(t0);
+        return ok;
+    }
+
+    // login() that also opens a session; null when login() would be
+    public Session openSession(String u, String p) {
+        User user = login(u, p);
         if (user == null) return null;
-        return user.checkPass(p) ? user : null;
+        long now = clock.millis();
+        dropExpired(now); // amortized: each session is popped once
+        byte[] raw = new byte[32];
+        random.nextBytes(raw);
+        Session s = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(raw), user, now + SESSION_TTL_MS);
+        sessions.put(s.token(), s);
+        issueOrder.add(s);
+        return s;
+    }
+
+    // the session's user, or null if the token is unknown, closed or expired
+    public User validate(String token) {
+        Session s = sessions.get(token);
+        return s != null && s.expiresAt() > clock.millis() ? s.user() : null;
+    }
+
+    // the Session stays in issueOrder until its TTL, when dropExpired() pops it like any other:
+    // removing it here would scan the queue on every logout, and it is no longer valid either way
+    public boolean closeSession(String token) { return sessions.remove(token) != null; }
+
+    public int sessionCount() { return sessions.size(); }
+
+    // 0 unless the name is locked out
+    public long lockedForMillis(String u) {
+        Attempts a = attempts.get(u);
+        if (a == null) return 0;
+        synchronized (a) { return Math.max(0, a.lockedUntil - clock.millis()); }
+    }
+
+    // drops expired sessions and attempt counters idle past the longest lockout; returns sessions dropped
+    public int sweep() {
+        long now = clock.millis();
+        attempts.forEach((u, a) -> {
+            synchronized (a) {
+                if (a.inFlight == 0 && a.lockedUntil <= now && now - a.lastFailure > MAX_LOCKOUT_MS) attempts.remove(u, a);
+            }
+        });
+        return dropExpired(now);
+    }
+
+    private int dropExpired(long now) {
+        int dropped = 0;
+        for (Session s; (s = issueOrder.peek()) != null && s.expiresAt() <= now; ) {
+            if (issueOrder.remove(s) && sessions.remove(s.token(), s)) dropped++;
+        }
+        return dropped;
+    }
+
+    private User check(String u, String p) {
+        long now = clock.millis();
+        Attempts a = attempts.get(u);
+        if (a != null) {
+            synchronized (a) {
+                if (a.lockedUntil > now) {
+                    Metrics.LOGIN_LOCKED.inc();
+                    return null;
+                }
+            }
+        }
+        User user = users.get(u);
+        byte[] digest = digest(u, p);
+        if (user != null && java.security.MessageDigest.isEqual(digest, verified.get(u))) { // proves the password: no guess to count
+            if (a != null) succeeded(u, a);
+            return user;
+        }
+        a = reserveAttempt(u);
+        if (a == null) {
+            Metrics.LOGIN_LOCKED.inc();
+            return null;
+        }
+        // another check may have proved this password while this one waited for its turn
+        boolean ok = user != null && java.security.MessageDigest.isEqual(digest, verified.get(u));
+        if (!ok) ok = PasswordHash.verify(p, user != null ? user.getPasswordHash() : dummyHash) && user != null;
+        if (ok) verified.put(u, digest); // before waiters wake, so they find it
+        synchronized (a) {
+            a.inFlight--;
+            a.notifyAll();
+            if (ok) {
+                succeeded(u, a);
+            } else {
+                a.lastFailure = now;
+                if (++a.failures >= MAX_FAILURES)
+                    a.lockedUntil = now + Math.min(MAX_LOCKOUT_MS, LOCKOUT_MS << Math.min(20, a.failures - MAX_FAILURES));
+            }
+        }
+        if (!ok) {
+            Metrics.LOGIN_FAILURES.inc();
+            return null;
+        }
+        return user;
+    }
+
+    private void succeeded(String u, Attempts a) {
+        synchronized (a) {
+            a.failures = 0;
+            if (a.inFlight == 0) attempts.remove(u, a);
+        }
+    }
+
+    // one of u's attempts, taken before hashing; null while locked out. While the checks already
+    // in flight could use up every attempt left (just one once a lockout has expired) it waits
+    // for one of them to be decided
+    private Attempts reserveAttempt(String u) {
+        while (true) {
+            Attempts a = attempts.computeIfAbsent(u, k -> new Attempts());
+            synchronized (a) {
+                try {
+                    while (attempts.get(u) == a && a.lockedUntil <= clock.millis() && a.inFlight >= Math.max(1, MAX_FAILURES - a.failures))
+                        a.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                if (attempts.get(u) != a) continue; // removed meanwhile; entries are only removed under their lock
+                if (a.lockedUntil > clock.millis()) return null;
+                a.inFlight++;
+                return a;
+            }
+        }
+    }
+
+    private byte[] digest(String u, String p) {
+        return cacheMac.get().doFinal((u + '\0' + p).getBytes(java.nio.charset.StandardCharsets.UTF_8));
     }
 }
 
+/*
+ Redemption quota is split into STRIPES sub-quotas (padded apart to avoid false sharing).
+ A redeemer decrements the stripe picked by its thread and only walks the others once that
+ one is empty, so thousands of concurrent redemptions of one hot code rarely touch the same
+ counter, while the total can never go below zero. Per-rider counts are only kept when the
+ promo has a per-rider limit.
+*/
 class Promo {
+    static final int STRIPES = 16;
+    private static final int PAD = 16; // ints per 64-byte cache line
+
     private final String code;
     private final double percent;
-    private int usesLeft;
-    public Promo(String c, double p, int uses) { code = c; percent = p; usesLeft = uses; }
+    private final int perUserLimit; // 0 = unlimited
+    private final AtomicIntegerArray quota = new AtomicIntegerArray(STRIPES * PAD);
+    private final ConcurrentHashMap<String, AtomicInteger> usedBy = new ConcurrentHashMap<>(); // held + redeemed
+
+    public Promo(String c, double p, int uses) { this(c, p, uses, 0); }
+    public Promo(String c, double p, int uses, int perUserLimit) {
+        if (!(p > 0 && p <= 100)) throw new IllegalArgumentException("percent must be more than 0 and at most 100");
+        if (uses < 0) throw new IllegalArgumentException("uses cannot be negative");
+        if (perUserLimit < 0) throw new IllegalArgumentException("perRider cannot be negative");
+        code = c; percent = p; this.perUserLimit = perUserLimit;
+        for (int i = 0; i < STRIPES; i++) quota.set(i * PAD, uses / STRIPES + (i < uses % STRIPES ? 1 : 0));
+    }
     public String getCode() { return code; }
     public double getPercent() { return percent; }
-    public boolean use() {
-        if (usesLeft <= 0) return false;
-        usesLeft--; return true;
+    public int getPerUserLimit() { return perUserLimit; }
+    public int getUsesLeft() {
+        int sum = 0;
+        for (int i = 0; i < STRIPES; i++) sum += quota.get(i * PAD);
+        return sum;
+    }
+    public int usedBy(String user) {
+        AtomicInteger n = user == null ? null : usedBy.get(user);
+        return n == null ? 0 : n.get();
+    }
+    Map<String, AtomicInteger> getUsage() { return usedBy; }
+
+    // takes one use for user (null = anonymous, only the global quota applies)
+    boolean tryTake(String user) {
+        AtomicInteger mine = perUserLimit > 0 && user != null ? usedBy.computeIfAbsent(user, u -> new AtomicInteger()) : null;
+        if (mine != null && mine.incrementAndGet() > perUserLimit) { mine.decrementAndGet(); return false; }
+        if (takeQuota()) return true;
+        if (mine != null) mine.decrementAndGet();
+        return false;
+    }
+
+    void giveBack(String user) {
+        quota.incrementAndGet(homeStripe() * PAD);
+        AtomicInteger mine = perUserLimit > 0 && user != null ? usedBy.get(user) : null;
+        if (mine != null) mine.decrementAndGet();
+    }
+
+    // still redeemable by user right now (a quote; nothing is taken)
+    boolean available(String user) {
+        return getUsesLeft() > 0 && (perUserLimit == 0 || user == null || usedBy(user) < perUserLimit);
+    }
+
+    public boolean use() { return tryTake(null); }
+
+    private boolean takeQuota() {
+        int home = homeStripe();
+        for (int i = 0; i < STRIPES; i++) {
+            int slot = ((home + i) & (STRIPES - 1)) * PAD;
+            for (int v = quota.get(slot); v > 0; v = quota.get(slot)) {
+                if (quota.compareAndSet(slot, v, v - 1)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static int homeStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 60) & (STRIPES - 1);
+    }
+
+    @Override public String toString() {
+        return code + " (" + percent + "%), usesLeft=" + getUsesLeft() + (perUserLimit > 0 ? ", max " + perUserLimit + " per rider" : "");
     }
-    @Override public String toString() { return code + " (" + percent + "%), usesLeft=" + usesLeft; }
 }
 
+/*
+ Quotes never consume a promo. A booking reserves one use before matching, commits it once
+ the booking exists (or releases it if no driver was found), and a cancelled booking
+ refunds it.
+*/
 class PromoService {
-    private final Map<String, Promo> promos = new HashMap<>();
-    public void addPromo(Promo p) { promos.put(p.getCode(), p); }
-    public boolean removePromo(String code) { return promos.remove(code) != null; }
+    static final class Reservation {
+        static final Reservation NONE = new Reservation(null, null); // no promo requested
+        final Promo promo;
+        final String user;
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        Reservation(Promo promo, String user) { this.promo = promo; this.user = user; }
+        String code() { return promo == null ? null : promo.getCode(); }
+    }
+
+    private final Map<String, Promo> promos = new ConcurrentHashMap<>();
+    private final Set<Reservation> held = ConcurrentHashMap.newKeySet(); // reserved, not yet committed or released
+    private Journal journal = Journal.NONE;
+    public void setJournal(Journal j) { journal = j; }
+    public void addPromo(Promo p) {
+        Journal.Scope mutation = journal.mutation();
+        try {
+            promos.put(p.getCode(), p);
+            journal.promoAdded(p);
+        } finally {
+            mutation.close();
+        }
+    }
+    public boolean removePromo(String code) {
+        Journal.Scope mutation = journal.mutation();
+        try {
+            if (promos.remove(code) == null) return false;
+            journal.promoRemoved(code);
+            return true;
+        } finally {
+            mutation.close();
+        }
+    }
+    public Collection<Promo> getPromos() { return Collections.unmodifiableCollection(promos.values()); }
     public Promo find(String code) {
         if (code == null) return null;
-        return promos.get(code.toUpperCase(Locale.ROOT));
+        Promo p = promos.get(code); // codes are stored upper-case; skip the copy when it already is
+        return p != null ? p : promos.get(code.toUpperCase(Locale.ROOT));
+    }
+    // quote only: the promo if rider (null = anonymous) could still redeem the code; nothing is used up
+    public Promo quotable(String code, String rider) {
+        if (code == null || code.isBlank()) return null;
+        long t0 = Metrics.startSampled();
+        Promo p = find(code);
+        Promo out = p == null || !p.available(rider) ? null : p;
+        Metrics.PROMO_QUOTE.recordSince(t0);
+        return out;
+    }
+    public double discountPercent(String code) {
+        Promo p = quotable(code, null);
+        return p == null ? 0.0 : p.getPercent();
+    }
+
+    // null if the code is unknown, used up, or the user is at the per-rider limit
+    // reserve/commit/release run inside a journal scope so a snapshot sees a stable set of holds
+    public Reservation reserve(String code, String user) {
+        long t0 = Metrics.start();
+        try {
+            Promo p = find(code);
+            if (p == null) return null;
+            Journal.Scope mutation = journal.mutation();
+            try {
+                if (!p.tryTake(user)) { Metrics.PROMO_REJECTED.inc(); return null; }
+                Reservation r = new Reservation(p, user);
+                if (journal != Journal.NONE) held.add(r); // only snapshots need them
+                return r;
+            } finally {
+                mutation.close();
+            }
+        } finally {
+            Metrics.PROMO_RESERVE.recordSince(t0);
+        }
+    }
+    public void commit(Reservation r) {
+        if (r.promo == null || !r.open.compareAndSet(true, false)) return;
+        Journal.Scope mutation = journal.mutation();
+        try {
+            held.remove(r);
+            journal.promoRedeemed(r.promo.getCode(), r.user);
+        } finally {
+            mutation.close();
+        }
+    }
+    public void release(Reservation r) {
+        if (r.promo == null || !r.open.compareAndSet(true, false)) return;
+        Journal.Scope mutation = journal.mutation();
+        try {
+            held.remove(r);
+            r.promo.giveBack(r.user);
+        } finally {
+            mutation.close();
+        }
+    }
+    // a committed redemption of p whose booking was cancelled; nothing if p has since been removed
+    // (or replaced by a new promo under the same code, whose quota this use never came from)
+    public void refund(Promo p, String user) {
+        Journal.Scope mutation = journal.mutation();
+        try {
+            if (promos.get(p.getCode()) != p) return;
+            p.giveBack(user);
+            journal.promoRefunded(p.getCode(), user);
+        } finally {
+            mutation.close();
+        }
     }
-    public FareDiscount apply(String code, double fare) {
-        if (code == null || code.isBlank()) return new FareDiscount(fare, 0.0);
+
+    // ---------- recovery ----------
+    // committed usage only: uses held by in-flight reservations are counted as still available
+    int committedUsesLeft(Promo p) {
+        int n = p.getUsesLeft();
+        for (Reservation r : held) if (r.promo == p) n++;
+        return n;
+    }
+    Map<String, Integer> committedUsage(Promo p) {
+        Map<String, Integer> out = new HashMap<>();
+        p.getUsage().forEach((u, n) -> out.put(u, n.get()));
+        for (Reservation r : held) if (r.promo == p && r.user != null) out.merge(r.user, -1, Integer::sum);
+        out.values().removeIf(n -> n <= 0);
+        return out;
+    }
+    void restoreRedeemed(String code, String user) {
         Promo p = find(code);
-        if (p == null) return new FareDiscount(fare, 0.0);
-        if (!p.use()) return new FareDiscount(fare, 0.0);
-        double disc = fare * (p.getPercent()/100.0);
-        return new FareDiscount(fare - disc, disc);
+        if (p != null) p.tryTake(user);
     }
+    void restoreRefunded(String code, String user) {
+        Promo p = find(code);
+        if (p != null) p.giveBack(user);
+    }
+
     public void listPromos() {
         if (promos.isEmpty()) System.out.println("No promos.");
         else {
@@ -363,267 +1183,1928 @@ class FareEstimate {
     double baseFare;
     double distanceFare;
     double surge;
+    double surgeMultiplier = 1.0;
     double promoDiscount;
     double finalFare;
     int etaMinutes;
+    int km; // billed distance
     double estimatedFuelLiters;
+    String promoCode; // only set when the promo actually applied
 }
 
-class FareDiscount {
-    double after;
-    double discount;
-    public FareDiscount(double a, double d) { after = a; discount = d; }
-}
-
+/*
+ Rates live in primitive tables indexed by CarType.ordinal(). quote() prices many routes into
+ caller-supplied arrays without allocating; estimateFare() is the one-route case of the same
+ arithmetic plus the FareEstimate breakdown.
+*/
 class FareCalculator {
     // base rates (example)
     static final double BASE = 30.0;
     static final double PER_KM = 10.0;
-    static final Map<CarType, Double> multiplier = Map.of(
-            CarType.MINI, 1.0,
-            CarType.SEDAN, 1.3,
-            CarType.SUV, 1.6
-    );
-
-    // surge simulated by random demand factor
-    public static FareEstimate estimateFare(int km, CarType type, PromoService promoService, String promoCode) {
-        FareEstimate e = new FareEstimate();
-        e.baseFare = BASE;
-        e.distanceFare = PER_KM * km * multiplier.get(type);
-        // surge simulation: random 0.0-0.5 of distanceFare
-        e.surge = Math.round((Math.random() * 0.5 * e.distanceFare) * 100.0) / 100.0;
-        double raw = e.baseFare + e.distanceFare + e.surge;
-        // apply promo
-        FareDiscount fd = promoService.apply(promoCode == null ? null : promoCode.toUpperCase(Locale.ROOT), raw);
-        e.promoDiscount = fd.discount;
-        e.finalFare = Math.round(fd.after * 100.0) / 100.0;
-
-        // ETA: 2-5 min per km (simulated), plus 2 min base
-        e.etaMinutes = Math.max(2, (int)Math.round(2 + km * (2 + Math.random()*3)));
-        // Fuel est: assume liters per km by type
-        double lpk = type == CarType.SUV ? 0.12 : (type == CarType.SEDAN ? 0.09 : 0.07); // liters per km
-        e.estimatedFuelLiters = Math.round((lpk * km) * 100.0) / 100.0;
-        return e;
+    private static final double[] RATE = new double[CarType.values().length];
+    private static final double[] LITERS_PER_KM = new double[CarType.values().length];
+    static {
+        for (CarType t : CarType.values()) {
+            RATE[t.ordinal()] = switch (t) { case MINI -> 1.0; case SEDAN -> 1.3; case SUV -> 1.6; };
+            LITERS_PER_KM[t.ordinal()] = switch (t) { case MINI -> 0.07; case SEDAN -> 0.09; case SUV -> 0.12; };
+        }
     }
-}
 
-class RideService {
-    private final List<Driver> drivers = new ArrayList<>();
-    private final List<Booking> bookings = new ArrayList<>();
-    private int driverCounter = 1;
-    private int carCounter = 1;
-    private int bookingCounter = 1;
+    static double rate(CarType type) { return RATE[type.ordinal()]; }
 
-    public Driver registerDriver(String name, String model, String plate, CarType type) {
-        Car c = new Car(nextCarId(), model, plate, type);
-        Driver d = new Driver(nextDriverId(), name, c);
-        drivers.add(d);
-        return d;
+    // surgeMultiplier comes from the pickup zone (RideService.surgeAt); 1.0 = no surge. The promo
+    // only applies if rider (null = anonymous quote) is still under its per-rider limit
+    public static FareEstimate estimateFare(int km, CarType type, double surgeMultiplier, PromoService promoService, String promoCode, String rider) {
+        return estimateFare(km, type, surgeMultiplier, promoService, promoCode, rider, ThreadLocalRandom.current());
     }
-    // overloaded convenience
-    public Driver registerDriver(String name, String model, String plate) {
-        return registerDriver(name, model, plate, CarType.SEDAN);
+
+    // same, with the ETA randomness drawn from rnd (seeded runs are reproducible)
+    public static FareEstimate estimateFare(int km, CarType type, double surgeMultiplier, PromoService promoService, String promoCode, String rider,
+                                            java.util.random.RandomGenerator rnd) {
+        long t0 = Metrics.startSampled();
+        FareEstimate e = estimate(km, type, surgeMultiplier, promoService, promoCode, rider);
+        e.etaMinutes = eta(km, rnd);
+        Metrics.ESTIMATE_FARE.recordSince(t0);
+        return e;
     }
 
-    public List<Driver> getDrivers() { return Collections.unmodifiableList(drivers); }
-    public Booking requestRide(String rider, String pickup, String drop, int kms, CarType type, FareEstimate estimate) {
-        // find nearest available driver (simulate distance per available driver)
-        Driver best = null;
-        double bestDist = Double.MAX_VALUE;
-        Random r = new Random();
-        for (Driver d : drivers) {
-            if (!d.isAvailable()) continue;
-            // prefer matching car type if possible (small bias)
-            double simulatedDistance = 1 + r.nextDouble() * 10; // 1-11 km
-            if (d.getCar().getType() != type) simulatedDistance += 2.0; // bias penalty
-            if (simulatedDistance < bestDist) { bestDist = simulatedDistance; best = d; }
-        }
-        if (best == null) return null;
-        Booking b = new Booking(nextBookingId(), rider, pickup, drop, best, kms, type);
-        b.setEstimatedFare(estimate.finalFare);
-        b.setEtaMinutes(estimate.etaMinutes);
-        bookings.add(b);
-        // mark driver busy
-        best.setAvailable(false);
-        // attach booking to driver statistics
-        best.assignBooking(b);
-        return b;
+    // priced on the road route's distance (whole km), ETA from its travel time
+    public static FareEstimate estimateFare(RoadGraph.Route route, CarType type, double surgeMultiplier, PromoService promoService, String promoCode, String rider) {
+        long t0 = Metrics.startSampled();
+        FareEstimate e = estimate(Math.max(1, (int) Math.round(route.km())), type, surgeMultiplier, promoService, promoCode, rider);
+        e.etaMinutes = Math.max(1, (int) Math.ceil(route.minutes()));
+        Metrics.ESTIMATE_FARE.recordSince(t0);
+        return e;
     }
 
-    public List<Booking> getActiveBookingsForRider(String rider) {
-        List<Booking> out = new ArrayList<>();
-        for (Booking b : bookings) if (b.getRiderName().equals(rider) && b.getStatus() == BookingStatus.ACTIVE) out.add(b);
-        return out;
+    private static FareEstimate estimate(int km, CarType type, double surgeMultiplier, PromoService promoService, String promoCode, String rider) {
+        Metrics.FARE_ESTIMATES.inc();
+        int t = type.ordinal();
+        Promo promo = promoService.quotable(promoCode, rider);
+        double percent = promo == null ? 0.0 : promo.getPercent();
+        FareEstimate e = new FareEstimate();
+        e.baseFare = BASE;
+        e.distanceFare = distanceFare(km, t);
+        e.surgeMultiplier = surgeMultiplier;
+        e.surge = surge(e.distanceFare, surgeMultiplier);
+        double raw = e.baseFare + e.distanceFare + e.surge;
+        e.promoDiscount = raw * (percent / 100.0);
+        if (percent > 0) e.promoCode = promo.getCode();
+        e.finalFare = round2(raw - e.promoDiscount);
+        e.km = km;
+        e.estimatedFuelLiters = fuel(km, t);
+        return e;
     }
 
-    public List<Booking> getActiveBookings() {
-        List<Booking> out = new ArrayList<>();
-        for (Booking b : bookings) if (b.getStatus() == BookingStatus.ACTIVE) out.add(b);
-        return out;
+    /*
+     Batch quote: route i is km[i] in types[i]; surge may be null (no surge). promoPercent
+     (0 = none) applies to every route; see PromoService.discountPercent. Writes fareOut, etaOut
+     and fuelOut[0..km.length). A SplittableRandom for rnd avoids java.util.Random's CAS.
+    */
+    public static void quote(int[] km, CarType[] types, double[] surge, double promoPercent, java.util.random.RandomGenerator rnd,
+                             double[] fareOut, int[] etaOut, double[] fuelOut) {
+        double keep = 1.0 - promoPercent / 100.0;
+        for (int i = 0; i < km.length; i++) {
+            int t = types[i].ordinal();
+            double distance = distanceFare(km[i], t);
+            double raw = BASE + distance + surge(distance, surge == null ? 1.0 : surge[i]);
+            fareOut[i] = round2(raw * keep);
+            etaOut[i] = eta(km[i], rnd);
+            fuelOut[i] = fuel(km[i], t);
+        }
     }
 
-    public List<Booking> getAllBookings() { return Collections.unmodifiableList(bookings); }
-    public List<Booking> getBookingsForRider(String rider) {
-        List<Booking> out = new ArrayList<>();
-        for (Booking b : bookings) if (b.getRiderName().equals(rider)) out.add(b);
+    private static double distanceFare(int km, int type) { return PER_KM * km * RATE[type]; }
+    // surge applies to the distance component only
+    private static double surge(double distanceFare, double multiplier) { return round2((multiplier - 1.0) * distanceFare); }
+    // ETA without a road route: 2-5 min per km (simulated), plus 2 min base
+    private static int eta(int km, java.util.random.RandomGenerator rnd) { return Math.max(2, (int) Math.floor(2.5 + km * (2 + rnd.nextDouble() * 3))); }
+    private static double fuel(int km, int type) { return round2(LITERS_PER_KM[type] * km); }
+    // half-up to paise; same as Math.round for these non-negative amounts, but floor is a single
+    // instruction where Math.round(double) is a library call
+    private static double round2(double v) { return Math.floor(v * 100.0 + 0.5) / 100.0; }
+}
+
+/*
+ Per-zone surge pricing from live demand and supply.
+ The city is cut into ZONE_KM square zones. Demand is the number of ride requests per zone
+ over the last WINDOW_MS, kept as a ring of time buckets of LongAdders; supply is a LongAdder
+ gauge of available drivers per zone. Both are bumped on the request/claim hot paths without
+ locks. At most every REFRESH_MS one caller recomputes each zone's target multiplier from the
+ demand/supply ratio, eases the published value toward it (EWMA) and caps it, so a quote
+ costs one array read.
+ Counts are approximate: an increment racing the reset of a recycled bucket can be lost.
+*/
+final class SurgeEngine {
+    static final double ZONE_KM = 2.0;
+    static final int BUCKETS = 10;
+    static final long BUCKET_MS = 30_000;
+    static final long WINDOW_MS = BUCKETS * BUCKET_MS; // 5 minutes of demand
+    static final long REFRESH_MS = 5_000;
+    static final double SURGE_FROM_RATIO = 1.0; // requests per free driver per window before prices rise
+    static final double SENSITIVITY = 0.25; // multiplier added per unit of ratio above that
+    static final double MAX_MULTIPLIER = 1.5; // same ceiling as the old random surge
+    static final double SMOOTHING = 0.3; // EWMA weight of the target per REFRESH_MS elapsed
+
+    static final int SIDE = 2 * (int) Math.ceil(CityMap.RADIUS_KM / ZONE_KM) + 2; // one margin zone each side
+    static final int ZONES = SIDE * SIDE;
+    private static final double ZONE_LAT = Math.toDegrees(ZONE_KM / CityMap.EARTH_RADIUS_KM);
+    private static final double ZONE_LON = ZONE_LAT / Math.cos(Math.toRadians(CityMap.CENTER_LAT));
+    private static final double MIN_LAT = CityMap.CENTER_LAT - SIDE / 2.0 * ZONE_LAT;
+    private static final double MIN_LON = CityMap.CENTER_LON - SIDE / 2.0 * ZONE_LON;
+
+    record ZoneStat(int zone, double lat, double lon, long demand, long supply, double multiplier) {}
+
+    private final LongAdder[] demand = new LongAdder[BUCKETS * ZONES]; // [bucket slot][zone]
+    private final AtomicLongArray slotBucket = new AtomicLongArray(BUCKETS); // absolute bucket each slot holds
+    private final LongAdder[] supply = new LongAdder[ZONES];
+    private final AtomicLongArray multiplierBits = new AtomicLongArray(ZONES);
+    private final AtomicLong nextRefresh = new AtomicLong(Long.MIN_VALUE);
+    private volatile long lastRefresh = Long.MIN_VALUE;
+    private volatile java.time.Clock clock = java.time.Clock.systemUTC();
+
+    SurgeEngine() {
+        for (int i = 0; i < demand.length; i++) demand[i] = new LongAdder();
+        for (int z = 0; z < ZONES; z++) {
+            supply[z] = new LongAdder();
+            multiplierBits.set(z, Double.doubleToRawLongBits(1.0));
+        }
+        for (int i = 0; i < BUCKETS; i++) slotBucket.set(i, Long.MIN_VALUE);
+    }
+
+    void setClock(java.time.Clock c) { clock = c; }
+
+    // points outside the grid clamp to the edge zones
+    static int zoneOf(double lat, double lon) {
+        int y = Math.min(SIDE - 1, Math.max(0, (int) ((lat - MIN_LAT) / ZONE_LAT)));
+        int x = Math.min(SIDE - 1, Math.max(0, (int) ((lon - MIN_LON) / ZONE_LON)));
+        return y * SIDE + x;
+    }
+
+    public void recordRequest(double lat, double lon) {
+        long bucket = clock.millis() / BUCKET_MS;
+        int slot = (int) (bucket % BUCKETS);
+        long held = slotBucket.get(slot);
+        // first writer into a recycled slot clears what it held a window ago
+        if (held < bucket && slotBucket.compareAndSet(slot, held, bucket)) {
+            for (int z = 0; z < ZONES; z++) demand[slot * ZONES + z].reset();
+        }
+        demand[slot * ZONES + zoneOf(lat, lon)].increment();
+    }
+
+    public void driverAvailable(double lat, double lon) { supply[zoneOf(lat, lon)].increment(); }
+    public void driverUnavailable(double lat, double lon) { supply[zoneOf(lat, lon)].decrement(); }
+
+    public double multiplier(double lat, double lon) {
+        maybeRefresh();
+        return Double.longBitsToDouble(multiplierBits.get(zoneOf(lat, lon)));
+    }
+
+    private void maybeRefresh() {
+        long now = clock.millis();
+        long due = nextRefresh.get();
+        if (now >= due && nextRefresh.compareAndSet(due, now + REFRESH_MS)) refresh(now);
+    }
+
+    // recomputes every zone; callers are serialized by the nextRefresh CAS
+    void refresh(long now) {
+        long bucket = now / BUCKET_MS;
+        double steps = lastRefresh == Long.MIN_VALUE ? 1 : Math.max(0, now - lastRefresh) / (double) REFRESH_MS;
+        double weight = 1 - Math.pow(1 - SMOOTHING, Math.max(1, steps));
+        lastRefresh = now;
+        for (int z = 0; z < ZONES; z++) {
+            double ratio = windowDemand(z, bucket) / (double) Math.max(1, supply[z].sum());
+            double target = Math.min(MAX_MULTIPLIER, Math.max(1.0, 1.0 + SENSITIVITY * (ratio - SURGE_FROM_RATIO)));
+            double current = Double.longBitsToDouble(multiplierBits.get(z));
+            double next = Math.round((current + weight * (target - current)) * 100.0) / 100.0;
+            multiplierBits.set(z, Double.doubleToRawLongBits(next));
+        }
+    }
+
+    private long windowDemand(int zone, long bucket) {
+        long sum = 0;
+        for (int slot = 0; slot < BUCKETS; slot++) {
+            long held = slotBucket.get(slot);
+            if (held <= bucket && held > bucket - BUCKETS) sum += demand[slot * ZONES + zone].sum();
+        }
+        return sum;
+    }
+
+    // zones with any demand, supply or surge, highest multiplier first
+    public List<ZoneStat> zones() {
+        maybeRefresh();
+        long bucket = clock.millis() / BUCKET_MS;
+        List<ZoneStat> out = new ArrayList<>();
+        for (int z = 0; z < ZONES; z++) {
+            long d = windowDemand(z, bucket), sup = supply[z].sum();
+            double m = Double.longBitsToDouble(multiplierBits.get(z));
+            if (d == 0 && sup == 0 && m == 1.0) continue;
+            out.add(new ZoneStat(z, MIN_LAT + (z / SIDE + 0.5) * ZONE_LAT, MIN_LON + (z % SIDE + 0.5) * ZONE_LON, d, sup, m));
+        }
+        out.sort(Comparator.comparingDouble(ZoneStat::multiplier).reversed().thenComparing(Comparator.comparingLong(ZoneStat::demand).reversed()));
         return out;
     }
+}
 
-    public Booking findBookingById(int id) {
-        for (Booking b : bookings) if (b.getId() == id) return b;
+/*
+ Thread-safe: drivers and bookings live in concurrent maps, a driver is claimed with one
+ compare-and-set on its availability flag, and booking transitions are CAS'd out of ACTIVE,
+ so concurrent requests can never share a driver or finish a booking twice.
+*/
+class RideService {
+    static final double TYPE_MISMATCH_PENALTY_KM = 2.0; // prefer matching car type if possible (small bias)
+    static final int CLAIM_CANDIDATES = 4; // nearest drivers tried per type before re-querying
+    static final int CLAIM_ROUNDS = 8;
+    static final double TIE_KM = 0.2; // match costs in the same 200 m band count as a tie, broken by reputation
+    // booking timeouts: the driver gets the drive to pickup plus a grace period before a no-show;
+    // a trip may overrun twice its ETA plus some slack before it is closed and the driver released.
+    // The drive is the routed pickup time; PICKUP_KMH and PICKUP_ROAD_FACTOR guess it for unrouted bookings
+    static final double PICKUP_KMH = 20.0, PICKUP_ROAD_FACTOR = 1.3;
+    static final int NO_SHOW_GRACE_MIN = 5, TRIP_SLACK_MIN = 30;
+    private static final int TIMER_NO_SHOW = 1, TIMER_TRIP = 2;
+    static final long LOCATION_TICK_MS = 200; // how often coalesced GPS pings reach matching
+    static final int WAIT_CAPACITY = 200; // riders queued per zone and car type before newcomers are turned away
+    static final long DEFAULT_WAIT_MS = 120_000, MAX_WAIT_MS = 600_000;
+
+    private final ConcurrentSkipListMap<Integer, Driver> drivers = new ConcurrentSkipListMap<>();
+    private final BookingStore bookings = new BookingStore();
+    // available drivers only; kept in sync on every availability flip
+    private final DriverGridIndex availableIndex = new DriverGridIndex();
+    private final LocationFeed locations = new LocationFeed();
+    private final WaitQueue waiting = new WaitQueue(WAIT_CAPACITY);
+    private final FleetStore fleet = new FleetStore(); // columns of every driver, for radius scans
+    private final AtomicInteger driverCounter = new AtomicInteger(1);
+    private final AtomicInteger carCounter = new AtomicInteger(1);
+    private final AtomicInteger bookingCounter = new AtomicInteger(1);
+    private final int idOffset, idStride; // ids are counter * idStride + idOffset, so a shard's ids never collide
+    private Journal journal = Journal.NONE;
+    private BookingArchive archive; // null = everything stays on the heap
+    private volatile RoadGraph roads; // null = straight-line pickup distance, no routing
+    private java.time.Clock clock = java.time.Clock.systemDefaultZone(); // simulations swap in a SimClock
+    private final SurgeEngine surge = new SurgeEngine();
+    private final ReputationIndex reputation = new ReputationIndex();
+    private final Rollups rollups = new Rollups();
+    private PromoService promos; // null = estimates' promos are taken as already redeemed
+    private EventBus events; // null = lifecycle events are not published
+    private final Object timerLock = new Object();
+    private final Object archiveLock = new Object(); // held while bookings move to the archive, so a rating sees one copy
+    private TimingWheel timers = new TimingWheel(1000, clock.millis(), 1024); // guarded by timerLock
+
+    RideService() { this(0, 1); }
+
+    // shard `shard` of `shards`: every id it hands out is congruent to shard modulo shards
+    RideService(int shard, int shards) {
+        idOffset = shard;
+        idStride = shards;
+    }
+
+    public void setJournal(Journal j) { journal = j; }
+    public void setPromos(PromoService p) { promos = p; }
+    public void setEvents(EventBus bus) { events = bus; }
+    public void setClock(java.time.Clock c) {
+        clock = c;
+        surge.setClock(c);
+        synchronized (timerLock) { timers = new TimingWheel(1000, c.millis(), 1024); } // before any booking exists
+    }
+    public SurgeEngine getSurge() { return surge; }
+    public ReputationIndex getReputation() { return reputation; }
+    public Rollups getRollups() { return rollups; }
+    public int availableDriverCount() {
+        int n = 0;
+        for (CarType t : CarType.values()) n += availableIndex.size(t);
+        return n;
+    }
+    public int busyDriverCount() { return Math.max(0, drivers.size() - availableDriverCount()); } // O(drivers)
+    public int activeBookingCount() { return bookings.countWithStatus(BookingStatus.ACTIVE); }
+    public int waitingCount() { return waiting.size(); }
+    public double surgeAt(double lat, double lon) { return surge.multiplier(lat, lon); }
+    LocalDateTime now() { return LocalDateTime.now(clock); }
+
+    public Driver registerDriver(String name, String model, String plate, CarType type, double lat, double lon) {
+        Car c = new Car(nextCarId(), model, plate, type);
+        Driver d = new Driver(nextDriverId(), name, c);
+        d.setPosition(lat, lon);
+        Journal.Scope mutation = journal.mutation();
+        try {
+            journal.driverRegistered(d);
+            drivers.put(d.getId(), d);
+            fleet.add(d.getId(), type, lat, lon, d.getReputation());
+            reputation.add(d);
+            index(d);
+        } finally {
+            mutation.close();
+        }
+        if (events != null) events.publish(EventBus.Type.DRIVER_REGISTERED, clock.millis(), 0, d.getId(), null, type, lat, lon, 0, 0);
+        offerWaiting(d);
+        return d;
+    }
+    // no position given: spread the driver deterministically over the city by plate
+    public Driver registerDriver(String name, String model, String plate, CarType type) {
+        GeoPoint p = CityMap.locate(plate);
+        return registerDriver(name, model, plate, type, p.lat, p.lon);
+    }
+    // overloaded convenience
+    public Driver registerDriver(String name, String model, String plate) {
+        return registerDriver(name, model, plate, CarType.SEDAN);
+    }
+
+    // best-reputation drivers of a type, city-wide or in the surge zone around a point
+    public List<Driver> topDrivers(CarType type, GeoPoint near, int k) {
+        List<Driver> out = new ArrayList<>(k);
+        for (ReputationIndex.Entry e : reputation.top(type, near == null ? -1 : SurgeEngine.zoneOf(near.lat, near.lon), k)) {
+            Driver d = drivers.get(e.driverId());
+            if (d != null) out.add(d);
+        }
+        return out;
+    }
+
+    // available drivers of a type (null = any) within radiusKm of a point, nearest first
+    public List<Driver> driversWithin(double lat, double lon, CarType type, double radiusKm) {
+        List<Driver> out = new ArrayList<>();
+        for (int id : fleet.within(lat, lon, type, radiusKm)) {
+            Driver d = drivers.get(id);
+            if (d != null) out.add(d);
+        }
+        out.sort(Comparator.comparingDouble(d -> d.distanceKm(lat, lon)));
+        return out;
+    }
+
+    public long fleetStoreBytes() { return fleet.bytes(); }
+
+    public List<Driver> getDrivers() { return Collections.unmodifiableList(new ArrayList<>(drivers.values())); }
+    public Booking requestRide(String rider, String pickup, String drop, int kms, CarType type, FareEstimate estimate) {
+        GeoPoint p = CityMap.locate(pickup);
+        return requestRide(rider, pickup, p.lat, p.lon, drop, kms, type, estimate);
+    }
+
+    public Booking requestRide(String rider, String pickup, double pickupLat, double pickupLon,
+                               String drop, int kms, CarType type, FareEstimate estimate) {
+        long t0 = Metrics.start();
+        Metrics.RIDE_REQUESTS.inc();
+        noteRequest(rider, pickupLat, pickupLon, type, estimate);
+        PromoService.Reservation hold = holdPromo(rider, estimate);
+        Driver best = claimNearest(pickupLat, pickupLon, type);
+        if (best == null) {
+            if (hold != null && promos != null) promos.release(hold);
+            Metrics.NO_DRIVER.inc();
+            Metrics.REQUEST_RIDE.recordSince(t0);
+            return null;
+        }
+        Booking b = createBooking(best, rider, pickup, pickupLat, pickupLon, drop, kms, type, estimate, hold);
+        Metrics.REQUEST_RIDE.recordSince(t0);
+        return b;
+    }
+
+    // for a request that found no driver: queues the rider for up to maxWaitMs instead of having them
+    // retry. The ticket's result completes with the booking as soon as a driver comes free, or null when
+    // the wait runs out; a rejected ticket (queue full) is completed with null at once.
+    public WaitQueue.Ticket waitForDriver(String rider, String pickup, double pickupLat, double pickupLon, String drop,
+                                          int kms, CarType type, FareEstimate estimate, int priority, long maxWaitMs) {
+        WaitQueue.Ticket t = new WaitQueue.Ticket(rider, pickup, pickupLat, pickupLon, drop, kms, type, estimate, priority);
+        if (!waiting.enqueue(t, clock.millis(), maxWaitMs)) {
+            Metrics.RIDES_REJECTED.inc();
+            return t;
+        }
+        Metrics.RIDES_QUEUED.inc();
+        // a driver freed after the request failed but before the rider queued saw nobody waiting
+        Driver d = claimNearest(pickupLat, pickupLon, type);
+        if (d != null) {
+            if (waiting.cancel(t)) assign(d, t);
+            else release(d); // a freed driver got to the rider first
+        }
+        return t;
+    }
+
+    // books this service's nearest free driver for a request already counted as demand (taken in by
+    // another shard, or a batch that could not place it); null if none is free here either
+    Booking lendDriver(String rider, String pickup, double pickupLat, double pickupLon,
+                       String drop, int kms, CarType type, FareEstimate estimate) {
+        PromoService.Reservation hold = holdPromo(rider, estimate);
+        Driver d = claimNearest(pickupLat, pickupLon, type);
+        if (d == null) {
+            if (hold != null && promos != null) promos.release(hold);
+            return null;
+        }
+        return createBooking(d, rider, pickup, pickupLat, pickupLon, drop, kms, type, estimate, hold);
+    }
+
+    // books a specific driver chosen elsewhere (e.g. BatchDispatcher); null if someone else claimed it first
+    public Booking requestRideWith(Driver d, String rider, String pickup, double pickupLat, double pickupLon,
+                                   String drop, int kms, CarType type, FareEstimate estimate) {
+        if (!d.tryClaim()) return null; // also fails for removed drivers, which stay claimed
+        synchronized (d) { unindex(d); }
+        return createBooking(d, rider, pickup, pickupLat, pickupLon, drop, kms, type, estimate, holdPromo(rider, estimate));
+    }
+
+    // demand seen by surge pricing and event consumers, whether or not a driver is found
+    void noteRequest(String rider, double lat, double lon, CarType type, FareEstimate estimate) {
+        surge.recordRequest(lat, lon);
+        if (events != null) events.publish(EventBus.Type.RIDE_REQUESTED, clock.millis(), 0, 0, rider, type, lat, lon, estimate.finalFare, 0);
+    }
+
+    // NONE when there is nothing to hold; null when the quoted promo can no longer be redeemed by this rider
+    private PromoService.Reservation holdPromo(String rider, FareEstimate estimate) {
+        if (estimate.promoCode == null || promos == null) return PromoService.Reservation.NONE;
+        return promos.reserve(estimate.promoCode, rider);
+    }
+
+    private Booking createBooking(Driver d, String rider, String pickup, double pickupLat, double pickupLon,
+                                  String drop, int kms, CarType type, FareEstimate estimate, PromoService.Reservation hold) {
+        Booking b = new Booking(nextBookingId(), rider, pickup, drop, d, kms, type, BookingStatus.ACTIVE, now());
+        b.setPickupLocation(pickupLat, pickupLon);
+        RoadGraph g = roads;
+        RoadGraph.Route toPickup = g == null ? null : g.route(d.getLat(), d.getLon(), pickupLat, pickupLon);
+        b.setPickupKm(toPickup == null ? d.distanceKm(pickupLat, pickupLon) : toPickup.km());
+        if (toPickup != null) b.setPickupMinutes(toPickup.minutes());
+        // a promo that ran out (or hit the rider's limit) since the quote is dropped, not honoured
+        boolean discounted = hold != null;
+        b.setEstimatedFare(discounted ? estimate.finalFare : Math.round((estimate.finalFare + estimate.promoDiscount) * 100.0) / 100.0);
+        b.setEtaMinutes(estimate.etaMinutes);
+        b.setEstimatedFuelLiters(estimate.estimatedFuelLiters);
+        b.setAppliedPromo(discounted ? estimate.promoCode : null);
+        b.setPromoDiscount(discounted ? estimate.promoDiscount : 0.0);
+        if (discounted) b.setRedeemedPromo(hold.promo);
+        // attach booking to driver statistics
+        d.assignBooking(b);
+        // published before it becomes visible, so consumers never see a complete/cancel first
+        emit(EventBus.Type.DRIVER_ASSIGNED, b, b.getEstimatedFare());
+        Journal.Scope mutation = journal.mutation();
+        try {
+            // logged before it becomes visible, so a complete/cancel can never precede it in the log
+            journal.bookingCreated(b);
+            bookings.add(b);
+            rollups.created(b);
+            if (hold != null && promos != null) promos.commit(hold);
+        } finally {
+            mutation.close();
+        }
+        arm(b, TIMER_NO_SHOW, noShowDeadline(b));
+        return b;
+    }
+
+    // nearest available drivers of the requested type plus any other-type drivers that could
+    // still beat them after the mismatch penalty; not claimed, so they may be gone by the time they are used
+    public List<Driver> candidates(double lat, double lon, CarType type, int perType) {
+        List<Driver> out = new ArrayList<>(availableIndex.nearest(lat, lon, type, perType, Double.MAX_VALUE));
+        double cap = out.isEmpty() ? Double.MAX_VALUE : out.get(out.size() - 1).distanceKm(lat, lon);
+        for (CarType other : CarType.values()) {
+            if (other != type) out.addAll(availableIndex.nearest(lat, lon, other, perType, cap - TYPE_MISMATCH_PENALTY_KM));
+        }
+        return out;
+    }
+
+    // what matching minimizes: pickup distance plus the car-type mismatch penalty
+    public static double matchCost(Driver d, double lat, double lon, CarType type) {
+        return d.distanceKm(lat, lon) + (d.getCar().getType() == type ? 0 : TYPE_MISMATCH_PENALTY_KM);
+    }
+
+    // nearest available driver of the requested type; other types only win if they are
+    // closer even after the mismatch penalty, and among near-equal pickups the better
+    // reputation wins. Candidates are claimed in order; losing a race just moves on to the next one.
+    private Driver claimNearest(double lat, double lon, CarType type) {
+        for (int round = 0; round < CLAIM_ROUNDS; round++) {
+            List<Driver> candidates = candidates(lat, lon, type, CLAIM_CANDIDATES);
+            if (candidates.isEmpty()) return null;
+            candidates.sort(Comparator.comparingLong((Driver d) -> (long) (matchCost(d, lat, lon, type) / TIE_KM))
+                    .thenComparing(Comparator.comparingDouble(Driver::getReputation).reversed())
+                    .thenComparingDouble(d -> matchCost(d, lat, lon, type)));
+            for (Driver d : candidates) {
+                if (d.tryClaim()) {
+                    // mark driver busy
+                    synchronized (d) { unindex(d); }
+                    return d;
+                }
+            }
+        }
         return null;
     }
 
+    public List<Booking> getActiveBookingsForRider(String rider) {
+        return new ArrayList<>(bookings.activeForRider(rider));
+    }
+
+    public List<Booking> getActiveBookings() {
+        return new ArrayList<>(bookings.withStatus(BookingStatus.ACTIVE));
+    }
+
+    // archived history first (in closing order), then the hot store by id
+    public List<Booking> getAllBookings() {
+        if (archive == null) return bookings.all();
+        List<Booking> out = archive.page(0, archive.size(), this::driverOrNull);
+        out.addAll(bookings.all());
+        return out;
+    }
+
+    public List<Booking> getBookingsPage(int offset, int limit) {
+        return history(BookingExport.Filter.ALL).skip(offset).page(limit);
+    }
+
+    // rows of the paged history that pass the filter, read lazily: archived ones in closing order, then hot ones by id
+    // both halves are read under archiveLock, so a booking being archived meanwhile shows up exactly once
+    public BookingExport.Cursor history(BookingExport.Filter f) {
+        int archived;
+        java.nio.ByteBuffer[] chunks;
+        int[] records = null;
+        List<Booking> hot;
+        synchronized (archiveLock) {
+            archived = archive == null ? 0 : archive.size();
+            chunks = archive == null ? new java.nio.ByteBuffer[0] : archive.mappedChunks();
+            if (f.status() == BookingStatus.ACTIVE || archive == null) records = new int[0]; // the archive holds closed bookings only
+            else if (f.rider() != null) records = archive.recordsOfRider(f.rider(), archived);
+            hot = f.rider() != null ? bookings.forRider(f.rider())
+                    : f.status() != null ? new ArrayList<>(bookings.withStatus(f.status())) : bookings.all();
+        }
+        return new BookingExport.Cursor(f, archive, archived, chunks, records, hot, this::driverOrNull);
+    }
+
+    public List<Booking> getBookingsForRider(String rider) {
+        if (archive == null) return bookings.forRider(rider);
+        List<Booking> out = new ArrayList<>(archive.forRider(rider, this::driverOrNull));
+        out.addAll(bookings.forRider(rider));
+        return out;
+    }
+
+    public List<Booking> getBookingsForRiderPage(String rider, int offset, int limit) {
+        return history(BookingExport.Filter.rider(rider)).skip(offset).page(limit);
+    }
+
+    // driver settlement for bookings closed in [from, to), run on `parallelism` worker threads
+    public Settlement.Ledger settle(LocalDateTime from, LocalDateTime to, int parallelism) {
+        return Settlement.run(closedRows(from, to), parallelism);
+    }
+
+    // archived records as of now, then hot bookings. Both are read under archiveLock, so a booking
+    // being archived meanwhile is in exactly one of them rather than in neither
+    Settlement.Rows closedRows(LocalDateTime from, LocalDateTime to) {
+        int archived;
+        java.nio.ByteBuffer[] chunks;
+        List<Booking> all;
+        synchronized (archiveLock) {
+            archived = archive == null ? 0 : archive.size();
+            chunks = archive == null ? new java.nio.ByteBuffer[0] : archive.mappedChunks();
+            all = bookings.all();
+        }
+        List<Booking> hot = new ArrayList<>();
+        for (Booking b : all) if (b.getStatus() != BookingStatus.ACTIVE) hot.add(b);
+        return new Settlement.Rows(chunks, archived, hot.toArray(new Booking[0]), from, to);
+    }
+
+    // bookings still held on the heap (active ones plus closed ones not yet archived)
+    public List<Booking> getHotBookings() { return bookings.all(); }
+
+    public Booking findBookingById(int id) {
+        Booking b = bookings.get(id);
+        if (b == null && archive != null) b = archive.find(id, this::driverOrNull);
+        return b;
+    }
+
+    public void setRoads(RoadGraph g) { roads = g; }
+
+    // fastest road route, or null without a road graph or when none connects the two points
+    public RoadGraph.Route route(GeoPoint from, GeoPoint to) {
+        RoadGraph g = roads;
+        return g == null ? null : g.route(from, to);
+    }
+
+    public void setArchive(BookingArchive a) {
+        archive = a;
+        advance(bookingCounter, a.maxBookingId());
+    }
+
+    // moves bookings closed at least minAge ago to the archive; returns how many moved
+    public int archiveClosedBookings(java.time.Duration minAge) throws IOException {
+        if (archive == null) return 0;
+        LocalDateTime cutoff = now().minus(minAge);
+        List<Booking> batch = new ArrayList<>();
+        for (Booking b : bookings.withStatus(BookingStatus.COMPLETED)) if (!b.getCompletedAt().isAfter(cutoff)) batch.add(b);
+        for (Booking b : bookings.withStatus(BookingStatus.CANCELLED)) if (!b.getCancelledAt().isAfter(cutoff)) batch.add(b);
+        if (batch.isEmpty()) return 0;
+        synchronized (archiveLock) {
+            archive.append(batch); // durable before the hot copies go away
+            for (Booking b : batch) {
+                Journal.Scope mutation = journal.mutation();
+                try {
+                    bookings.remove(b);
+                    journal.bookingArchived(b.getId());
+                } finally {
+                    mutation.close();
+                }
+            }
+        }
+        return batch.size();
+    }
+
     public boolean completeBooking(int bookingId) {
-        Booking b = findBookingById(bookingId);
-        if (b == null || b.getStatus() != BookingStatus.ACTIVE) return false;
-        b.setStatus(BookingStatus.COMPLETED);
-        b.setCompletedAt(LocalDateTime.now());
-        b.getDriver().setAvailable(true);
-        return true;
+        long t0 = Metrics.start();
+        try {
+            Booking b = findBookingById(bookingId);
+            if (b == null) return false;
+            Journal.Scope mutation = journal.mutation();
+            try {
+                if (!bookings.transition(b, BookingStatus.ACTIVE, BookingStatus.COMPLETED, () -> b.setCompletedAt(now()))) return false;
+                journal.bookingCompleted(b);
+                rollups.completed(b);
+            } finally {
+                mutation.close();
+            }
+            disarm(b);
+            release(b.getDriver());
+            emit(EventBus.Type.BOOKING_COMPLETED, b, b.getEstimatedFare());
+            Metrics.COMPLETED.inc();
+            return true;
+        } finally {
+            Metrics.COMPLETE_BOOKING.recordSince(t0);
+        }
     }
 
     // returns cancellation fee charged
     public double cancelBooking(int bookingId) {
+        long t0 = Metrics.start();
+        try {
+            return cancel(bookingId);
+        } finally {
+            Metrics.CANCEL_BOOKING.recordSince(t0);
+        }
+    }
+
+    private double cancel(int bookingId) {
         Booking b = findBookingById(bookingId);
         if (b == null || b.getStatus() != BookingStatus.ACTIVE) return 0.0;
         // cancellation policy:
         // - if cancel within 2 minutes of booking (simulated) => no fee
         // - else: 10% of estimated fare but min 20
-        int minutesSince = Math.max(0, (int) java.time.Duration.between(b.getCreatedAt(), LocalDateTime.now()).toMinutes());
-        double fee = 0.0;
-        if (minutesSince <= 2) fee = 0.0;
-        else {
-            fee = Math.max(20.0, 0.10 * b.getEstimatedFare());
+        int minutesSince = Math.max(0, (int) java.time.Duration.between(b.getCreatedAt(), now()).toMinutes());
+        double raw = minutesSince <= 2 ? 0.0 : Math.max(20.0, 0.10 * b.getEstimatedFare());
+        double fee = Math.round(raw * 100.0) / 100.0;
+        Journal.Scope mutation = journal.mutation();
+        try {
+            boolean won = bookings.transition(b, BookingStatus.ACTIVE, BookingStatus.CANCELLED, () -> {
+                b.setCancelledAt(now());
+                b.setCancellationFee(fee);
+            });
+            if (!won) return 0.0; // lost the race
+            journal.bookingCancelled(b);
+            rollups.cancelled(b);
+            if (b.getRedeemedPromo() != null && promos != null) promos.refund(b.getRedeemedPromo(), b.getRiderName());
+        } finally {
+            mutation.close();
+        }
+        disarm(b);
+        release(b.getDriver());
+        emit(EventBus.Type.BOOKING_CANCELLED, b, fee);
+        Metrics.CANCELLED.inc();
+        return fee;
+    }
+
+    // driver has the rider on board: swaps the no-show timer for the trip-duration one
+    public boolean confirmPickup(int bookingId) {
+        Booking b = bookings.get(bookingId);
+        if (b == null) return false;
+        synchronized (b) { // against the no-show timer
+            if (b.getStatus() != BookingStatus.ACTIVE || b.getPickedUpAt() != null) return false;
+            Journal.Scope mutation = journal.mutation();
+            try {
+                b.setPickedUpAt(now());
+                journal.pickupConfirmed(b);
+            } finally {
+                mutation.close();
+            }
+        }
+        arm(b, TIMER_TRIP, tripDeadline(b));
+        return true;
+    }
+
+    // ---------- booking timers ----------
+    // fires timers due by the clock: no-shows are cancelled (the usual fee applies), overlong trips
+    // completed, both releasing the driver; queued riders past their wait give up. Main ticks this
+    // every second; simulations after each step.
+    public int runDueTimers() {
+        for (WaitQueue.Ticket t : waiting.expire(clock.millis())) {
+            Metrics.RIDES_ABANDONED.inc();
+            t.result.complete(null);
+        }
+        long[] due;
+        synchronized (timerLock) { due = timers.advanceTo(clock.millis()); }
+        int closed = 0;
+        for (long t : due) {
+            Booking b = bookings.get((int) (t >>> 8));
+            if (b == null) continue;
+            if ((t & 0xff) == TIMER_NO_SHOW) {
+                synchronized (b) {
+                    if (b.getPickedUpAt() != null || b.getStatus() != BookingStatus.ACTIVE) continue;
+                    cancelBooking(b.getId());
+                }
+                if (b.getStatus() == BookingStatus.CANCELLED) { Metrics.NO_SHOWS.inc(); closed++; }
+            } else if (completeBooking(b.getId())) {
+                Metrics.TRIP_TIMEOUTS.inc();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    public int pendingTimers() {
+        synchronized (timerLock) { return timers.size(); }
+    }
+
+    LocalDateTime noShowDeadline(Booking b) {
+        double driveMin = b.getPickupMinutes() > 0 ? b.getPickupMinutes() : b.getPickupKm() * PICKUP_ROAD_FACTOR / PICKUP_KMH * 60;
+        return b.getCreatedAt().plusSeconds((long) Math.ceil((NO_SHOW_GRACE_MIN + driveMin) * 60));
+    }
+
+    LocalDateTime tripDeadline(Booking b) {
+        return b.getPickedUpAt().plusMinutes(2L * b.getEtaMinutes() + TRIP_SLACK_MIN);
+    }
+
+    // a booking holds at most one timer; arming replaces it. Closed bookings are never armed, and
+    // closing disarms after the status flip, so a close racing an arm cannot leave a timer behind.
+    private void arm(Booking b, int kind, LocalDateTime due) {
+        long at = due.atZone(clock.getZone()).toInstant().toEpochMilli();
+        synchronized (timerLock) {
+            if (b.getStatus() != BookingStatus.ACTIVE) return;
+            timers.cancel(b.getTimer());
+            b.setTimer(timers.schedule(at, b.getId(), kind));
+        }
+    }
+
+    private void disarm(Booking b) {
+        synchronized (timerLock) {
+            timers.cancel(b.getTimer());
+            b.setTimer(0);
         }
-        b.setStatus(BookingStatus.CANCELLED);
-        b.getDriver().setAvailable(true);
-        b.setCancelledAt(LocalDateTime.now());
-        return Math.round(fee * 100.0) / 100.0;
     }
 
     public boolean rateDriver(int driverId, int stars) {
         Driver d = findDriverById(driverId);
         if (d == null) return false;
-        d.addRating(stars);
+        long at = clock.millis();
+        Journal.Scope mutation = journal.mutation();
+        try {
+            d.addRating(stars);
+            reputation.rate(d, stars, at);
+            fleet.setScore(driverId, d.getReputation());
+            journal.driverRated(driverId, stars, at);
+        } finally {
+            mutation.close();
+        }
+        if (events != null) events.publish(EventBus.Type.DRIVER_RATED, at, 0, driverId, null, d.getCar().getType(), 0, 0, 0, stars);
         return true;
     }
 
-    public boolean removeDriver(int id) {
-        for (Driver d : drivers) {
-            if (d.getId() == id) {
-                if (!d.isAvailable()) return false; // cannot remove busy driver
-                drivers.remove(d);
-                return true;
+    // the rider's rating of a completed booking, taken once; false when it is not completed or already rated
+    public boolean rateBooking(int bookingId, int stars) {
+        long at = clock.millis();
+        Booking b;
+        Driver d;
+        synchronized (archiveLock) {
+            Journal.Scope mutation = journal.mutation();
+            try {
+                b = bookings.get(bookingId);
+                if (b != null) {
+                    if (b.getStatus() != BookingStatus.COMPLETED || !b.rate(stars)) return false;
+                } else {
+                    if (archive == null || !archive.rate(bookingId, stars)) return false;
+                    b = archive.find(bookingId, this::driverOrNull);
+                }
+                d = drivers.get(b.getDriver().getId());
+                if (d != null) {
+                    d.addRating(stars);
+                    reputation.rate(d, stars, at);
+                    fleet.setScore(d.getId(), d.getReputation());
+                }
+                journal.bookingRated(bookingId, b.getDriver().getId(), stars, at);
+            } finally {
+                mutation.close();
             }
         }
-        return false;
+        if (events != null) events.publish(EventBus.Type.DRIVER_RATED, at, bookingId, b.getDriver().getId(), b.getRiderName(),
+                b.getDriver().getCar().getType(), 0, 0, 0, stars);
+        return true;
     }
 
-    private Driver findDriverById(int id) {
-        for (Driver d : drivers) if (d.getId() == id) return d;
-        return null;
+    public boolean removeDriver(int id) {
+        Driver d = drivers.get(id);
+        if (d == null) return false;
+        // claiming first means no request can grab the driver while it is being removed
+        if (!d.tryClaim()) return false; // cannot remove busy driver
+        synchronized (d) { unindex(d); }
+        Journal.Scope mutation = journal.mutation();
+        try {
+            drivers.remove(id);
+            fleet.remove(id);
+            reputation.remove(d);
+            journal.driverRemoved(id);
+        } finally {
+            mutation.close();
+        }
+        return true;
     }
 
-    private synchronized int nextDriverId() { return driverCounter++; }
-    private synchronized int nextCarId() { return carCounter++; }
-    private synchronized int nextBookingId() { return bookingCounter++; }
-}
-
-class Booking {
-    private final int id;
-    private final String riderName;
-    private final String pickup;
-    private final String drop;
-    private final Driver driver;
-    private final int kms;
-    private final CarType requestedType;
-    private BookingStatus status;
-    private final LocalDateTime createdAt;
-    private LocalDateTime completedAt;
-    private LocalDateTime cancelledAt;
-    private double estimatedFare;
-    private String appliedPromo;
-    private int etaMinutes;
-    private double estimatedFuelLiters;
+    // a GPS ping from a driver's app. Never blocks: it only records the latest position, and the
+    // next applyLocations() tick moves the driver. Pings for unknown ids are dropped there
+    public void ping(int driverId, double lat, double lon) {
+        locations.ping(driverId, lat, lon, System.nanoTime());
+    }
 
-    public Booking(int id, String riderName, String pickup, String drop, Driver driver, int kms, CarType type) {
-        this.id = id; this.riderName = riderName; this.pickup = pickup; this.drop = drop;
-        this.driver = driver; this.kms = kms; this.requestedType = type;
-        this.status = BookingStatus.ACTIVE; this.createdAt = LocalDateTime.now();
+    // moves every driver pinged since the last tick to their latest position; returns how many.
+    // Matching keeps reading the index meanwhile: each driver is re-filed on its own, under its lock
+    public int applyLocations() {
+        long t0 = System.nanoTime();
+        int n = locations.drain((id, lat, lon, pingedAt) -> {
+            Driver d = drivers.get(id);
+            if (d != null) move(d, lat, lon);
+            Metrics.LOCATION_STALENESS.record(System.nanoTime() - pingedAt);
+        });
+        Metrics.LOCATION_TICK.recordSince(t0);
+        return n;
     }
 
-    public int getId() { return id; }
-    public String getRiderName() { return riderName; }
-    public Driver getDriver() { return driver; }
-    public BookingStatus getStatus() { return status; }
-    public void setStatus(BookingStatus s) { status = s; }
-    public LocalDateTime getCreatedAt() { return createdAt; }
-    public void setCompletedAt(LocalDateTime t) { completedAt = t; }
-    public void setCancelledAt(LocalDateTime t) { cancelledAt = t; }
-    public void setEstimatedFare(double f) { estimatedFare = f; }
-    public double getEstimatedFare() { return estimatedFare; }
-    public void setAppliedPromo(String p) { appliedPromo = p; }
-    public void setEtaMinutes(int m) { etaMinutes = m; }
-    public int getEtaMinutes() { return etaMinutes; }
-    public void setEstimatedFuelLiters(double l) { estimatedFuelLiters = l; }
+    public long locationPings() { return locations.pingCount(); }
 
-    public String summary() {
-        return String.format("Booking #%d | Rider:%s | %s->%s | Driver:%s | Fare:₹%.2f | Status:%s",
-                id, riderName, pickup, drop, driver.getName(), estimatedFare, status);
+    // ---------- recovery (Persistence replays snapshots/logs through these; nothing is journaled) ----------
+    void restoreDriver(Driver d) {
+        drivers.put(d.getId(), d);
+        fleet.add(d.getId(), d.getCar().getType(), d.getLat(), d.getLon(), d.getReputation());
+        advance(driverCounter, d.getId());
+        advance(carCounter, d.getCar().getId());
+        reputation.add(d);
+        if (d.isAvailable()) index(d);
     }
 
-    public String detailed() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Booking #").append(id).append("\n");
-        sb.append(" Rider: ").append(riderName).append("\n");
-        sb.append(" Pickup: ").append(pickup).append("\n");
-        sb.append(" Drop: ").append(drop).append("\n");
-        sb.append(" Distance: ").append(kms).append(" km\n");
-        sb.append(" Driver: ").append(driver.brief()).append("\n");
-        sb.append(String.format(" Estimated fare: ₹%.2f (Promo: %s)\n", estimatedFare, appliedPromo==null?"none":appliedPromo));
-        sb.append(" ETA: ").append(etaMinutes).append(" mins\n");
-        sb.append(String.format(" Fuel est: %.2f L\n", estimatedFuelLiters));
-        sb.append(" Created: ").append(Main.dtf.format(createdAt)).append("\n");
-        if (completedAt != null) sb.append(" Completed: ").append(Main.dtf.format(completedAt)).append("\n");
-        if (cancelledAt != null) sb.append(" Cancelled: ").append(Main.dtf.format(cancelledAt)).append("\n");
-        sb.append(" Status: ").append(status).append("\n");
-        return sb.toString();
+    void restoreDriverRemoved(int id) {
+        Driver d = drivers.remove(id);
+        if (d != null) { unindex(d); fleet.remove(id); reputation.remove(d); }
     }
-}
 
-class Driver {
-    private final int id;
-    private final String name;
-    private final Car car;
-    private boolean available;
-    private int ratingSum;
-    private int ratingCount;
-    private Booking currentBooking;
+    void restoreRating(Driver d, int stars, long atMillis) {
+        d.addRating(stars);
+        reputation.rate(d, stars, atMillis == Long.MIN_VALUE ? clock.millis() : atMillis);
+        fleet.setScore(d.getId(), d.getReputation());
+    }
 
-    public Driver(int id, String name, Car car) {
-        this.id = id; this.name = name; this.car = car; this.available = true;
+    // the archive may already hold the rating (it is written in place), so marking the booking is idempotent
+    void restoreBookingRating(int bookingId, int driverId, int stars, long atMillis) {
+        Booking b = bookings.get(bookingId);
+        if (b != null) b.rate(stars);
+        else if (archive != null) archive.rate(bookingId, stars);
+        Driver d = drivers.get(driverId);
+        if (d != null) restoreRating(d, stars, atMillis);
     }
-    public int getId() { return id; }
-    public String getName() { return name; }
-    public Car getCar() { return car; }
-    public boolean isAvailable() { return available; }
-    public void setAvailable(boolean a) { available = a; }
-    public void assignBooking(Booking b) { this.currentBooking = b; }
-    public void addRating(int r) { ratingSum += r; ratingCount++; }
-    public double getAverageRating() { return ratingCount==0?0.0:((double)ratingSum)/ratingCount; }
-    public String brief() { return String.format("%s (%s) [%s]", name, car.getModel(), car.getPlate()); }
 
-    @Override
-    public String toString() {
-        String avail = available ? "Available" : "Busy";
-        String rating = ratingCount==0? "No ratings" : String.format("%.2f (%d)", getAverageRating(), ratingCount);
-        return String.format("Driver #%d: %s | %s | %s | Rating: %s", id, name, car.brief(), avail, rating);
+    // the booking's driver must already be restored (a removed driver is kept detached)
+    void restoreBooking(Booking b) {
+        advance(bookingCounter, b.getId());
+        if (archive != null && archive.contains(b.getId())) return; // archived before the log said so
+        Driver d = b.getDriver();
+        if (b.getStatus() == BookingStatus.ACTIVE && d.tryClaim()) unindex(d);
+        // promos are restored before the bookings that redeemed them, so this is the instance a cancel refunds
+        if (b.getStatus() == BookingStatus.ACTIVE && promos != null) b.setRedeemedPromo(promos.find(b.getAppliedPromo()));
+        d.assignBooking(b);
+        bookings.add(b);
+        if (b.getStatus() == BookingStatus.ACTIVE) {
+            if (b.getPickedUpAt() == null) arm(b, TIMER_NO_SHOW, noShowDeadline(b));
+            else arm(b, TIMER_TRIP, tripDeadline(b));
+        }
     }
-}
 
-class Car {
-    private final int id;
+    // a booking first seen in the log (so not yet in the restored rollups)
+    void restoreCreated(Booking b) {
+        rollups.created(b);
+        restoreBooking(b);
+    }
+
+    // rollups for snapshots that predate them: one pass over the archive and the hot bookings
+    void rebuildRollups() {
+        List<Booking> all = getAllBookings();
+        for (Booking b : all) {
+            rollups.created(b);
+            if (b.getStatus() == BookingStatus.COMPLETED) rollups.completed(b);
+            else if (b.getStatus() == BookingStatus.CANCELLED) rollups.cancelled(b);
+        }
+    }
+
+    void restorePickup(int bookingId, LocalDateTime at) {
+        Booking b = bookings.get(bookingId);
+        if (b == null || b.getStatus() != BookingStatus.ACTIVE) return;
+        b.setPickedUpAt(at);
+        arm(b, TIMER_TRIP, tripDeadline(b));
+    }
+
+    void restoreTransition(int bookingId, BookingStatus to, LocalDateTime at, double fee) {
+        Booking b = findBookingById(bookingId);
+        if (b == null || !bookings.transition(b, BookingStatus.ACTIVE, to, () -> {
+            if (to == BookingStatus.COMPLETED) b.setCompletedAt(at);
+            else { b.setCancelledAt(at); b.setCancellationFee(fee); }
+        })) return;
+        if (to == BookingStatus.COMPLETED) rollups.completed(b); else rollups.cancelled(b);
+        disarm(b);
+        if (drivers.containsKey(b.getDriver().getId())) markAvailable(b.getDriver());
+    }
+
+    void restoreArchived(int bookingId) {
+        Booking b = bookings.get(bookingId);
+        if (b != null) bookings.remove(b);
+    }
+
+    Driver driverOrNull(int id) { return drivers.get(id); }
+
+    private void advance(AtomicInteger counter, int usedId) {
+        counter.accumulateAndGet(usedId / idStride + 1, Math::max);
+    }
+
+    private Driver findDriverById(int id) {
+        return drivers.get(id);
+    }
+
+    // index updates are serialized per driver so a release racing a claim cannot leave
+    // a busy driver in the index (the claimer's removal always runs after the add)
+    private void markAvailable(Driver d) {
+        synchronized (d) {
+            d.setAvailable(true);
+            index(d);
+        }
+    }
+
+    // a driver done with a booking goes straight to the best waiting rider, else back to the index
+    private void release(Driver d) {
+        WaitQueue.Ticket t = waiting.take(d, clock.millis());
+        if (t != null) {
+            assign(d, t);
+            return;
+        }
+        markAvailable(d);
+        offerWaiting(d);
+    }
+
+    // a rider may have queued while the driver was being made available. Claiming first means a
+    // concurrent request and this never both act on the driver; an unclaimed driver stays indexed
+    private void offerWaiting(Driver d) {
+        while (!waiting.isEmpty() && d.tryClaim()) {
+            WaitQueue.Ticket t = waiting.take(d, clock.millis());
+            if (t == null) {
+                d.setAvailable(true);
+                continue; // look again: someone may have queued while the driver was claimed
+            }
+            synchronized (d) { unindex(d); }
+            assign(d, t);
+            return;
+        }
+    }
+
+    // books a claimed, unindexed driver for a waiting rider; the request was noted when first made
+    private void assign(Driver d, WaitQueue.Ticket t) {
+        try {
+            Booking b = createBooking(d, t.rider, t.pickup, t.lat, t.lon, t.drop, t.kms, t.type, t.estimate, holdPromo(t.rider, t.estimate));
+            Metrics.RIDE_WAIT.record((clock.millis() - t.queuedAt) * 1_000_000);
+            t.result.complete(b);
+        } catch (RuntimeException e) {
+            t.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void emit(EventBus.Type type, Booking b, double amount) {
+        if (events != null) events.publish(type, clock.millis(), b.getId(), b.getDriver().getId(), b.getRiderName(),
+                b.getRequestedType(), b.getPickupLat(), b.getPickupLon(), amount, 0);
+    }
+
+    // every change to the available set goes through these so surge supply stays in step
+    private void index(Driver d) {
+        if (availableIndex.add(d)) {
+            surge.driverAvailable(d.getLat(), d.getLon());
+            fleet.setAvailable(d.getId(), true);
+        }
+        reputation.moved(d); // catches up on moves made while busy
+    }
+
+    private void unindex(Driver d) {
+        if (availableIndex.remove(d)) {
+            surge.driverUnavailable(d.getLat(), d.getLon());
+            fleet.setAvailable(d.getId(), false);
+        }
+    }
+
+    private void move(Driver d, double lat, double lon) {
+        synchronized (d) {
+            GeoPoint from = d.getPosition();
+            fleet.moveTo(d.getId(), lat, lon);
+            if (availableIndex.move(d, lat, lon) && SurgeEngine.zoneOf(from.lat, from.lon) != SurgeEngine.zoneOf(lat, lon)) {
+                surge.driverUnavailable(from.lat, from.lon);
+                surge.driverAvailable(lat, lon);
+            }
+            reputation.moved(d);
+        }
+    }
+
+    private int nextDriverId() { return driverCounter.getAndIncrement() * idStride + idOffset; }
+    private int nextCarId() { return carCounter.getAndIncrement() * idStride + idOffset; }
+    private int nextBookingId() { return bookingCounter.getAndIncrement() * idStride + idOffset; }
+}
+
+/*
+ Riders waiting for a driver when none was free, one queue per surge zone and car type; within a
+ queue higher priority goes first, then arrival order. A driver coming free is handed to a waiter
+ searched ring by ring outward from its zone: other-type waiters count one ring farther, like the
+ matching mismatch penalty, and within a ring priority then arrival decide. Riders give up at their
+ own deadline, and a full queue turns newcomers away at once with an estimated wait instead of
+ letting them retry into it. One lock guards it all; it is only contended while riders are waiting.
+*/
+final class WaitQueue {
+    static final int WAITING = 0, TAKEN = 1, ABANDONED = 2;
+    static final double SMOOTHING = 0.2; // EWMA weight of the latest gap between two serves of a queue
+    private static final int TYPES = CarType.values().length, QUEUES = SurgeEngine.ZONES * TYPES;
+    private static final Comparator<Ticket> ORDER = (a, b) ->
+            a.priority != b.priority ? Integer.compare(b.priority, a.priority) : Long.compare(a.seq, b.seq);
+
+    static final class Ticket {
+        final String rider, pickup, drop;
+        final double lat, lon;
+        final int kms, priority, zone;
+        final CarType type;
+        final FareEstimate estimate;
+        // completes with the booking, or null when the wait ran out or the queue was full
+        final CompletableFuture<Booking> result = new CompletableFuture<>();
+        // as of enqueue; estimatedWaitMs is -1 until some queue has been served
+        int ahead;
+        long estimatedWaitMs = -1, queuedAt, deadline;
+        boolean rejected;
+        private long seq;
+        private int state = WAITING; // guarded by the queue
+
+        Ticket(String rider, String pickup, double lat, double lon, String drop, int kms, CarType type, FareEstimate estimate, int priority) {
+            this.rider = rider; this.pickup = pickup; this.lat = lat; this.lon = lon; this.drop = drop;
+            this.kms = kms; this.type = type; this.estimate = estimate; this.priority = priority;
+            this.zone = SurgeEngine.zoneOf(lat, lon);
+        }
+    }
+
+    private final int capacity; // waiting riders per queue
+    private final List<PriorityQueue<Ticket>> queues = new ArrayList<>(Collections.nCopies(QUEUES, null)); // created on first use
+    private final PriorityQueue<Ticket> byDeadline = new PriorityQueue<>(Comparator.comparingLong((Ticket t) -> t.deadline));
+    // per queue plus one city-wide slot at the end: live depth, and the serve rate while non-empty
+    private final int[] depth = new int[QUEUES + 1];
+    private final long[] busySince = new long[QUEUES + 1], lastServed = new long[QUEUES + 1];
+    private final double[] gapMs = new double[QUEUES + 1];
+    private long nextSeq;
+    private volatile int waiting;
+
+    WaitQueue(int capacity) { this.capacity = capacity; }
+
+    int size() { return waiting; }
+    boolean isEmpty() { return waiting == 0; }
+
+    // false (and the ticket completed with null) when its queue is already full
+    synchronized boolean enqueue(Ticket t, long now, long maxWaitMs) {
+        int q = t.zone * TYPES + t.type.ordinal();
+        t.ahead = depth[q];
+        t.estimatedWaitMs = estimate(q, depth[q] + 1);
+        if (depth[q] >= capacity) {
+            t.rejected = true;
+            t.state = ABANDONED;
+            t.result.complete(null);
+            return false;
+        }
+        t.seq = nextSeq++;
+        t.queuedAt = now;
+        t.deadline = now + maxWaitMs;
+        PriorityQueue<Ticket> pq = queues.get(q);
+        if (pq == null) queues.set(q, pq = new PriorityQueue<>(ORDER));
+        pq.add(t);
+        byDeadline.add(t);
+        join(q, now);
+        join(QUEUES, now);
+        waiting++;
+        return true;
+    }
+
+    // the waiter the driver should serve, marked taken; null when nobody is waiting
+    synchronized Ticket take(Driver d, long now) {
+        if (waiting == 0) return null;
+        int zone = SurgeEngine.zoneOf(d.getLat(), d.getLon()), own = d.getCar().getType().ordinal();
+        for (int r = 0; r <= SurgeEngine.SIDE; r++) {
+            Ticket best = bestOnRing(zone, r, own, true, null);
+            if (r > 0) best = bestOnRing(zone, r - 1, own, false, best);
+            if (best == null) continue;
+            int q = best.zone * TYPES + best.type.ordinal();
+            queues.get(q).poll();
+            leave(best, TAKEN);
+            served(q, now);
+            served(QUEUES, now);
+            return best;
+        }
+        return null;
+    }
+
+    // the rider found a driver on their own; false if a freed driver already took the ticket
+    synchronized boolean cancel(Ticket t) {
+        if (t.state != WAITING) return false;
+        leave(t, TAKEN);
+        return true;
+    }
+
+    // tickets whose deadline has passed, marked abandoned; the caller completes them
+    synchronized List<Ticket> expire(long now) {
+        List<Ticket> out = new ArrayList<>();
+        for (Ticket t; (t = byDeadline.peek()) != null && (t.state != WAITING || t.deadline <= now); ) {
+            byDeadline.poll();
+            if (t.state == WAITING) {
+                leave(t, ABANDONED);
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    // best live head among the queues of the zones r rings out, of the driver's type or of the others
+    private Ticket bestOnRing(int zone, int r, int own, boolean sameType, Ticket best) {
+        int zx = zone % SurgeEngine.SIDE, zy = zone / SurgeEngine.SIDE;
+        for (int dy = -r; dy <= r; dy++) {
+            int y = zy + dy;
+            if (y < 0 || y >= SurgeEngine.SIDE) continue;
+            int step = dy == -r || dy == r ? 1 : 2 * r; // inner rows only touch the ring at both ends
+            for (int dx = -r; dx <= r; dx += step) {
+                int x = zx + dx;
+                if (x < 0 || x >= SurgeEngine.SIDE) continue;
+                for (int type = 0; type < TYPES; type++) {
+                    if ((type == own) != sameType) continue;
+                    Ticket h = head((y * SurgeEngine.SIDE + x) * TYPES + type);
+                    if (h != null && (best == null || ORDER.compare(h, best) < 0)) best = h;
+                }
+            }
+        }
+        return best;
+    }
+
+    // taken and abandoned tickets are dropped lazily as they surface
+    private Ticket head(int q) {
+        PriorityQueue<Ticket> pq = queues.get(q);
+        if (pq == null) return null;
+        while (!pq.isEmpty() && pq.peek().state != WAITING) pq.poll();
+        return pq.peek();
+    }
+
+    private void leave(Ticket t, int state) {
+        t.state = state;
+        depth[t.zone * TYPES + t.type.ordinal()]--;
+        depth[QUEUES]--;
+        waiting--;
+    }
+
+    private void join(int q, long now) {
+        if (depth[q]++ == 0) busySince[q] = now;
+    }
+
+    // gaps only count time the queue had someone waiting, so a quiet hour does not read as a slow serve
+    private void served(int q, long now) {
+        long gap = now - Math.max(lastServed[q], busySince[q]);
+        gapMs[q] = gapMs[q] == 0 ? Math.max(1, gap) : gapMs[q] + SMOOTHING * (gap - gapMs[q]);
+        lastServed[q] = now;
+    }
+
+    // the queue's own serve rate once it has one, else as if the whole city were one line
+    private long estimate(int q, int position) {
+        if (gapMs[q] > 0) return (long) (position * gapMs[q]);
+        int city = QUEUES;
+        return gapMs[city] > 0 ? (long) ((depth[city] + 1) * gapMs[city]) : -1;
+    }
+}
+
+/*
+ Hierarchical timing wheel: LEVELS wheels of 64 slots, level n slots spanning 64^n ticks.
+ Timers are rows in parallel primitive arrays threaded into per-slot doubly linked lists
+ (25 bytes each, no object per timer), so schedule and cancel are O(1) and advancing
+ costs O(1) per tick plus the timers that cascade down a level or fire. Handles carry a
+ generation, so cancelling a timer that already fired (and whose row was reused) is a no-op.
+ Timers never fire early and at most one tick late. Not thread-safe: callers serialize.
+*/
+final class TimingWheel {
+    static final int BITS = 6, SLOTS = 1 << BITS, LEVELS = 4; // 1s ticks => ~194 days of range
+    private static final long[] NO_FIRED = new long[0];
+
+    private final long tickMs;
+    private long tick; // every timer due at or before this tick has fired
+    private final int[] heads = new int[LEVELS * SLOTS];
+    private int[] next, prev, gen, payload;
+    private long[] dueTick;
+    private byte[] kind;
+    private int rows, free = -1, size;
+    private long[] fired = new long[16];
+    private int firedCount;
+
+    TimingWheel(long tickMs, long nowMs, int capacity) {
+        this.tickMs = tickMs;
+        this.tick = Math.floorDiv(nowMs, tickMs);
+        Arrays.fill(heads, -1);
+        next = new int[capacity]; prev = new int[capacity]; gen = new int[capacity]; payload = new int[capacity];
+        dueTick = new long[capacity]; kind = new byte[capacity];
+    }
+
+    int size() { return size; }
+
+    // handle for cancel(); never 0, so callers can use 0 for "no timer"
+    long schedule(long dueMs, int payload, int kind) {
+        int r = allocate();
+        this.payload[r] = payload;
+        this.kind[r] = (byte) kind;
+        dueTick[r] = Math.max(tick + 1, Math.floorDiv(dueMs + tickMs - 1, tickMs)); // round up: never early
+        link(r);
+        size++;
+        return ((long) gen[r] << 32) | r;
+    }
+
+    // false if the timer already fired or was cancelled
+    boolean cancel(long handle) {
+        int r = (int) handle;
+        if (handle == 0 || r < 0 || r >= rows || gen[r] != (int) (handle >>> 32) || prev[r] == -2) return false;
+        unlink(r);
+        release(r);
+        return true;
+    }
+
+    // fires everything due at or before nowMs; returns (payload << 8 | kind) per fired timer, in due order
+    long[] advanceTo(long nowMs) {
+        long target = Math.floorDiv(nowMs, tickMs);
+        firedCount = 0;
+        while (tick < target) {
+            if (size == 0) { tick = target; break; }
+            tick++;
+            // cascade top-down: a slot that comes due on a higher wheel redistributes before level 0 fires
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (BITS * level)) - 1)) == 0) cascade(level * SLOTS + (int) ((tick >>> (BITS * level)) & (SLOTS - 1)));
+            }
+            int slot = (int) (tick & (SLOTS - 1));
+            for (int r = heads[slot]; r != -1; ) {
+                int n = next[r];
+                if (firedCount == fired.length) fired = Arrays.copyOf(fired, firedCount * 2);
+                fired[firedCount++] = ((long) payload[r] << 8) | (kind[r] & 0xff);
+                release(r);
+                r = n;
+            }
+            heads[slot] = -1;
+        }
+        return firedCount == 0 ? NO_FIRED : Arrays.copyOf(fired, firedCount);
+    }
+
+    // bytes held by the timer rows, including spare capacity
+    long footprintBytes() { return (long) next.length * (4 * 4 + 8 + 1) + heads.length * 4L; }
+
+    private void cascade(int bucket) {
+        int r = heads[bucket];
+        heads[bucket] = -1;
+        while (r != -1) {
+            int n = next[r];
+            link(r);
+            r = n;
+        }
+    }
+
+    private void link(int r) {
+        long delta = dueTick[r] - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        long at = level == LEVELS - 1 && delta >= 1L << (BITS * LEVELS) ? tick + (1L << (BITS * LEVELS)) - 1 : dueTick[r]; // beyond range: park and re-cascade
+        int bucket = level * SLOTS + (int) ((at >>> (BITS * level)) & (SLOTS - 1));
+        prev[r] = -1 - bucket - 2; // heads are encoded below -2 so unlink can find them
+        next[r] = heads[bucket];
+        if (next[r] != -1) prev[next[r]] = r;
+        heads[bucket] = r;
+    }
+
+    private void unlink(int r) {
+        int p = prev[r], n = next[r];
+        if (p >= 0) next[p] = n;
+        else heads[-3 - p] = n;
+        if (n != -1) prev[n] = p;
+    }
+
+    private int allocate() {
+        if (free != -1) {
+            int r = free;
+            free = next[r];
+            return r;
+        }
+        if (rows == next.length) {
+            int cap = rows * 2;
+            next = Arrays.copyOf(next, cap); prev = Arrays.copyOf(prev, cap); gen = Arrays.copyOf(gen, cap);
+            payload = Arrays.copyOf(payload, cap); dueTick = Arrays.copyOf(dueTick, cap); kind = Arrays.copyOf(kind, cap);
+        }
+        gen[rows] = 1;
+        return rows++;
+    }
+
+    private void release(int r) {
+        if (++gen[r] == 0) gen[r] = 1; // wraps past 0 so handles stay non-zero
+        prev[r] = -2;
+        next[r] = free;
+        free = r;
+        size--;
+    }
+}
+
+/*
+ Operational rollups for the admin dashboard: per wall-clock hour and requested car type,
+ bookings created, completed and cancelled, gross fare, promo discount and estimated fuel of
+ completed rides, and cancellation fees. RideService feeds every transition as it happens,
+ so nothing rescans history, and a time-range query merges at most HOURS buckets: it costs
+ the same with ten bookings or ten million. The ring keeps the last HOURS hours and drops
+ anything older. Amounts are summed in hundredths so totals are exact.
+*/
+final class Rollups {
+    static final int HOURS = 90 * 24;
+    static final int CREATED = 0, COMPLETED = 1, CANCELLED = 2, GROSS_FARE = 3, PROMO_DISCOUNT = 4,
+            CANCEL_FEES = 5, FUEL_LITERS = 6, FIELDS = 7;
+    private static final int TYPES = CarType.values().length, ROW = TYPES * FIELDS;
+
+    record Totals(long created, long completed, long cancelled, double grossFare, double promoDiscount,
+                  double cancellationFees, double fuelLiters) {
+        // share of closed bookings that completed
+        double completionRate() { return completed + cancelled == 0 ? 0.0 : completed / (double) (completed + cancelled); }
+    }
+
+    private final long[] slotHour = new long[HOURS]; // absolute hour each slot holds
+    private final long[] cells = new long[HOURS * ROW]; // [slot][type][field]; guarded by this
+
+    Rollups() { Arrays.fill(slotHour, Long.MIN_VALUE); }
+
+    static long hourOf(LocalDateTime t) { return Math.floorDiv(t.toEpochSecond(java.time.ZoneOffset.UTC), 3600); }
+    static LocalDateTime startOf(long hour) { return LocalDateTime.ofEpochSecond(hour * 3600, 0, java.time.ZoneOffset.UTC); }
+
+    synchronized void created(Booking b) {
+        int at = cell(hourOf(b.getCreatedAt()), b.getRequestedType());
+        if (at >= 0) cells[at + CREATED]++;
+    }
+
+    synchronized void completed(Booking b) {
+        int at = cell(hourOf(b.getCompletedAt()), b.getRequestedType());
+        if (at < 0) return;
+        cells[at + COMPLETED]++;
+        cells[at + GROSS_FARE] += hundredths(b.getEstimatedFare());
+        cells[at + PROMO_DISCOUNT] += hundredths(b.getPromoDiscount());
+        cells[at + FUEL_LITERS] += hundredths(b.getEstimatedFuelLiters());
+    }
+
+    synchronized void cancelled(Booking b) {
+        int at = cell(hourOf(b.getCancelledAt()), b.getRequestedType());
+        if (at < 0) return;
+        cells[at + CANCELLED]++;
+        cells[at + CANCEL_FEES] += hundredths(b.getCancellationFee());
+    }
+
+    // totals over hours [fromHour, toHour] for one type, or all types when type is null
+    synchronized Totals query(long fromHour, long toHour, CarType type) {
+        long[] sum = new long[FIELDS];
+        for (long h = Math.max(fromHour, toHour - HOURS + 1); h <= toHour; h++) {
+            int slot = (int) Math.floorMod(h, (long) HOURS);
+            if (slotHour[slot] != h) continue;
+            for (int t = 0; t < TYPES; t++) {
+                if (type != null && t != type.ordinal()) continue;
+                for (int f = 0; f < FIELDS; f++) sum[f] += cells[slot * ROW + t * FIELDS + f];
+            }
+        }
+        return new Totals(sum[CREATED], sum[COMPLETED], sum[CANCELLED], sum[GROSS_FARE] / 100.0,
+                sum[PROMO_DISCOUNT] / 100.0, sum[CANCEL_FEES] / 100.0, sum[FUEL_LITERS] / 100.0);
+    }
+
+    // ---------- snapshot encoding: non-empty rows only ----------
+    synchronized void write(DataOutputStream out) throws IOException {
+        int rows = 0;
+        for (long h : slotHour) if (h != Long.MIN_VALUE) rows++;
+        out.writeInt(rows);
+        for (int slot = 0; slot < HOURS; slot++) {
+            if (slotHour[slot] == Long.MIN_VALUE) continue;
+            out.writeLong(slotHour[slot]);
+            for (int i = 0; i < ROW; i++) out.writeLong(cells[slot * ROW + i]);
+        }
+    }
+
+    synchronized void read(DataInputStream in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            long hour = in.readLong();
+            int slot = (int) Math.floorMod(hour, (long) HOURS);
+            slotHour[slot] = hour;
+            for (int i = 0; i < ROW; i++) cells[slot * ROW + i] = in.readLong();
+        }
+    }
+
+    // index of the type's row in the hour's slot, or -1 when the hour has left the ring
+    private int cell(long hour, CarType type) {
+        int slot = (int) Math.floorMod(hour, (long) HOURS);
+        if (slotHour[slot] > hour) return -1;
+        if (slotHour[slot] < hour) {
+            slotHour[slot] = hour;
+            Arrays.fill(cells, slot * ROW, (slot + 1) * ROW, 0L);
+        }
+        return slot * ROW + type.ordinal() * FIELDS;
+    }
+
+    static long hundredths(double v) { return (long) Math.floor(v * 100 + 0.5); }
+}
+
+/*
+ End-of-day driver settlement over the bookings closed in [from, to): per driver, completed
+ trips and the fares they collected, the promo subsidy the platform owes them, the platform's
+ commission (COMMISSION_PCT of fare plus subsidy, rounded per trip), and cancellation fees.
+ payout = fares + subsidy - commission + fees.
+
+ Rows are read straight off the archive's mapped records, then the closed bookings still on
+ the heap, so no Booking objects are built. Rows.spliterator() splits the row range on
+ archive-chunk boundaries; each fork/join leaf folds its rows into a Ledger (open-addressing
+ driver id -> long sums, no boxing) and the combiner merges ledgers. Amounts are hundredths,
+ so any split gives the same ledger as sequential().
+*/
+final class Settlement {
+    static final int COMMISSION_PCT = 20;
+    static final int TRIPS = 0, CANCELLATIONS = 1, FARES = 2, SUBSIDY = 3, COMMISSION = 4, FEES = 5, FIELDS = 6;
+    static final String CSV_HEADER = "driver_id,trips,cancellations,fares,promo_subsidy,commission,cancellation_fees,payout";
+    private static final int MIN_SPLIT = 4096;
+
+    private Settlement() {}
+
+    // closed bookings as rows: archive records [0, archived), then the hot ones
+    static final class Rows {
+        private final java.nio.ByteBuffer[] chunks;
+        private final int archived;
+        private final Booking[] hot;
+        private final long fromMs, toMs;
+
+        Rows(java.nio.ByteBuffer[] chunks, int archived, Booking[] hot, LocalDateTime from, LocalDateTime to) {
+            this.chunks = chunks; this.archived = archived; this.hot = hot;
+            this.fromMs = Persistence.epochMillis(from); this.toMs = Persistence.epochMillis(to);
+        }
+
+        int size() { return archived + hot.length; }
+
+        Spliterator.OfInt spliterator() { return new Split(0, size()); }
+
+        // adds row i to the ledger when it closed inside the window
+        void fold(Ledger l, int i) {
+            if (i < archived) {
+                java.nio.ByteBuffer buf = chunks[i / BookingArchive.RECORDS_PER_CHUNK];
+                int at = i % BookingArchive.RECORDS_PER_CHUNK * BookingArchive.RECORD_BYTES;
+                long closed = buf.getLong(at + BookingArchive.CLOSED);
+                if (closed < fromMs || closed >= toMs) return;
+                if (buf.get(at + BookingArchive.STATUS) == BookingStatus.COMPLETED.ordinal())
+                    l.completed(buf.getInt(at + BookingArchive.DRIVER_ID), Rollups.hundredths(buf.getDouble(at + BookingArchive.FARE)),
+                            Rollups.hundredths(buf.getDouble(at + BookingArchive.DISCOUNT)));
+                else l.cancelled(buf.getInt(at + BookingArchive.DRIVER_ID), Rollups.hundredths(buf.getDouble(at + BookingArchive.CANCEL_FEE)));
+                return;
+            }
+            Booking b = hot[i - archived];
+            if (b.getStatus() == BookingStatus.COMPLETED) {
+                long closed = Persistence.epochMillis(b.getCompletedAt());
+                if (closed >= fromMs && closed < toMs)
+                    l.completed(b.getDriver().getId(), Rollups.hundredths(b.getEstimatedFare()), Rollups.hundredths(b.getPromoDiscount()));
+            } else if (b.getStatus() == BookingStatus.CANCELLED) {
+                long closed = Persistence.epochMillis(b.getCancelledAt());
+                if (closed >= fromMs && closed < toMs) l.cancelled(b.getDriver().getId(), Rollups.hundredths(b.getCancellationFee()));
+            }
+        }
+
+        private final class Split implements Spliterator.OfInt {
+            private int at;
+            private final int end;
+
+            Split(int at, int end) { this.at = at; this.end = end; }
+
+            @Override
+            public Spliterator.OfInt trySplit() {
+                if (end - at < 2 * MIN_SPLIT) return null;
+                int mid = at + (end - at) / 2;
+                int aligned = mid - mid % BookingArchive.RECORDS_PER_CHUNK; // keep a leaf inside one mapped chunk
+                if (mid < archived && aligned - at >= MIN_SPLIT) mid = aligned;
+                Split prefix = new Split(at, mid);
+                at = mid;
+                return prefix;
+            }
+
+            @Override
+            public boolean tryAdvance(java.util.function.IntConsumer action) {
+                if (at >= end) return false;
+                action.accept(at++);
+                return true;
+            }
+
+            @Override
+            public void forEachRemaining(java.util.function.IntConsumer action) {
+                for (int i = at; i < end; i++) action.accept(i);
+                at = end;
+            }
+
+            @Override public long estimateSize() { return end - at; }
+            @Override public int characteristics() { return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL; }
+        }
+    }
+
+    // driver id -> FIELDS sums, linear probing; ids are >= 1 so 0 marks a free slot
+    static final class Ledger {
+        private int[] keys = new int[64];
+        private long[] sums = new long[64 * FIELDS];
+        private int size;
+
+        int drivers() { return size; }
+
+        void completed(int driver, long fare, long subsidy) {
+            int at = slot(driver) * FIELDS;
+            sums[at + TRIPS]++;
+            sums[at + FARES] += fare;
+            sums[at + SUBSIDY] += subsidy;
+            sums[at + COMMISSION] += commission(fare + subsidy);
+        }
+
+        void cancelled(int driver, long fee) {
+            int at = slot(driver) * FIELDS;
+            sums[at + CANCELLATIONS]++;
+            sums[at + FEES] += fee;
+        }
+
+        // combiner: adds the other ledger into this one
+        void absorb(Ledger o) {
+            for (int s = 0; s < o.keys.length; s++) {
+                if (o.keys[s] == 0) continue;
+                int at = slot(o.keys[s]) * FIELDS;
+                for (int f = 0; f < FIELDS; f++) sums[at + f] += o.sums[s * FIELDS + f];
+            }
+        }
+
+        // the driver's sums, or null when nothing of theirs closed in the window
+        long[] get(int driver) {
+            int mask = keys.length - 1;
+            for (int s = hash(driver) & mask; keys[s] != 0; s = (s + 1) & mask)
+                if (keys[s] == driver) return Arrays.copyOfRange(sums, s * FIELDS, (s + 1) * FIELDS);
+            return null;
+        }
+
+        long[] totals() {
+            long[] t = new long[FIELDS];
+            for (int s = 0; s < keys.length; s++)
+                if (keys[s] != 0) for (int f = 0; f < FIELDS; f++) t[f] += sums[s * FIELDS + f];
+            return t;
+        }
+
+        int[] driverIds() {
+            int[] ids = new int[size];
+            int n = 0;
+            for (int k : keys) if (k != 0) ids[n++] = k;
+            Arrays.sort(ids);
+            return ids;
+        }
+
+        // one CSV line per driver in id order, written as it goes
+        void write(Writer out) throws IOException {
+            out.write(CSV_HEADER);
+            out.write('\n');
+            int mask = keys.length - 1;
+            for (int id : driverIds()) {
+                int s = hash(id) & mask;
+                while (keys[s] != id) s = (s + 1) & mask;
+                int at = s * FIELDS;
+                out.write(id + "," + sums[at + TRIPS] + "," + sums[at + CANCELLATIONS] + "," + money(sums[at + FARES]) + ","
+                        + money(sums[at + SUBSIDY]) + "," + money(sums[at + COMMISSION]) + "," + money(sums[at + FEES]) + ","
+                        + money(payout(sums, at)) + "\n");
+            }
+        }
+
+        private int slot(int driver) {
+            int mask = keys.length - 1;
+            int s = hash(driver) & mask;
+            while (keys[s] != 0) {
+                if (keys[s] == driver) return s;
+                s = (s + 1) & mask;
+            }
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                return slot(driver);
+            }
+            keys[s] = driver;
+            size++;
+            return s;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldSums = sums;
+            keys = new int[oldKeys.length * 2];
+            sums = new long[keys.length * FIELDS];
+            int mask = keys.length - 1;
+            for (int o = 0; o < oldKeys.length; o++) {
+                if (oldKeys[o] == 0) continue;
+                int s = hash(oldKeys[o]) & mask;
+                while (keys[s] != 0) s = (s + 1) & mask;
+                keys[s] = oldKeys[o];
+                System.arraycopy(oldSums, o * FIELDS, sums, s * FIELDS, FIELDS);
+            }
+        }
+
+        private static int hash(int driver) { return (driver * 0x9E3779B9) >>> 7; }
+    }
+
+    // settles on a pool of the given size; the result does not depend on it
+    static Ledger run(Rows rows, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(() -> java.util.stream.StreamSupport.intStream(rows.spliterator(), true)
+                    .collect(Ledger::new, rows::fold, Ledger::absorb)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("settlement interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // reference: one thread, rows in order
+    static Ledger sequential(Rows rows) {
+        Ledger l = new Ledger();
+        for (int i = 0, n = rows.size(); i < n; i++) rows.fold(l, i);
+        return l;
+    }
+
+    static long payout(long[] sums, int at) { return sums[at + FARES] + sums[at + SUBSIDY] - sums[at + COMMISSION] + sums[at + FEES]; }
+    static long commission(long gross) { return (gross * COMMISSION_PCT + 50) / 100; }
+    static String money(long hundredths) { return java.math.BigDecimal.valueOf(hundredths, 2).toPlainString(); }
+}
+
+/*
+ Booking storage behind RideService: id map plus per-rider and per-status indexes.
+ Every status change must go through transition() so the indexes stay in sync;
+ active-booking queries then only touch active rows. Lookups go through a hash map;
+ all() copies a second, id-ordered map instead of sorting (a skip-list get is an order
+ of magnitude slower at a million bookings, so the hash map stays). Per-status counts
+ are kept alongside the indexes for gauges read on every scrape. Safe for concurrent use.
+*/
+class BookingStore {
+    private final AtomicInteger size = new AtomicInteger();
+    private final Map<Integer, Booking> byId = new ConcurrentHashMap<>();
+    private final Map<Integer, Booking> inIdOrder = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<Integer, Booking>> byRider = new ConcurrentHashMap<>();
+    private final Map<BookingStatus, Map<Integer, Booking>> byStatus = new EnumMap<>(BookingStatus.class);
+    private final Map<BookingStatus, LongAdder> counts = new EnumMap<>(BookingStatus.class);
+    private final Map<String, Map<Integer, Booking>> activeByRider = new ConcurrentHashMap<>();
+
+    BookingStore() {
+        for (BookingStatus st : BookingStatus.values()) {
+            byStatus.put(st, new ConcurrentSkipListMap<>());
+            counts.put(st, new LongAdder());
+        }
+    }
+
+    public void add(Booking b) {
+        Integer id = b.getId(); // boxed once and shared by every map
+        byId.put(id, b);
+        inIdOrder.put(id, b);
+        put(byRider, id, b);
+        index(id, b);
+        size.incrementAndGet();
+    }
+
+    // drops a closed booking (e.g. once it has been moved to the archive)
+    public void remove(Booking b) {
+        if (byId.remove(b.getId()) == null) return;
+        inIdOrder.remove(b.getId());
+        byRider.computeIfPresent(b.getRiderName(), (r, m) -> {
+            m.remove(b.getId());
+            return m.isEmpty() ? null : m;
+        });
+        unindex(b, b.getStatus());
+        size.decrementAndGet();
+    }
+
+    public Booking get(int id) { return byId.get(id); }
+    public int size() { return size.get(); }
+    public int countWithStatus(BookingStatus st) { return counts.get(st).intValue(); }
+
+    // ordered by id
+    public List<Booking> all() { return new ArrayList<>(inIdOrder.values()); }
+
+    public List<Booking> forRider(String rider) {
+        Map<Integer, Booking> m = byRider.get(rider);
+        return m == null ? new ArrayList<>() : new ArrayList<>(m.values());
+    }
+
+    public Collection<Booking> withStatus(BookingStatus st) {
+        return Collections.unmodifiableCollection(byStatus.get(st).values());
+    }
+
+    public Collection<Booking> activeForRider(String rider) {
+        Map<Integer, Booking> m = activeByRider.get(rider);
+        return m == null ? Collections.emptyList() : Collections.unmodifiableCollection(m.values());
+    }
+
+    // atomic from -> to; false if the booking was not in 'from' (e.g. another thread got there first).
+    // Only the winner runs closing (it sets the close time, fee...), before the booking is filed under
+    // 'to', so whoever finds it through withStatus(to) sees those fields set
+    public boolean transition(Booking b, BookingStatus from, BookingStatus to, Runnable closing) {
+        if (!b.compareAndSetStatus(from, to)) return false;
+        closing.run();
+        unindex(b, from);
+        index(b.getId(), b);
+        return true;
+    }
+
+    private void index(Integer id, Booking b) {
+        BookingStatus st = b.getStatus();
+        if (byStatus.get(st).put(id, b) == null) counts.get(st).increment();
+        if (st == BookingStatus.ACTIVE)
+            put(activeByRider, id, b);
+    }
+
+    // compute() so this cannot race the removal of an emptied per-rider map
+    private static void put(Map<String, Map<Integer, Booking>> perRider, Integer id, Booking b) {
+        perRider.compute(b.getRiderName(), (r, m) -> {
+            if (m == null) m = new ConcurrentSkipListMap<>();
+            m.put(id, b);
+            return m;
+        });
+    }
+
+    private void unindex(Booking b, BookingStatus st) {
+        if (byStatus.get(st).remove(b.getId()) != null) counts.get(st).decrement();
+        if (st == BookingStatus.ACTIVE) {
+            activeByRider.computeIfPresent(b.getRiderName(), (r, m) -> {
+                m.remove(b.getId());
+                return m.isEmpty() ? null : m;
+            });
+        }
+    }
+}
+
+class Booking {
+    private final int id;
+    private final String riderName;
+    private final String pickup;
+    private final String drop;
+    private final Driver driver;
+    private final int kms;
+    private final CarType requestedType;
+    private final AtomicReference<BookingStatus> status;
+    private final LocalDateTime createdAt;
+    private LocalDateTime completedAt;
+    private LocalDateTime cancelledAt;
+    private double estimatedFare;
+    private String appliedPromo;
+    private int etaMinutes;
+    private double estimatedFuelLiters;
+    private double pickupLat;
+    private double pickupLon;
+    private double pickupKm;
+    private double pickupMinutes; // driver's road time to the pickup; 0 = not routed
+    private double cancellationFee;
+    private LocalDateTime pickedUpAt;
+    private double promoDiscount;
+    private Promo redeemed; // the promo whose use this booking holds (not persisted; recovery looks it up by code)
+    private final AtomicInteger rating = new AtomicInteger(); // rider's stars for the driver, 0 = not rated
+    private long timer; // pending TimingWheel handle, 0 = none; guarded by RideService's wheel
+
+    public Booking(int id, String riderName, String pickup, String drop, Driver driver, int kms, CarType type) {
+        this(id, riderName, pickup, drop, driver, kms, type, BookingStatus.ACTIVE, LocalDateTime.now());
+    }
+
+    // recovery / rehydration
+    Booking(int id, String riderName, String pickup, String drop, Driver driver, int kms, CarType type,
+            BookingStatus status, LocalDateTime createdAt) {
+        this.id = id; this.riderName = riderName; this.pickup = pickup; this.drop = drop;
+        this.driver = driver; this.kms = kms; this.requestedType = type;
+        this.status = new AtomicReference<>(status); this.createdAt = createdAt;
+    }
+
+    public int getId() { return id; }
+    public String getRiderName() { return riderName; }
+    public Driver getDriver() { return driver; }
+    public BookingStatus getStatus() { return status.get(); }
+    public boolean compareAndSetStatus(BookingStatus from, BookingStatus to) { return status.compareAndSet(from, to); }
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCompletedAt(LocalDateTime t) { completedAt = t; }
+    public void setCancelledAt(LocalDateTime t) { cancelledAt = t; }
+    public void setEstimatedFare(double f) { estimatedFare = f; }
+    public double getEstimatedFare() { return estimatedFare; }
+    public void setAppliedPromo(String p) { appliedPromo = p; }
+    public void setEtaMinutes(int m) { etaMinutes = m; }
+    public int getEtaMinutes() { return etaMinutes; }
+    public void setEstimatedFuelLiters(double l) { estimatedFuelLiters = l; }
+    public void setPickupLocation(double lat, double lon) { pickupLat = lat; pickupLon = lon; }
+    public double getPickupLat() { return pickupLat; }
+    public double getPickupLon() { return pickupLon; }
+    public void setPickupKm(double km) { pickupKm = km; }
+    public double getPickupKm() { return pickupKm; }
+    public void setPickupMinutes(double m) { pickupMinutes = m; }
+    public double getPickupMinutes() { return pickupMinutes; }
+    public void setCancellationFee(double f) { cancellationFee = f; }
+    public double getCancellationFee() { return cancellationFee; }
+    public void setPickedUpAt(LocalDateTime t) { pickedUpAt = t; }
+    public LocalDateTime getPickedUpAt() { return pickedUpAt; }
+    public void setPromoDiscount(double d) { promoDiscount = d; }
+    public double getPromoDiscount() { return promoDiscount; }
+    Promo getRedeemedPromo() { return redeemed; }
+    void setRedeemedPromo(Promo p) { redeemed = p; }
+    public int getRating() { return rating.get(); }
+    // a booking is rated once: false when it already was
+    public boolean rate(int stars) { return rating.compareAndSet(0, stars); }
+    long getTimer() { return timer; }
+    void setTimer(long handle) { timer = handle; }
+    public String getPickup() { return pickup; }
+    public String getDrop() { return drop; }
+    public int getKms() { return kms; }
+    public CarType getRequestedType() { return requestedType; }
+    public LocalDateTime getCompletedAt() { return completedAt; }
+    public LocalDateTime getCancelledAt() { return cancelledAt; }
+    public String getAppliedPromo() { return appliedPromo; }
+    public double getEstimatedFuelLiters() { return estimatedFuelLiters; }
+
+    public String summary() {
+        return String.format("Booking #%d | Rider:%s | %s->%s | Driver:%s | Fare:₹%.2f | Status:%s",
+                id, riderName, pickup, drop, driver.getName(), estimatedFare, getStatus());
+    }
+
+    public String detailed() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Booking #").append(id).append("\n");
+        sb.append(" Rider: ").append(riderName).append("\n");
+        sb.append(" Pickup: ").append(pickup).append("\n");
+        sb.append(" Drop: ").append(drop).append("\n");
+        sb.append(" Distance: ").append(kms).append(" km\n");
+        sb.append(" Driver: ").append(driver.brief()).append("\n");
+        sb.append(String.format(" Estimated fare: ₹%.2f (Promo: %s)\n", estimatedFare, appliedPromo==null?"none":appliedPromo));
+        sb.append(" ETA: ").append(etaMinutes).append(" mins\n");
+        if (pickupMinutes > 0) sb.append(String.format(" Driver arrives in: %.0f mins (%.1f km by road)\n", Math.ceil(pickupMinutes), pickupKm));
+        sb.append(String.format(" Fuel est: %.2f L\n", estimatedFuelLiters));
+        sb.append(" Created: ").append(Main.dtf.format(createdAt)).append("\n");
+        if (pickedUpAt != null) sb.append(" Picked up: ").append(Main.dtf.format(pickedUpAt)).append("\n");
+        if (completedAt != null) sb.append(" Completed: ").append(Main.dtf.format(completedAt)).append("\n");
+        if (cancelledAt != null) sb.append(" Cancelled: ").append(Main.dtf.format(cancelledAt)).append("\n");
+        sb.append(" Status: ").append(getStatus()).append("\n");
+        if (getRating() > 0) sb.append(" Your rating: ").append(getRating()).append(" stars\n");
+        return sb.toString();
+    }
+}
+
+class Driver {
+    private final int id;
+    private final String name;
+    private final Car car;
+    private final AtomicBoolean available = new AtomicBoolean(true);
+    private int ratingSum;
+    private int ratingCount;
+    private Booking currentBooking;
+    private volatile GeoPoint position = new GeoPoint(0, 0); // replaced whole, so lat and lon always belong together
+    // time-decayed rating state kept by ReputationIndex, as of the latest rating
+    private double decayedRatingSum, decayedRatingWeight;
+    private long lastRatedAt = Long.MIN_VALUE;
+    private volatile double reputation = ReputationIndex.PRIOR_MEAN;
+    private int reputationZone = -1; // zone ranked under; -1 = not ranked
+    private volatile long gridCell = DriverGridIndex.NONE; // cell the available-driver index files it under
+
+    public Driver(int id, String name, Car car) {
+        this.id = id; this.name = name; this.car = car;
+    }
+    public int getId() { return id; }
+    public String getName() { return name; }
+    public Car getCar() { return car; }
+    public boolean isAvailable() { return available.get(); }
+    public void setAvailable(boolean a) { available.set(a); }
+    // atomically available -> busy; exactly one concurrent caller wins
+    public boolean tryClaim() { return available.compareAndSet(true, false); }
+    public double getLat() { return position.lat; }
+    public double getLon() { return position.lon; }
+    public GeoPoint getPosition() { return position; }
+    long getGridCell() { return gridCell; }
+    void setGridCell(long cell) { gridCell = cell; }
+    public void setPosition(double lat, double lon) { position = new GeoPoint(lat, lon); }
+    public double distanceKm(double toLat, double toLon) {
+        GeoPoint p = position;
+        return CityMap.distanceKm(p.lat, p.lon, toLat, toLon);
+    }
+    public void assignBooking(Booking b) { this.currentBooking = b; }
+    public synchronized void addRating(int r) { ratingSum += r; ratingCount++; }
+    public synchronized int getRatingSum() { return ratingSum; }
+    public synchronized int getRatingCount() { return ratingCount; }
+    synchronized void restoreRatings(int sum, int count) { ratingSum = sum; ratingCount = count; }
+    // decayed, prior-smoothed average the matcher breaks ties with; lock-free read
+    public double getReputation() { return reputation; }
+    synchronized double getDecayedRatingSum() { return decayedRatingSum; }
+    synchronized double getDecayedRatingWeight() { return decayedRatingWeight; }
+    synchronized long getLastRatedAt() { return lastRatedAt; }
+    synchronized void restoreReputation(double sum, double weight, long at) {
+        decayedRatingSum = sum; decayedRatingWeight = weight; lastRatedAt = at;
+        reputation = ReputationIndex.score(sum, weight);
+    }
+    synchronized int getReputationZone() { return reputationZone; }
+    synchronized void setReputationZone(int zone) { reputationZone = zone; }
+    public synchronized double getAverageRating() { return ratingCount==0?0.0:((double)ratingSum)/ratingCount; }
+    public String brief() { return String.format("%s (%s) [%s]", name, car.getModel(), car.getPlate()); }
+
+    @Override
+    public String toString() {
+        String avail = isAvailable() ? "Available" : "Busy";
+        String rating;
+        synchronized (this) { rating = ratingCount==0? "No ratings" : String.format("%.2f (%d)", getAverageRating(), ratingCount); }
+        return String.format("Driver #%d: %s | %s | %s | Rating: %s", id, name, car.brief(), avail, rating);
+    }
+}
+
+class Car {
+    private final int id;
     private final String model;
     private final String plate;
     private final CarType type;
@@ -634,3 +3115,5672 @@ class Car {
     public CarType getType() { return type; }
     public String brief() { return String.format("%s - %s - %s", model, plate, type); }
 }
+
+/*
+ Mutation hooks. Services report every state change here from inside a mutation() scope;
+ the default journal does nothing, Persistence turns them into write-ahead log records.
+*/
+interface Journal {
+    Journal NONE = new Journal() {};
+
+    interface Scope extends AutoCloseable { @Override void close(); }
+    Scope NO_SCOPE = () -> {};
+
+    // brackets an in-memory mutation together with its log record, so a snapshot never sees one without the other;
+    // callers close it in a finally block
+    default Scope mutation() { return NO_SCOPE; }
+
+    default void driverRegistered(Driver d) {}
+    default void driverRemoved(int driverId) {}
+    default void bookingCreated(Booking b) {}
+    default void bookingCompleted(Booking b) {}
+    default void bookingCancelled(Booking b) {}
+    default void pickupConfirmed(Booking b) {}
+    default void bookingArchived(int bookingId) {}
+    default void driverRated(int driverId, int stars, long atMillis) {}
+    default void bookingRated(int bookingId, int driverId, int stars, long atMillis) {}
+    default void promoAdded(Promo p) {}
+    default void promoRemoved(String code) {}
+    default void promoRedeemed(String code, String user) {}
+    default void promoRefunded(String code, String user) {}
+    default void userRegistered(String username, String passwordHash) {}
+}
+
+/*
+ Durable state for RideService, AuthService and PromoService.
+
+ wal-<n>.log   append-only binary records: [int length][int crc32][type byte + payload]
+ snap-<n>.bin  full state as of the start of wal-<n>.log (bookings already moved to a
+              BookingArchive are not repeated here)
+
+ Appends are group-committed: writers hand their record to a single flusher thread and
+ (with syncCommit) wait until a write + fsync covering it has completed, so concurrent
+ writers share one fsync. A snapshot blocks mutations only while it rolls the log to a new
+ segment and copies the state, then writes the copy and drops older segments; startup loads
+ the newest snapshot and replays only the segments after it. A torn record at the tail of
+ the last segment (crash mid-write) is truncated away.
+*/
+class Persistence implements Journal, Closeable {
+    static final byte DRIVER_REGISTERED = 1, DRIVER_REMOVED = 2, BOOKING_CREATED = 3, BOOKING_COMPLETED = 4,
+            BOOKING_CANCELLED = 5, DRIVER_RATED = 6, PROMO_ADDED = 7, PROMO_REMOVED = 8, PROMO_USED = 9, USER_REGISTERED = 10,
+            BOOKING_ARCHIVED = 11, PROMO_REDEEMED = 12, PROMO_REFUNDED = 13, // PROMO_USED: replayed from older logs only
+            PICKUP_CONFIRMED = 14, BOOKING_RATED = 15;
+    static final int SNAPSHOT_MAGIC_V1 = 0x43525331; // "CRS1"
+    static final int SNAPSHOT_MAGIC_V2 = 0x43525332; // "CRS2": promos carry per-rider limits and usage
+    static final int SNAPSHOT_MAGIC_V3 = 0x43525333; // "CRS3": bookings carry their pickup time
+    static final int SNAPSHOT_MAGIC_V4 = 0x43525334; // "CRS4": drivers carry their decayed rating state
+    static final int SNAPSHOT_MAGIC_V5 = 0x43525335; // "CRS5": booking promo discounts and the hourly rollups
+    static final int SNAPSHOT_MAGIC_V6 = 0x43525336; // "CRS6": bookings carry the driver's routed time to the pickup
+    static final int SNAPSHOT_MAGIC = 0x43525337; // "CRS7": bookings carry the rider's rating
+
+    private final java.nio.file.Path dir;
+    private final RideService rides;
+    private final AuthService auth;
+    private final PromoService promos;
+    private final boolean syncCommit;
+    private final java.util.concurrent.locks.ReentrantReadWriteLock snapshotLock = new java.util.concurrent.locks.ReentrantReadWriteLock();
+    private final Scope readScope = () -> snapshotLock.readLock().unlock();
+    private final ThreadLocal<RecordBuffer> buffers = ThreadLocal.withInitial(RecordBuffer::new);
+
+    // group commit state, guarded by 'this'
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    private ByteArrayOutputStream writing = new ByteArrayOutputStream(1 << 16);
+    private long appendedSeq, durableSeq;
+    private IOException flushError;
+    private boolean closed;
+    private java.nio.channels.FileChannel segment;
+    private int segmentNo;
+    private final Thread flusher;
+    private ScheduledExecutorService snapshotTimer;
+
+    // stats
+    private final AtomicLong records = new AtomicLong(), fsyncs = new AtomicLong();
+    private long recoveredRecords, recoveryMillis;
+
+    private Persistence(java.nio.file.Path dir, RideService rides, AuthService auth, PromoService promos, boolean syncCommit) {
+        this.dir = dir; this.rides = rides; this.auth = auth; this.promos = promos; this.syncCommit = syncCommit;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+    }
+
+    // loads the latest snapshot, replays the log tail and starts journaling all three services
+    static Persistence open(java.nio.file.Path dir, RideService rides, AuthService auth, PromoService promos, boolean syncCommit) throws IOException {
+        java.nio.file.Files.createDirectories(dir);
+        Persistence p = new Persistence(dir, rides, auth, promos, syncCommit);
+        long t0 = System.nanoTime();
+        Map<Integer, Driver> known = new HashMap<>();
+        int snapNo = p.loadLatestSnapshot(known);
+        int last = snapNo;
+        for (int n : p.numbered("wal-", ".log")) {
+            if (n < snapNo) continue;
+            p.recoveredRecords += p.replay(p.segmentPath(n), known);
+            last = Math.max(last, n);
+        }
+        p.recoveryMillis = (System.nanoTime() - t0) / 1_000_000;
+        p.openSegment(last + 1);
+        p.flusher.start();
+        rides.setJournal(p);
+        auth.setJournal(p);
+        promos.setJournal(p);
+        auth.upgradeLegacyPasswords();
+        return p;
+    }
+
+    public boolean isEmpty() { return rides.getDrivers().isEmpty() && auth.getUsers().isEmpty(); }
+    public long getRecoveredRecords() { return recoveredRecords; }
+    public long getRecoveryMillis() { return recoveryMillis; }
+
+    public void snapshotEvery(long seconds) {
+        snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] lastSeen = {0};
+        snapshotTimer.scheduleWithFixedDelay(() -> {
+            long now = records.get();
+            if (now == lastSeen[0]) return; // nothing new since the last snapshot
+            lastSeen[0] = now;
+            try { snapshot(); } catch (IOException e) { System.err.println("Snapshot failed: " + e.getMessage()); }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public String stats() {
+        return String.format("records=%d fsyncs=%d (%.1f records/fsync) segment=%d recovered=%d in %dms",
+                records.get(), fsyncs.get(), fsyncs.get() == 0 ? 0.0 : (double) records.get() / fsyncs.get(),
+                segmentNo, recoveredRecords, recoveryMillis);
+    }
+
+    // ---------- Journal ----------
+    @Override public Scope mutation() {
+        snapshotLock.readLock().lock();
+        return readScope;
+    }
+
+    @Override public void driverRegistered(Driver d) {
+        DataOutputStream out = begin(DRIVER_REGISTERED);
+        try {
+            out.writeInt(d.getId());
+            out.writeInt(d.getCar().getId());
+            out.writeUTF(d.getName());
+            out.writeUTF(d.getCar().getModel());
+            out.writeUTF(d.getCar().getPlate());
+            out.writeByte(d.getCar().getType().ordinal());
+            out.writeDouble(d.getLat());
+            out.writeDouble(d.getLon());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void driverRemoved(int driverId) {
+        try { begin(DRIVER_REMOVED).writeInt(driverId); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void bookingCreated(Booking b) {
+        DataOutputStream out = begin(BOOKING_CREATED);
+        try {
+            out.writeInt(b.getId());
+            out.writeUTF(b.getRiderName());
+            out.writeUTF(b.getPickup());
+            out.writeUTF(b.getDrop());
+            out.writeInt(b.getDriver().getId());
+            out.writeInt(b.getKms());
+            out.writeByte(b.getRequestedType().ordinal());
+            out.writeLong(epochMillis(b.getCreatedAt()));
+            out.writeDouble(b.getEstimatedFare());
+            out.writeInt(b.getEtaMinutes());
+            out.writeDouble(b.getEstimatedFuelLiters());
+            writeNullable(out, b.getAppliedPromo());
+            out.writeDouble(b.getPickupLat());
+            out.writeDouble(b.getPickupLon());
+            out.writeDouble(b.getPickupKm());
+            out.writeDouble(b.getPromoDiscount());
+            out.writeDouble(b.getPickupMinutes());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void bookingCompleted(Booking b) {
+        DataOutputStream out = begin(BOOKING_COMPLETED);
+        try {
+            out.writeInt(b.getId());
+            out.writeLong(epochMillis(b.getCompletedAt()));
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void bookingCancelled(Booking b) {
+        DataOutputStream out = begin(BOOKING_CANCELLED);
+        try {
+            out.writeInt(b.getId());
+            out.writeLong(epochMillis(b.getCancelledAt()));
+            out.writeDouble(b.getCancellationFee());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void pickupConfirmed(Booking b) {
+        DataOutputStream out = begin(PICKUP_CONFIRMED);
+        try {
+            out.writeInt(b.getId());
+            out.writeLong(epochMillis(b.getPickedUpAt()));
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void bookingRated(int bookingId, int driverId, int stars, long atMillis) {
+        DataOutputStream out = begin(BOOKING_RATED);
+        try {
+            out.writeInt(bookingId);
+            out.writeInt(driverId);
+            out.writeByte(stars);
+            out.writeLong(atMillis);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void bookingArchived(int bookingId) {
+        try { begin(BOOKING_ARCHIVED).writeInt(bookingId); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void driverRated(int driverId, int stars, long atMillis) {
+        DataOutputStream out = begin(DRIVER_RATED);
+        try {
+            out.writeInt(driverId);
+            out.writeByte(stars);
+            out.writeLong(atMillis);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void promoAdded(Promo p) {
+        DataOutputStream out = begin(PROMO_ADDED);
+        try {
+            out.writeUTF(p.getCode());
+            out.writeDouble(p.getPercent());
+            out.writeInt(p.getUsesLeft());
+            out.writeInt(p.getPerUserLimit());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void promoRemoved(String code) {
+        try { begin(PROMO_REMOVED).writeUTF(code); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void promoRedeemed(String code, String user) { promoUsage(PROMO_REDEEMED, code, user); }
+    @Override public void promoRefunded(String code, String user) { promoUsage(PROMO_REFUNDED, code, user); }
+
+    private void promoUsage(byte type, String code, String user) {
+        DataOutputStream out = begin(type);
+        try {
+            out.writeUTF(code);
+            writeNullable(out, user);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    @Override public void userRegistered(String username, String passwordHash) {
+        DataOutputStream out = begin(USER_REGISTERED);
+        try {
+            out.writeUTF(username);
+            out.writeUTF(passwordHash);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit();
+    }
+
+    // ---------- record framing & group commit ----------
+    // per-thread scratch buffer so encoding a record needs no shared state
+    static final class RecordBuffer extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        byte[] bytes() { return buf; }
+    }
+
+    private DataOutputStream begin(byte type) {
+        RecordBuffer rb = buffers.get();
+        rb.reset();
+        rb.write(type);
+        return rb.out;
+    }
+
+    private void commit() {
+        RecordBuffer rb = buffers.get();
+        rb.crc.reset();
+        rb.crc.update(rb.bytes(), 0, rb.size());
+        long seq;
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("journal closed");
+            writeInt(pending, rb.size());
+            writeInt(pending, (int) rb.crc.getValue());
+            pending.write(rb.bytes(), 0, rb.size());
+            seq = ++appendedSeq;
+            notifyAll();
+        }
+        records.incrementAndGet();
+        if (syncCommit) awaitDurable(seq);
+    }
+
+    private synchronized void awaitDurable(long seq) {
+        boolean interrupted = false;
+        while (durableSeq < seq && flushError == null) {
+            try { wait(); } catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (flushError != null) throw new UncheckedIOException(flushError);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            java.nio.channels.FileChannel ch;
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try { wait(); } catch (InterruptedException e) { return; }
+                }
+                if (pending.size() == 0) return; // closed and drained
+                ByteArrayOutputStream t = writing; writing = pending; pending = t;
+                target = appendedSeq;
+                ch = segment;
+            }
+            try {
+                java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(writing.toByteArray());
+                while (buf.hasRemaining()) ch.write(buf);
+                ch.force(false);
+                fsyncs.incrementAndGet();
+            } catch (IOException e) {
+                synchronized (this) { flushError = e; notifyAll(); }
+                return;
+            }
+            writing.reset();
+            synchronized (this) { durableSeq = target; notifyAll(); }
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24); out.write(v >>> 16); out.write(v >>> 8); out.write(v);
+    }
+
+    // ---------- segments ----------
+    private java.nio.file.Path segmentPath(int n) { return dir.resolve("wal-" + n + ".log"); }
+    private java.nio.file.Path snapshotPath(int n) { return dir.resolve("snap-" + n + ".bin"); }
+
+    private void openSegment(int n) throws IOException {
+        segment = java.nio.channels.FileChannel.open(segmentPath(n), java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+        segmentNo = n;
+    }
+
+    // sorted numbers of files named prefix<n>suffix
+    private List<Integer> numbered(String prefix, String suffix) throws IOException {
+        List<Integer> out = new ArrayList<>();
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            files.forEach(f -> {
+                String name = f.getFileName().toString();
+                if (!name.startsWith(prefix) || !name.endsWith(suffix)) return;
+                try { out.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()))); }
+                catch (NumberFormatException ignored) { }
+            });
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    // waits for everything appended so far to be durable, then continues in a fresh segment
+    private void rollSegment() throws IOException {
+        synchronized (this) {
+            awaitDurable(appendedSeq);
+            segment.close();
+            openSegment(segmentNo + 1);
+        }
+    }
+
+    // ---------- snapshots ----------
+    public void snapshot() throws IOException {
+        int snapNo;
+        Captured state;
+        snapshotLock.writeLock().lock(); // no mutation is in flight while the state is copied
+        try {
+            rollSegment();
+            snapNo = segmentNo;
+            state = new Captured(rides, auth, promos);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        java.nio.file.Path tmp = dir.resolve("snap-" + snapNo + ".tmp");
+        writeSnapshot(tmp, state);
+        java.nio.file.Files.move(tmp, snapshotPath(snapNo), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        for (int n : numbered("wal-", ".log")) if (n < snapNo) java.nio.file.Files.deleteIfExists(segmentPath(n));
+        for (int n : numbered("snap-", ".bin")) if (n < snapNo) java.nio.file.Files.deleteIfExists(snapshotPath(n));
+    }
+
+    /*
+     The state a snapshot writes, copied under the snapshot write lock so that it can be
+     serialized after mutations resume. Only what can still change is copied: booking close
+     and pickup fields, driver positions and ratings, promo counts and the rollups. The rest of
+     a booking or driver is fixed before it is published, so the writer reads it off the object.
+    */
+    private static final class Captured {
+        final List<User> users;
+        final Promo[] promos;
+        final int[] usesLeft;
+        final List<Map<String, Integer>> usage = new ArrayList<>();
+        final Driver[] drivers;
+        final double[] lat, lon, decayedSum, decayedWeight;
+        final int[] ratingSum, ratingCount;
+        final long[] lastRatedAt;
+        final boolean[] removed;
+        final Booking[] bookings;
+        final BookingStatus[] status;
+        final LocalDateTime[] completedAt, cancelledAt, pickedUpAt;
+        final double[] fee;
+        final byte[] rating;
+        final byte[] rollups;
+
+        Captured(RideService rides, AuthService auth, PromoService ps) throws IOException {
+            users = new ArrayList<>(auth.getUsers());
+            promos = ps.getPromos().toArray(new Promo[0]);
+            usesLeft = new int[promos.length];
+            for (int i = 0; i < promos.length; i++) {
+                usesLeft[i] = ps.committedUsesLeft(promos[i]);
+                usage.add(ps.committedUsage(promos[i]));
+            }
+            // archived bookings live in the archive files; removed drivers are kept when hot bookings still point at them
+            bookings = rides.getHotBookings().toArray(new Booking[0]);
+            Map<Integer, Driver> byId = new TreeMap<>();
+            for (Driver d : rides.getDrivers()) byId.put(d.getId(), d);
+            for (Booking b : bookings) byId.putIfAbsent(b.getDriver().getId(), b.getDriver());
+            drivers = byId.values().toArray(new Driver[0]);
+            int nd = drivers.length;
+            lat = new double[nd]; lon = new double[nd]; decayedSum = new double[nd]; decayedWeight = new double[nd];
+            ratingSum = new int[nd]; ratingCount = new int[nd]; lastRatedAt = new long[nd]; removed = new boolean[nd];
+            for (int i = 0; i < nd; i++) {
+                Driver d = drivers[i];
+                lat[i] = d.getLat(); lon[i] = d.getLon();
+                ratingSum[i] = d.getRatingSum(); ratingCount[i] = d.getRatingCount();
+                decayedSum[i] = d.getDecayedRatingSum(); decayedWeight[i] = d.getDecayedRatingWeight();
+                lastRatedAt[i] = d.getLastRatedAt();
+                removed[i] = rides.driverOrNull(d.getId()) == null;
+            }
+            int nb = bookings.length;
+            status = new BookingStatus[nb];
+            completedAt = new LocalDateTime[nb]; cancelledAt = new LocalDateTime[nb]; pickedUpAt = new LocalDateTime[nb];
+            fee = new double[nb];
+            rating = new byte[nb];
+            for (int i = 0; i < nb; i++) {
+                Booking b = bookings[i];
+                status[i] = b.getStatus();
+                completedAt[i] = b.getCompletedAt(); cancelledAt[i] = b.getCancelledAt(); pickedUpAt[i] = b.getPickedUpAt();
+                fee[i] = b.getCancellationFee();
+                rating[i] = (byte) b.getRating();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            rides.getRollups().write(out);
+            out.flush();
+            rollups = bytes.toByteArray();
+        }
+    }
+
+    private void writeSnapshot(java.nio.file.Path file, Captured state) throws IOException {
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(file, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new java.util.zip.CheckedOutputStream(
+                    new BufferedOutputStream(java.nio.channels.Channels.newOutputStream(ch), 1 << 16), crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(state.users.size());
+            for (User u : state.users) { out.writeUTF(u.getUsername()); out.writeUTF(u.getPasswordHash()); }
+            out.writeInt(state.promos.length);
+            for (int i = 0; i < state.promos.length; i++) {
+                Promo p = state.promos[i];
+                out.writeUTF(p.getCode()); out.writeDouble(p.getPercent()); out.writeInt(state.usesLeft[i]); out.writeInt(p.getPerUserLimit());
+                Map<String, Integer> usage = state.usage.get(i);
+                out.writeInt(usage.size());
+                for (Map.Entry<String, Integer> e : usage.entrySet()) { out.writeUTF(e.getKey()); out.writeInt(e.getValue()); }
+            }
+            out.writeInt(state.drivers.length);
+            for (int i = 0; i < state.drivers.length; i++) {
+                Driver d = state.drivers[i];
+                out.writeInt(d.getId());
+                out.writeInt(d.getCar().getId());
+                out.writeUTF(d.getName());
+                out.writeUTF(d.getCar().getModel());
+                out.writeUTF(d.getCar().getPlate());
+                out.writeByte(d.getCar().getType().ordinal());
+                out.writeDouble(state.lat[i]);
+                out.writeDouble(state.lon[i]);
+                out.writeInt(state.ratingSum[i]);
+                out.writeInt(state.ratingCount[i]);
+                out.writeDouble(state.decayedSum[i]);
+                out.writeDouble(state.decayedWeight[i]);
+                out.writeLong(state.lastRatedAt[i]);
+                out.writeBoolean(state.removed[i]);
+            }
+            out.writeInt(state.bookings.length);
+            for (int i = 0; i < state.bookings.length; i++) {
+                Booking b = state.bookings[i];
+                out.writeInt(b.getId());
+                out.writeUTF(b.getRiderName());
+                out.writeUTF(b.getPickup());
+                out.writeUTF(b.getDrop());
+                out.writeInt(b.getDriver().getId());
+                out.writeInt(b.getKms());
+                out.writeByte(b.getRequestedType().ordinal());
+                out.writeByte(state.status[i].ordinal());
+                out.writeLong(epochMillis(b.getCreatedAt()));
+                out.writeLong(epochMillis(state.completedAt[i]));
+                out.writeLong(epochMillis(state.cancelledAt[i]));
+                out.writeDouble(b.getEstimatedFare());
+                out.writeInt(b.getEtaMinutes());
+                out.writeDouble(b.getEstimatedFuelLiters());
+                writeNullable(out, b.getAppliedPromo());
+                out.writeDouble(b.getPickupLat());
+                out.writeDouble(b.getPickupLon());
+                out.writeDouble(b.getPickupKm());
+                out.writeDouble(state.fee[i]);
+                out.writeLong(epochMillis(state.pickedUpAt[i]));
+                out.writeDouble(b.getPromoDiscount());
+                out.writeDouble(b.getPickupMinutes());
+                out.writeByte(state.rating[i]);
+            }
+            out.write(state.rollups);
+            out.flush();
+            long sum = crc.getValue();
+            out.writeLong(sum);
+            out.flush();
+            ch.force(true);
+        }
+    }
+
+    // returns the segment number the loaded snapshot covers up to (0 = no snapshot)
+    private int loadLatestSnapshot(Map<Integer, Driver> known) throws IOException {
+        List<Integer> snaps = numbered("snap-", ".bin");
+        for (int i = snaps.size() - 1; i >= 0; i--) {
+            java.nio.file.Path f = snapshotPath(snaps.get(i));
+            if (!snapshotIntact(f)) { System.err.println("Ignoring damaged snapshot " + f); continue; }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(java.nio.file.Files.newInputStream(f), 1 << 16))) {
+                readSnapshot(in, known);
+            }
+            return snaps.get(i);
+        }
+        return 0;
+    }
+
+    private static boolean snapshotIntact(java.nio.file.Path f) throws IOException {
+        long size = java.nio.file.Files.size(f);
+        if (size < 12) return false;
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        try (InputStream in = new BufferedInputStream(java.nio.file.Files.newInputStream(f), 1 << 16)) {
+            byte[] buf = new byte[1 << 16];
+            long left = size - 8;
+            while (left > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n < 0) return false;
+                crc.update(buf, 0, n);
+                left -= n;
+            }
+            return new DataInputStream(in).readLong() == crc.getValue();
+        }
+    }
+
+    private void readSnapshot(DataInputStream in, Map<Integer, Driver> known) throws IOException {
+        int magic = in.readInt();
+        if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V6 && magic != SNAPSHOT_MAGIC_V5 && magic != SNAPSHOT_MAGIC_V4 && magic != SNAPSHOT_MAGIC_V3
+                && magic != SNAPSHOT_MAGIC_V2 && magic != SNAPSHOT_MAGIC_V1) throw new IOException("not a snapshot");
+        for (int n = in.readInt(); n > 0; n--) auth.restoreUser(in.readUTF(), in.readUTF());
+        for (int n = in.readInt(); n > 0; n--) {
+            String code = in.readUTF();
+            double percent = in.readDouble();
+            int usesLeft = in.readInt();
+            if (magic == SNAPSHOT_MAGIC_V1) { promos.addPromo(new Promo(code, percent, usesLeft)); continue; }
+            Promo p = new Promo(code, percent, usesLeft, in.readInt());
+            for (int u = in.readInt(); u > 0; u--) p.getUsage().put(in.readUTF(), new AtomicInteger(in.readInt()));
+            promos.addPromo(p);
+        }
+        CarType[] types = CarType.values();
+        for (int n = in.readInt(); n > 0; n--) {
+            int id = in.readInt(), carId = in.readInt();
+            String name = in.readUTF(), model = in.readUTF(), plate = in.readUTF();
+            Driver d = new Driver(id, name, new Car(carId, model, plate, types[in.readByte()]));
+            d.setPosition(in.readDouble(), in.readDouble());
+            d.restoreRatings(in.readInt(), in.readInt());
+            if (magic >= SNAPSHOT_MAGIC_V4) d.restoreReputation(in.readDouble(), in.readDouble(), in.readLong());
+            else d.restoreReputation(d.getRatingSum(), d.getRatingCount(), Long.MIN_VALUE); // lifetime totals, undecayed
+            known.put(id, d);
+            if (in.readBoolean()) d.setAvailable(false); // removed: detached, never matchable
+            else rides.restoreDriver(d);
+        }
+        BookingStatus[] statuses = BookingStatus.values();
+        for (int n = in.readInt(); n > 0; n--) {
+            int id = in.readInt();
+            String rider = in.readUTF(), pickup = in.readUTF(), drop = in.readUTF();
+            Driver d = known.get(in.readInt());
+            int kms = in.readInt();
+            CarType type = types[in.readByte()];
+            BookingStatus st = statuses[in.readByte()];
+            Booking b = new Booking(id, rider, pickup, drop, d, kms, type, st, dateTime(in.readLong()));
+            b.setCompletedAt(dateTime(in.readLong()));
+            b.setCancelledAt(dateTime(in.readLong()));
+            b.setEstimatedFare(in.readDouble());
+            b.setEtaMinutes(in.readInt());
+            b.setEstimatedFuelLiters(in.readDouble());
+            b.setAppliedPromo(readNullable(in));
+            b.setPickupLocation(in.readDouble(), in.readDouble());
+            b.setPickupKm(in.readDouble());
+            b.setCancellationFee(in.readDouble());
+            if (magic >= SNAPSHOT_MAGIC_V3) b.setPickedUpAt(dateTime(in.readLong()));
+            if (magic >= SNAPSHOT_MAGIC_V5) b.setPromoDiscount(in.readDouble());
+            if (magic >= SNAPSHOT_MAGIC_V6) b.setPickupMinutes(in.readDouble());
+            if (magic >= SNAPSHOT_MAGIC) {
+                int stars = in.readByte();
+                if (stars > 0) b.rate(stars);
+            }
+            rides.restoreBooking(b);
+        }
+        if (magic >= SNAPSHOT_MAGIC_V5) rides.getRollups().read(in);
+        else rides.rebuildRollups();
+    }
+
+    // ---------- replay ----------
+    private long replay(java.nio.file.Path file, Map<Integer, Driver> known) throws IOException {
+        long applied = 0, goodBytes = 0;
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(java.nio.file.Files.newInputStream(file), 1 << 16))) {
+            byte[] buf = new byte[256];
+            while (true) {
+                int len, sum;
+                try { len = in.readInt(); sum = in.readInt(); } catch (EOFException e) { break; }
+                if (len <= 0 || len > (1 << 24)) break;
+                if (buf.length < len) buf = new byte[Math.max(len, buf.length * 2)];
+                try { in.readFully(buf, 0, len); } catch (EOFException e) { break; }
+                crc.reset();
+                crc.update(buf, 0, len);
+                if ((int) crc.getValue() != sum) break;
+                apply(new DataInputStream(new ByteArrayInputStream(buf, 0, len)), known);
+                applied++;
+                goodBytes += 8 + len;
+            }
+        }
+        if (goodBytes < java.nio.file.Files.size(file)) {
+            System.err.println("Truncating torn tail of " + file + " at byte " + goodBytes);
+            try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(file, java.nio.file.StandardOpenOption.WRITE)) {
+                ch.truncate(goodBytes);
+            }
+        }
+        return applied;
+    }
+
+    private void apply(DataInputStream in, Map<Integer, Driver> known) throws IOException {
+        CarType[] types = CarType.values();
+        switch (in.readByte()) {
+            case DRIVER_REGISTERED -> {
+                int id = in.readInt(), carId = in.readInt();
+                String name = in.readUTF(), model = in.readUTF(), plate = in.readUTF();
+                Driver d = new Driver(id, name, new Car(carId, model, plate, types[in.readByte()]));
+                d.setPosition(in.readDouble(), in.readDouble());
+                known.put(id, d);
+                rides.restoreDriver(d);
+            }
+            case DRIVER_REMOVED -> rides.restoreDriverRemoved(in.readInt());
+            case BOOKING_CREATED -> {
+                int id = in.readInt();
+                String rider = in.readUTF(), pickup = in.readUTF(), drop = in.readUTF();
+                Driver d = known.get(in.readInt());
+                int kms = in.readInt();
+                CarType type = types[in.readByte()];
+                Booking b = new Booking(id, rider, pickup, drop, d, kms, type, BookingStatus.ACTIVE, dateTime(in.readLong()));
+                b.setEstimatedFare(in.readDouble());
+                b.setEtaMinutes(in.readInt());
+                b.setEstimatedFuelLiters(in.readDouble());
+                b.setAppliedPromo(readNullable(in));
+                b.setPickupLocation(in.readDouble(), in.readDouble());
+                b.setPickupKm(in.readDouble());
+                b.setPromoDiscount(in.available() >= 8 ? in.readDouble() : 0.0); // older logs carry none
+                b.setPickupMinutes(in.available() >= 8 ? in.readDouble() : 0.0);
+                rides.restoreCreated(b);
+            }
+            case BOOKING_COMPLETED -> rides.restoreTransition(in.readInt(), BookingStatus.COMPLETED, dateTime(in.readLong()), 0.0);
+            case BOOKING_CANCELLED -> rides.restoreTransition(in.readInt(), BookingStatus.CANCELLED, dateTime(in.readLong()), in.readDouble());
+            case PICKUP_CONFIRMED -> rides.restorePickup(in.readInt(), dateTime(in.readLong()));
+            case BOOKING_ARCHIVED -> rides.restoreArchived(in.readInt());
+            case BOOKING_RATED -> rides.restoreBookingRating(in.readInt(), in.readInt(), in.readByte(), in.readLong());
+            case DRIVER_RATED -> {
+                Driver d = known.get(in.readInt());
+                int stars = in.readByte();
+                long at = in.available() >= 8 ? in.readLong() : Long.MIN_VALUE; // older logs carry no time
+                if (d != null) rides.restoreRating(d, stars, at);
+            }
+            case PROMO_ADDED -> promos.addPromo(new Promo(in.readUTF(), in.readDouble(), in.readInt(), in.available() >= 4 ? in.readInt() : 0));
+            case PROMO_REMOVED -> promos.removePromo(in.readUTF());
+            case PROMO_USED -> {
+                Promo p = promos.find(in.readUTF());
+                if (p != null) p.use();
+            }
+            case PROMO_REDEEMED -> promos.restoreRedeemed(in.readUTF(), readNullable(in));
+            case PROMO_REFUNDED -> promos.restoreRefunded(in.readUTF(), readNullable(in));
+            case USER_REGISTERED -> auth.restoreUser(in.readUTF(), in.readUTF());
+            default -> throw new IOException("unknown log record type");
+        }
+    }
+
+    // ---------- encoding helpers ----------
+    static long epochMillis(LocalDateTime t) { return t == null ? Long.MIN_VALUE : t.toInstant(java.time.ZoneOffset.UTC).toEpochMilli(); }
+    static LocalDateTime dateTime(long millis) {
+        return millis == Long.MIN_VALUE ? null : LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000, java.time.ZoneOffset.UTC);
+    }
+    static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+    static String readNullable(DataInputStream in) throws IOException { return in.readBoolean() ? in.readUTF() : null; }
+
+    // takes a final snapshot, then stops the flusher
+    @Override
+    public void close() throws IOException {
+        if (snapshotTimer != null) snapshotTimer.shutdownNow();
+        snapshot();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try { flusher.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        segment.close();
+    }
+}
+
+/*
+ Cold tier for closed (completed/cancelled) bookings, so the heap only has to hold the
+ active ones.
+
+ bookings.arc   64-byte header (record count) + fixed 128-byte records, written and read
+                through memory-mapped 8 MB chunks
+ bookings.dict  every distinct string (rider, places, promo, driver name/car) once, in
+                code order; records store the int code
+
+ Timestamps are stored as epoch millis. Only a booking-id -> record table and a per-rider
+ record list stay on the heap (4 bytes per archived booking each), plus an LRU cache of
+ recently viewed rider histories. Rows are rehydrated into Booking objects on read; a
+ driver that has since been removed comes back as a detached Driver built from the record.
+*/
+class BookingArchive implements Closeable {
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 128;
+    static final int RECORDS_PER_CHUNK = 1 << 16;
+    static final long CHUNK_BYTES = (long) RECORDS_PER_CHUNK * RECORD_BYTES;
+    static final int CACHED_RIDERS = 256;
+    // record layout
+    static final int ID = 0, RIDER = 4, PICKUP = 8, DROP = 12, DRIVER_ID = 16, DRIVER_NAME = 20, CAR_MODEL = 24,
+            CAR_PLATE = 28, KMS = 32, TYPE = 36, STATUS = 37, CAR_TYPE = 38, RATING = 39, CREATED = 40, CLOSED = 48, FARE = 56,
+            ETA = 64, PROMO = 68, FUEL = 72, PICKUP_LAT = 80, PICKUP_LON = 88, PICKUP_KM = 96, CANCEL_FEE = 104, CAR_ID = 112,
+            DISCOUNT = 120; // DISCOUNT and RATING are zero in records written before they existed
+
+    static final class IntList {
+        int[] a = new int[4];
+        int n;
+        void add(int v) { if (n == a.length) a = Arrays.copyOf(a, n * 2); a[n++] = v; }
+    }
+
+    private final java.nio.channels.FileChannel file;
+    private final java.nio.MappedByteBuffer header;
+    private final List<java.nio.MappedByteBuffer> chunks = new ArrayList<>();
+    private final DataOutputStream dictOut;
+    private final FileOutputStream dictFile;
+    private final List<String> dict = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final Map<String, IntList> byRider = new HashMap<>();
+    private int[] recordOfId = new int[1024]; // booking id -> record number + 1
+    private int maxId;
+    private volatile int count;
+    private final Map<String, List<Booking>> riderCache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, List<Booking>> e) { return size() > CACHED_RIDERS; }
+    };
+    private long cacheHits, cacheMisses;
+
+    BookingArchive(java.nio.file.Path dir) throws IOException {
+        java.nio.file.Files.createDirectories(dir);
+        java.nio.file.Path dictPath = dir.resolve("bookings.dict");
+        if (java.nio.file.Files.exists(dictPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(java.nio.file.Files.newInputStream(dictPath)))) {
+                while (true) {
+                    String str;
+                    try { str = in.readUTF(); } catch (EOFException e) { break; }
+                    codes.put(str, dict.size());
+                    dict.add(str);
+                }
+            }
+        }
+        dictFile = new FileOutputStream(dictPath.toFile(), true);
+        dictOut = new DataOutputStream(new BufferedOutputStream(dictFile));
+        file = java.nio.channels.FileChannel.open(dir.resolve("bookings.arc"), java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+        header = file.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        int n = (int) header.getLong(0);
+        for (int r = 0; r < n; r++) indexRecord(r);
+        count = n;
+    }
+
+    public int size() { return count; }
+    public int maxBookingId() { return maxId; }
+    public synchronized boolean contains(int bookingId) { return bookingId <= maxId && recordOfId[bookingId] != 0; }
+
+    // appends and makes durable (dictionary first, then records, then the count)
+    public synchronized void append(List<Booking> closed) throws IOException {
+        int n = count;
+        for (Booking b : closed) {
+            if (contains(b.getId())) continue;
+            write(chunk(n), (int) ((long) n % RECORDS_PER_CHUNK * RECORD_BYTES), b);
+            indexRecord(n);
+            riderCache.remove(b.getRiderName());
+            n++;
+        }
+        dictOut.flush();
+        dictFile.getFD().sync();
+        for (int c = count / RECORDS_PER_CHUNK; c <= (n - 1) / RECORDS_PER_CHUNK && n > 0; c++) chunks.get(c).force();
+        header.putLong(0, n);
+        header.force();
+        count = n;
+    }
+
+    // record number of an archived booking, -1 when it is not archived
+    public synchronized int recordOf(int bookingId) { return contains(bookingId) ? recordOfId[bookingId] - 1 : -1; }
+
+    // the mapped chunks holding records [0, size()), for readers that scan records in place
+    public synchronized java.nio.ByteBuffer[] mappedChunks() { return chunks.toArray(new java.nio.ByteBuffer[0]); }
+
+    // string codes as of now, for readers decoding records in place
+    public synchronized String[] dictionary() { return dict.toArray(new String[0]); }
+
+    // the rider's record numbers below `below`, in archive order
+    public synchronized int[] recordsOfRider(String rider, int below) {
+        IntList l = byRider.get(rider);
+        if (l == null) return new int[0];
+        int n = l.n;
+        while (n > 0 && l.a[n - 1] >= below) n--;
+        return Arrays.copyOf(l.a, n);
+    }
+
+    // rates an archived completed booking in place; false when it is not archived, not completed or already rated
+    public synchronized boolean rate(int bookingId, int stars) {
+        if (!contains(bookingId)) return false;
+        int record = recordOfId[bookingId] - 1;
+        java.nio.MappedByteBuffer buf = chunks.get(record / RECORDS_PER_CHUNK);
+        int at = (int) ((long) record % RECORDS_PER_CHUNK * RECORD_BYTES);
+        if (buf.get(at + STATUS) != BookingStatus.COMPLETED.ordinal() || buf.get(at + RATING) != 0) return false;
+        buf.put(at + RATING, (byte) stars);
+        buf.force(at, RECORD_BYTES);
+        riderCache.remove(dict.get(buf.getInt(at + RIDER)));
+        return true;
+    }
+
+    public synchronized Booking find(int bookingId, java.util.function.IntFunction<Driver> drivers) {
+        if (!contains(bookingId)) return null;
+        return read(recordOfId[bookingId] - 1, drivers);
+    }
+
+    // archive order (= order of closing), offset/limit within it
+    public List<Booking> page(int offset, int limit, java.util.function.IntFunction<Driver> drivers) {
+        List<Booking> out = new ArrayList<>();
+        int end = (int) Math.min(count, (long) offset + limit);
+        for (int r = Math.max(0, offset); r < end; r++) out.add(read(r, drivers));
+        return out;
+    }
+
+    public synchronized int countForRider(String rider) {
+        IntList l = byRider.get(rider);
+        return l == null ? 0 : l.n;
+    }
+
+    public synchronized List<Booking> forRider(String rider, java.util.function.IntFunction<Driver> drivers) {
+        List<Booking> hit = riderCache.get(rider);
+        if (hit != null) { cacheHits++; return hit; }
+        cacheMisses++;
+        IntList l = byRider.get(rider);
+        if (l == null) return Collections.emptyList();
+        List<Booking> out = new ArrayList<>(l.n);
+        for (int i = 0; i < l.n; i++) out.add(read(l.a[i], drivers));
+        List<Booking> frozen = Collections.unmodifiableList(out);
+        riderCache.put(rider, frozen);
+        return frozen;
+    }
+
+    public synchronized String stats() {
+        return String.format("archived=%d dictionary=%d cachedRiders=%d cacheHits=%d cacheMisses=%d fileBytes=%d",
+                count, dict.size(), riderCache.size(), cacheHits, cacheMisses, HEADER_BYTES + (long) chunks.size() * CHUNK_BYTES);
+    }
+
+    // ---------- records ----------
+    private void write(java.nio.MappedByteBuffer buf, int at, Booking b) {
+        Driver d = b.getDriver();
+        buf.putInt(at + ID, b.getId());
+        buf.putInt(at + RIDER, code(b.getRiderName()));
+        buf.putInt(at + PICKUP, code(b.getPickup()));
+        buf.putInt(at + DROP, code(b.getDrop()));
+        buf.putInt(at + DRIVER_ID, d.getId());
+        buf.putInt(at + DRIVER_NAME, code(d.getName()));
+        buf.putInt(at + CAR_MODEL, code(d.getCar().getModel()));
+        buf.putInt(at + CAR_PLATE, code(d.getCar().getPlate()));
+        buf.putInt(at + KMS, b.getKms());
+        buf.put(at + TYPE, (byte) b.getRequestedType().ordinal());
+        buf.put(at + STATUS, (byte) b.getStatus().ordinal());
+        buf.put(at + CAR_TYPE, (byte) d.getCar().getType().ordinal());
+        buf.put(at + RATING, (byte) b.getRating());
+        buf.putLong(at + CREATED, Persistence.epochMillis(b.getCreatedAt()));
+        buf.putLong(at + CLOSED, Persistence.epochMillis(b.getStatus() == BookingStatus.COMPLETED ? b.getCompletedAt() : b.getCancelledAt()));
+        buf.putDouble(at + FARE, b.getEstimatedFare());
+        buf.putInt(at + ETA, b.getEtaMinutes());
+        buf.putInt(at + PROMO, b.getAppliedPromo() == null ? -1 : code(b.getAppliedPromo()));
+        buf.putDouble(at + FUEL, b.getEstimatedFuelLiters());
+        buf.putDouble(at + PICKUP_LAT, b.getPickupLat());
+        buf.putDouble(at + PICKUP_LON, b.getPickupLon());
+        buf.putDouble(at + PICKUP_KM, b.getPickupKm());
+        buf.putDouble(at + CANCEL_FEE, b.getCancellationFee());
+        buf.putInt(at + CAR_ID, d.getCar().getId());
+        buf.putDouble(at + DISCOUNT, b.getPromoDiscount());
+    }
+
+    Booking read(int record, java.util.function.IntFunction<Driver> drivers) {
+        java.nio.MappedByteBuffer buf;
+        synchronized (this) { buf = chunks.get(record / RECORDS_PER_CHUNK); }
+        int at = (int) ((long) record % RECORDS_PER_CHUNK * RECORD_BYTES);
+        CarType[] types = CarType.values();
+        int driverId = buf.getInt(at + DRIVER_ID);
+        Driver d = drivers.apply(driverId);
+        if (d == null) {
+            d = new Driver(driverId, string(buf.getInt(at + DRIVER_NAME)),
+                    new Car(buf.getInt(at + CAR_ID), string(buf.getInt(at + CAR_MODEL)), string(buf.getInt(at + CAR_PLATE)), types[buf.get(at + CAR_TYPE)]));
+            d.setAvailable(false);
+        }
+        BookingStatus st = BookingStatus.values()[buf.get(at + STATUS)];
+        Booking b = new Booking(buf.getInt(at + ID), string(buf.getInt(at + RIDER)), string(buf.getInt(at + PICKUP)),
+                string(buf.getInt(at + DROP)), d, buf.getInt(at + KMS), types[buf.get(at + TYPE)], st,
+                Persistence.dateTime(buf.getLong(at + CREATED)));
+        LocalDateTime closed = Persistence.dateTime(buf.getLong(at + CLOSED));
+        if (st == BookingStatus.COMPLETED) b.setCompletedAt(closed); else b.setCancelledAt(closed);
+        b.setEstimatedFare(buf.getDouble(at + FARE));
+        b.setEtaMinutes(buf.getInt(at + ETA));
+        int promo = buf.getInt(at + PROMO);
+        b.setAppliedPromo(promo < 0 ? null : string(promo));
+        b.setEstimatedFuelLiters(buf.getDouble(at + FUEL));
+        b.setPickupLocation(buf.getDouble(at + PICKUP_LAT), buf.getDouble(at + PICKUP_LON));
+        b.setPickupKm(buf.getDouble(at + PICKUP_KM));
+        b.setCancellationFee(buf.getDouble(at + CANCEL_FEE));
+        b.setPromoDiscount(buf.getDouble(at + DISCOUNT));
+        if (buf.get(at + RATING) > 0) b.rate(buf.get(at + RATING));
+        return b;
+    }
+
+    private void indexRecord(int record) throws IOException {
+        java.nio.MappedByteBuffer buf = chunk(record);
+        int at = (int) ((long) record % RECORDS_PER_CHUNK * RECORD_BYTES);
+        int id = buf.getInt(at + ID);
+        if (id >= recordOfId.length) recordOfId = Arrays.copyOf(recordOfId, Math.max(id + 1, recordOfId.length * 2));
+        recordOfId[id] = record + 1;
+        maxId = Math.max(maxId, id);
+        byRider.computeIfAbsent(dict.get(buf.getInt(at + RIDER)), r -> new IntList()).add(record);
+    }
+
+    private java.nio.MappedByteBuffer chunk(int record) throws IOException {
+        int c = record / RECORDS_PER_CHUNK;
+        while (chunks.size() <= c)
+            chunks.add(file.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, HEADER_BYTES + chunks.size() * CHUNK_BYTES, CHUNK_BYTES));
+        return chunks.get(c);
+    }
+
+    private int code(String str) {
+        Integer c = codes.get(str);
+        if (c != null) return c;
+        try { dictOut.writeUTF(str); } catch (IOException e) { throw new UncheckedIOException(e); }
+        codes.put(str, dict.size());
+        dict.add(str);
+        return dict.size() - 1;
+    }
+
+    private synchronized String string(int code) { return dict.get(code); }
+
+    @Override
+    public synchronized void close() throws IOException {
+        dictOut.close();
+        file.close();
+    }
+}
+
+/*
+ Streaming booking export. A Cursor walks the rows of the paged history, in its order (archived
+ records in closing order, then hot bookings by id), keeping those that pass a Filter on rider,
+ status and creation time. Archived rows are filtered and read straight from the mapped records,
+ so no Booking or LocalDateTime is built per row; page() rehydrates only the rows a page shows.
+ A rider filter walks that rider's record list rather than the whole archive.
+
+ A Writer encodes rows as CSV or JSON Lines into one reusable ByteBuffer, draining it to the
+ channel whenever it fills: output starts with the first row and memory stays flat whatever the
+ row count. Numbers and times are written digit by digit (money to the paisa, times as ISO-8601
+ like the JSON API), and each distinct string is escaped and encoded once, then copied.
+*/
+final class BookingExport {
+    enum Format { CSV, JSONL }
+
+    static final String CSV_HEADER = "id,rider,pickup,drop,driver_id,driver,car_type,requested_type,km,status,"
+            + "created,closed,fare,promo,promo_discount,cancellation_fee,eta_minutes,fuel_liters";
+
+    private BookingExport() {}
+
+    // null rider/status = any; creation time in [fromMs, toMs)
+    record Filter(String rider, BookingStatus status, long fromMs, long toMs) {
+        static final Filter ALL = new Filter(null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        static Filter rider(String rider) { return new Filter(rider, null, Long.MIN_VALUE, Long.MAX_VALUE); }
+
+        // from and to are inclusive days; null = open
+        static Filter of(String rider, BookingStatus status, java.time.LocalDate from, java.time.LocalDate to) {
+            return new Filter(rider, status, from == null ? Long.MIN_VALUE : Persistence.epochMillis(from.atStartOfDay()),
+                    to == null ? Long.MAX_VALUE : Persistence.epochMillis(to.plusDays(1).atStartOfDay()));
+        }
+
+        boolean accepts(BookingStatus st, long createdMs) {
+            return (status == null || status == st) && createdMs >= fromMs && createdMs < toMs;
+        }
+    }
+
+    static final class Cursor {
+        private static final BookingStatus[] STATUSES = BookingStatus.values();
+        private static final CarType[] TYPES = CarType.values();
+
+        private final Filter filter;
+        private final BookingArchive archive;
+        private final java.nio.ByteBuffer[] chunks;
+        private String[] dict = new String[0]; // copied from the archive when a row first needs a code it lacks
+        private final int[] records; // archive records to visit, null = every one in [0, archived)
+        private final int archived;
+        private final List<Booking> hot;
+        private final java.util.function.IntFunction<Driver> drivers;
+        private final int end;
+        private int at = -1;
+        private java.nio.ByteBuffer buf; // current archived row: buf at off; else current hot booking
+        private int off, record;
+        private Booking current;
+
+        Cursor(Filter filter, BookingArchive archive, int archived, java.nio.ByteBuffer[] chunks, int[] records,
+               List<Booking> hot, java.util.function.IntFunction<Driver> drivers) {
+            this.filter = filter; this.archive = archive; this.archived = archived; this.chunks = chunks;
+            this.records = records; this.hot = hot; this.drivers = drivers;
+            end = (records == null ? archived : records.length) + hot.size();
+        }
+
+        // moves to the next row that passes the filter; false at the end
+        boolean next() {
+            int archivedRows = end - hot.size();
+            while (++at < end) {
+                if (at < archivedRows) {
+                    record = records == null ? at : records[at];
+                    buf = chunks[record / BookingArchive.RECORDS_PER_CHUNK];
+                    off = record % BookingArchive.RECORDS_PER_CHUNK * BookingArchive.RECORD_BYTES;
+                    current = null;
+                    if (filter.accepts(STATUSES[buf.get(off + BookingArchive.STATUS)], buf.getLong(off + BookingArchive.CREATED))) return true;
+                } else {
+                    current = hot.get(at - archivedRows);
+                    buf = null;
+                    if ((filter.rider() == null || filter.rider().equals(current.getRiderName()))
+                            && filter.accepts(current.getStatus(), Persistence.epochMillis(current.getCreatedAt()))) return true;
+                }
+            }
+            return false;
+        }
+
+        Cursor skip(int rows) {
+            if (records == null && filter.equals(Filter.ALL)) { // every archived row passes: jump over them
+                int jump = Math.max(0, Math.min(rows, archived - at - 1));
+                at += jump;
+                rows -= jump;
+            }
+            while (rows-- > 0 && next()) { }
+            return this;
+        }
+
+        // up to limit further rows as bookings
+        List<Booking> page(int limit) {
+            List<Booking> out = new ArrayList<>(Math.min(limit, 1024));
+            while (out.size() < limit && next()) out.add(booking());
+            return out;
+        }
+
+        Booking booking() { return buf == null ? current : archive.read(record, drivers); }
+
+        int id() { return buf == null ? current.getId() : buf.getInt(off + BookingArchive.ID); }
+        String rider() { return buf == null ? current.getRiderName() : string(buf.getInt(off + BookingArchive.RIDER)); }
+        String pickup() { return buf == null ? current.getPickup() : string(buf.getInt(off + BookingArchive.PICKUP)); }
+        String drop() { return buf == null ? current.getDrop() : string(buf.getInt(off + BookingArchive.DROP)); }
+        int driverId() { return buf == null ? current.getDriver().getId() : buf.getInt(off + BookingArchive.DRIVER_ID); }
+        String driverName() { return buf == null ? current.getDriver().getName() : string(buf.getInt(off + BookingArchive.DRIVER_NAME)); }
+        CarType carType() { return buf == null ? current.getDriver().getCar().getType() : TYPES[buf.get(off + BookingArchive.CAR_TYPE)]; }
+        CarType requestedType() { return buf == null ? current.getRequestedType() : TYPES[buf.get(off + BookingArchive.TYPE)]; }
+        int kms() { return buf == null ? current.getKms() : buf.getInt(off + BookingArchive.KMS); }
+        BookingStatus status() { return buf == null ? current.getStatus() : STATUSES[buf.get(off + BookingArchive.STATUS)]; }
+        long createdMs() { return buf == null ? Persistence.epochMillis(current.getCreatedAt()) : buf.getLong(off + BookingArchive.CREATED); }
+        // Long.MIN_VALUE while active
+        long closedMs() {
+            if (buf != null) return buf.getLong(off + BookingArchive.CLOSED);
+            return Persistence.epochMillis(current.getStatus() == BookingStatus.COMPLETED ? current.getCompletedAt() : current.getCancelledAt());
+        }
+        double fare() { return buf == null ? current.getEstimatedFare() : buf.getDouble(off + BookingArchive.FARE); }
+        String promo() {
+            if (buf == null) return current.getAppliedPromo();
+            int code = buf.getInt(off + BookingArchive.PROMO);
+            return code < 0 ? null : string(code);
+        }
+        // dictionary code of a string field (BookingArchive.RIDER, ...) of an archived row; -1 on hot rows
+        int code(int field) { return buf == null ? -1 : buf.getInt(off + field); }
+
+        private String string(int code) {
+            if (code >= dict.length) dict = archive.dictionary();
+            return dict[code];
+        }
+
+        double promoDiscount() { return buf == null ? current.getPromoDiscount() : buf.getDouble(off + BookingArchive.DISCOUNT); }
+        double cancellationFee() { return buf == null ? current.getCancellationFee() : buf.getDouble(off + BookingArchive.CANCEL_FEE); }
+        int etaMinutes() { return buf == null ? current.getEtaMinutes() : buf.getInt(off + BookingArchive.ETA); }
+        double fuelLiters() { return buf == null ? current.getEstimatedFuelLiters() : buf.getDouble(off + BookingArchive.FUEL); }
+    }
+
+    static final class Writer {
+        static final int BUFFER_BYTES = 1 << 16;
+        private static final int CACHED_STRINGS = 1 << 16;
+        private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+        private final Format format;
+        private final java.nio.channels.WritableByteChannel out;
+        private final java.nio.ByteBuffer buf;
+        private final byte[] digits = new byte[20];
+        private final Map<String, byte[]> encoded = new HashMap<>(); // hot rows
+        private byte[][] byCode = new byte[1024][]; // archived rows, by dictionary code: every distinct string encoded once
+        private final byte[][] carTypes, statuses;
+        private long rows;
+
+        Writer(Format format, java.nio.channels.WritableByteChannel out) { this(format, out, java.nio.ByteBuffer.allocateDirect(BUFFER_BYTES)); }
+
+        // buf is cleared and reused; one buffer can serve export after export
+        Writer(Format format, java.nio.channels.WritableByteChannel out, java.nio.ByteBuffer buf) {
+            this.format = format; this.out = out; this.buf = buf.clear();
+            carTypes = Arrays.stream(CarType.values()).map(t -> text(t.name())).toArray(byte[][]::new);
+            statuses = Arrays.stream(BookingStatus.values()).map(t -> text(t.name())).toArray(byte[][]::new);
+        }
+
+        long rows() { return rows; }
+
+        // the CSV header (JSON Lines has none), every remaining row, then a flush; returns rows written
+        long writeAll(Cursor c) throws IOException {
+            if (format == Format.CSV && rows == 0) {
+                put(CSV_HEADER.getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+                putByte('\n');
+            }
+            long before = rows;
+            while (c.next()) write(c);
+            flush();
+            return rows - before;
+        }
+
+        void write(Cursor c) throws IOException {
+            if (format == Format.CSV) csv(c); else json(c);
+            rows++;
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+        }
+
+        private void csv(Cursor c) throws IOException {
+            putLong(c.id()); putByte(',');
+            put(text(c.code(BookingArchive.RIDER), c.rider())); putByte(',');
+            put(text(c.code(BookingArchive.PICKUP), c.pickup())); putByte(',');
+            put(text(c.code(BookingArchive.DROP), c.drop())); putByte(',');
+            putLong(c.driverId()); putByte(',');
+            put(text(c.code(BookingArchive.DRIVER_NAME), c.driverName())); putByte(',');
+            put(carTypes[c.carType().ordinal()]); putByte(',');
+            put(carTypes[c.requestedType().ordinal()]); putByte(',');
+            putLong(c.kms()); putByte(',');
+            put(statuses[c.status().ordinal()]); putByte(',');
+            putTime(c.createdMs()); putByte(',');
+            putTime(c.closedMs()); putByte(',');
+            putHundredths(c.fare()); putByte(',');
+            String promo = c.promo();
+            if (promo != null) put(text(c.code(BookingArchive.PROMO), promo));
+            putByte(',');
+            putHundredths(c.promoDiscount()); putByte(',');
+            putHundredths(c.cancellationFee()); putByte(',');
+            putLong(c.etaMinutes()); putByte(',');
+            putHundredths(c.fuelLiters()); putByte('\n');
+        }
+
+        private static final byte[][] KEYS = Arrays.stream(new String[] {"{\"id\":", ",\"rider\":", ",\"pickup\":", ",\"drop\":",
+                ",\"driverId\":", ",\"driver\":", ",\"carType\":", ",\"type\":", ",\"km\":", ",\"status\":", ",\"createdAt\":",
+                ",\"closedAt\":", ",\"fare\":", ",\"promo\":", ",\"promoDiscount\":", ",\"cancellationFee\":", ",\"etaMinutes\":",
+                ",\"fuelLiters\":"}).map(k -> k.getBytes(java.nio.charset.StandardCharsets.US_ASCII)).toArray(byte[][]::new);
+
+        private void json(Cursor c) throws IOException {
+            put(KEYS[0]); putLong(c.id());
+            put(KEYS[1]); put(text(c.code(BookingArchive.RIDER), c.rider()));
+            put(KEYS[2]); put(text(c.code(BookingArchive.PICKUP), c.pickup()));
+            put(KEYS[3]); put(text(c.code(BookingArchive.DROP), c.drop()));
+            put(KEYS[4]); putLong(c.driverId());
+            put(KEYS[5]); put(text(c.code(BookingArchive.DRIVER_NAME), c.driverName()));
+            put(KEYS[6]); put(carTypes[c.carType().ordinal()]);
+            put(KEYS[7]); put(carTypes[c.requestedType().ordinal()]);
+            put(KEYS[8]); putLong(c.kms());
+            put(KEYS[9]); put(statuses[c.status().ordinal()]);
+            put(KEYS[10]); putTime(c.createdMs());
+            put(KEYS[11]); putTime(c.closedMs());
+            put(KEYS[12]); putHundredths(c.fare());
+            String promo = c.promo();
+            put(KEYS[13]); put(promo == null ? NULL : text(c.code(BookingArchive.PROMO), promo));
+            put(KEYS[14]); putHundredths(c.promoDiscount());
+            put(KEYS[15]); putHundredths(c.cancellationFee());
+            put(KEYS[16]); putLong(c.etaMinutes());
+            put(KEYS[17]); putHundredths(c.fuelLiters());
+            putByte('}'); putByte('\n');
+        }
+
+        private byte[] text(int code, String s) {
+            if (code < 0) return text(s);
+            if (code >= byCode.length) byCode = Arrays.copyOf(byCode, Math.max(code + 1, byCode.length * 2));
+            byte[] b = byCode[code];
+            if (b == null) byCode[code] = b = encode(s);
+            return b;
+        }
+
+        // the string escaped for the format (JSON quoted), as UTF-8; cached, since riders and places repeat
+        private byte[] text(String s) {
+            byte[] b = encoded.get(s);
+            if (b != null) return b;
+            if (encoded.size() == CACHED_STRINGS) encoded.clear();
+            encoded.put(s, b = encode(s));
+            return b;
+        }
+
+        private byte[] encode(String s) {
+            return (format == Format.JSONL ? Json.quote(s) : csvField(s)).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        static String csvField(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == ',' || ch == '"' || ch == '\n' || ch == '\r') return '"' + s.replace("\"", "\"\"") + '"';
+            }
+            return s;
+        }
+
+        private void putTime(long ms) throws IOException {
+            if (ms == Long.MIN_VALUE) {
+                if (format == Format.JSONL) put(NULL);
+                return;
+            }
+            if (buf.remaining() < 21) flush();
+            // civil date from days since the epoch (proleptic Gregorian), as in java.time.LocalDate
+            long days = Math.floorDiv(ms, 86_400_000L), secs = Math.floorMod(ms, 86_400_000L) / 1000;
+            long z = days + 719_468, era = Math.floorDiv(z, 146_097), doe = z - era * 146_097;
+            long yoe = (doe - doe / 1460 + doe / 36_524 - doe / 146_096) / 365, doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+            long mp = (5 * doy + 2) / 153, day = doy - (153 * mp + 2) / 5 + 1, month = mp < 10 ? mp + 3 : mp - 9;
+            long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+            if (format == Format.JSONL) buf.put((byte) '"');
+            put2(year / 100); put2(year % 100); buf.put((byte) '-'); put2(month); buf.put((byte) '-'); put2(day);
+            buf.put((byte) 'T'); put2(secs / 3600); buf.put((byte) ':'); put2(secs / 60 % 60); buf.put((byte) ':'); put2(secs % 60);
+            if (format == Format.JSONL) buf.put((byte) '"');
+        }
+
+        private void put2(long v) { buf.put((byte) ('0' + v / 10)).put((byte) ('0' + v % 10)); }
+
+        // two decimals, rounded as the rollups and settlement round
+        private void putHundredths(double v) throws IOException {
+            long h = Rollups.hundredths(v);
+            if (h < 0) { putByte('-'); h = -h; }
+            putLong(h / 100);
+            if (buf.remaining() < 3) flush();
+            buf.put((byte) '.');
+            put2(h % 100);
+        }
+
+        private void putLong(long v) throws IOException {
+            if (v < 0) {
+                if (v == Long.MIN_VALUE) { put(Long.toString(v).getBytes(java.nio.charset.StandardCharsets.US_ASCII)); return; }
+                putByte('-');
+                v = -v;
+            }
+            int i = digits.length;
+            do { digits[--i] = (byte) ('0' + v % 10); v /= 10; } while (v != 0);
+            if (buf.remaining() < digits.length - i) flush();
+            buf.put(digits, i, digits.length - i);
+        }
+
+        private void putByte(char c) throws IOException {
+            if (!buf.hasRemaining()) flush();
+            buf.put((byte) c);
+        }
+
+        private void put(byte[] b) throws IOException {
+            if (buf.remaining() < b.length) flush();
+            if (b.length <= buf.remaining()) buf.put(b);
+            else for (java.nio.ByteBuffer w = java.nio.ByteBuffer.wrap(b); w.hasRemaining(); ) out.write(w); // longer than the buffer
+        }
+    }
+}
+
+final class GeoPoint {
+    final double lat;
+    final double lon;
+    GeoPoint(double lat, double lon) { this.lat = lat; this.lon = lon; }
+    @Override public String toString() { return String.format("(%.5f, %.5f)", lat, lon); }
+}
+
+// Demo city geometry. Free-text place names are hashed to stable points inside the city.
+final class CityMap {
+    static final double CENTER_LAT = 13.0827, CENTER_LON = 80.2707; // Chennai
+    static final double RADIUS_KM = 15.0;
+    static final double EARTH_RADIUS_KM = 6371.0;
+
+    private CityMap() {}
+
+    static GeoPoint locate(String place) {
+        String key = place == null ? "" : place.trim().toLowerCase(Locale.ROOT);
+        return randomPoint(new Random(key.hashCode()));
+    }
+
+    static GeoPoint randomPoint(Random r) {
+        double dist = RADIUS_KM * Math.sqrt(r.nextDouble());
+        double angle = r.nextDouble() * 2 * Math.PI;
+        double dLat = Math.toDegrees(dist * Math.sin(angle) / EARTH_RADIUS_KM);
+        double dLon = Math.toDegrees(dist * Math.cos(angle) / (EARTH_RADIUS_KM * Math.cos(Math.toRadians(CENTER_LAT))));
+        return new GeoPoint(CENTER_LAT + dLat, CENTER_LON + dLon);
+    }
+
+    // equirectangular approximation, accurate to well under 1% at city scale
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_KM;
+    }
+}
+
+/*
+ Road network behind distances and ETAs. Arcs are directed and stored CSR-style: the arcs
+ leaving node v are [first[v], first[v + 1]) in the head/meters/tenths arrays, times in tenths
+ of a second. Queries are A* on travel time with ALT bounds: for LANDMARKS nodes picked far
+ apart we keep the exact time from each landmark to every node and back, and the triangle
+ inequality turns them into a lower bound on the time still to go. A bounded LRU, striped to
+ keep lock hold times short, answers repeated origin/destination pairs without searching.
+ Positions snap to the nearest node through a uniform grid; the walk to and from the snapped
+ nodes is added at ACCESS_KMH.
+
+ File format (text; blank lines and '#' comments ignored):
+   n <nodes> <arcs>
+   v <lat> <lon>                 nodes, numbered from 0 in file order
+   a <from> <to> <meters> <kmh>  one direction; a two-way road is two arcs
+ demoCity() is the built-in grid used when no file is given.
+*/
+final class RoadGraph {
+    static final int LANDMARKS = 8;
+    static final int CACHE_STRIPES = 16;
+    static final double CELL_DEG = 0.0025; // snapping grid, ~280 m
+    static final double ACCESS_KMH = 15.0;
+    private static final int INF = Integer.MAX_VALUE / 4; // unreachable; still a valid ALT bound
+
+    record Route(double km, double minutes) {}
+
+    private final int nodes;
+    private final double[] lat, lon;
+    private final int[] first, head, meters, tenths;
+    private final int[] landmarks = new int[LANDMARKS];
+    private final int[] fromLm, toLm; // [v * LANDMARKS + l]: time landmark l -> v, v -> landmark l
+    private final double minLat, minLon;
+    private final int cols, rows;
+    private final int[] cellFirst, cellNodes;
+    private final Lru[] cache = new Lru[CACHE_STRIPES];
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    private final ConcurrentLinkedQueue<Search> idle = new ConcurrentLinkedQueue<>();
+
+    private static final class Lru extends LinkedHashMap<Long, Long> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        Lru(int capacity) { super(64, 0.75f, true); this.capacity = capacity; }
+        @Override protected boolean removeEldestEntry(Map.Entry<Long, Long> e) { return size() > capacity; }
+    }
+
+    // binary min-heap of (key << 32 | node); stale entries are skipped by the caller
+    private static final class Heap {
+        long[] a = new long[256];
+        int n;
+        void clear() { n = 0; }
+        void push(long x) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            int i = n++;
+            while (i > 0 && a[(i - 1) >> 1] > x) { a[i] = a[(i - 1) >> 1]; i = (i - 1) >> 1; }
+            a[i] = x;
+        }
+        long pop() {
+            long top = a[0], x = a[--n];
+            int i = 0;
+            for (int c; (c = 2 * i + 1) < n; i = c) {
+                if (c + 1 < n && a[c + 1] < a[c]) c++;
+                if (a[c] >= x) break;
+                a[i] = a[c];
+            }
+            a[i] = x;
+            return top;
+        }
+    }
+
+    // per-query scratch, pooled; stamp marks which dist entries belong to the current query
+    private static final class Search {
+        final int[] dist, meters, stamp;
+        final Heap heap = new Heap();
+        int round;
+        Search(int n) { dist = new int[n]; meters = new int[n]; stamp = new int[n]; }
+    }
+
+    // arcs as parallel arrays: from[i] -> to[i], meters[i] long, tenths[i] to drive
+    RoadGraph(double[] lat, double[] lon, int[] from, int[] to, int[] arcMeters, int[] arcTenths, int cacheSize) {
+        this.nodes = lat.length;
+        this.lat = lat;
+        this.lon = lon;
+        first = new int[nodes + 1];
+        head = new int[from.length];
+        meters = new int[from.length];
+        tenths = new int[from.length];
+        int[] rFirst = new int[nodes + 1], rHead = new int[from.length], rTenths = new int[from.length];
+        for (int i = 0; i < from.length; i++) { first[from[i] + 1]++; rFirst[to[i] + 1]++; }
+        for (int v = 0; v < nodes; v++) { first[v + 1] += first[v]; rFirst[v + 1] += rFirst[v]; }
+        int[] fill = Arrays.copyOf(first, nodes), rFill = Arrays.copyOf(rFirst, nodes);
+        for (int i = 0; i < from.length; i++) {
+            int at = fill[from[i]]++;
+            head[at] = to[i]; meters[at] = arcMeters[i]; tenths[at] = arcTenths[i];
+            at = rFill[to[i]]++;
+            rHead[at] = from[i]; rTenths[at] = arcTenths[i];
+        }
+
+        // landmarks: each is the node farthest from those already picked (by time from them)
+        fromLm = new int[nodes * LANDMARKS];
+        toLm = new int[nodes * LANDMARKS];
+        int[] d = new int[nodes], nearestLm = new int[nodes];
+        Arrays.fill(nearestLm, INF);
+        dijkstra(first, head, tenths, 0, d);
+        int next = farthest(d);
+        for (int l = 0; l < LANDMARKS; l++) {
+            landmarks[l] = next;
+            dijkstra(first, head, tenths, next, d);
+            for (int v = 0; v < nodes; v++) { fromLm[v * LANDMARKS + l] = d[v]; nearestLm[v] = Math.min(nearestLm[v], d[v]); }
+            dijkstra(rFirst, rHead, rTenths, next, d);
+            for (int v = 0; v < nodes; v++) toLm[v * LANDMARKS + l] = d[v];
+            next = farthest(nearestLm);
+        }
+
+        // snapping grid, CSR again: nodes of cell c are cellNodes[cellFirst[c] .. cellFirst[c + 1])
+        double loLat = Double.MAX_VALUE, loLon = Double.MAX_VALUE, hiLat = -Double.MAX_VALUE, hiLon = -Double.MAX_VALUE;
+        for (int v = 0; v < nodes; v++) {
+            loLat = Math.min(loLat, lat[v]); hiLat = Math.max(hiLat, lat[v]);
+            loLon = Math.min(loLon, lon[v]); hiLon = Math.max(hiLon, lon[v]);
+        }
+        minLat = loLat;
+        minLon = loLon;
+        rows = (int) ((hiLat - loLat) / CELL_DEG) + 1;
+        cols = (int) ((hiLon - loLon) / CELL_DEG) + 1;
+        cellFirst = new int[rows * cols + 1];
+        cellNodes = new int[nodes];
+        for (int v = 0; v < nodes; v++) cellFirst[cell(lat[v], lon[v]) + 1]++;
+        for (int c = 0; c < rows * cols; c++) cellFirst[c + 1] += cellFirst[c];
+        int[] cFill = Arrays.copyOf(cellFirst, rows * cols);
+        for (int v = 0; v < nodes; v++) cellNodes[cFill[cell(lat[v], lon[v])]++] = v;
+
+        for (int s = 0; s < CACHE_STRIPES; s++) cache[s] = new Lru(Math.max(1, cacheSize / CACHE_STRIPES));
+    }
+
+    int nodeCount() { return nodes; }
+    int arcCount() { return head.length; }
+    long cacheHits() { return hits.sum(); }
+    long cacheMisses() { return misses.sum(); }
+
+    // fastest road route between two positions; null when no road connects them
+    Route route(double fromLat, double fromLon, double toLat, double toLon) {
+        int s = nearest(fromLat, fromLon), t = nearest(toLat, toLon);
+        long r = cached(s, t);
+        if (r < 0) return null;
+        double accessKm = CityMap.distanceKm(fromLat, fromLon, lat[s], lon[s]) + CityMap.distanceKm(toLat, toLon, lat[t], lon[t]);
+        return new Route((int) r / 1000.0 + accessKm, (r >>> 32) / 600.0 + accessKm / ACCESS_KMH * 60);
+    }
+
+    Route route(GeoPoint from, GeoPoint to) { return route(from.lat, from.lon, to.lat, to.lon); }
+
+    // node closest to the position: grid rings outward until no closer node can remain
+    int nearest(double atLat, double atLon) {
+        int cy = clamp((int) Math.floor((atLat - minLat) / CELL_DEG), rows), cx = clamp((int) Math.floor((atLon - minLon) / CELL_DEG), cols);
+        double cellKm = Math.toRadians(CELL_DEG) * CityMap.EARTH_RADIUS_KM * Math.cos(Math.toRadians(Math.abs(atLat) + 1));
+        int best = -1;
+        double bestKm = Double.MAX_VALUE;
+        for (int r = 0; r < Math.max(rows, cols); r++) {
+            for (int y = cy - r; y <= cy + r; y++) {
+                if (y < 0 || y >= rows) continue;
+                for (int x = cx - r; x <= cx + r; x += (y == cy - r || y == cy + r) ? 1 : 2 * r) {
+                    if (x < 0 || x >= cols) continue;
+                    for (int i = cellFirst[y * cols + x]; i < cellFirst[y * cols + x + 1]; i++) {
+                        int v = cellNodes[i];
+                        double km = CityMap.distanceKm(atLat, atLon, lat[v], lon[v]);
+                        if (km < bestKm) { bestKm = km; best = v; }
+                    }
+                    if (r == 0) break;
+                }
+            }
+            if (best >= 0 && bestKm <= r * cellKm) break;
+        }
+        return best;
+    }
+
+    // packed (tenths << 32 | meters), -1 when t cannot be reached from s
+    long cached(int s, int t) {
+        if (s == t) return 0L;
+        long key = (long) s << 32 | t;
+        Lru c = cache[(int) ((key * 0x9E3779B97F4A7C15L) >>> 60)];
+        Long hit;
+        synchronized (c) { hit = c.get(key); }
+        if (hit != null) { hits.increment(); return hit; }
+        misses.increment();
+        long t0 = Metrics.start();
+        long r = shortest(s, t, true);
+        Metrics.ROUTE_QUERY.recordSince(t0);
+        synchronized (c) { c.put(key, r); }
+        return r;
+    }
+
+    // A* with ALT bounds, or plain Dijkstra when alt is false (kept as the baseline)
+    long shortest(int s, int t, boolean alt) {
+        Search q = idle.poll();
+        if (q == null) q = new Search(nodes);
+        try {
+            int round = ++q.round;
+            int[] dist = q.dist, len = q.meters, stamp = q.stamp;
+            Heap heap = q.heap;
+            heap.clear();
+            dist[s] = 0; len[s] = 0; stamp[s] = round;
+            heap.push((long) (alt ? bound(s, t) : 0) << 32 | s);
+            while (heap.n > 0) {
+                long top = heap.pop();
+                int v = (int) top, dv = dist[v];
+                if ((int) (top >>> 32) > dv + (alt ? bound(v, t) : 0)) continue; // stale: v was pushed again with a shorter dist
+                if (v == t) return (long) dist[t] << 32 | len[t];
+                for (int i = first[v]; i < first[v + 1]; i++) {
+                    int w = head[i], dw = dv + tenths[i];
+                    if (stamp[w] == round && dist[w] <= dw) continue;
+                    int h = alt ? bound(w, t) : 0;
+                    if (h >= INF) continue; // cannot reach t from w
+                    stamp[w] = round; dist[w] = dw; len[w] = len[v] + meters[i];
+                    heap.push((long) (dw + h) << 32 | w);
+                }
+            }
+            return -1L;
+        } finally {
+            idle.offer(q);
+        }
+    }
+
+    String stats() {
+        int cachedPairs = 0;
+        for (Lru c : cache) synchronized (c) { cachedPairs += c.size(); }
+        return String.format("nodes=%d arcs=%d landmarks=%d cachedPairs=%d cacheHits=%d cacheMisses=%d",
+                nodes, head.length, LANDMARKS, cachedPairs, hits.sum(), misses.sum());
+    }
+
+    // lower bound on the time from v to t: max over landmarks of d(L,t)-d(L,v) and d(v,L)-d(t,L)
+    private int bound(int v, int t) {
+        int best = 0, a = v * LANDMARKS, b = t * LANDMARKS;
+        for (int l = 0; l < LANDMARKS; l++) {
+            best = Math.max(best, fromLm[b + l] - fromLm[a + l]);
+            best = Math.max(best, toLm[a + l] - toLm[b + l]);
+        }
+        return best;
+    }
+
+    // one-to-all times over the given CSR arrays, INF where unreachable
+    private static void dijkstra(int[] first, int[] head, int[] cost, int s, int[] dist) {
+        Arrays.fill(dist, INF);
+        Heap heap = new Heap();
+        dist[s] = 0;
+        heap.push(s);
+        while (heap.n > 0) {
+            long top = heap.pop();
+            int v = (int) top, dv = (int) (top >>> 32);
+            if (dv > dist[v]) continue;
+            for (int i = first[v]; i < first[v + 1]; i++) {
+                int w = head[i], dw = dv + cost[i];
+                if (dw < dist[w]) { dist[w] = dw; heap.push((long) dw << 32 | w); }
+            }
+        }
+    }
+
+    private static int farthest(int[] d) {
+        int best = 0;
+        for (int v = 1; v < d.length; v++) if (d[v] != INF && (d[best] == INF || d[v] > d[best])) best = v;
+        return best;
+    }
+
+    private int cell(double atLat, double atLon) {
+        return clamp((int) ((atLat - minLat) / CELL_DEG), rows) * cols + clamp((int) ((atLon - minLon) / CELL_DEG), cols);
+    }
+
+    private static int clamp(int i, int n) { return Math.max(0, Math.min(n - 1, i)); }
+
+    static int tenthsFor(int meters, double kmh) { return Math.max(1, (int) Math.round(meters / (kmh / 3.6) * 10)); }
+
+    // ---------- file ----------
+    static RoadGraph load(java.nio.file.Path file, int cacheSize) throws IOException {
+        try (BufferedReader in = java.nio.file.Files.newBufferedReader(file)) {
+            double[] lat = null, lon = null;
+            int[] from = null, to = null, len = null, time = null;
+            int v = 0, a = 0, lineNo = 0;
+            for (String line; (line = in.readLine()) != null; ) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') continue;
+                String[] f = line.split("\\s+");
+                try {
+                    switch (f[0]) {
+                        case "n" -> {
+                            int n = Integer.parseInt(f[1]), m = Integer.parseInt(f[2]);
+                            lat = new double[n]; lon = new double[n];
+                            from = new int[m]; to = new int[m]; len = new int[m]; time = new int[m];
+                        }
+                        case "v" -> { lat[v] = Double.parseDouble(f[1]); lon[v] = Double.parseDouble(f[2]); v++; }
+                        case "a" -> {
+                            from[a] = Integer.parseInt(f[1]);
+                            to[a] = Integer.parseInt(f[2]);
+                            len[a] = Integer.parseInt(f[3]);
+                            time[a] = tenthsFor(len[a], Double.parseDouble(f[4]));
+                            a++;
+                        }
+                        default -> throw new IOException(file + ":" + lineNo + ": unknown record " + f[0]);
+                    }
+                } catch (RuntimeException e) { // bad number, missing field, no 'n' line yet, counts too small
+                    throw new IOException(file + ":" + lineNo + ": " + e);
+                }
+            }
+            if (lat == null || v != lat.length || a != from.length) throw new IOException(file + ": node/arc counts do not match the 'n' line");
+            for (int i = 0; i < a; i++)
+                if (from[i] < 0 || from[i] >= v || to[i] < 0 || to[i] >= v) throw new IOException(file + ": arc " + i + " names a missing node");
+            return new RoadGraph(lat, lon, from, to, len, time, cacheSize);
+        }
+    }
+
+    /*
+     Synthetic city over the CityMap disc's bounding square: a side x side street grid, node
+     positions jittered. Every 8th street and the outer ring are two-way arterials at 40 km/h;
+     the rest are one-way local streets at 20 km/h in alternating directions, which keeps every
+     node reachable from every other.
+    */
+    static RoadGraph grid(int side, long seed, int cacheSize, java.nio.file.Path writeTo) throws IOException {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        double spanLat = Math.toDegrees(2 * CityMap.RADIUS_KM / CityMap.EARTH_RADIUS_KM);
+        double spanLon = spanLat / Math.cos(Math.toRadians(CityMap.CENTER_LAT));
+        double stepLat = spanLat / (side - 1), stepLon = spanLon / (side - 1);
+        int n = side * side;
+        double[] lat = new double[n], lon = new double[n];
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                lat[y * side + x] = CityMap.CENTER_LAT - spanLat / 2 + y * stepLat + (rnd.nextDouble() - 0.5) * 0.3 * stepLat;
+                lon[y * side + x] = CityMap.CENTER_LON - spanLon / 2 + x * stepLon + (rnd.nextDouble() - 0.5) * 0.3 * stepLon;
+            }
+        }
+        int cap = 4 * n;
+        int[] from = new int[cap], to = new int[cap], len = new int[cap], time = new int[cap];
+        double[] kmh = new double[cap];
+        int m = 0;
+        for (int line = 0; line < side; line++) {
+            boolean arterial = line % 8 == 0 || line == side - 1;
+            for (int k = 0; k + 1 < side; k++) {
+                // horizontal street `line` (east if even) and vertical street `line` (north if even)
+                for (int dir = 0; dir < 2; dir++) {
+                    int a = dir == 0 ? line * side + k : k * side + line;
+                    int b = dir == 0 ? a + 1 : a + side;
+                    int meters = Math.max(1, (int) Math.round(1000 * CityMap.distanceKm(lat[a], lon[a], lat[b], lon[b])));
+                    double speed = arterial ? 40 : 20;
+                    if (arterial || line % 2 == 0) { from[m] = a; to[m] = b; len[m] = meters; kmh[m] = speed; m++; }
+                    if (arterial || line % 2 == 1) { from[m] = b; to[m] = a; len[m] = meters; kmh[m] = speed; m++; }
+                }
+            }
+        }
+        for (int i = 0; i < m; i++) time[i] = tenthsFor(len[i], kmh[i]);
+        if (writeTo != null) {
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(java.nio.file.Files.newOutputStream(writeTo), java.nio.charset.StandardCharsets.UTF_8), 1 << 16)) {
+                w.write("# synthetic grid city, side=" + side + " seed=" + seed + "\n");
+                w.write("n " + n + " " + m + "\n");
+                for (int v = 0; v < n; v++) w.write(String.format(Locale.ROOT, "v %.7f %.7f%n", lat[v], lon[v]));
+                for (int i = 0; i < m; i++) w.write("a " + from[i] + " " + to[i] + " " + len[i] + " " + (int) kmh[i] + "\n");
+            }
+        }
+        return new RoadGraph(lat, lon, Arrays.copyOf(from, m), Arrays.copyOf(to, m), Arrays.copyOf(len, m), Arrays.copyOf(time, m), cacheSize);
+    }
+
+    // the graph used when --road-graph is not given: streets every ~150 m
+    static RoadGraph demoCity() {
+        try { return grid(201, 1, 100_000, null); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+}
+
+/*
+ Uniform lat/lon grid of drivers, one cell map per car type.
+ nearest() searches rings of cells outward from the query cell and stops as soon as
+ no unvisited ring can hold anything closer than the current k-th best, so cost
+ depends on local density rather than fleet size.
+*/
+class DriverGridIndex {
+    static final double CELL_DEG = 0.0025; // ~280 m
+
+    private final List<Map<Long, Set<Driver>>> cellsByType = new ArrayList<>();
+    static final long NONE = Long.MIN_VALUE; // Driver.gridCell of a driver not in the index
+    private final AtomicIntegerArray sizeByType = new AtomicIntegerArray(CarType.values().length);
+    // occupied extent in cell coordinates; only ever grows
+    private volatile int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+
+    DriverGridIndex() {
+        for (int i = 0; i < CarType.values().length; i++) cellsByType.add(new ConcurrentHashMap<>());
+    }
+
+    // callers serialize add/remove per driver; different drivers may be updated concurrently
+    // true if the driver was not indexed before
+    public boolean add(Driver d) {
+        GeoPoint at = d.getPosition();
+        int x = cellX(at.lon), y = cellY(at.lat);
+        long key = key(x, y);
+        if (d.getGridCell() != NONE) return false;
+        d.setGridCell(key);
+        int t = d.getCar().getType().ordinal();
+        if (x < minX || x > maxX || y < minY || y > maxY) grow(x, y);
+        cellsByType.get(t).compute(key, (k, cell) -> {
+            if (cell == null) cell = ConcurrentHashMap.newKeySet();
+            cell.add(d);
+            return cell;
+        });
+        sizeByType.incrementAndGet(t);
+        return true;
+    }
+
+    // true if the driver was indexed
+    public boolean remove(Driver d) {
+        long key = d.getGridCell();
+        if (key == NONE) return false;
+        d.setGridCell(NONE);
+        int t = d.getCar().getType().ordinal();
+        // compute() is atomic per cell, so dropping an emptied cell cannot lose a concurrent add
+        cellsByType.get(t).computeIfPresent(key, (k, cell) -> {
+            cell.remove(d);
+            return cell.isEmpty() ? null : cell;
+        });
+        sizeByType.decrementAndGet(t);
+        return true;
+    }
+
+    // sets the driver's position and, if indexed, re-files them under it: the new cell gains the
+    // driver before the old one loses it, so a concurrent nearest() never misses a moving driver.
+    // Same per-driver serialization as add/remove. True if the driver is indexed
+    public boolean move(Driver d, double lat, double lon) {
+        d.setPosition(lat, lon);
+        long from = d.getGridCell();
+        if (from == NONE) return false;
+        int x = cellX(lon), y = cellY(lat);
+        long key = key(x, y);
+        if (key == from) return true;
+        if (x < minX || x > maxX || y < minY || y > maxY) grow(x, y);
+        Map<Long, Set<Driver>> cells = cellsByType.get(d.getCar().getType().ordinal());
+        cells.compute(key, (k, cell) -> {
+            if (cell == null) cell = ConcurrentHashMap.newKeySet();
+            cell.add(d);
+            return cell;
+        });
+        d.setGridCell(key);
+        cells.computeIfPresent(from, (k, cell) -> {
+            cell.remove(d);
+            return cell.isEmpty() ? null : cell;
+        });
+        return true;
+    }
+
+    private synchronized void grow(int x, int y) {
+        minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+    }
+
+    public boolean contains(Driver d) { return d.getGridCell() != NONE; }
+    public int size(CarType type) { return sizeByType.get(type.ordinal()); }
+
+    // up to k drivers of the given type within maxKm, closest first
+    public List<Driver> nearest(double lat, double lon, CarType type, int k, double maxKm) {
+        if (k <= 0 || maxKm < 0 || sizeByType.get(type.ordinal()) == 0) return Collections.emptyList();
+        Map<Long, Set<Driver>> cells = cellsByType.get(type.ordinal());
+        int minX = this.minX, maxX = this.maxX, minY = this.minY, maxY = this.maxY;
+        Driver[] best = new Driver[k];
+        double[] bestDist = new double[k];
+        int found = 0;
+        int cx = cellX(lon), cy = cellY(lat);
+        // km per degree, shaved slightly so the ring bound stays conservative
+        double kmLat = Math.toRadians(1) * CityMap.EARTH_RADIUS_KM * 0.99;
+        double kmLon = kmLat * Math.cos(Math.toRadians(Math.abs(lat) + 1));
+        // a sparse type (most drivers busy) would make the rings walk mostly empty cells;
+        // once probing costs more than visiting every occupied cell, just do that instead
+        int probeBudget = cells.size() + 16;
+        int probes = 0;
+        for (int r = 0; ; r++) {
+            for (int x = Math.max(cx - r, minX); x <= Math.min(cx + r, maxX); x++) {
+                boolean edgeX = x == cx - r || x == cx + r;
+                for (int y = Math.max(cy - r, minY); y <= Math.min(cy + r, maxY); y++) {
+                    if (!edgeX && y != cy - r && y != cy + r) { y = cy + r - 1; continue; } // interior: jump to far edge
+                    if (++probes > probeBudget) return scanAll(cells, lat, lon, k, maxKm);
+                    Set<Driver> cell = cells.get(key(x, y));
+                    if (cell != null) found = collect(cell, lat, lon, maxKm, best, bestDist, found);
+                }
+            }
+            if (cx - r <= minX && cx + r >= maxX && cy - r <= minY && cy + r >= maxY) break; // whole extent visited
+            // nothing outside the visited square can be closer than its nearest edge
+            double nextRingKm = Math.min(
+                    Math.min(lon - (cx - r) * CELL_DEG, (cx + r + 1) * CELL_DEG - lon) * kmLon,
+                    Math.min(lat - (cy - r) * CELL_DEG, (cy + r + 1) * CELL_DEG - lat) * kmLat);
+            if (nextRingKm > maxKm || (found == k && nextRingKm >= bestDist[k - 1])) break;
+        }
+        return Arrays.asList(Arrays.copyOf(best, found));
+    }
+
+    private static List<Driver> scanAll(Map<Long, Set<Driver>> cells, double lat, double lon, int k, double maxKm) {
+        Driver[] best = new Driver[k];
+        double[] bestDist = new double[k];
+        int found = 0;
+        for (Set<Driver> cell : cells.values()) found = collect(cell, lat, lon, maxKm, best, bestDist, found);
+        return Arrays.asList(Arrays.copyOf(best, found));
+    }
+
+    // insertion into the sorted top-k arrays; returns the new fill count
+    private static int collect(Set<Driver> cell, double lat, double lon, double maxKm, Driver[] best, double[] bestDist, int found) {
+        int k = best.length;
+        for (Driver d : cell) {
+            double dist = d.distanceKm(lat, lon);
+            if (dist > maxKm || (found == k && dist >= bestDist[k - 1])) continue;
+            int i = found;
+            while (i > 0 && bestDist[i - 1] > dist) i--;
+            if (i > 0 && best[i - 1] == d) continue; // met again in its old cell while being moved
+            if (found < k) found++;
+            for (int j = found - 1; j > i; j--) { best[j] = best[j - 1]; bestDist[j] = bestDist[j - 1]; }
+            best[i] = d; bestDist[i] = dist;
+        }
+        return found;
+    }
+
+    static int cellX(double lon) { return (int) Math.floor(lon / CELL_DEG); }
+    static int cellY(double lat) { return (int) Math.floor(lat / CELL_DEG); }
+    static long key(int x, int y) { return ((long) x << 32) | (y & 0xffffffffL); }
+}
+
+/*
+ The fleet's matching columns in parallel primitive arrays, indexed by driver id: car type,
+ position and reputation as floats, and one availability bitset per car type. That is about 14
+ bytes a driver, against a few hundred for a Driver with its Car, GeoPoint and strings.
+ within() answers "available AND this type AND inside the radius" by walking the wanted type's
+ bitset a word at a time: 64 busy or other-type drivers cost one read, and only matching ones
+ have their position loaded and go through a branch-free radius test. Bits flip with CAS and
+ publish the columns written before them; positions and scores are plain float writes, so a
+ query racing a move may pair one update's lat with the next one's lon, which a candidate
+ filter can live with. Ids live in pages of PAGE created on first use, as in LocationFeed.
+ Driver objects remain the record and what is displayed.
+*/
+final class FleetStore {
+    static final int PAGE_BITS = 16, PAGE = 1 << PAGE_BITS, WORDS = PAGE / 64, MAX_PAGES = 1 << 14;
+    static final long PAGE_BYTES = PAGE * (3 * 4 + 1) + CarType.values().length * WORDS * 8L;
+    private static final int TYPES = CarType.values().length;
+    private static final double KM_PER_DEG = Math.toRadians(1) * CityMap.EARTH_RADIUS_KM;
+    private static final java.util.function.LongBinaryOperator OR = (a, b) -> a | b, AND_NOT = (a, b) -> a & ~b;
+
+    private static final class Page {
+        final float[] lat = new float[PAGE], lon = new float[PAGE], score = new float[PAGE];
+        final byte[] type = new byte[PAGE]; // ordinal + 1; 0 = no driver
+        final AtomicLongArray available = new AtomicLongArray(TYPES * WORDS); // [type][word]
+    }
+
+    private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(MAX_PAGES);
+    private final AtomicInteger topPage = new AtomicInteger(-1), size = new AtomicInteger();
+
+    // a new driver starts busy; setAvailable publishes it to queries
+    void add(int id, CarType type, double lat, double lon, double score) {
+        if (id < 0 || id >>> PAGE_BITS >= MAX_PAGES) throw new IllegalArgumentException("driver id out of range: " + id);
+        Page p = page(id >>> PAGE_BITS);
+        int i = id & (PAGE - 1);
+        p.lat[i] = (float) lat;
+        p.lon[i] = (float) lon;
+        p.score[i] = (float) score;
+        if (p.type[i] == 0) size.incrementAndGet();
+        p.type[i] = (byte) (type.ordinal() + 1);
+    }
+
+    void remove(int id) {
+        Page p = pageOf(id);
+        if (p == null) return;
+        int i = id & (PAGE - 1);
+        setAvailable(id, false);
+        if (p.type[i] != 0) size.decrementAndGet();
+        p.type[i] = 0;
+    }
+
+    void setAvailable(int id, boolean available) {
+        Page p = pageOf(id);
+        int i = id & (PAGE - 1);
+        if (p == null || p.type[i] == 0) return;
+        int w = (p.type[i] - 1) * WORDS + (i >>> 6);
+        long bit = 1L << i;
+        if (((p.available.get(w) & bit) != 0) != available) p.available.getAndAccumulate(w, bit, available ? OR : AND_NOT);
+    }
+
+    void moveTo(int id, double lat, double lon) {
+        Page p = pageOf(id);
+        if (p == null) return;
+        p.lat[id & (PAGE - 1)] = (float) lat;
+        p.lon[id & (PAGE - 1)] = (float) lon;
+    }
+
+    void setScore(int id, double score) {
+        Page p = pageOf(id);
+        if (p != null) p.score[id & (PAGE - 1)] = (float) score;
+    }
+
+    float score(int id) {
+        Page p = pageOf(id);
+        return p == null ? 0 : p.score[id & (PAGE - 1)];
+    }
+
+    int size() { return size.get(); }
+    long bytes() { return (topPage.get() + 1) * PAGE_BYTES; }
+
+    // ids of available drivers of the type (null = any) within radiusKm of the point, in id order
+    int[] within(double lat, double lon, CarType type, double radiusKm) {
+        double kx = KM_PER_DEG * Math.cos(Math.toRadians(lat)), r2 = radiusKm * radiusKm;
+        int from = type == null ? 0 : type.ordinal(), to = type == null ? TYPES - 1 : from;
+        int[] out = new int[64];
+        int n = 0;
+        for (int pg = 0, top = topPage.get(); pg <= top; pg++) {
+            Page p = pages.get(pg);
+            if (p == null) continue;
+            float[] lats = p.lat, lons = p.lon;
+            for (int t = from; t <= to; t++) {
+                for (int w = 0, base = t * WORDS; w < WORDS; w++) {
+                    for (long bits = p.available.get(base + w); bits != 0; bits &= bits - 1) {
+                        int i = w << 6 | Long.numberOfTrailingZeros(bits);
+                        double y = (lats[i] - lat) * KM_PER_DEG, x = (lons[i] - lon) * kx;
+                        if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                        out[n] = pg << PAGE_BITS | i;
+                        n += x * x + y * y <= r2 ? 1 : 0; // written either way: no branch to mispredict
+                    }
+                }
+            }
+        }
+        if (type == null) Arrays.sort(out, 0, n);
+        return Arrays.copyOf(out, n);
+    }
+
+    private Page pageOf(int id) {
+        return id < 0 || id >>> PAGE_BITS >= MAX_PAGES ? null : pages.get(id >>> PAGE_BITS);
+    }
+
+    private Page page(int pg) {
+        Page p = pages.get(pg);
+        if (p != null) return p;
+        pages.compareAndSet(pg, null, new Page()); // a losing racer's page is just dropped
+        topPage.accumulateAndGet(pg, Math::max);
+        return pages.get(pg);
+    }
+}
+
+/*
+ Live GPS pings, coalesced to the latest position per driver id. ping() stores lat/lon packed
+ as two floats (about a metre) in one AtomicLongArray slot, so a reader never sees half an
+ update, plus the ping time and a dirty bit. It takes no lock and allocates nothing, so any
+ number of gateway threads can ping at once; a driver pinging ten times between ticks costs
+ ten slot writes and one bit set. drain() is the single ticker: it takes the dirty bits a word
+ at a time with getAndSet(0) and hands on each driver's latest position. A ping racing the
+ drain is either picked up now or left marked for the next tick, never lost (the position
+ write is volatile, so it is ordered before the ping's look at the dirty bit). Ids live in
+ pages of PAGE drivers created on first use; a page never moves, so growth needs no copying.
+*/
+final class LocationFeed {
+    static final int PAGE_BITS = 16, PAGE = 1 << PAGE_BITS, MAX_PAGES = 1 << 14; // ids up to 2^30
+    private static final java.util.function.LongBinaryOperator OR = (a, b) -> a | b;
+
+    interface Sink { void moved(int driverId, double lat, double lon, long pingNanos); }
+
+    private static final class Page {
+        final AtomicLongArray position = new AtomicLongArray(PAGE), pingedAt = new AtomicLongArray(PAGE);
+        final AtomicLongArray dirty = new AtomicLongArray(PAGE / 64);
+    }
+
+    private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(MAX_PAGES);
+    private final AtomicInteger topPage = new AtomicInteger(-1);
+    private final LongAdder pings = new LongAdder();
+    private long drained; // guarded by this
+
+    void ping(int driverId, double lat, double lon, long nanos) {
+        if (driverId < 0 || driverId >>> PAGE_BITS >= MAX_PAGES) throw new IllegalArgumentException("driver id out of range: " + driverId);
+        Page p = page(driverId >>> PAGE_BITS);
+        int i = driverId & (PAGE - 1), w = i >>> 6;
+        long bit = 1L << i;
+        p.pingedAt.lazySet(i, nanos);
+        p.position.set(i, (long) Float.floatToRawIntBits((float) lat) << 32 | (Float.floatToRawIntBits((float) lon) & 0xffffffffL));
+        if ((p.dirty.get(w) & bit) == 0) p.dirty.getAndAccumulate(w, bit, OR);
+        pings.increment();
+    }
+
+    // hands every driver pinged since the last drain to the sink once; returns how many
+    synchronized int drain(Sink sink) {
+        int n = 0;
+        for (int pg = 0, top = topPage.get(); pg <= top; pg++) {
+            Page p = pages.get(pg);
+            if (p == null) continue;
+            for (int w = 0; w < PAGE / 64; w++) {
+                if (p.dirty.get(w) == 0) continue;
+                for (long bits = p.dirty.getAndSet(w, 0); bits != 0; bits &= bits - 1) {
+                    int i = w << 6 | Long.numberOfTrailingZeros(bits);
+                    long at = p.pingedAt.get(i), packed = p.position.get(i); // time first: the age can only be overstated
+                    sink.moved(pg << PAGE_BITS | i, Float.intBitsToFloat((int) (packed >>> 32)), Float.intBitsToFloat((int) packed), at);
+                    n++;
+                }
+            }
+        }
+        drained += n;
+        return n;
+    }
+
+    long pingCount() { return pings.sum(); }
+    synchronized long drainedCount() { return drained; }
+
+    private Page page(int pg) {
+        Page p = pages.get(pg);
+        if (p != null) return p;
+        pages.compareAndSet(pg, null, new Page());
+        topPage.accumulateAndGet(pg, Math::max);
+        return pages.get(pg);
+    }
+}
+
+/*
+ Driver reputation for ranking and matching. A driver's score is an exponentially
+ time-decayed average of their ratings (half-life HALF_LIFE_DAYS), pulled towards PRIOR_MEAN
+ by PRIOR_WEIGHT phantom ratings so one early 5-star cannot top the board. The decay is
+ applied when a rating arrives, using the driver's decayed sum and weight as of their
+ previous rating. With exponential weights the average itself does not drift while no
+ ratings come in, so a score only moves on rate() and the ordered sets never need a sweep.
+
+ Drivers are ranked per (car type, surge zone) in skip-list sets ordered best first, so a
+ zone's top-K is O(log n + K) and a rating or zone change is one remove plus one insert in a
+ set of about n/ZONES drivers. City-wide top-K merges the zone heads (O(ZONES + K log ZONES))
+ rather than keeping a per-type set of every driver: with a million drivers that set's
+ cache misses doubled the cost of each rating, and ratings far outnumber leaderboard reads.
+ The matcher reads a driver's score from the driver itself in O(1). Per-driver updates are
+ serialized on the Driver; different drivers update concurrently.
+*/
+final class ReputationIndex {
+    static final double HALF_LIFE_DAYS = 30.0;
+    static final double PRIOR_MEAN = 4.0, PRIOR_WEIGHT = 3.0;
+    private static final double DECAY_PER_MS = Math.log(2) / (HALF_LIFE_DAYS * 86_400_000.0);
+
+    record Entry(double score, int driverId) {}
+    private static final Comparator<Entry> BEST_FIRST =
+            Comparator.comparingDouble(Entry::score).reversed().thenComparingInt(Entry::driverId);
+
+    private final List<ConcurrentSkipListSet<Entry>> byTypeZone; // [type * ZONES + zone]
+
+    ReputationIndex() {
+        int n = CarType.values().length * SurgeEngine.ZONES;
+        byTypeZone = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) byTypeZone.add(new ConcurrentSkipListSet<>(BEST_FIRST));
+    }
+
+    static double score(double decayedSum, double decayedWeight) {
+        return (decayedSum + PRIOR_MEAN * PRIOR_WEIGHT) / (decayedWeight + PRIOR_WEIGHT);
+    }
+
+    // starts ranking d in the zone of its current position (no-op if already ranked)
+    void add(Driver d) {
+        synchronized (d) {
+            if (d.getReputationZone() >= 0) return;
+            int zone = SurgeEngine.zoneOf(d.getLat(), d.getLon());
+            d.setReputationZone(zone);
+            insert(d, zone);
+        }
+    }
+
+    void remove(Driver d) {
+        synchronized (d) {
+            int zone = d.getReputationZone();
+            if (zone < 0) return;
+            delete(d, zone);
+            d.setReputationZone(-1);
+        }
+    }
+
+    // re-files d under the zone it is in now; cheap when it has not left its zone
+    void moved(Driver d) {
+        synchronized (d) {
+            GeoPoint at = d.getPosition();
+            int from = d.getReputationZone(), to = SurgeEngine.zoneOf(at.lat, at.lon);
+            if (from < 0 || from == to) return;
+            Entry e = new Entry(d.getReputation(), d.getId());
+            int type = d.getCar().getType().ordinal();
+            byTypeZone.get(type * SurgeEngine.ZONES + from).remove(e);
+            byTypeZone.get(type * SurgeEngine.ZONES + to).add(e);
+            d.setReputationZone(to);
+        }
+    }
+
+    // folds one rating given at atMillis into d's decayed average and re-ranks d; returns the new score
+    double rate(Driver d, int stars, long atMillis) {
+        synchronized (d) {
+            long last = d.getLastRatedAt();
+            double decay = last == Long.MIN_VALUE ? 0.0 : Math.exp(-DECAY_PER_MS * Math.max(0, atMillis - last));
+            double sum = d.getDecayedRatingSum() * decay + stars, weight = d.getDecayedRatingWeight() * decay + 1;
+            int zone = d.getReputationZone();
+            if (zone >= 0) delete(d, zone);
+            d.restoreReputation(sum, weight, Math.max(atMillis, last));
+            if (zone >= 0) insert(d, zone);
+            return d.getReputation();
+        }
+    }
+
+    // best k drivers of a type city-wide (zone < 0) or in one surge zone, best first
+    List<Entry> top(CarType type, int zone, int k) {
+        List<Entry> out = new ArrayList<>(Math.min(k, 64));
+        int base = type.ordinal() * SurgeEngine.ZONES;
+        if (zone >= 0) {
+            for (Iterator<Entry> it = byTypeZone.get(base + zone).iterator(); it.hasNext() && out.size() < k; ) out.add(it.next());
+            return out;
+        }
+        // k-way merge: each zone's iterator is keyed by the entry it currently points at
+        PriorityQueue<Map.Entry<Entry, Iterator<Entry>>> heads = new PriorityQueue<>(Map.Entry.comparingByKey(BEST_FIRST));
+        for (int z = 0; z < SurgeEngine.ZONES; z++) {
+            Iterator<Entry> it = byTypeZone.get(base + z).iterator();
+            if (it.hasNext()) heads.add(new AbstractMap.SimpleImmutableEntry<>(it.next(), it));
+        }
+        while (out.size() < k && !heads.isEmpty()) {
+            Map.Entry<Entry, Iterator<Entry>> h = heads.poll();
+            out.add(h.getKey());
+            if (h.getValue().hasNext()) heads.add(new AbstractMap.SimpleImmutableEntry<>(h.getValue().next(), h.getValue()));
+        }
+        return out;
+    }
+
+    private void insert(Driver d, int zone) {
+        byTypeZone.get(d.getCar().getType().ordinal() * SurgeEngine.ZONES + zone).add(new Entry(d.getReputation(), d.getId()));
+    }
+
+    private void delete(Driver d, int zone) {
+        byTypeZone.get(d.getCar().getType().ordinal() * SurgeEngine.ZONES + zone).remove(new Entry(d.getReputation(), d.getId()));
+    }
+}
+
+/*
+ Optional micro-batched dispatch. Requests queue for a short window, then the whole batch
+ is assigned in one go with the Hungarian algorithm over RideService.matchCost, which
+ minimizes total pickup distance instead of letting each request grab its own nearest
+ driver. A request the batch cannot serve (no candidate, or its driver was taken by a
+ concurrent greedy request) falls back to the nearest free driver, as a greedy request
+ would get; submit has already counted it, so the fallback does not count it again.
+*/
+class BatchDispatcher implements AutoCloseable {
+    static final int CANDIDATES_PER_TYPE = 6;
+    static final double NO_MATCH = 1e6; // cost of "leave unassigned"; dwarfs any real pickup distance
+
+    static final class PendingRide {
+        final String rider, pickup, drop;
+        final double lat, lon;
+        final int kms;
+        final CarType type;
+        final FareEstimate estimate;
+        final CompletableFuture<Booking> result = new CompletableFuture<>();
+        final long submittedAt = Metrics.start(); // REQUEST_RIDE covers the wait for the batch too
+        PendingRide(String rider, String pickup, double lat, double lon, String drop, int kms, CarType type, FareEstimate estimate) {
+            this.rider = rider; this.pickup = pickup; this.lat = lat; this.lon = lon;
+            this.drop = drop; this.kms = kms; this.type = type; this.estimate = estimate;
+        }
+    }
+
+    private final RideService rides;
+    private final long windowMs;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentLinkedQueue<PendingRide> pending = new ConcurrentLinkedQueue<>();
+    // stats
+    private final AtomicLong batches = new AtomicLong(), requests = new AtomicLong(), matched = new AtomicLong(),
+            fallbacks = new AtomicLong(), solveNanos = new AtomicLong(), maxBatch = new AtomicLong();
+    private final DoubleAdder pickupKm = new DoubleAdder();
+
+    BatchDispatcher(RideService rides, long windowMs) {
+        this.rides = rides;
+        this.windowMs = windowMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "batch-dispatch");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    public long getWindowMs() { return windowMs; }
+
+    public CompletableFuture<Booking> submit(String rider, String pickup, String drop, int kms, CarType type, FareEstimate estimate) {
+        GeoPoint p = CityMap.locate(pickup);
+        return submit(rider, pickup, p.lat, p.lon, drop, kms, type, estimate);
+    }
+
+    public CompletableFuture<Booking> submit(String rider, String pickup, double lat, double lon,
+                                             String drop, int kms, CarType type, FareEstimate estimate) {
+        PendingRide pr = new PendingRide(rider, pickup, lat, lon, drop, kms, type, estimate);
+        Metrics.RIDE_REQUESTS.inc(); // counted here once, matched or not
+        rides.noteRequest(rider, lat, lon, type, estimate);
+        pending.add(pr);
+        return pr.result;
+    }
+
+    // drains whatever is pending and dispatches it as one batch; runs on the timer thread
+    public synchronized void flush() {
+        List<PendingRide> batch = new ArrayList<>();
+        for (PendingRide pr; (pr = pending.poll()) != null; ) batch.add(pr);
+        if (batch.isEmpty()) return;
+        try {
+            dispatch(batch);
+        } catch (RuntimeException e) {
+            for (PendingRide pr : batch) pr.result.completeExceptionally(e);
+        }
+    }
+
+    private void dispatch(List<PendingRide> batch) {
+        long t0 = System.nanoTime();
+        List<List<Driver>> near = new ArrayList<>(batch.size());
+        for (PendingRide pr : batch) near.add(rides.candidates(pr.lat, pr.lon, pr.type, CANDIDATES_PER_TYPE));
+        Driver[] chosen = new Driver[batch.size()];
+        // requests that share no candidate cannot affect each other, so each connected
+        // group is solved on its own; keeps the cubic solve small for city-wide batches
+        for (List<Integer> group : groupsSharingDrivers(near)) {
+            Map<Driver, Integer> column = new LinkedHashMap<>();
+            for (int i : group) for (Driver d : near.get(i)) column.putIfAbsent(d, column.size());
+            List<Driver> drivers = new ArrayList<>(column.keySet());
+            // one extra "unassigned" column per request keeps the problem feasible
+            double[][] cost = new double[group.size()][drivers.size() + group.size()];
+            for (int g = 0; g < group.size(); g++) {
+                PendingRide pr = batch.get(group.get(g));
+                Arrays.fill(cost[g], NO_MATCH);
+                for (Driver d : near.get(group.get(g))) cost[g][column.get(d)] = RideService.matchCost(d, pr.lat, pr.lon, pr.type);
+            }
+            int[] assignment = hungarian(cost);
+            for (int g = 0; g < group.size(); g++) {
+                int j = assignment[g];
+                if (j < drivers.size() && cost[g][j] < NO_MATCH) chosen[group.get(g)] = drivers.get(j);
+            }
+        }
+        solveNanos.addAndGet(System.nanoTime() - t0);
+        batches.incrementAndGet();
+        requests.addAndGet(batch.size());
+        maxBatch.accumulateAndGet(batch.size(), Math::max);
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingRide pr = batch.get(i);
+            Booking b = null;
+            if (chosen[i] != null)
+                b = rides.requestRideWith(chosen[i], pr.rider, pr.pickup, pr.lat, pr.lon, pr.drop, pr.kms, pr.type, pr.estimate);
+            if (b == null) {
+                fallbacks.incrementAndGet();
+                // submit already noted the demand, so this must not count or announce the request again
+                b = rides.lendDriver(pr.rider, pr.pickup, pr.lat, pr.lon, pr.drop, pr.kms, pr.type, pr.estimate);
+            }
+            if (b != null) {
+                matched.incrementAndGet();
+                pickupKm.add(b.getPickupKm());
+            } else {
+                Metrics.NO_DRIVER.inc();
+            }
+            Metrics.REQUEST_RIDE.recordSince(pr.submittedAt);
+            pr.result.complete(b);
+        }
+    }
+
+    // union-find over requests, joined whenever two of them list the same candidate driver
+    private static List<List<Integer>> groupsSharingDrivers(List<List<Driver>> near) {
+        int[] parent = new int[near.size()];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+        Map<Driver, Integer> firstSeen = new HashMap<>();
+        for (int i = 0; i < near.size(); i++) {
+            for (Driver d : near.get(i)) {
+                Integer other = firstSeen.putIfAbsent(d, i);
+                if (other != null) parent[find(parent, i)] = find(parent, other);
+            }
+        }
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < parent.length; i++) groups.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(i);
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) i = parent[i] = parent[parent[i]];
+        return i;
+    }
+
+    /*
+     Minimum-cost assignment of every row to a distinct column (Kuhn-Munkres with potentials),
+     for n rows <= m columns in O(n^2 m). Returns for each row the column it is assigned to.
+    */
+    static int[] hungarian(double[][] a) {
+        int n = a.length, m = n == 0 ? 0 : a[0].length;
+        double[] u = new double[n + 1], v = new double[m + 1], minv = new double[m + 1];
+        int[] p = new int[m + 1], way = new int[m + 1];
+        boolean[] used = new boolean[m + 1];
+        for (int i = 1; i <= n; i++) {
+            p[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.MAX_VALUE);
+            Arrays.fill(used, false);
+            do {
+                used[j0] = true;
+                int i0 = p[j0], j1 = 0;
+                double delta = Double.MAX_VALUE;
+                for (int j = 1; j <= m; j++) {
+                    if (used[j]) continue;
+                    double cur = a[i0 - 1][j - 1] - u[i0] - v[j];
+                    if (cur < minv[j]) { minv[j] = cur; way[j] = j0; }
+                    if (minv[j] < delta) { delta = minv[j]; j1 = j; }
+                }
+                for (int j = 0; j <= m; j++) {
+                    if (used[j]) { u[p[j]] += delta; v[j] -= delta; }
+                    else minv[j] -= delta;
+                }
+                j0 = j1;
+            } while (p[j0] != 0);
+            do {
+                int j1 = way[j0];
+                p[j0] = p[j1];
+                j0 = j1;
+            } while (j0 != 0);
+        }
+        int[] rowToCol = new int[n];
+        for (int j = 1; j <= m; j++) if (p[j] != 0) rowToCol[p[j] - 1] = j - 1;
+        return rowToCol;
+    }
+
+    public String stats() {
+        long b = batches.get(), r = requests.get(), m = matched.get();
+        return String.format("window=%dms batches=%d requests=%d avgBatch=%.1f maxBatch=%d avgSolve=%.2fms matched=%d fallbacks=%d avgPickup=%.2fkm",
+                windowMs, b, r, b == 0 ? 0.0 : (double) r / b, maxBatch.get(),
+                b == 0 ? 0.0 : solveNanos.get() / 1e6 / b, m, fallbacks.get(), m == 0 ? 0.0 : pickupKm.sum() / m);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+        flush();
+    }
+}
+
+/*
+ Zone-sharded dispatch. The city's surge-zone columns are cut into strips, one per shard, and
+ each shard is a RideService of its own holding the drivers registered in its strip and the
+ bookings they take. A shard is written by exactly one thread, fed through a bounded inbox
+ (callers block while it is full), so shards share no locks or hot counters. Requests go to
+ the shard of the pickup zone. When that shard has no free driver, the request is offered to
+ the neighbouring strips, nearest first, and a lending shard books one of its own drivers.
+ Shards hand out ids strided by shard (id % shards is the owner), so later calls on a booking
+ or driver route without a lookup table. Reads skip the inboxes, since each RideService is
+ thread-safe: global queries fan out to every shard and merge by id. In memory only; a driver
+ stays with the shard it registered in, wherever it drives. Writes submitted after close() fail
+ at once with a RejectedExecutionException.
+
+ Not used in production yet: only Benchmarks builds one, and serve runs a single RideService.
+*/
+final class ShardedDispatch implements AutoCloseable {
+    static final int INBOX = 1024, DRAIN = 256;
+    static final int LEND_REACH = 1; // strips either side a shard may borrow drivers from
+
+    private record Ride(String rider, String pickup, double lat, double lon, String drop, int kms, CarType type, FareEstimate estimate) {}
+
+    private static final class Shard {
+        final RideService rides;
+        final ArrayBlockingQueue<Runnable> inbox = new ArrayBlockingQueue<>(INBOX);
+        final Thread writer;
+        Shard(int index, int shards, PromoService promos, java.util.function.BooleanSupplier closed) {
+            rides = new RideService(index, shards);
+            rides.setPromos(promos);
+            writer = new Thread(() -> {
+                List<Runnable> batch = new ArrayList<>(DRAIN);
+                while (true) {
+                    Runnable first;
+                    try { first = inbox.poll(50, TimeUnit.MILLISECONDS); }
+                    catch (InterruptedException e) { continue; }
+                    if (first == null) {
+                        if (closed.getAsBoolean()) return;
+                        continue;
+                    }
+                    first.run();
+                    inbox.drainTo(batch, DRAIN);
+                    for (Runnable r : batch) r.run();
+                    batch.clear();
+                }
+            }, "shard-" + index);
+            writer.setDaemon(true);
+        }
+    }
+
+    private final Shard[] shards;
+    private final int[][] lenders; // per shard, the shards it may borrow from, nearest strip first
+    private volatile boolean closed;
+    private final LongAdder requests = new LongAdder(), borrowed = new LongAdder(), unmatched = new LongAdder(), lendersBusy = new LongAdder();
+
+    ShardedDispatch(int n, PromoService promos) {
+        if (n < 1 || n > SurgeEngine.SIDE) throw new IllegalArgumentException("shards must be 1-" + SurgeEngine.SIDE);
+        shards = new Shard[n];
+        lenders = new int[n][];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(i, n, promos, () -> closed);
+            List<Integer> near = new ArrayList<>();
+            for (int d = 1; d <= LEND_REACH; d++) {
+                if (i - d >= 0) near.add(i - d);
+                if (i + d < n) near.add(i + d);
+            }
+            lenders[i] = near.stream().mapToInt(Integer::intValue).toArray();
+        }
+        for (Shard s : shards) s.writer.start();
+    }
+
+    int shardCount() { return shards.length; }
+    RideService shard(int i) { return shards[i].rides; }
+    int shardOf(double lat, double lon) { return SurgeEngine.zoneOf(lat, lon) % SurgeEngine.SIDE * shards.length / SurgeEngine.SIDE; }
+    int ownerOf(int id) { return Math.floorMod(id, shards.length); }
+
+    // runs op on the shard's writer thread; blocks while its inbox is full
+    <T> CompletableFuture<T> submit(int shard, java.util.function.Function<RideService, T> op) {
+        if (closed) return rejected();
+        CompletableFuture<T> f = new CompletableFuture<>();
+        Runnable t = task(shard, op, f);
+        try {
+            shards[shard].inbox.put(t);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            f.completeExceptionally(e);
+            return f;
+        }
+        return unlessClosed(shard, t, f);
+    }
+
+    // as submit, but null at once when the inbox is full: shards asking each other never wait on each other
+    private <T> CompletableFuture<T> trySubmit(int shard, java.util.function.Function<RideService, T> op) {
+        if (closed) return rejected();
+        CompletableFuture<T> f = new CompletableFuture<>();
+        Runnable t = task(shard, op, f);
+        return shards[shard].inbox.offer(t) ? unlessClosed(shard, t, f) : null;
+    }
+
+    // a writer exits once closed and drained, so a task queued as close() ran may never be taken:
+    // withdrawn and rejected if it is still there. One the writer already took runs as usual
+    private <T> CompletableFuture<T> unlessClosed(int shard, Runnable t, CompletableFuture<T> f) {
+        if (closed && shards[shard].inbox.remove(t)) f.completeExceptionally(new RejectedExecutionException("sharded dispatch is closed"));
+        return f;
+    }
+
+    private static <T> CompletableFuture<T> rejected() {
+        return CompletableFuture.failedFuture(new RejectedExecutionException("sharded dispatch is closed"));
+    }
+
+    private <T> Runnable task(int shard, java.util.function.Function<RideService, T> op, CompletableFuture<T> f) {
+        RideService rides = shards[shard].rides;
+        return () -> {
+            try { f.complete(op.apply(rides)); }
+            catch (RuntimeException e) { f.completeExceptionally(e); }
+        };
+    }
+
+    // ---------- writes, routed to the owning shard ----------
+    public CompletableFuture<Driver> registerDriver(String name, String model, String plate, CarType type, double lat, double lon) {
+        return submit(shardOf(lat, lon), rs -> rs.registerDriver(name, model, plate, type, lat, lon));
+    }
+
+    // null once the home shard and its lenders are all out of free drivers
+    public CompletableFuture<Booking> requestRide(String rider, String pickup, double lat, double lon,
+                                                  String drop, int kms, CarType type, FareEstimate estimate) {
+        requests.increment();
+        Ride ride = new Ride(rider, pickup, lat, lon, drop, kms, type, estimate);
+        int home = shardOf(lat, lon);
+        return submit(home, rs -> rs.requestRide(rider, pickup, lat, lon, drop, kms, type, estimate))
+                .thenCompose(b -> b != null ? CompletableFuture.completedFuture(b) : borrow(home, 0, ride));
+    }
+
+    // runs on the writer of the shard that just came up empty, so it must not block
+    private CompletableFuture<Booking> borrow(int home, int next, Ride r) {
+        if (next == lenders[home].length) {
+            unmatched.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Booking> f = trySubmit(lenders[home][next],
+                rs -> rs.lendDriver(r.rider(), r.pickup(), r.lat(), r.lon(), r.drop(), r.kms(), r.type(), r.estimate()));
+        if (f == null) {
+            lendersBusy.increment();
+            return borrow(home, next + 1, r);
+        }
+        return f.thenCompose(b -> {
+            if (b == null) return borrow(home, next + 1, r);
+            borrowed.increment();
+            return CompletableFuture.completedFuture(b);
+        });
+    }
+
+    public CompletableFuture<Boolean> completeBooking(int bookingId) {
+        return submit(ownerOf(bookingId), rs -> rs.completeBooking(bookingId));
+    }
+
+    public CompletableFuture<Double> cancelBooking(int bookingId) {
+        return submit(ownerOf(bookingId), rs -> rs.cancelBooking(bookingId));
+    }
+
+    public CompletableFuture<Boolean> rateDriver(int driverId, int stars) {
+        return submit(ownerOf(driverId), rs -> rs.rateDriver(driverId, stars));
+    }
+
+    public CompletableFuture<Boolean> removeDriver(int driverId) {
+        return submit(ownerOf(driverId), rs -> rs.removeDriver(driverId));
+    }
+
+    // pings are lock-free already; the owning shard's writer applies them on its tick
+    public void ping(int driverId, double lat, double lon) { shards[ownerOf(driverId)].rides.ping(driverId, lat, lon); }
+
+    public CompletableFuture<Integer> applyLocations() { return onEveryShard(RideService::applyLocations); }
+    public CompletableFuture<Integer> runDueTimers() { return onEveryShard(RideService::runDueTimers); }
+
+    private CompletableFuture<Integer> onEveryShard(java.util.function.ToIntFunction<RideService> op) {
+        CompletableFuture<Integer> total = CompletableFuture.completedFuture(0);
+        for (int i = 0; i < shards.length; i++)
+            total = total.thenCombine(submit(i, op::applyAsInt), Integer::sum);
+        return total;
+    }
+
+    // ---------- reads, fanned out and merged ----------
+    public Booking findBookingById(int id) { return shards[ownerOf(id)].rides.findBookingById(id); }
+
+    public List<Booking> getAllBookings() { return merged(RideService::getAllBookings, Booking::getId); }
+    public List<Booking> getBookingsForRider(String rider) { return merged(rs -> rs.getBookingsForRider(rider), Booking::getId); }
+    public List<Booking> getActiveBookingsForRider(String rider) { return merged(rs -> rs.getActiveBookingsForRider(rider), Booking::getId); }
+    public List<Driver> getDrivers() { return merged(RideService::getDrivers, Driver::getId); }
+
+    public int availableDriverCount() {
+        int n = 0;
+        for (Shard s : shards) n += s.rides.availableDriverCount();
+        return n;
+    }
+
+    // every shard's list is already in id order, so a k-way merge keeps the whole in id order
+    private <T> List<T> merged(java.util.function.Function<RideService, List<T>> query, java.util.function.ToIntFunction<T> id) {
+        List<List<T>> parts = new ArrayList<>(shards.length);
+        int total = 0;
+        for (Shard s : shards) {
+            List<T> part = query.apply(s.rides);
+            parts.add(part);
+            total += part.size();
+        }
+        List<T> out = new ArrayList<>(total);
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Comparator.comparingInt((int[] h) -> id.applyAsInt(parts.get(h[0]).get(h[1]))));
+        for (int i = 0; i < parts.size(); i++) if (!parts.get(i).isEmpty()) heads.add(new int[] {i, 0});
+        for (int[] h; (h = heads.poll()) != null; ) {
+            out.add(parts.get(h[0]).get(h[1]));
+            if (++h[1] < parts.get(h[0]).size()) heads.add(h);
+        }
+        return out;
+    }
+
+    long borrowedCount() { return borrowed.sum(); }
+
+    public String stats() {
+        StringBuilder inbox = new StringBuilder();
+        for (Shard s : shards) inbox.append(inbox.length() == 0 ? "" : ",").append(s.inbox.size());
+        return String.format("shards=%d requests=%d borrowed=%d unmatched=%d lendersBusy=%d inbox=[%s]",
+                shards.length, requests.sum(), borrowed.sum(), unmatched.sum(), lendersBusy.sum(), inbox);
+    }
+
+    // lets every writer finish what is queued, then stops it
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard s : shards) {
+            try { s.writer.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+}
+
+/*
+ Booking lifecycle events on a Disruptor-style ring: a power-of-two array of preallocated
+ Event slots that publishers claim by sequence number, fill in place and publish, and that
+ every consumer thread reads in order at its own pace. Publishing allocates nothing and takes
+ no lock. RideService publishes from any request thread, so a claim CAS-es the shared cursor
+ and a per-slot round number marks which claimed slots are filled. The slowest consumer
+ gates the producers: on a full ring a publisher waits (BLOCK) or drops the event and counts
+ it (DROP). Consumers get events in batches with an end-of-batch flag, so a log writer
+ flushes once per batch rather than once per event.
+
+ Subscribe before start(); close() lets consumers drain what was published, then stops them.
+*/
+final class EventBus implements AutoCloseable {
+    enum Type { DRIVER_REGISTERED, RIDE_REQUESTED, DRIVER_ASSIGNED, BOOKING_COMPLETED, BOOKING_CANCELLED, DRIVER_RATED }
+    // how an idle consumer waits: lowest latency first, least CPU last
+    enum Wait { BUSY_SPIN, YIELDING, SLEEPING, BLOCKING }
+    enum Backpressure { BLOCK, DROP }
+
+    // one reusable slot; valid only inside onEvent
+    static final class Event {
+        Type type;
+        long at;      // clock millis at publish
+        long nanos;   // free for publishers that measure latency
+        int bookingId, driverId, stars;
+        String rider;
+        CarType carType;
+        double lat, lon;
+        double amount; // fare, or the fee for cancellations
+    }
+
+    interface Handler { void onEvent(Event e, long sequence, boolean endOfBatch) throws Exception; }
+
+    private final Event[] ring;
+    private final int mask, shift;
+    private final AtomicIntegerArray published; // round (seq >>> shift) last published per slot
+    private final AtomicLong cursor = new AtomicLong(-1); // highest claimed sequence
+    private volatile long gatingCache = -1;
+    private final Wait wait;
+    private final Backpressure backpressure;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+    private final java.util.concurrent.locks.Condition wakeup = lock.newCondition();
+    private final AtomicInteger sleepers = new AtomicInteger();
+    private volatile boolean closed;
+
+    EventBus(int size, Wait wait, Backpressure backpressure) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("ring size must be a power of two");
+        ring = new Event[size];
+        for (int i = 0; i < size; i++) ring[i] = new Event();
+        mask = size - 1;
+        shift = Integer.numberOfTrailingZeros(size);
+        published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) published.set(i, -1);
+        this.wait = wait;
+        this.backpressure = backpressure;
+    }
+
+    final class Consumer implements Runnable {
+        final String name;
+        private final Handler handler;
+        private final AtomicLong sequence = new AtomicLong(-1); // last handled; frees slots up to here
+        private final LongAdder failures = new LongAdder();
+        private Thread thread;
+
+        Consumer(String name, Handler handler) { this.name = name; this.handler = handler; }
+
+        long handled() { return sequence.get() + 1; }
+        long failures() { return failures.sum(); }
+
+        @Override public void run() {
+            for (long next = sequence.get() + 1; ; ) {
+                long last = waitFor(next);
+                if (last < next) return; // closed and drained
+                for (long s = next; s <= last; s++) {
+                    try { handler.onEvent(ring[(int) s & mask], s, s == last); }
+                    catch (Exception e) {
+                        if (failures.sum() == 0) System.err.println("Event consumer " + name + " failed: " + e);
+                        failures.increment();
+                    }
+                }
+                sequence.lazySet(last);
+                next = last + 1;
+            }
+        }
+    }
+
+    Consumer subscribe(String name, Handler handler) {
+        if (!consumers.isEmpty() && consumers.get(0).thread != null) throw new IllegalStateException("bus already started");
+        Consumer c = new Consumer(name, handler);
+        consumers.add(c);
+        return c;
+    }
+
+    void start() {
+        for (Consumer c : consumers) {
+            c.thread = new Thread(c, "events-" + c.name);
+            c.thread.setDaemon(true);
+            c.thread.start();
+        }
+    }
+
+    // ---------- producer side: claim, fill, publish ----------
+    // claimed sequence, or -1 when the ring is full
+    long tryNext() {
+        while (true) {
+            long current = cursor.get(), next = current + 1, wrap = next - ring.length;
+            if (wrap > gatingCache) {
+                long min = minConsumed();
+                gatingCache = min;
+                if (wrap > min) return -1;
+            }
+            if (cursor.compareAndSet(current, next)) return next;
+        }
+    }
+
+    // claimed sequence; waits for the slowest consumer when the ring is full
+    long next() {
+        while (true) {
+            long s = tryNext();
+            if (s >= 0) return s;
+            if (closed) throw new IllegalStateException("event bus closed");
+            java.util.concurrent.locks.LockSupport.parkNanos(1_000);
+        }
+    }
+
+    Event get(long sequence) { return ring[(int) sequence & mask]; }
+
+    void publish(long sequence) {
+        int round = (int) (sequence >>> shift);
+        if (wait != Wait.BLOCKING) { published.lazySet((int) sequence & mask, round); return; }
+        published.set((int) sequence & mask, round); // volatile store: pairs with the sleeper count below
+        if (sleepers.get() > 0) {
+            lock.lock();
+            try { wakeup.signalAll(); } finally { lock.unlock(); }
+        }
+    }
+
+    // the whole cycle for one event; false when dropped under DROP backpressure
+    boolean publish(Type type, long at, int bookingId, int driverId, String rider, CarType carType,
+                    double lat, double lon, double amount, int stars) {
+        long s = backpressure == Backpressure.DROP ? tryNext() : next();
+        if (s < 0) { dropped.increment(); return false; }
+        Event e = ring[(int) s & mask];
+        e.type = type; e.at = at; e.nanos = 0;
+        e.bookingId = bookingId; e.driverId = driverId; e.rider = rider; e.carType = carType;
+        e.lat = lat; e.lon = lon; e.amount = amount; e.stars = stars;
+        publish(s);
+        return true;
+    }
+
+    long publishedCount() { return cursor.get() + 1; }
+    long droppedCount() { return dropped.sum(); }
+    // events claimed but not yet handled by the slowest consumer
+    long lag() { return consumers.isEmpty() ? 0 : cursor.get() - minConsumed(); }
+    List<Consumer> consumers() { return Collections.unmodifiableList(consumers); }
+
+    @Override public void close() {
+        closed = true;
+        lock.lock();
+        try { wakeup.signalAll(); } finally { lock.unlock(); }
+        for (Consumer c : consumers) {
+            if (c.thread == null) continue;
+            try { c.thread.join(5_000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    private long minConsumed() {
+        long min = Long.MAX_VALUE;
+        for (Consumer c : consumers) min = Math.min(min, c.sequence.get());
+        return min;
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    // highest sequence >= next published without gaps, or next-1 once closed with nothing left
+    private long waitFor(long next) {
+        for (int idle = 0; !isPublished(next); idle++) {
+            if (closed && cursor.get() < next) return next - 1;
+            switch (wait) {
+                case BUSY_SPIN -> Thread.onSpinWait();
+                case YIELDING -> { if (idle < 100) Thread.onSpinWait(); else Thread.yield(); }
+                case SLEEPING -> {
+                    if (idle < 100) Thread.onSpinWait();
+                    else if (idle < 200) Thread.yield();
+                    else java.util.concurrent.locks.LockSupport.parkNanos(100_000);
+                }
+                case BLOCKING -> {
+                    lock.lock();
+                    sleepers.incrementAndGet();
+                    try {
+                        if (!isPublished(next) && !closed) wakeup.await(1, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return next - 1;
+                    } finally {
+                        sleepers.decrementAndGet();
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+        long last = next, claimed = cursor.get();
+        while (last < claimed && isPublished(last + 1)) last++;
+        return last;
+    }
+}
+
+/* Event consumer appending one JSON line per lifecycle event; flushed once per batch. */
+final class AuditLog implements EventBus.Handler, Closeable {
+    private final Writer out;
+
+    AuditLog(java.nio.file.Path file) throws IOException {
+        out = java.nio.file.Files.newBufferedWriter(file, java.nio.charset.StandardCharsets.UTF_8,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.APPEND);
+    }
+
+    @Override public void onEvent(EventBus.Event e, long sequence, boolean endOfBatch) throws IOException {
+        out.write(Json.event(e, sequence));
+        out.write('\n');
+        if (endOfBatch) out.flush();
+    }
+
+    @Override public void close() throws IOException { out.close(); }
+}
+
+/* =========================
+   Metrics
+   ========================= */
+
+/*
+ Process-wide counters, gauges and latency histograms, exported in Prometheus text format.
+ Recording is allocation-free: counters are LongAdders and a histogram is a fixed array of
+ LongAdder buckets with SUB_BUCKETS linear steps per power of two of nanoseconds (HDR-style,
+ worst-case error 1/SUB_BUCKETS), so a sample costs one index computation and one add.
+ Gauges are read only when a snapshot is taken. Timing a call:
+     long t0 = Metrics.start(); ... Metrics.REQUEST_RIDE.recordSince(t0);
+ A clock read costs more than a fare quote itself, so nanosecond-scale calls use
+ startSampled() and time one call in SAMPLE_EVERY; their histogram counts are sample counts,
+ with a plain counter alongside for the call rate.
+*/
+final class Metrics {
+    static volatile boolean enabled = true;
+    static final int SAMPLE_EVERY = 16;
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    static final Histogram REQUEST_RIDE = histogram("ride_request_seconds", "ride request latency, batched ones from submit to dispatch");
+    static final Histogram ESTIMATE_FARE = histogram("fare_estimate_seconds", "FareCalculator.estimateFare latency (sampled)");
+    static final Histogram COMPLETE_BOOKING = histogram("booking_complete_seconds", "RideService.completeBooking latency");
+    static final Histogram CANCEL_BOOKING = histogram("booking_cancel_seconds", "RideService.cancelBooking latency");
+    static final Histogram PROMO_QUOTE = histogram("promo_quote_seconds", "PromoService quote lookup latency (sampled)");
+    static final Histogram PROMO_RESERVE = histogram("promo_reserve_seconds", "PromoService.reserve latency");
+    static final Histogram LOGIN = histogram("auth_login_seconds", "AuthService.login latency");
+    static final Histogram LOCATION_STALENESS = histogram("location_staleness_seconds", "age of a driver's latest GPS ping when its tick applied it");
+    static final Histogram LOCATION_TICK = histogram("location_tick_seconds", "RideService.applyLocations duration");
+    static final Histogram RIDE_WAIT = histogram("ride_wait_seconds", "time queued riders waited for a driver to come free");
+    static final Histogram ROUTE_QUERY = histogram("route_query_seconds", "RoadGraph shortest-path search latency (cache misses)");
+    static final Counter FARE_ESTIMATES = counter("fare_estimates_total", "fare estimates");
+    static final Counter RIDE_REQUESTS = counter("ride_requests_total", "ride requests");
+    static final Counter NO_DRIVER = counter("ride_requests_no_driver_total", "ride requests that found no driver");
+    static final Counter RIDES_QUEUED = counter("ride_requests_queued_total", "riders queued to wait for a driver");
+    static final Counter RIDES_ABANDONED = counter("ride_requests_abandoned_total", "queued riders whose wait ran out");
+    static final Counter RIDES_REJECTED = counter("ride_requests_rejected_total", "riders turned away by a full wait queue");
+    static final Counter COMPLETED = counter("bookings_completed_total", "bookings completed");
+    static final Counter CANCELLED = counter("bookings_cancelled_total", "bookings cancelled");
+    static final Counter PROMO_REJECTED = counter("promo_reservations_rejected_total", "promo reservations refused (used up or per-rider limit)");
+    static final Counter LOGIN_FAILURES = counter("auth_login_failures_total", "failed logins");
+    static final Counter LOGIN_LOCKED = counter("auth_login_locked_total", "logins refused while the user name was locked out");
+    static final Counter NO_SHOWS = counter("bookings_no_show_total", "bookings cancelled by the pickup no-show timer");
+    static final Counter TRIP_TIMEOUTS = counter("bookings_trip_timeout_total", "bookings closed by the max-trip-duration timer");
+
+    private Metrics() {}
+
+    static long start() { return enabled ? System.nanoTime() : 0L; }
+    static long startSampled() {
+        return enabled && ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0 ? System.nanoTime() : 0L;
+    }
+
+    static Counter counter(String name, String help) { return counters.computeIfAbsent(name, n -> new Counter(n, help)); }
+    static Histogram histogram(String name, String help) { return histograms.computeIfAbsent(name, n -> new Histogram(n, help)); }
+    // re-registering a name replaces the supplier (the console registers the live services)
+    static void gauge(String name, String help, java.util.function.LongSupplier value) { gauges.put(name, new Gauge(name, help, value)); }
+
+    static final class Counter {
+        final String name, help;
+        private final LongAdder value = new LongAdder();
+        Counter(String name, String help) { this.name = name; this.help = help; }
+        void inc() { if (enabled) value.increment(); }
+        long get() { return value.sum(); }
+    }
+
+    record Gauge(String name, String help, java.util.function.LongSupplier value) {}
+
+    static final class Histogram {
+        static final int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+        static final int MAJORS = 41; // exact up to 2^43 ns (about 2.4 hours); longer samples land in the last bucket
+        final String name, help;
+        private final LongAdder[] buckets = new LongAdder[MAJORS * SUB_BUCKETS];
+        private final LongAdder count = new LongAdder(), sumNanos = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram(String name, String help) {
+            this.name = name; this.help = help;
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void recordSince(long startNanos) {
+            if (startNanos != 0L) record(System.nanoTime() - startNanos);
+        }
+
+        void record(long nanos) {
+            if (!enabled) return;
+            long v = Math.max(0, nanos);
+            buckets[index(v)].increment();
+            count.increment();
+            sumNanos.add(v);
+            if (v > max.get()) max.accumulate(v);
+        }
+
+        // values below SUB_BUCKETS map 1:1; above, the top SUB_BITS+1 bits pick major and sub bucket
+        static int index(long v) {
+            if (v < SUB_BUCKETS) return (int) v;
+            int major = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1; // >= 1
+            if (major >= MAJORS) return MAJORS * SUB_BUCKETS - 1;
+            int sub = (int) (v >>> (major - 1)) & (SUB_BUCKETS - 1);
+            return major * SUB_BUCKETS + sub;
+        }
+
+        // exclusive upper bound of bucket i in nanoseconds
+        static long upperBound(int i) {
+            int major = i / SUB_BUCKETS, sub = i % SUB_BUCKETS;
+            if (major == 0) return sub + 1;
+            return (long) (SUB_BUCKETS + sub + 1) << (major - 1);
+        }
+
+        long count() { return count.sum(); }
+        long maxNanos() { return max.get(); }
+        double meanNanos() { long c = count(); return c == 0 ? 0 : sumNanos.sum() / (double) c; }
+
+        long[] snapshot() {
+            long[] out = new long[buckets.length];
+            for (int i = 0; i < out.length; i++) out[i] = buckets[i].sum();
+            return out;
+        }
+
+        // upper bound of the bucket holding quantile q (0..1)
+        static long quantile(long[] counts, double q) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) return upperBound(i);
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+
+    // human-readable table for the admin console
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-28s %10s %10s %10s %10s %10s %10s%n", "latency (us)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Histogram h : histograms.values()) {
+            long[] c = h.snapshot();
+            sb.append(String.format("%-28s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", h.name, h.count(), h.meanNanos() / 1e3,
+                    Histogram.quantile(c, 0.5) / 1e3, Histogram.quantile(c, 0.9) / 1e3, Histogram.quantile(c, 0.99) / 1e3, h.maxNanos() / 1e3));
+        }
+        for (Counter c : counters.values()) sb.append(String.format("%-40s %12d%n", c.name, c.get()));
+        for (Gauge g : gauges.values()) sb.append(String.format("%-40s %12d%n", g.name(), g.value().getAsLong()));
+        return sb.toString();
+    }
+
+    /*
+     Prometheus text exposition (version 0.0.4). Histograms are exported with a fixed set of
+     cumulative buckets, one per power of two of nanoseconds from 2^6 to 2^36 (64 ns to ~69 s),
+     so bucket boundaries never change between scrapes.
+    */
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Counter c : counters.values()) {
+            sb.append("# HELP carrental_").append(c.name).append(' ').append(c.help).append('\n');
+            sb.append("# TYPE carrental_").append(c.name).append(" counter\n");
+            sb.append("carrental_").append(c.name).append(' ').append(c.get()).append('\n');
+        }
+        for (Gauge g : gauges.values()) {
+            sb.append("# HELP carrental_").append(g.name()).append(' ').append(g.help()).append('\n');
+            sb.append("# TYPE carrental_").append(g.name()).append(" gauge\n");
+            sb.append("carrental_").append(g.name()).append(' ').append(g.value().getAsLong()).append('\n');
+        }
+        for (Histogram h : histograms.values()) {
+            String n = "carrental_" + h.name;
+            sb.append("# HELP ").append(n).append(' ').append(h.help).append('\n');
+            sb.append("# TYPE ").append(n).append(" histogram\n");
+            long[] counts = h.snapshot();
+            long cumulative = 0, total = 0;
+            for (long c : counts) total += c;
+            int i = 0;
+            for (int major = 0; major <= 33; major++) { // major m ends at 2^(m+3) ns
+                for (; i < (major + 1) * Histogram.SUB_BUCKETS; i++) cumulative += counts[i];
+                if (major >= 3) sb.append(n).append("_bucket{le=\"").append(Histogram.upperBound(i - 1) / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(n).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+            sb.append(n).append("_sum ").append(h.sumNanos.sum() / 1e9).append('\n');
+            sb.append(n).append("_count ").append(total).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static void writePrometheus(java.nio.file.Path file) throws IOException {
+        java.nio.file.Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        java.nio.file.Files.writeString(tmp, prometheus());
+        java.nio.file.Files.move(tmp, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+/* =========================
+   HTTP API (java Main serve)
+   ========================= */
+
+/*
+ Headless JSON API over com.sun.net.httpserver, backed by the same service objects as the
+ console. Each exchange runs on its own virtual thread when the JDK has them (21+), else on
+ a cached platform-thread pool; the services are thread-safe, so requests run concurrently.
+
+ Rider calls carry a session token from POST /login as "Authorization: Bearer <token>", or
+ HTTP Basic credentials; admin calls send the admin password in X-Admin-Password. Too many
+ wrong passwords lock the user name for a while (429 with Retry-After).
+ Bodies are flat JSON objects; query parameters are accepted as well.
+
+   POST   /signup                 {username, password}
+   POST   /login                  (Basic)                      -> {username, token, expiresInS}
+   POST   /logout                 (Bearer)                     ends the session
+   GET    /fare?pickup=&drop=&type=&promo=                    priced on the road route; km= only when none exists
+   GET    /surge                  zones by surge multiplier
+   GET    /metrics                Prometheus text format
+   GET    /drivers
+   GET    /drivers/top?type=&pickup=&k=                       best reputation, city-wide or near pickup
+   GET    /drivers/near?pickup=&type=&radiusKm=2&k=50         available drivers in the radius, nearest first; any type if none given
+   POST   /drivers/{id}/location  {lat, lon}                  GPS ping (admin); matching sees it next tick
+   GET    /promos
+   POST   /rides                  {pickup, drop, type, promo} km only as for /fare
+                                  {waitS, priority}            queue up to waitS (120) s when no driver is free; priority 0-9 (admin)
+   GET    /rides?offset=&limit=   ride history; also status=, from=, to= (yyyy-MM-dd, inclusive)
+   GET    /rides/export?format=csv|jsonl&status=&from=&to=    whole history, streamed
+   GET    /rides/active
+   POST   /rides/{id}/pickup                                  driver arrived; starts the trip timeout
+   POST   /rides/{id}/complete
+   POST   /rides/{id}/cancel                                  -> {fee, booking}
+   POST   /rides/{id}/rate        {stars}                      once per completed ride; 409 after that
+   GET    /admin/bookings?offset=&limit=                      filters as /rides, plus rider=
+   GET    /admin/bookings/export?format=csv|jsonl&rider=&status=&from=&to=
+   GET    /admin/rollups?hours=24                             hourly rollups merged, per car type and total
+   POST   /admin/drivers          {name, model, plate, type, area}
+   DELETE /admin/drivers/{id}
+   POST   /admin/promos           {code, percent, uses, perRider}
+   DELETE /admin/promos/{code}
+*/
+class ApiServer {
+    static final class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        ApiException(int status, String message) { super(message); this.status = status; }
+    }
+
+    private final com.sun.net.httpserver.HttpServer http;
+    private final ExecutorService executor;
+    private final String executorKind;
+    private final RideService rides;
+    private final AuthService auth;
+    private final PromoService promos;
+    private final BatchDispatcher dispatcher;
+
+    private ApiServer(com.sun.net.httpserver.HttpServer http, ExecutorService executor, String executorKind,
+                      RideService rides, AuthService auth, PromoService promos, BatchDispatcher dispatcher) {
+        this.http = http; this.executor = executor; this.executorKind = executorKind;
+        this.rides = rides; this.auth = auth; this.promos = promos; this.dispatcher = dispatcher;
+    }
+
+    static ApiServer start(int port, RideService rides, AuthService auth, PromoService promos, BatchDispatcher dispatcher) throws IOException {
+        com.sun.net.httpserver.HttpServer http = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(port), 0);
+        ExecutorService executor;
+        String kind;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            kind = "virtual threads";
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool();
+            kind = "platform thread pool";
+        }
+        ApiServer server = new ApiServer(http, executor, kind, rides, auth, promos, dispatcher);
+        http.createContext("/", server::handle);
+        http.setExecutor(executor);
+        http.start();
+        return server;
+    }
+
+    String executorKind() { return executorKind; }
+    int port() { return http.getAddress().getPort(); }
+
+    void stop() {
+        http.stop(1);
+        executor.shutdown();
+    }
+
+    private void handle(com.sun.net.httpserver.HttpExchange ex) {
+        int status = 200;
+        String body;
+        String contentType = "application/json; charset=utf-8";
+        try {
+            String path = ex.getRequestURI().getPath();
+            if (ex.getRequestMethod().equals("GET") && (path.equals("/rides/export") || path.equals("/admin/bookings/export"))) {
+                export(ex, path.startsWith("/admin/")); // streams its own response
+                ex.close();
+                return;
+            }
+            if (ex.getRequestMethod().equals("GET") && path.equals("/metrics")) {
+                body = Metrics.prometheus(); // scraped by Prometheus, so plain text rather than JSON
+                contentType = "text/plain; version=0.0.4; charset=utf-8";
+            } else {
+                body = route(ex.getRequestMethod(), ex.getRequestURI().getPath(), params(ex), ex);
+            }
+        } catch (ApiException e) {
+            status = e.status;
+            body = "{\"error\":" + Json.quote(e.getMessage()) + "}";
+        } catch (NumberFormatException e) {
+            status = 400;
+            body = "{\"error\":\"bad number\"}";
+        } catch (RuntimeException | IOException e) {
+            status = 500;
+            body = "{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}";
+        }
+        try {
+            byte[] out = body.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", contentType);
+            ex.sendResponseHeaders(status, out.length);
+            ex.getResponseBody().write(out);
+        } catch (IOException ignored) {
+            // client went away
+        } finally {
+            ex.close();
+        }
+    }
+
+    private String route(String method, String path, Map<String, String> in, com.sun.net.httpserver.HttpExchange ex) throws IOException {
+        String[] seg = Arrays.stream(path.split("/")).filter(x -> !x.isEmpty()).toArray(String[]::new);
+        String route = method + " /" + String.join("/", seg).replaceAll("/\\d+(?=/|$)", "/{id}");
+        if (seg.length == 3 && seg[0].equals("admin") && seg[1].equals("promos")) route = method + " /admin/promos/{code}";
+        switch (route) {
+            case "POST /signup" -> {
+                if (!auth.register(required(in, "username"), required(in, "password"))) throw new ApiException(409, "username already exists");
+                return "{\"ok\":true}";
+            }
+            case "POST /login" -> {
+                String[] cred = basic(ex);
+                AuthService.Session s = auth.openSession(cred[0], cred[1]);
+                if (s == null) throw loginFailed(ex, cred[0]);
+                return "{\"username\":" + Json.quote(s.user().getUsername()) + ",\"token\":" + Json.quote(s.token())
+                        + ",\"expiresInS\":" + AuthService.SESSION_TTL_MS / 1000 + "}";
+            }
+            case "POST /logout" -> {
+                String token = bearer(ex);
+                if (token == null || !auth.closeSession(token)) throw new ApiException(401, "no such session");
+                return "{\"ok\":true}";
+            }
+            case "GET /fare" -> { return Json.fare(quote(in, carType(in.get("type")), in.get("promo"), null)); }
+            case "GET /surge" -> { return Json.array(rides.getSurge().zones(), Json::zone); }
+            case "GET /drivers" -> { return Json.array(rides.getDrivers(), Json::driver); }
+            case "POST /drivers/{id}/location" -> {
+                admin(ex); // sent by the driver-app gateway
+                int id = Integer.parseInt(seg[1]);
+                if (rides.driverOrNull(id) == null) throw new ApiException(404, "driver not found");
+                double lat = Double.parseDouble(required(in, "lat")), lon = Double.parseDouble(required(in, "lon"));
+                if (Math.abs(lat) > 90 || Math.abs(lon) > 180) throw new ApiException(400, "lat/lon out of range");
+                rides.ping(id, lat, lon);
+                return "{\"ok\":true}";
+            }
+            case "GET /drivers/near" -> {
+                GeoPoint at = CityMap.locate(required(in, "pickup"));
+                double radius = in.containsKey("radiusKm") ? Double.parseDouble(in.get("radiusKm")) : 2.0;
+                if (!(radius > 0 && radius <= 2 * CityMap.RADIUS_KM)) throw new ApiException(400, "radiusKm must be in (0, " + 2 * CityMap.RADIUS_KM + "]");
+                List<Driver> near = rides.driversWithin(at.lat, at.lon, in.containsKey("type") ? carType(in.get("type")) : null, radius);
+                return Json.array(near.subList(0, Math.min(near.size(), intParam(in, "k", 50))), Json::driver);
+            }
+            case "GET /drivers/top" -> {
+                GeoPoint near = in.containsKey("pickup") ? CityMap.locate(in.get("pickup")) : null;
+                int k = intParam(in, "k", 10);
+                if (k < 1 || k > 1000) throw new ApiException(400, "k must be 1-1000");
+                return Json.array(rides.topDrivers(carType(in.get("type")), near, k), Json::driver);
+            }
+            case "GET /promos" -> { return Json.array(new ArrayList<>(promos.getPromos()), Json::promo); }
+            case "POST /rides" -> { return requestRide(user(ex), in, ex); }
+            case "GET /rides" -> {
+                User u = user(ex);
+                return Json.array(rides.history(filter(in, u.getUsername())).skip(intParam(in, "offset", 0)).page(intParam(in, "limit", 50)), Json::booking);
+            }
+            case "GET /rides/active" -> { return Json.array(rides.getActiveBookingsForRider(user(ex).getUsername()), Json::booking); }
+            case "POST /rides/{id}/complete" -> {
+                Booking b = ownActive(user(ex), seg[1]);
+                if (!rides.completeBooking(b.getId())) throw new ApiException(409, "booking not active");
+                return Json.booking(b);
+            }
+            case "POST /rides/{id}/pickup" -> {
+                Booking b = ownActive(user(ex), seg[1]);
+                if (!rides.confirmPickup(b.getId())) throw new ApiException(409, "booking not active or already picked up");
+                return Json.booking(b);
+            }
+            case "POST /rides/{id}/cancel" -> {
+                Booking b = ownActive(user(ex), seg[1]);
+                double fee = rides.cancelBooking(b.getId());
+                return "{\"fee\":" + fee + ",\"booking\":" + Json.booking(rides.findBookingById(b.getId())) + "}";
+            }
+            case "POST /rides/{id}/rate" -> {
+                Booking b = own(user(ex), seg[1]);
+                if (b.getStatus() != BookingStatus.COMPLETED) throw new ApiException(409, "only completed rides can be rated");
+                int stars = intParam(in, "stars");
+                if (stars < 1 || stars > 5) throw new ApiException(400, "stars must be 1-5");
+                if (!rides.rateBooking(b.getId(), stars)) throw new ApiException(409, "ride already rated");
+                return "{\"ok\":true}";
+            }
+            case "GET /admin/rollups" -> {
+                admin(ex);
+                int hours = intParam(in, "hours", 24);
+                if (hours < 1 || hours > Rollups.HOURS) throw new ApiException(400, "hours must be 1-" + Rollups.HOURS);
+                long to = Rollups.hourOf(rides.now()), from = to - hours + 1;
+                StringBuilder sb = new StringBuilder("{\"from\":").append(Json.time(Rollups.startOf(from)))
+                        .append(",\"to\":").append(Json.time(Rollups.startOf(to + 1))).append(",\"byType\":{");
+                for (CarType t : CarType.values()) {
+                    if (t.ordinal() > 0) sb.append(',');
+                    sb.append('"').append(t).append("\":").append(Json.totals(rides.getRollups().query(from, to, t)));
+                }
+                return sb.append("},\"total\":").append(Json.totals(rides.getRollups().query(from, to, null))).append('}').toString();
+            }
+            case "GET /admin/bookings" -> {
+                admin(ex);
+                return Json.array(rides.history(filter(in, in.get("rider"))).skip(intParam(in, "offset", 0)).page(intParam(in, "limit", 50)), Json::booking);
+            }
+            case "POST /admin/drivers" -> {
+                admin(ex);
+                String plate = required(in, "plate");
+                String area = in.getOrDefault("area", "");
+                GeoPoint base = CityMap.locate(area.isBlank() ? plate : area);
+                Driver d = rides.registerDriver(required(in, "name"), required(in, "model"), plate, carType(in.get("type")), base.lat, base.lon);
+                return Json.driver(d);
+            }
+            case "DELETE /admin/drivers/{id}" -> {
+                admin(ex);
+                if (!rides.removeDriver(Integer.parseInt(seg[2]))) throw new ApiException(409, "driver not found or busy");
+                return "{\"ok\":true}";
+            }
+            case "POST /admin/promos" -> {
+                admin(ex);
+                String code = required(in, "code").toUpperCase(Locale.ROOT);
+                double percent = Double.parseDouble(required(in, "percent"));
+                int uses = intParam(in, "uses", 5), perRider = intParam(in, "perRider", 0);
+                Promo p;
+                try { p = new Promo(code, percent, uses, perRider); }
+                catch (IllegalArgumentException e) { throw new ApiException(400, e.getMessage()); }
+                promos.addPromo(p);
+                return "{\"ok\":true}";
+            }
+            case "DELETE /admin/promos/{code}" -> {
+                admin(ex);
+                if (!promos.removePromo(seg[2].toUpperCase(Locale.ROOT))) throw new ApiException(404, "promo not found");
+                return "{\"ok\":true}";
+            }
+            default -> throw new ApiException(404, "no route for " + method + " " + path);
+        }
+    }
+
+    // holds the call while the rider waits in the queue (long poll); waitS=0 answers 503 at once instead
+    private String requestRide(User u, Map<String, String> in, com.sun.net.httpserver.HttpExchange ex) {
+        CarType type = carType(in.get("type"));
+        String pickup = required(in, "pickup"), drop = required(in, "drop");
+        String promo = in.get("promo");
+        if (promo != null && promo.isBlank()) promo = null;
+        int waitS = intParam(in, "waitS", (int) (RideService.DEFAULT_WAIT_MS / 1000));
+        if (waitS < 0 || waitS > RideService.MAX_WAIT_MS / 1000) throw new ApiException(400, "waitS must be 0-" + RideService.MAX_WAIT_MS / 1000);
+        int priority = 0;
+        if (in.containsKey("priority")) {
+            admin(ex); // set by operators (accessibility, escalations), not by riders themselves
+            priority = intParam(in, "priority");
+            if (priority < 0 || priority > 9) throw new ApiException(400, "priority must be 0-9");
+        }
+        FareEstimate estimate = quote(in, type, promo, u.getUsername());
+        if (promo != null && estimate.promoCode == null) throw new ApiException(409, "promo " + promo + " is not available to you");
+        Booking b = dispatcher == null
+                ? rides.requestRide(u.getUsername(), pickup, drop, estimate.km, type, estimate)
+                : dispatcher.submit(u.getUsername(), pickup, drop, estimate.km, type, estimate).join();
+        if (b == null && waitS > 0) {
+            GeoPoint at = CityMap.locate(pickup);
+            WaitQueue.Ticket t = rides.waitForDriver(u.getUsername(), pickup, at.lat, at.lon, drop, estimate.km, type, estimate, priority, waitS * 1000L);
+            if (t.rejected) throw new ApiException(503, "no drivers available; " + t.ahead + " riders already waiting"
+                    + (t.estimatedWaitMs < 0 ? "" : ", estimated wait " + (t.estimatedWaitMs + 999) / 1000 + " s"));
+            b = t.result.join();
+            if (b == null) throw new ApiException(503, "no driver came free within " + waitS + " s");
+        }
+        if (b == null) throw new ApiException(503, "no drivers available currently");
+        return Json.booking(b);
+    }
+
+    // priced on the road route from pickup to drop; km is only consulted when no route exists
+    private FareEstimate quote(Map<String, String> in, CarType type, String promo, String rider) {
+        GeoPoint at = CityMap.locate(required(in, "pickup"));
+        double surge = rides.surgeAt(at.lat, at.lon);
+        RoadGraph.Route route = in.containsKey("drop") ? rides.route(at, CityMap.locate(in.get("drop"))) : null;
+        if (route != null) return FareCalculator.estimateFare(route, type, surge, promos, promo, rider);
+        int km = intParam(in, "km");
+        if (km <= 0) throw new ApiException(400, "km must be positive");
+        return FareCalculator.estimateFare(km, type, surge, promos, promo, rider);
+    }
+
+    private Booking own(User u, String id) {
+        Booking b = rides.findBookingById(Integer.parseInt(id));
+        if (b == null) throw new ApiException(404, "booking not found");
+        if (!b.getRiderName().equals(u.getUsername())) throw new ApiException(403, "this booking isn't yours");
+        return b;
+    }
+
+    private Booking ownActive(User u, String id) {
+        Booking b = own(u, id);
+        if (b.getStatus() != BookingStatus.ACTIVE) throw new ApiException(409, "booking not active");
+        return b;
+    }
+
+    // a Bearer session token is one map lookup; Basic credentials go through login (cached after a success)
+    private User user(com.sun.net.httpserver.HttpExchange ex) {
+        String token = bearer(ex);
+        if (token != null) {
+            User u = auth.validate(token);
+            if (u == null) throw new ApiException(401, "session expired or unknown");
+            return u;
+        }
+        String[] cred = basic(ex);
+        User u = auth.login(cred[0], cred[1]);
+        if (u == null) throw loginFailed(ex, cred[0]);
+        return u;
+    }
+
+    private static String bearer(com.sun.net.httpserver.HttpExchange ex) {
+        String h = ex.getRequestHeaders().getFirst("Authorization");
+        return h != null && h.startsWith("Bearer ") ? h.substring(7).trim() : null;
+    }
+
+    private static String[] basic(com.sun.net.httpserver.HttpExchange ex) {
+        String h = ex.getRequestHeaders().getFirst("Authorization");
+        if (h == null || !h.startsWith("Basic ")) throw new ApiException(401, "basic auth or session token required");
+        String cred;
+        try {
+            cred = new String(Base64.getDecoder().decode(h.substring(6).trim()), java.nio.charset.StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(401, "malformed basic auth");
+        }
+        int colon = cred.indexOf(':');
+        if (colon < 0) throw new ApiException(401, "invalid credentials");
+        return new String[] {cred.substring(0, colon), cred.substring(colon + 1)};
+    }
+
+    private ApiException loginFailed(com.sun.net.httpserver.HttpExchange ex, String username) {
+        long locked = auth.lockedForMillis(username);
+        if (locked == 0) return new ApiException(401, "invalid credentials");
+        ex.getResponseHeaders().set("Retry-After", String.valueOf((locked + 999) / 1000));
+        return new ApiException(429, "too many failed logins; try again later");
+    }
+
+    private static void admin(com.sun.net.httpserver.HttpExchange ex) {
+        if (!Main.ADMIN_PASSWORD.equals(ex.getRequestHeaders().getFirst("X-Admin-Password")))
+            throw new ApiException(401, "admin password required");
+    }
+
+    private static Map<String, String> params(com.sun.net.httpserver.HttpExchange ex) throws IOException {
+        Map<String, String> out = new HashMap<>();
+        String q = ex.getRequestURI().getRawQuery();
+        if (q != null) {
+            for (String kv : q.split("&")) {
+                int eq = kv.indexOf('=');
+                if (eq <= 0) continue;
+                out.put(java.net.URLDecoder.decode(kv.substring(0, eq), java.nio.charset.StandardCharsets.UTF_8),
+                        java.net.URLDecoder.decode(kv.substring(eq + 1), java.nio.charset.StandardCharsets.UTF_8));
+            }
+        }
+        byte[] body = ex.getRequestBody().readAllBytes();
+        if (body.length > 0) {
+            try { out.putAll(Json.parseFlatObject(new String(body, java.nio.charset.StandardCharsets.UTF_8))); }
+            catch (IllegalArgumentException e) { throw new ApiException(400, e.getMessage()); }
+        }
+        return out;
+    }
+
+    private static String required(Map<String, String> in, String key) {
+        String v = in.get(key);
+        if (v == null || v.isBlank()) throw new ApiException(400, "missing " + key);
+        return v;
+    }
+
+    // status=, from= and to= (yyyy-MM-dd, both inclusive) on top of the given rider (null = any)
+    private static BookingExport.Filter filter(Map<String, String> in, String rider) {
+        String st = in.get("status"), from = in.get("from"), to = in.get("to");
+        try {
+            return BookingExport.Filter.of(rider == null || rider.isBlank() ? null : rider,
+                    st == null || st.isBlank() ? null : BookingStatus.valueOf(st.toUpperCase(Locale.ROOT)),
+                    from == null || from.isBlank() ? null : java.time.LocalDate.parse(from),
+                    to == null || to.isBlank() ? null : java.time.LocalDate.parse(to));
+        } catch (IllegalArgumentException | java.time.format.DateTimeParseException e) {
+            throw new ApiException(400, "bad status or date");
+        }
+    }
+
+    // streams the filtered bookings as CSV or JSON Lines (chunked), written as they are read
+    private void export(com.sun.net.httpserver.HttpExchange ex, boolean asAdmin) throws IOException {
+        Map<String, String> in = params(ex);
+        BookingExport.Filter f;
+        if (asAdmin) {
+            admin(ex);
+            f = filter(in, in.get("rider"));
+        } else {
+            f = filter(in, user(ex).getUsername());
+        }
+        String fmt = in.getOrDefault("format", "csv");
+        if (!fmt.equals("csv") && !fmt.equals("jsonl")) throw new ApiException(400, "format must be csv or jsonl");
+        BookingExport.Format format = fmt.equals("csv") ? BookingExport.Format.CSV : BookingExport.Format.JSONL;
+        BookingExport.Cursor cursor = rides.history(f);
+        ex.getResponseHeaders().set("Content-Type", format == BookingExport.Format.CSV ? "text/csv; charset=utf-8" : "application/x-ndjson; charset=utf-8");
+        ex.sendResponseHeaders(200, 0);
+        try (OutputStream body = ex.getResponseBody()) {
+            new BookingExport.Writer(format, java.nio.channels.Channels.newChannel(body)).writeAll(cursor);
+        }
+    }
+
+    private static int intParam(Map<String, String> in, String key) { return Integer.parseInt(required(in, key)); }
+    private static int intParam(Map<String, String> in, String key, int def) {
+        String v = in.get(key);
+        return v == null || v.isBlank() ? def : Integer.parseInt(v);
+    }
+
+    private static CarType carType(String s) {
+        if (s == null || s.isBlank()) return CarType.MINI;
+        try { return CarType.valueOf(s.trim().toUpperCase(Locale.ROOT)); }
+        catch (IllegalArgumentException e) { throw new ApiException(400, "type must be one of " + Arrays.toString(CarType.values())); }
+    }
+}
+
+// just enough JSON for the API: flat objects in, hand-built documents out
+final class Json {
+    private Json() {}
+
+    static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    static String time(LocalDateTime t) { return t == null ? "null" : quote(t.toString()); }
+
+    static <T> String array(List<T> items, java.util.function.Function<T, String> f) {
+        StringJoiner j = new StringJoiner(",", "[", "]");
+        for (T t : items) j.add(f.apply(t));
+        return j.toString();
+    }
+
+    static String driver(Driver d) {
+        return "{\"id\":" + d.getId() + ",\"name\":" + quote(d.getName()) + ",\"model\":" + quote(d.getCar().getModel())
+                + ",\"plate\":" + quote(d.getCar().getPlate()) + ",\"type\":\"" + d.getCar().getType() + "\""
+                + ",\"available\":" + d.isAvailable() + ",\"rating\":" + d.getAverageRating() + ",\"ratings\":" + d.getRatingCount()
+                + ",\"reputation\":" + Math.round(d.getReputation() * 1000) / 1000.0 + "}";
+    }
+
+    static String promo(Promo p) {
+        return "{\"code\":" + quote(p.getCode()) + ",\"percent\":" + p.getPercent() + ",\"usesLeft\":" + p.getUsesLeft() + ",\"perRider\":" + p.getPerUserLimit() + "}";
+    }
+
+    static String zone(SurgeEngine.ZoneStat z) {
+        return "{\"zone\":" + z.zone() + ",\"lat\":" + z.lat() + ",\"lon\":" + z.lon() + ",\"multiplier\":" + z.multiplier()
+                + ",\"requests\":" + z.demand() + ",\"freeDrivers\":" + z.supply() + "}";
+    }
+
+    static String fare(FareEstimate e) {
+        return "{\"km\":" + e.km + ",\"baseFare\":" + e.baseFare + ",\"distanceFare\":" + e.distanceFare + ",\"surge\":" + e.surge
+                + ",\"surgeMultiplier\":" + e.surgeMultiplier
+                + ",\"promoDiscount\":" + e.promoDiscount + ",\"finalFare\":" + e.finalFare + ",\"etaMinutes\":" + e.etaMinutes
+                + ",\"fuelLiters\":" + e.estimatedFuelLiters + ",\"promo\":" + quote(e.promoCode) + "}";
+    }
+
+    static String event(EventBus.Event e, long sequence) {
+        StringBuilder sb = new StringBuilder(160).append("{\"seq\":").append(sequence)
+                .append(",\"type\":\"").append(e.type).append("\",\"at\":").append(e.at);
+        if (e.bookingId != 0) sb.append(",\"booking\":").append(e.bookingId);
+        if (e.driverId != 0) sb.append(",\"driver\":").append(e.driverId);
+        if (e.rider != null) sb.append(",\"rider\":").append(quote(e.rider));
+        if (e.carType != null) sb.append(",\"carType\":\"").append(e.carType).append('"');
+        if (e.type == EventBus.Type.DRIVER_RATED) sb.append(",\"stars\":").append(e.stars);
+        else sb.append(",\"amount\":").append(e.amount);
+        if (e.lat != 0 || e.lon != 0) sb.append(",\"lat\":").append(e.lat).append(",\"lon\":").append(e.lon);
+        return sb.append('}').toString();
+    }
+
+    static String totals(Rollups.Totals t) {
+        return "{\"created\":" + t.created() + ",\"completed\":" + t.completed() + ",\"cancelled\":" + t.cancelled()
+                + ",\"completionRate\":" + Math.round(t.completionRate() * 10000) / 10000.0 + ",\"grossFare\":" + t.grossFare()
+                + ",\"promoDiscount\":" + t.promoDiscount() + ",\"cancellationFees\":" + t.cancellationFees()
+                + ",\"fuelLiters\":" + t.fuelLiters() + "}";
+    }
+
+    static String booking(Booking b) {
+        return "{\"id\":" + b.getId() + ",\"rider\":" + quote(b.getRiderName()) + ",\"pickup\":" + quote(b.getPickup())
+                + ",\"drop\":" + quote(b.getDrop()) + ",\"km\":" + b.getKms() + ",\"type\":\"" + b.getRequestedType() + "\""
+                + ",\"status\":\"" + b.getStatus() + "\",\"driver\":" + driver(b.getDriver())
+                + ",\"fare\":" + b.getEstimatedFare() + ",\"promo\":" + quote(b.getAppliedPromo()) + ",\"etaMinutes\":" + b.getEtaMinutes()
+                + ",\"fuelLiters\":" + b.getEstimatedFuelLiters() + ",\"pickupKm\":" + Math.round(b.getPickupKm() * 100) / 100.0
+                + ",\"pickupMinutes\":" + Math.round(b.getPickupMinutes() * 10) / 10.0
+                + ",\"createdAt\":" + time(b.getCreatedAt()) + ",\"pickedUpAt\":" + time(b.getPickedUpAt())
+                + ",\"completedAt\":" + time(b.getCompletedAt())
+                + ",\"cancelledAt\":" + time(b.getCancelledAt()) + ",\"cancellationFee\":" + b.getCancellationFee()
+                + ",\"rating\":" + (b.getRating() == 0 ? "null" : String.valueOf(b.getRating())) + "}";
+    }
+
+    // {"k": "v", "n": 1.5, "b": true, "x": null} -> string values; nested values are rejected
+    static Map<String, String> parseFlatObject(String text) {
+        Map<String, String> out = new HashMap<>();
+        int[] pos = {skip(text, 0)};
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') { pos[0]++; return out; }
+        while (true) {
+            String key = string(text, pos);
+            expect(text, pos, ':');
+            char c = peek(text, pos);
+            String value;
+            if (c == '"') value = string(text, pos);
+            else {
+                int start = pos[0];
+                while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) pos[0]++;
+                value = text.substring(start, pos[0]);
+                if (value.isEmpty() || value.startsWith("{") || value.startsWith("[")) throw new IllegalArgumentException("only flat JSON objects are accepted");
+                if (value.equals("null")) value = null;
+            }
+            if (value != null) out.put(key, value);
+            pos[0] = skip(text, pos[0]);
+            if (peek(text, pos) == ',') { pos[0]++; continue; }
+            expect(text, pos, '}');
+            return out;
+        }
+    }
+
+    private static String string(String t, int[] pos) {
+        expect(t, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < t.length()) {
+            char c = t.charAt(pos[0]++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') { sb.append(c); continue; }
+            if (pos[0] >= t.length()) break;
+            char e = t.charAt(pos[0]++);
+            switch (e) {
+                case 'n' -> sb.append('\n');
+                case 't' -> sb.append('\t');
+                case 'r' -> sb.append('\r');
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'u' -> {
+                    if (pos[0] + 4 > t.length()) throw new IllegalArgumentException("bad escape");
+                    sb.append((char) Integer.parseInt(t.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                }
+                default -> sb.append(e);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    private static char peek(String t, int[] pos) {
+        pos[0] = skip(t, pos[0]);
+        if (pos[0] >= t.length()) throw new IllegalArgumentException("unexpected end of JSON");
+        return t.charAt(pos[0]);
+    }
+
+    private static void expect(String t, int[] pos, char c) {
+        if (peek(t, pos) != c) throw new IllegalArgumentException("expected '" + c + "' at " + pos[0]);
+        pos[0]++;
+    }
+
+    private static int skip(String t, int i) {
+        while (i < t.length() && Character.isWhitespace(t.charAt(i))) i++;
+        return i;
+    }
+}
+
+/* =========================
+   City simulation (java Main bench city)
+   ========================= */
+
+// Manually advanced clock; RideService reads simulated time through it.
+final class SimClock extends java.time.Clock {
+    private final java.time.ZoneId zone;
+    private volatile long millis;
+
+    SimClock(LocalDateTime start) { this(start.atZone(java.time.ZoneOffset.UTC).toInstant().toEpochMilli(), java.time.ZoneOffset.UTC); }
+    private SimClock(long millis, java.time.ZoneId zone) { this.millis = millis; this.zone = zone; }
+
+    void set(long epochMillis) { millis = epochMillis; }
+    @Override public long millis() { return millis; }
+    @Override public java.time.Instant instant() { return java.time.Instant.ofEpochMilli(millis); }
+    @Override public java.time.ZoneId getZone() { return zone; }
+    @Override public java.time.Clock withZone(java.time.ZoneId z) { return new SimClock(millis, z); }
+}
+
+/*
+ Discrete-event replay of a day (or more) of demand against a fresh RideService.
+ Drivers are spread over the city; riders arrive as a non-homogeneous Poisson process
+ (thinned against the peak rate) with morning and evening peaks, half of them around a few
+ hotspots. Every matched ride is later either cancelled (sometimes inside the free window,
+ sometimes not) or picked up and completed, moving the driver to the drop point, and most
+ completed rides are rated. A few riders never show and a few trips are never closed; the
+ service's booking timers must clean those up. Simulated time is fed to the service through
+ a SimClock, ticking the timers every simulated second, so fees follow the simulated minutes.
+ All randomness comes from the seed: the same parameters give the same outcome digest, while
+ latencies and throughput are measured on the wall clock.
+
+ params: drivers, riders, hours, rate (requests/min at the base profile), cancel, noshow and
+ stuck (percent of matched rides), seed
+*/
+final class CitySimulation {
+    static final LocalDateTime START = LocalDateTime.of(2026, 1, 5, 0, 0); // a Monday
+    static final double SPEED_KMH = 24.0; // pickup leg
+    static final double ROAD_FACTOR = 1.3; // road km per straight-line km
+    static final int HOTSPOTS = 8;
+    static final int ARRIVE = 0, COMPLETE = 1, CANCEL = 2, PICKUP = 3;
+
+    private record Event(long at, long seq, int kind, int bookingId, double lat, double lon) {}
+
+    private final RideService rides = new RideService();
+    private final PromoService promos = new PromoService();
+    private final SimClock clock = new SimClock(START);
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            Comparator.comparingLong(Event::at).thenComparingLong(Event::seq));
+    private final Random rnd;
+    private final GeoPoint[] hotspots = new GeoPoint[HOTSPOTS];
+    private final int riders;
+    private final double ratePerMin;
+    private final double cancelProb;
+    private final double noShowProb, stuckProb; // rider never turns up / driver never closes the trip
+    private final List<Booking> abandoned = new ArrayList<>(), stuck = new ArrayList<>();
+    private long seq, nextTick;
+
+    // outcomes
+    long requests, matched, completed, cancelled, feesCharged, ratings, surged, promoRides, noShows, tripTimeouts;
+    double feeTotal, pickupKmTotal, surgeTotal, noShowFees, grossFare;
+    long digest = 1125899906842597L;
+    long[] requestNs = new long[1024], closeNs = new long[1024];
+    int requestSamples, closeSamples;
+
+    CitySimulation(int drivers, int riders, double ratePerMin, double cancelProb, double noShowProb, double stuckProb, long seed) {
+        this.rnd = new Random(seed);
+        this.riders = riders;
+        this.ratePerMin = ratePerMin;
+        this.cancelProb = cancelProb;
+        this.noShowProb = noShowProb;
+        this.stuckProb = stuckProb;
+        rides.setClock(clock);
+        rides.setPromos(promos);
+        promos.addPromo(new Promo("SIM10", 10.0, riders / 4, 2));
+        for (int i = 0; i < HOTSPOTS; i++) hotspots[i] = CityMap.randomPoint(rnd);
+        for (int i = 0; i < drivers; i++) {
+            GeoPoint p = CityMap.randomPoint(rnd);
+            rides.registerDriver("Sim" + i, "Model", "SIM" + i, pickType(), p.lat, p.lon);
+        }
+    }
+
+    static void run(Map<String, String> params) {
+        int riders = (int) Benchmarks.param(params, "riders", 20_000);
+        int hours = (int) Benchmarks.param(params, "hours", 24);
+        double rate = Benchmarks.param(params, "rate", 60);
+        double cancel = Benchmarks.param(params, "cancel", 10) / 100.0;
+        double noShow = Benchmarks.param(params, "noshow", 2) / 100.0;
+        double stuck = Benchmarks.param(params, "stuck", 1) / 100.0;
+        for (long drivers : Benchmarks.longs(params, "drivers", 1_000, 5_000)) {
+            for (long seed : Benchmarks.longs(params, "seed", 1)) {
+                long heap0 = Benchmarks.usedHeap();
+                CitySimulation sim = new CitySimulation((int) drivers, riders, rate, cancel, noShow, stuck, seed);
+                long t0 = System.nanoTime();
+                sim.runFor(hours * 3_600_000L);
+                double wallS = (System.nanoTime() - t0) / 1e9;
+                sim.report(drivers, seed, hours, wallS, Benchmarks.usedHeap() - heap0);
+            }
+        }
+    }
+
+    void runFor(long simMillis) {
+        long start = clock.millis(), end = start + simMillis;
+        nextTick = start + 1000;
+        scheduleNextArrival(start, end);
+        Event e;
+        while ((e = events.poll()) != null) {
+            tickTo(e.at());
+            clock.set(e.at());
+            switch (e.kind()) {
+                case ARRIVE -> { arrive(); scheduleNextArrival(e.at(), end); }
+                case PICKUP -> {
+                    if (!rides.confirmPickup(e.bookingId())) throw new IllegalStateException("booking " + e.bookingId() + " timed out before pickup");
+                }
+                case COMPLETE -> complete(e);
+                case CANCEL -> cancel(e);
+                default -> throw new IllegalStateException();
+            }
+        }
+        // what is left is up to the booking timers
+        while (rides.pendingTimers() > 0) tickTo(nextTick);
+        for (Booking b : abandoned) {
+            if (b.getStatus() != BookingStatus.CANCELLED || b.getCancellationFee() <= 0) throw new IllegalStateException("no-show " + b.getId() + " not charged");
+            noShows++;
+            noShowFees += b.getCancellationFee();
+            mix(Math.round(b.getCancellationFee() * 100));
+        }
+        for (Booking b : stuck) {
+            if (b.getStatus() != BookingStatus.COMPLETED) throw new IllegalStateException("stuck trip " + b.getId() + " not closed");
+            tripTimeouts++;
+        }
+        abandoned.clear();
+        stuck.clear();
+        // the hourly rollups must agree with what the simulation did
+        Rollups.Totals t = rides.getRollups().query(Rollups.hourOf(START), Rollups.hourOf(rides.now()), null);
+        if (t.created() != matched || t.completed() != completed + tripTimeouts || t.cancelled() != cancelled + noShows
+                || Math.abs(t.cancellationFees() - feeTotal - noShowFees) > 0.01)
+            throw new IllegalStateException("rollups disagree with the simulation: " + t);
+        grossFare = t.grossFare();
+    }
+
+    // Main's once-a-second timer tick, on simulated time
+    private void tickTo(long t) {
+        for (; nextTick <= t; nextTick += 1000) {
+            clock.set(nextTick);
+            rides.runDueTimers();
+        }
+    }
+
+    // thinning: draw from the peak rate, keep a candidate with probability rate(t)/peak
+    private void scheduleNextArrival(long from, long end) {
+        double peakPerMs = ratePerMin * peakFactor() / 60_000.0;
+        long t = from;
+        while (true) {
+            t += Math.max(1, (long) (-Math.log(1 - rnd.nextDouble()) / peakPerMs));
+            if (t >= end) return;
+            if (rnd.nextDouble() * peakFactor() <= demandFactor(hourOfDay(t))) break;
+        }
+        events.add(new Event(t, seq++, ARRIVE, 0, 0, 0));
+    }
+
+    // relative demand by hour of day: overnight trough, morning and evening commutes
+    static double demandFactor(double hour) {
+        return 0.25 + 1.5 * Math.exp(-sq(hour - 9) / 2) + 1.8 * Math.exp(-sq(hour - 18.5) / (2 * 1.5 * 1.5));
+    }
+    static double peakFactor() { return 2.1; }
+    private static double sq(double x) { return x * x; }
+    private static double hourOfDay(long epochMillis) { return (epochMillis / 60_000.0 / 60.0) % 24; }
+
+    private void arrive() {
+        requests++;
+        String rider = "rider" + rnd.nextInt(riders);
+        GeoPoint pickup = rnd.nextBoolean() ? near(hotspots[rnd.nextInt(HOTSPOTS)], 1.0) : CityMap.randomPoint(rnd);
+        GeoPoint drop = rnd.nextInt(3) == 0 ? near(hotspots[rnd.nextInt(HOTSPOTS)], 1.0) : CityMap.randomPoint(rnd);
+        int km = Math.max(1, (int) Math.round(ROAD_FACTOR * CityMap.distanceKm(pickup.lat, pickup.lon, drop.lat, drop.lon)));
+        CarType type = pickType();
+        String promo = rnd.nextInt(10) == 0 ? "SIM10" : null;
+        FareEstimate est = FareCalculator.estimateFare(km, type, rides.surgeAt(pickup.lat, pickup.lon), promos, promo, rider, rnd);
+        if (est.surgeMultiplier > 1.0) surged++;
+        surgeTotal += est.surgeMultiplier;
+
+        long t0 = System.nanoTime();
+        Booking b = rides.requestRide(rider, "sim", pickup.lat, pickup.lon, "sim", km, type, est);
+        requestNs = record(requestNs, requestSamples++, System.nanoTime() - t0);
+        if (b == null) { mix(-1); return; }
+        matched++;
+        if (b.getAppliedPromo() != null) promoRides++;
+        pickupKmTotal += b.getPickupKm();
+        mix(b.getId()); mix(b.getDriver().getId());
+
+        double pickupMin = 1 + b.getPickupKm() * ROAD_FACTOR / SPEED_KMH * 60;
+        long now = clock.millis();
+        double fate = rnd.nextDouble();
+        if (fate < cancelProb) {
+            // anywhere from an instant change of mind to giving up on a slow pickup
+            long after = (long) (rnd.nextDouble() * (pickupMin + 4) * 60_000);
+            events.add(new Event(now + after, seq++, CANCEL, b.getId(), 0, 0));
+        } else if (fate < cancelProb + noShowProb) {
+            abandoned.add(b); // the no-show timer cancels it and charges the fee
+        } else {
+            events.add(new Event(now + (long) (pickupMin * 60_000), seq++, PICKUP, b.getId(), 0, 0));
+            if (fate < cancelProb + noShowProb + stuckProb) { stuck.add(b); return; } // the trip timer closes it
+            long after = (long) ((pickupMin + b.getEtaMinutes()) * 60_000);
+            events.add(new Event(now + after, seq++, COMPLETE, b.getId(), drop.lat, drop.lon));
+        }
+    }
+
+    private void complete(Event e) {
+        Booking b = rides.findBookingById(e.bookingId());
+        b.getDriver().setPosition(e.lat(), e.lon()); // still claimed, so not in the index yet
+        long t0 = System.nanoTime();
+        boolean ok = rides.completeBooking(e.bookingId());
+        closeNs = record(closeNs, closeSamples++, System.nanoTime() - t0);
+        if (!ok) throw new IllegalStateException("booking " + e.bookingId() + " was not active");
+        completed++;
+        if (rnd.nextInt(10) < 7) {
+            int stars = 5 - Math.min(4, (int) (-Math.log(1 - rnd.nextDouble()) * 0.8));
+            rides.rateDriver(b.getDriver().getId(), stars);
+            ratings++;
+            mix(stars);
+        }
+    }
+
+    private void cancel(Event e) {
+        long t0 = System.nanoTime();
+        double fee = rides.cancelBooking(e.bookingId());
+        closeNs = record(closeNs, closeSamples++, System.nanoTime() - t0);
+        cancelled++;
+        if (fee > 0) { feesCharged++; feeTotal += fee; }
+        mix(Math.round(fee * 100));
+    }
+
+    private CarType pickType() {
+        int x = rnd.nextInt(10);
+        return x < 6 ? CarType.MINI : x < 9 ? CarType.SEDAN : CarType.SUV;
+    }
+
+    private GeoPoint near(GeoPoint c, double km) {
+        double dLat = Math.toDegrees(rnd.nextGaussian() * km / CityMap.EARTH_RADIUS_KM);
+        double dLon = Math.toDegrees(rnd.nextGaussian() * km / (CityMap.EARTH_RADIUS_KM * Math.cos(Math.toRadians(c.lat))));
+        return new GeoPoint(c.lat + dLat, c.lon + dLon);
+    }
+
+    private void mix(long v) { digest = (digest ^ v) * 0x100000001b3L; }
+
+    private static long[] record(long[] samples, int i, long ns) {
+        if (i == samples.length) samples = Arrays.copyOf(samples, i * 2);
+        samples[i] = ns;
+        return samples;
+    }
+
+    private static String percentiles(long[] samples, int n) {
+        if (n == 0) return "n/a";
+        long[] s = Arrays.copyOf(samples, n);
+        Arrays.sort(s);
+        return String.format("p50 %.1f  p90 %.1f  p99 %.1f  max %.1f us",
+                s[n / 2] / 1e3, s[(int) (n * 0.9)] / 1e3, s[Math.min(n - 1, (int) (n * 0.99))] / 1e3, s[n - 1] / 1e3);
+    }
+
+    void report(long drivers, long seed, int hours, double wallS, long heapBytes) {
+        System.out.printf("drivers=%d seed=%d: %d sim hours in %.2f s wall (%.0fx real time)%n",
+                drivers, seed, hours, wallS, hours * 3600 / wallS);
+        System.out.printf("  requests %,d  matched %,d (%.1f%%)  completed %,d  cancelled %,d (%,d with fee, ₹%.2f)  ratings %,d%n",
+                requests, matched, 100.0 * matched / Math.max(1, requests), completed, cancelled, feesCharged, feeTotal, ratings);
+        System.out.printf("  throughput %,.0f service calls/s, avg pickup %.2f km, surge on %.1f%% of quotes (avg x%.3f)%n",
+                (requestSamples + closeSamples + ratings) / wallS, pickupKmTotal / Math.max(1, matched),
+                100.0 * surged / Math.max(1, requests), surgeTotal / Math.max(1, requests));
+        Promo promo = promos.find("SIM10");
+        System.out.printf("  gross fare of completed rides ₹%.2f (from the hourly rollups)%n", grossFare);
+        System.out.printf("  timeouts: %,d no-shows cancelled by timer (₹%.2f fees), %,d stuck trips closed by timer%n",
+                noShows, noShowFees, tripTimeouts);
+        System.out.printf("  promo SIM10: %,d rides booked with it, %,d uses left after refunds%n", promoRides, promo.getUsesLeft());
+        System.out.println("  requestRide       " + percentiles(requestNs, requestSamples));
+        System.out.println("  complete/cancel   " + percentiles(closeNs, closeSamples));
+        System.out.printf("  heap retained %.1f MB, outcome digest %016x%n", heapBytes / 1e6, digest);
+    }
+}
+
+/* =========================
+   Benchmarks (java Main bench [name] [key=value ...])
+   ========================= */
+
+class Benchmarks {
+    interface Bench { void run(Map<String, String> params); }
+
+    static final Map<String, Bench> ALL = new LinkedHashMap<>();
+    static {
+        ALL.put("matching", Benchmarks::matching);
+        ALL.put("bookings", Benchmarks::bookingLookups);
+        ALL.put("stress", Benchmarks::concurrentRides);
+        ALL.put("dispatch", Benchmarks::batchDispatch);
+        ALL.put("hotpaths", Benchmarks::hotPaths);
+        ALL.put("wal", Benchmarks::writeAheadLog);
+        ALL.put("archive", Benchmarks::coldArchive);
+        ALL.put("city", CitySimulation::run);
+        ALL.put("surge", Benchmarks::surgeCounters);
+        ALL.put("promo", Benchmarks::promoRedemption);
+        ALL.put("quotes", Benchmarks::fareQuotes);
+        ALL.put("metrics", Benchmarks::metricsOverhead);
+        ALL.put("timers", Benchmarks::bookingTimers);
+        ALL.put("bus", Benchmarks::eventBus);
+        ALL.put("reputation", Benchmarks::reputationIndex);
+        ALL.put("rollups", Benchmarks::operationalRollups);
+        ALL.put("settlement", Benchmarks::settlement);
+        ALL.put("roads", Benchmarks::roads);
+        ALL.put("locations", Benchmarks::locations);
+        ALL.put("waiting", Benchmarks::waitQueue);
+        ALL.put("fleet", Benchmarks::fleetStore);
+        ALL.put("shards", Benchmarks::shardedDispatch);
+        ALL.put("auth", Benchmarks::auth);
+        ALL.put("export", Benchmarks::export);
+    }
+
+    static void run(String[] args) {
+        String name = "all";
+        Map<String, String> params = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) params.put(a.substring(0, eq), a.substring(eq + 1));
+            else name = a;
+        }
+        for (Map.Entry<String, Bench> e : ALL.entrySet()) {
+            if (!name.equals("all") && !name.equals(e.getKey())) continue;
+            System.out.println("== " + e.getKey() + " ==");
+            e.getValue().run(params);
+        }
+    }
+
+    static long[] longs(Map<String, String> params, String key, long... defaults) {
+        String v = params.get(key);
+        if (v == null) return defaults;
+        return Arrays.stream(v.split(",")).mapToLong(Long::parseLong).toArray();
+    }
+
+    static long param(Map<String, String> params, String key, long def) {
+        return longs(params, key, def)[0];
+    }
+
+    /*
+     Minimal JMH-style measurement: a few warmup rounds, then timed rounds reporting the best
+     ns/op and the bytes allocated per op by the calling thread (HotSpot's ThreadMXBean).
+     body runs 'ops' operations and returns a value that is folded into a sink so the JIT
+     cannot drop the work.
+    */
+    static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+    static long sink;
+
+    static void measure(String label, int ops, java.util.function.IntToLongFunction body) {
+        for (int w = 0; w < 5; w++) sink += body.applyAsLong(ops);
+        double bestNs = Double.MAX_VALUE, bytes = 0;
+        for (int round = 0; round < 5; round++) {
+            long tid = Thread.currentThread().getId();
+            long a0 = THREADS.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            sink += body.applyAsLong(ops);
+            long t1 = System.nanoTime();
+            bytes = (THREADS.getThreadAllocatedBytes(tid) - a0) / (double) ops;
+            bestNs = Math.min(bestNs, (t1 - t0) / (double) ops);
+        }
+        System.out.printf("  %-44s %10.1f ns/op %10.1f B/op%n", label, bestNs, bytes);
+    }
+
+    // linear scan over List<Driver> vs DriverGridIndex, same pickups, same answer expected
+    static void matching(Map<String, String> params) {
+        int queries = (int) param(params, "queries", 20_000);
+        for (long n : longs(params, "drivers", 100_000, 1_000_000)) {
+            Random r = new Random(42);
+            List<Driver> fleet = new ArrayList<>((int) n);
+            DriverGridIndex index = new DriverGridIndex();
+            CarType[] types = CarType.values();
+            for (int i = 0; i < n; i++) {
+                Driver d = new Driver(i + 1, "D" + i, new Car(i + 1, "M", "P" + i, types[r.nextInt(types.length)]));
+                GeoPoint p = CityMap.randomPoint(r);
+                d.setPosition(p.lat, p.lon);
+                if (r.nextInt(4) == 0) d.setAvailable(false); // a quarter of the fleet is busy
+                else index.add(d);
+                fleet.add(d);
+            }
+            GeoPoint[] pickups = new GeoPoint[queries];
+            for (int i = 0; i < queries; i++) pickups[i] = CityMap.randomPoint(r);
+
+            int linearQueries = (int) Math.max(50, Math.min(queries, 2_000_000_000L / n / 50));
+            long sink = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < linearQueries; i++) sink += linearNearest(fleet, pickups[i], types[i % types.length]).getId();
+            double linearUs = (System.nanoTime() - t0) / 1e3 / linearQueries;
+
+            t0 = System.nanoTime();
+            for (int i = 0; i < queries; i++) sink += index.nearest(pickups[i].lat, pickups[i].lon, types[i % types.length], 1, Double.MAX_VALUE).get(0).getId();
+            double gridUs = (System.nanoTime() - t0) / 1e3 / queries;
+
+            int mismatches = 0;
+            for (int i = 0; i < Math.min(linearQueries, 200); i++) {
+                CarType t = types[i % types.length];
+                Driver a = linearNearest(fleet, pickups[i], t), b = index.nearest(pickups[i].lat, pickups[i].lon, t, 1, Double.MAX_VALUE).get(0);
+                if (a.distanceKm(pickups[i].lat, pickups[i].lon) != b.distanceKm(pickups[i].lat, pickups[i].lon)) mismatches++;
+            }
+            System.out.printf("drivers=%,d  linear=%.1f us/match  grid=%.2f us/match  speedup=%.0fx  mismatches=%d  (sink %d)%n",
+                    n, linearUs, gridUs, linearUs / gridUs, mismatches, sink % 10);
+        }
+    }
+
+    // rider-facing lookups against a growing completed history; latency should stay flat
+    static void bookingLookups(Map<String, String> params) {
+        int riders = (int) param(params, "riders", 10_000);
+        int queries = (int) param(params, "queries", 200_000);
+        Driver driver = new Driver(1, "D", new Car(1, "M", "P", CarType.MINI));
+        for (long n : longs(params, "history", 10_000, 1_000_000, 3_000_000)) {
+            BookingStore store = new BookingStore();
+            for (int i = 1; i <= n; i++) {
+                Booking b = new Booking(i, "rider" + (i % riders), "A", "B", driver, 5, CarType.MINI);
+                store.add(b);
+                if (i <= n - riders) store.transition(b, BookingStatus.ACTIVE, i % 10 == 0 ? BookingStatus.CANCELLED : BookingStatus.COMPLETED, () -> {});
+            }
+            Random r = new Random(7);
+            long sink = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < queries; i++) sink += store.get(1 + r.nextInt((int) n)).getId();
+            double byIdNs = (System.nanoTime() - t0) / (double) queries;
+            t0 = System.nanoTime();
+            for (int i = 0; i < queries; i++) sink += store.activeForRider("rider" + r.nextInt(riders)).size();
+            double activeNs = (System.nanoTime() - t0) / (double) queries;
+            t0 = System.nanoTime();
+            for (int i = 0; i < queries; i++) sink += store.withStatus(BookingStatus.ACTIVE).size();
+            double allActiveNs = (System.nanoTime() - t0) / (double) queries;
+            System.out.printf("history=%,d  findById=%.0f ns  activeForRider=%.0f ns  activeCount=%.0f ns  (sink %d)%n",
+                    n, byIdNs, activeNs, allActiveNs, sink % 10);
+        }
+    }
+
+    // many threads requesting/finishing rides against one RideService while an admin thread
+    // churns the fleet; ConcurrentRidesTest checks that no driver is ever double-booked
+    static void concurrentRides(Map<String, String> params) {
+        int fleet = (int) param(params, "drivers", 2_000);
+        int opsPerThread = (int) param(params, "ops", 100_000);
+        for (long threads : longs(params, "threads", 1, 2, 4, 8)) {
+            RideService rs = new RideService();
+            Random seed = new Random(11);
+            for (int i = 0; i < fleet; i++) {
+                GeoPoint p = CityMap.randomPoint(seed);
+                rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], p.lat, p.lon);
+            }
+            FareEstimate est = new FareEstimate();
+            ConcurrentHashMap<Integer, Integer> holder = new ConcurrentHashMap<>();
+            AtomicLong violations = new AtomicLong(), matched = new AtomicLong(), misses = new AtomicLong();
+            int keepActive = Math.max(1, fleet * 9 / 10 / (int) threads); // keep the fleet ~90% busy
+            AtomicBoolean done = new AtomicBoolean();
+            Thread admin = new Thread(() -> {
+                Random r = new Random(3);
+                while (!done.get()) {
+                    GeoPoint p = CityMap.randomPoint(r);
+                    Driver d = rs.registerDriver("X", "M", "X", CarType.MINI, p.lat, p.lon);
+                    rs.removeDriver(d.getId());
+                }
+            });
+            admin.start();
+            Thread[] workers = new Thread[(int) threads];
+            long t0 = System.nanoTime();
+            for (int w = 0; w < threads; w++) {
+                int wid = w;
+                workers[w] = new Thread(() -> {
+                    Random r = new Random(100 + wid);
+                    ArrayDeque<Booking> mine = new ArrayDeque<>();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        GeoPoint p = CityMap.randomPoint(r);
+                        Booking b = rs.requestRide("r" + wid, "A", p.lat, p.lon, "B", 3, CarType.values()[r.nextInt(3)], est);
+                        if (b == null) misses.incrementAndGet();
+                        else {
+                            matched.incrementAndGet();
+                            if (holder.putIfAbsent(b.getDriver().getId(), b.getId()) != null) violations.incrementAndGet();
+                            mine.add(b);
+                        }
+                        if (mine.size() > keepActive || (b == null && !mine.isEmpty())) {
+                            Booking done1 = mine.poll();
+                            holder.remove(done1.getDriver().getId());
+                            if (r.nextInt(4) == 0) rs.cancelBooking(done1.getId()); else rs.completeBooking(done1.getId());
+                        }
+                    }
+                });
+                workers[w].start();
+            }
+            for (Thread t : workers) {
+                try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            double secs = (System.nanoTime() - t0) / 1e9;
+            done.set(true);
+            try { admin.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            System.out.printf("threads=%d  requests/s=%,.0f  matched=%,d  noDriver=%,d  doubleBooked=%d%n",
+                    threads, threads * opsPerThread / secs, matched.get(), misses.get(), violations.get());
+        }
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors());
+    }
+
+    // a burst of simultaneous requests on a tight fleet: greedy one-by-one vs one batched assignment
+    static void batchDispatch(Map<String, String> params) {
+        int fleet = (int) param(params, "drivers", 5_000);
+        for (long burst : longs(params, "burst", 50, 200, 500)) {
+            double[] avgKm = new double[2];
+            String stats = "";
+            for (int mode = 0; mode < 2; mode++) {
+                RideService rs = new RideService();
+                Random r = new Random(5);
+                for (int i = 0; i < fleet; i++) {
+                    GeoPoint p = CityMap.randomPoint(r);
+                    rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], p.lat, p.lon);
+                }
+                // leave roughly 2x the burst in supply so choices actually conflict
+                List<Driver> all = rs.getDrivers();
+                for (int i = (int) (burst * 2); i < all.size(); i++) rs.requestRideWith(all.get(i), "busy", "A", 0, 0, "B", 1, CarType.MINI, new FareEstimate());
+                List<Booking> got = new ArrayList<>();
+                long t0 = System.nanoTime();
+                if (mode == 0) {
+                    for (int i = 0; i < burst; i++) {
+                        GeoPoint p = CityMap.randomPoint(r);
+                        got.add(rs.requestRide("r" + i, "A", p.lat, p.lon, "B", 3, CarType.values()[r.nextInt(3)], new FareEstimate()));
+                    }
+                } else {
+                    BatchDispatcher bd = new BatchDispatcher(rs, 60_000); // flushed by hand below
+                    List<CompletableFuture<Booking>> fs = new ArrayList<>();
+                    for (int i = 0; i < burst; i++) {
+                        GeoPoint p = CityMap.randomPoint(r);
+                        fs.add(bd.submit("r" + i, "A", p.lat, p.lon, "B", 3, CarType.values()[r.nextInt(3)], new FareEstimate()));
+                    }
+                    bd.close();
+                    for (CompletableFuture<Booking> f : fs) got.add(f.join());
+                    stats = bd.stats();
+                }
+                double ms = (System.nanoTime() - t0) / 1e6;
+                double km = 0;
+                int n = 0;
+                for (Booking b : got) if (b != null) { km += b.getPickupKm(); n++; }
+                avgKm[mode] = km / Math.max(1, n);
+                System.out.printf("burst=%d  %-7s matched=%d  avgPickup=%.3f km  wall=%.1f ms%n", burst, mode == 0 ? "greedy" : "batched", n, avgKm[mode], ms);
+            }
+            System.out.printf("  improvement=%.1f%%  %s%n", 100 * (1 - avgKm[1] / avgKm[0]), stats);
+        }
+    }
+
+    // the request-path operations, parameterized by fleet size and booking-history size
+    static void hotPaths(Map<String, String> params) {
+        int ops = (int) param(params, "ops", 20_000);
+        for (long fleet : longs(params, "drivers", 1_000, 100_000)) {
+            for (long history : longs(params, "history", 10_000, 1_000_000)) {
+                System.out.printf("drivers=%,d history=%,d%n", fleet, history);
+                RideService rs = new RideService();
+                Random r = new Random(9);
+                for (int i = 0; i < fleet; i++) {
+                    GeoPoint p = CityMap.randomPoint(r);
+                    rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], p.lat, p.lon);
+                }
+                FareEstimate est = new FareEstimate();
+                int riders = 10_000;
+                for (int i = 0; i < history; i++) {
+                    GeoPoint p = CityMap.randomPoint(r);
+                    Booking b = rs.requestRide("rider" + (i % riders), "A", p.lat, p.lon, "B", 4, CarType.MINI, est);
+                    rs.completeBooking(b.getId());
+                }
+                PromoService promos = new PromoService();
+                promos.addPromo(new Promo("BENCH", 10.0, Integer.MAX_VALUE));
+                GeoPoint[] pts = new GeoPoint[1024];
+                for (int i = 0; i < pts.length; i++) pts[i] = CityMap.randomPoint(r);
+                Booking sample = rs.findBookingById(1);
+
+                measure("FareCalculator.estimateFare", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += FareCalculator.estimateFare(1 + (i & 15), CarType.SEDAN, 1.0, promos, null, null).etaMinutes;
+                    return x;
+                });
+                measure("FareCalculator.estimateFare (promo)", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += FareCalculator.estimateFare(1 + (i & 15), CarType.SEDAN, 1.0, promos, "BENCH", null).etaMinutes;
+                    return x;
+                });
+                measure("RideService.requestRide + completeBooking", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) {
+                        GeoPoint p = pts[i & 1023];
+                        Booking b = rs.requestRide("bench", "A", p.lat, p.lon, "B", 4, CarType.values()[i % 3], est);
+                        rs.completeBooking(b.getId());
+                        x += b.getId();
+                    }
+                    return x;
+                });
+                int maxId = rs.getAllBookings().size();
+                measure("RideService.findBookingById", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += rs.findBookingById(1 + (int) ((i * 2654435761L) % maxId)).getId();
+                    return x;
+                });
+                String[] riderNames = new String[riders];
+                for (int i = 0; i < riders; i++) riderNames[i] = "rider" + i;
+                measure("RideService.getBookingsForRider", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += rs.getBookingsForRider(riderNames[i % riders]).size();
+                    return x;
+                });
+                measure("PromoService.discountPercent", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += (long) promos.discountPercent("BENCH");
+                    return x;
+                });
+                measure("Booking.summary", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += sample.summary().length();
+                    return x;
+                });
+                measure("Booking.detailed", ops, n -> {
+                    long x = 0;
+                    for (int i = 0; i < n; i++) x += sample.detailed().length();
+                    return x;
+                });
+            }
+        }
+    }
+
+    // sustained journaled booking throughput (group commit, every op waits for fsync), then
+    // restart time from log replay alone and from a snapshot
+    static void writeAheadLog(Map<String, String> params) {
+        int total = (int) param(params, "bookings", 1_000_000);
+        int threads = (int) param(params, "threads", 8);
+        int fleet = 10_000;
+        try {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("crs-wal");
+            try {
+                writeAheadLog(dir, total, threads, fleet);
+            } finally {
+                deleteDir(dir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeAheadLog(java.nio.file.Path dir, int total, int threads, int fleet) throws IOException, InterruptedException {
+        RideService rs = new RideService();
+        Persistence p = Persistence.open(dir, rs, new AuthService(), new PromoService(), true);
+        Random seed = new Random(1);
+        for (int i = 0; i < fleet; i++) {
+            GeoPoint g = CityMap.randomPoint(seed);
+            rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], g.lat, g.lon);
+        }
+        FareEstimate est = new FareEstimate();
+        est.finalFare = 120;
+        Thread[] ws = new Thread[threads];
+        long t0 = System.nanoTime();
+        for (int w = 0; w < threads; w++) {
+            int wid = w;
+            ws[w] = new Thread(() -> {
+                Random r = new Random(wid);
+                for (int i = wid; i < total; i += threads) {
+                    GeoPoint g = CityMap.randomPoint(r);
+                    Booking b = rs.requestRide("rider" + (i % 50_000), "Pickup", g.lat, g.lon, "Drop", 5, CarType.MINI, est);
+                    if (i % 10 == 0) rs.cancelBooking(b.getId()); else rs.completeBooking(b.getId());
+                }
+            });
+            ws[w].start();
+        }
+        for (Thread t : ws) t.join();
+        double secs = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("bookings=%,d threads=%d  %,.0f bookings/s (%,.0f records/s)  %s%n",
+                total, threads, total / secs, 2 * total / secs, p.stats());
+
+        // "crash": abandon the live instance and recover from the log alone
+        long t1 = System.nanoTime();
+        RideService rs2 = new RideService();
+        Persistence p2 = Persistence.open(dir, rs2, new AuthService(), new PromoService(), true);
+        System.out.printf("restart from log: %.2f s, %,d records, bookings=%,d%n",
+                (System.nanoTime() - t1) / 1e9, p2.getRecoveredRecords(), rs2.getAllBookings().size());
+        long t2 = System.nanoTime();
+        p2.snapshot();
+        System.out.printf("snapshot written in %.2f s (%,d bytes)%n", (System.nanoTime() - t2) / 1e9, dirBytes(dir));
+        long t3 = System.nanoTime();
+        RideService rs3 = new RideService();
+        Persistence.open(dir, rs3, new AuthService(), new PromoService(), true);
+        System.out.printf("restart from snapshot: %.2f s, bookings=%,d%n", (System.nanoTime() - t3) / 1e9, rs3.getAllBookings().size());
+        if (rs3.getAllBookings().size() != total) throw new IllegalStateException("lost bookings on restart");
+    }
+
+    // heap held by closed bookings before/after moving them to the archive, plus read paths over it
+    static void coldArchive(Map<String, String> params) {
+        int total = (int) param(params, "bookings", 1_000_000);
+        int riders = 50_000;
+        try {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("crs-arc");
+            try {
+                coldArchive(dir, total, riders);
+            } finally {
+                deleteDir(dir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void coldArchive(java.nio.file.Path dir, int total, int riders) throws IOException {
+        RideService rs = new RideService();
+        BookingArchive arc = new BookingArchive(dir);
+        rs.setArchive(arc);
+        Random r = new Random(2);
+        for (int i = 0; i < 10_000; i++) {
+            GeoPoint g = CityMap.randomPoint(r);
+            rs.registerDriver("Driver " + i, "Model " + (i % 40), "TN" + i, CarType.values()[i % 3], g.lat, g.lon);
+        }
+        FareEstimate est = new FareEstimate();
+        est.finalFare = 150;
+        for (int i = 0; i < total; i++) {
+            GeoPoint g = CityMap.randomPoint(r);
+            Booking b = rs.requestRide("rider" + (i % riders), "Area " + (i % 500), g.lat, g.lon, "Area " + (i % 377), 5, CarType.MINI, est);
+            if (i % 10 == 0) rs.cancelBooking(b.getId()); else rs.completeBooking(b.getId());
+        }
+        String before = rs.findBookingById(total / 2).detailed();
+        long heapBefore = usedHeap();
+        long t0 = System.nanoTime();
+        int moved = rs.archiveClosedBookings(java.time.Duration.ZERO);
+        double archiveSecs = (System.nanoTime() - t0) / 1e9;
+        long heapAfter = usedHeap();
+        System.out.printf("bookings=%,d  archived %,d in %.2f s  heap %,d MB -> %,d MB  (%s)%n",
+                total, moved, archiveSecs, heapBefore >> 20, heapAfter >> 20, arc.stats());
+        if (!before.equals(rs.findBookingById(total / 2).detailed())) throw new IllegalStateException("archived booking differs");
+
+        t0 = System.nanoTime();
+        long rows = 0;
+        for (int off = 0; ; off += 1000) {
+            List<Booking> page = rs.getBookingsPage(off, 1000);
+            rows += page.size();
+            if (page.size() < 1000) break;
+        }
+        System.out.printf("paged full history: %,.0f rows/s%n", rows / ((System.nanoTime() - t0) / 1e9));
+        int q = 20_000;
+        t0 = System.nanoTime();
+        for (int i = 0; i < q; i++) rows += rs.getBookingsForRider("rider" + (i * 7919 % riders)).size();
+        double coldUs = (System.nanoTime() - t0) / 1e3 / q;
+        t0 = System.nanoTime();
+        for (int i = 0; i < q; i++) rows += rs.getBookingsForRider("rider" + (i % 100)).size();
+        double warmUs = (System.nanoTime() - t0) / 1e3 / q;
+        System.out.printf("rider history: uncached %.1f us, cached %.1f us  (%s)%n", coldUs, warmUs, arc.stats());
+        arc.close();
+        t0 = System.nanoTime();
+        BookingArchive reopened = new BookingArchive(dir);
+        System.out.printf("reopen + index rebuild: %.2f s, %,d records%n", (System.nanoTime() - t0) / 1e9, reopened.size());
+        reopened.close();
+    }
+
+    /*
+     Surge counter updates under concurrent load. Half of all pickups fall in one hotspot zone,
+     so the plain AtomicLongArray baseline has a genuinely contended slot; the LongAdder
+     buckets should stay flat as threads are added.
+    */
+    static void surgeCounters(Map<String, String> params) {
+        int opsPerThread = (int) param(params, "ops", 2_000_000);
+        Random r = new Random(4);
+        GeoPoint hot = CityMap.randomPoint(r);
+        GeoPoint[] points = new GeoPoint[4096];
+        for (int i = 0; i < points.length; i++) points[i] = (i & 1) == 0 ? hot : CityMap.randomPoint(r);
+        for (long threads : longs(params, "threads", 1, 4, 16)) {
+            SurgeEngine surge = new SurgeEngine();
+            AtomicLongArray plain = new AtomicLongArray(SurgeEngine.ZONES);
+            System.out.println("threads=" + threads);
+            concurrently("AtomicLongArray.incrementAndGet (baseline)", (int) threads, opsPerThread, (w, i) -> {
+                GeoPoint p = points[(i + w * 7) & 4095];
+                plain.incrementAndGet(SurgeEngine.zoneOf(p.lat, p.lon));
+            });
+            concurrently("SurgeEngine.recordRequest", (int) threads, opsPerThread, (w, i) -> {
+                GeoPoint p = points[(i + w * 7) & 4095];
+                surge.recordRequest(p.lat, p.lon);
+            });
+            concurrently("driverAvailable + driverUnavailable", (int) threads, opsPerThread, (w, i) -> {
+                GeoPoint p = points[(i + w * 7) & 4095];
+                surge.driverAvailable(p.lat, p.lon);
+                surge.driverUnavailable(p.lat, p.lon);
+            });
+            concurrently("recordRequest + multiplier (one quote)", (int) threads, opsPerThread, (w, i) -> {
+                GeoPoint p = points[(i + w * 7) & 4095];
+                surge.recordRequest(p.lat, p.lon);
+                sink += (long) surge.multiplier(p.lat, p.lon);
+            });
+        }
+        SurgeEngine surge = new SurgeEngine();
+        for (GeoPoint p : points) { surge.recordRequest(p.lat, p.lon); surge.driverAvailable(p.lat, p.lon); }
+        measure("SurgeEngine.refresh (" + SurgeEngine.ZONES + " zones)", 200, n -> {
+            for (int i = 0; i < n; i++) surge.refresh(i * SurgeEngine.REFRESH_MS);
+            return n;
+        });
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     Flash campaign: every thread redeems the same hot code (reserve + commit, the booking path)
+     from a large rider population. Striped Promo quotas vs the same limits behind one global
+     lock. Quota is half the attempts, so the run also checks the limit is never overshot.
+    */
+    static void promoRedemption(Map<String, String> params) {
+        int opsPerThread = (int) param(params, "ops", 500_000);
+        int riders = (int) param(params, "riders", 100_000);
+        for (int warm = 0; warm < 3; warm++) {
+            PromoService ps = new PromoService();
+            ps.addPromo(new Promo("W", 1.0, 100_000, 3));
+            LockedPromo lp = new LockedPromo(100_000, 3);
+            for (int i = 0; i < 200_000; i++) {
+                PromoService.Reservation r = ps.reserve("W", "r" + (i % riders));
+                if (r != null) ps.commit(r);
+                lp.redeem("r" + (i % riders));
+            }
+        }
+        for (long perRider : longs(params, "perRider", 0, 3)) {
+            for (long threads : longs(params, "threads", 1, 4, 16)) {
+                int quota = (int) (threads * opsPerThread / 2);
+                System.out.println("threads=" + threads + " perRider=" + perRider + " quota=" + quota);
+                PromoService striped = new PromoService();
+                striped.addPromo(new Promo("FLASH", 50.0, quota, (int) perRider));
+                AtomicLong ok1 = new AtomicLong();
+                concurrently("striped reserve + commit", (int) threads, opsPerThread, (w, i) -> {
+                    PromoService.Reservation r = striped.reserve("FLASH", "r" + ((i * 31 + w) % riders));
+                    if (r != null) { striped.commit(r); ok1.incrementAndGet(); }
+                });
+                LockedPromo locked = new LockedPromo(quota, (int) perRider);
+                AtomicLong ok2 = new AtomicLong();
+                concurrently("single global lock (baseline)", (int) threads, opsPerThread, (w, i) -> {
+                    if (locked.redeem("r" + ((i * 31 + w) % riders))) ok2.incrementAndGet();
+                });
+                System.out.printf("  redeemed: striped %,d, locked %,d, left %d%n", ok1.get(), ok2.get(), striped.find("FLASH").getUsesLeft());
+                if (ok1.get() > quota || striped.find("FLASH").getUsesLeft() != quota - ok1.get())
+                    throw new IllegalStateException("promo quota overshot");
+            }
+        }
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors());
+    }
+
+    // single quotes vs the batch API; B/op for the batch rows is per quoted route
+    static void fareQuotes(Map<String, String> params) {
+        int ops = (int) param(params, "ops", 1 << 20);
+        PromoService promos = new PromoService();
+        promos.addPromo(new Promo("BENCH", 10.0, Integer.MAX_VALUE));
+        SplittableRandom rnd = new SplittableRandom(12);
+        CarType[] all = CarType.values();
+        measure("estimateFare", ops, n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                FareEstimate e = FareCalculator.estimateFare(1 + (i & 31), all[i % 3], 1.2, promos, null, null, rnd);
+                x += e.etaMinutes + (long) e.finalFare + (long) e.estimatedFuelLiters;
+            }
+            return x;
+        });
+        measure("estimateFare (promo)", ops, n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                FareEstimate e = FareCalculator.estimateFare(1 + (i & 31), all[i % 3], 1.2, promos, "BENCH", null, rnd);
+                x += e.etaMinutes + (long) e.finalFare + (long) e.estimatedFuelLiters;
+            }
+            return x;
+        });
+        for (long batch : longs(params, "batch", 16, 256, 4096)) {
+            int b = (int) batch;
+            int[] km = new int[b];
+            CarType[] types = new CarType[b];
+            double[] surge = new double[b], fare = new double[b], fuel = new double[b];
+            int[] eta = new int[b];
+            // a price matrix: every route in each car type, surge by pickup zone
+            for (int i = 0; i < b; i++) { km[i] = 1 + (i / 3) % 40; types[i] = all[i % 3]; surge[i] = 1.0 + (i % 7) * 0.05; }
+            int rounds = Math.max(1, ops / b);
+            measure("quote, batch of " + b + " (per route)", rounds * b, n -> {
+                long x = 0;
+                for (int done = 0; done < n; done += b) {
+                    FareCalculator.quote(km, types, surge, promos.discountPercent("BENCH"), rnd, fare, eta, fuel);
+                    x += eta[done % b] + (long) fare[done % b] + (long) fuel[done % b];
+                }
+                return x;
+            });
+        }
+    }
+
+    // cost of recording, and of the instrumented hot paths with recording on vs off
+    static void metricsOverhead(Map<String, String> params) {
+        int ops = (int) param(params, "ops", 1 << 20);
+        Metrics.Counter counter = Metrics.counter("bench_counter_total", "benchmark only");
+        Metrics.Histogram hist = Metrics.histogram("bench_seconds", "benchmark only");
+        measure("Counter.inc", ops, n -> { for (int i = 0; i < n; i++) counter.inc(); return counter.get(); });
+        measure("Histogram.record", ops, n -> { for (int i = 0; i < n; i++) hist.record(100 + (i & 4095)); return hist.count(); });
+        measure("Metrics.start + recordSince (2x nanoTime)", ops, n -> {
+            for (int i = 0; i < n; i++) hist.recordSince(Metrics.start());
+            return hist.count();
+        });
+        measure("Metrics.startSampled + recordSince", ops, n -> {
+            for (int i = 0; i < n; i++) hist.recordSince(Metrics.startSampled());
+            return hist.count();
+        });
+        RideService rs = new RideService();
+        Random r = new Random(13);
+        for (int i = 0; i < 2_000; i++) {
+            GeoPoint p = CityMap.randomPoint(r);
+            rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], p.lat, p.lon);
+        }
+        GeoPoint[] pts = new GeoPoint[1024];
+        for (int i = 0; i < pts.length; i++) pts[i] = CityMap.randomPoint(r);
+        PromoService promos = new PromoService();
+        SplittableRandom rnd = new SplittableRandom(13);
+        FareEstimate est = new FareEstimate();
+        for (boolean on : new boolean[] {false, true}) {
+            Metrics.enabled = on;
+            String tag = on ? " [metrics on]" : " [metrics off]";
+            measure("estimateFare" + tag, ops, n -> {
+                long x = 0;
+                for (int i = 0; i < n; i++) x += (long) FareCalculator.estimateFare(1 + (i & 31), CarType.MINI, 1.0, promos, null, null, rnd).finalFare;
+                return x;
+            });
+            measure("requestRide + completeBooking" + tag, ops / 16, n -> {
+                long x = 0;
+                for (int i = 0; i < n; i++) {
+                    GeoPoint p = pts[i & 1023];
+                    Booking b = rs.requestRide("bench", "A", p.lat, p.lon, "B", 4, CarType.values()[i % 3], est);
+                    rs.completeBooking(b.getId());
+                    x += b.getId();
+                }
+                return x;
+            });
+        }
+        Metrics.enabled = true;
+        for (long threads : longs(params, "threads", 4, 16)) {
+            concurrently("Histogram.record, " + threads + " threads", (int) threads, ops / 4, (w, i) -> hist.record(100 + (i & 4095)));
+        }
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors());
+    }
+
+    static final class LockedPromo {
+        private int left;
+        private final int perRider;
+        private final Map<String, Integer> used = new HashMap<>();
+        LockedPromo(int uses, int perRider) { left = uses; this.perRider = perRider; }
+        synchronized boolean redeem(String rider) {
+            if (left == 0) return false;
+            if (perRider > 0 && used.merge(rider, 1, Integer::sum) > perRider) { used.merge(rider, -1, Integer::sum); return false; }
+            left--;
+            return true;
+        }
+    }
+
+    interface WorkerOp { void run(int worker, int i); }
+
+    // runs ops on each of n threads released together; reports aggregate throughput
+    static void concurrently(String label, int threads, int opsPerThread, WorkerOp op) {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            int wid = w;
+            workers[w] = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                for (int i = 0; i < opsPerThread; i++) op.run(wid, i);
+            });
+            workers[w].start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) {
+            try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        double secs = (System.nanoTime() - t0) / 1e9;
+        long total = (long) threads * opsPerThread;
+        System.out.printf("  %-44s %10.1f ns/op %12s ops/s%n", label, secs * 1e9 / total, String.format("%,.0f", total / secs));
+    }
+
+    /*
+     Booking timers: schedule, cancel and advance costs and bytes per timer with millions
+     pending. When timers fire, and RideService closing abandoned bookings on a SimClock, are
+     checked by BookingTimersTest.
+    */
+    static void bookingTimers(Map<String, String> params) {
+        for (long n : longs(params, "timers", 1_000_000, 4_000_000)) {
+            SplittableRandom rnd = new SplittableRandom(7);
+            long start = 1_700_000_000_000L, horizon = 6 * 3_600_000L;
+            long[] due = new long[(int) n], handles = new long[(int) n];
+            for (int i = 0; i < n; i++) due[i] = start + 1 + rnd.nextLong(horizon);
+            long heap0 = usedHeap();
+            TimingWheel w = new TimingWheel(1000, start, 1024);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) handles[i] = w.schedule(due[i], i, 1);
+            double scheduleNs = (System.nanoTime() - t0) / (double) n;
+            long bytes = usedHeap() - heap0;
+            t0 = System.nanoTime();
+            for (int i = 0; i < n; i += 2) w.cancel(handles[i]);
+            double cancelNs = (System.nanoTime() - t0) / (double) ((n + 1) / 2);
+            System.out.printf("%,d timers: schedule %.1f ns, cancel %.1f ns, %.1f bytes/timer retained (%,d pending after cancelling half)%n",
+                    n, scheduleNs, cancelNs, bytes / (double) n, w.size());
+
+            // steady churn on the half-full wheel: one schedule + one cancel per op
+            long[] ring = new long[4096];
+            measure("  schedule+cancel, " + w.size() + " pending", 100_000, ops -> {
+                for (int i = 0; i < ops; i++) {
+                    int k = i & (ring.length - 1);
+                    w.cancel(ring[k]);
+                    ring[k] = w.schedule(start + 1 + (i * 7919L) % horizon, -1, 2);
+                }
+                return ring[0];
+            });
+            for (long h : ring) w.cancel(h);
+
+            long now = start, firedCount = 0;
+            t0 = System.nanoTime();
+            while (w.size() > 0) {
+                now += 1 + rnd.nextLong(120_000);
+                firedCount += w.advanceTo(now).length;
+            }
+            double advanceMs = (System.nanoTime() - t0) / 1e6;
+            System.out.printf("  advanced %.1f h in random steps: %,d fired in %.1f ms (%.1f ns/timer)%n",
+                    (now - start) / 3.6e6, firedCount, advanceMs, advanceMs * 1e6 / firedCount);
+        }
+    }
+
+    /*
+     Lifecycle event bus. Throughput: one producer publishing to 1..n consumers per wait
+     strategy, against one ArrayBlockingQueue per consumer fed freshly allocated events (the
+     obvious alternative); B/op is what the publishing thread allocates. Latency: paced
+     publishes stamped with nanoTime, publish-to-handle time per wait strategy. Busy-spin
+     consumers only run with more than one core, where they cannot starve the producer.
+    */
+    static void eventBus(Map<String, String> params) {
+        int n = (int) param(params, "events", 2_000_000);
+        List<EventBus.Wait> waits = new ArrayList<>(List.of(EventBus.Wait.values()));
+        if (Runtime.getRuntime().availableProcessors() < 2) waits.remove(EventBus.Wait.BUSY_SPIN);
+        long expected = (long) n * (n - 1) / 2;
+        for (long consumers : longs(params, "consumers", 1, 2)) {
+            for (EventBus.Wait w : waits) for (int round = 0; round < 2; round++) { // first round warms up
+
+                EventBus bus = new EventBus(1 << 14, w, EventBus.Backpressure.BLOCK);
+                long[] sums = new long[(int) consumers];
+                for (int c = 0; c < consumers; c++) {
+                    int ci = c;
+                    bus.subscribe("c" + c, (e, seq, end) -> sums[ci] += e.bookingId);
+                }
+                bus.start();
+                long tid = Thread.currentThread().getId(), a0 = THREADS.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+                for (int i = 0; i < n; i++) bus.publish(EventBus.Type.DRIVER_ASSIGNED, i, i, 7, "r", CarType.MINI, 0, 0, 1.0, 0);
+                bus.close();
+                long ns = System.nanoTime() - t0, bytes = THREADS.getThreadAllocatedBytes(tid) - a0;
+                for (long sum : sums) if (sum != expected) throw new IllegalStateException("consumer lost events");
+                if (round == 1) System.out.printf("  ring %-10s %d consumer(s)  %8.1f ns/event %12s events/s %8.1f B/event%n",
+                        w, consumers, ns / (double) n, String.format("%,.0f", n * 1e9 / ns), bytes / (double) n);
+            }
+            List<ArrayBlockingQueue<EventBus.Event>> queues = new ArrayList<>();
+            List<Thread> takers = new ArrayList<>();
+            long[] sums = new long[(int) consumers];
+            EventBus.Event poison = new EventBus.Event();
+            for (int c = 0; c < consumers; c++) {
+                ArrayBlockingQueue<EventBus.Event> q = new ArrayBlockingQueue<>(1 << 14);
+                int ci = c;
+                Thread t = new Thread(() -> {
+                    try {
+                        for (EventBus.Event e; (e = q.take()) != poison; ) sums[ci] += e.bookingId;
+                    } catch (InterruptedException ignored) { }
+                });
+                t.start();
+                queues.add(q);
+                takers.add(t);
+            }
+            long tid = Thread.currentThread().getId(), a0 = THREADS.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+            try {
+                for (int i = 0; i < n; i++) {
+                    EventBus.Event e = new EventBus.Event();
+                    e.type = EventBus.Type.DRIVER_ASSIGNED; e.at = i; e.bookingId = i; e.driverId = 7; e.rider = "r"; e.carType = CarType.MINI; e.amount = 1.0;
+                    for (ArrayBlockingQueue<EventBus.Event> q : queues) q.put(e);
+                }
+                for (ArrayBlockingQueue<EventBus.Event> q : queues) q.put(poison);
+                for (Thread t : takers) t.join();
+            } catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+            long ns = System.nanoTime() - t0, bytes = THREADS.getThreadAllocatedBytes(tid) - a0;
+            for (long sum : sums) if (sum != expected) throw new IllegalStateException("queue consumer lost events");
+            System.out.printf("  %-15s %d consumer(s)  %8.1f ns/event %12s events/s %8.1f B/event%n",
+                    "ArrayBlockingQ", consumers, ns / (double) n, String.format("%,.0f", n * 1e9 / ns), bytes / (double) n);
+        }
+
+        int paced = (int) param(params, "paced", 20_000);
+        for (EventBus.Wait w : waits) {
+            EventBus bus = new EventBus(1 << 10, w, EventBus.Backpressure.BLOCK);
+            Metrics.Histogram latency = new Metrics.Histogram("bus_latency", "publish to handle");
+            bus.subscribe("latency", (e, seq, end) -> latency.record(System.nanoTime() - e.nanos));
+            bus.start();
+            for (int i = 0; i < paced; i++) {
+                long seq = bus.next();
+                EventBus.Event e = bus.get(seq);
+                e.type = EventBus.Type.RIDE_REQUESTED;
+                e.nanos = System.nanoTime();
+                bus.publish(seq);
+                java.util.concurrent.locks.LockSupport.parkNanos(20_000);
+            }
+            bus.close();
+            long[] counts = latency.snapshot();
+            System.out.printf("  latency %-10s %,d paced events: p50 %.1f us  p99 %.1f us  p99.9 %.1f us  max %.1f us%n", w, latency.count(),
+                    Metrics.Histogram.quantile(counts, 0.5) / 1e3, Metrics.Histogram.quantile(counts, 0.99) / 1e3,
+                    Metrics.Histogram.quantile(counts, 0.999) / 1e3, latency.maxNanos() / 1e3);
+        }
+    }
+
+    /*
+     Reputation index at fleet scale: bytes per ranked driver, rating ingest from one and
+     several threads, and top-10 per type and per zone against the full scan + sort it
+     replaces (whose answer it must match).
+    */
+    static void reputationIndex(Map<String, String> params) {
+        int threads = (int) param(params, "threads", 4);
+        for (long n : longs(params, "drivers", 100_000, 1_000_000)) {
+            Random rnd = new Random(5);
+            Driver[] fleet = new Driver[(int) n];
+            CarType[] types = CarType.values();
+            for (int i = 0; i < n; i++) {
+                fleet[i] = new Driver(i + 1, "D" + i, new Car(i + 1, "M", "P" + i, types[rnd.nextInt(types.length)]));
+                GeoPoint p = CityMap.randomPoint(rnd);
+                fleet[i].setPosition(p.lat, p.lon);
+            }
+            long heap0 = usedHeap();
+            ReputationIndex index = new ReputationIndex();
+            long t0 = System.nanoTime();
+            for (Driver d : fleet) index.add(d);
+            double addNs = (System.nanoTime() - t0) / (double) n;
+            System.out.printf("%,d drivers: add %.0f ns, %.0f bytes/driver in the index%n", n, addNs, (usedHeap() - heap0) / (double) n);
+
+            long[] clock = {1_700_000_000_000L};
+            measure("  rate (1 thread)", 200_000, ops -> {
+                for (int i = 0; i < ops; i++) {
+                    Driver d = fleet[(int) ((i * 2654435761L) % n)];
+                    index.rate(d, 1 + (i * 31 & 3) + (i & 1), clock[0] += 1_000);
+                }
+                return (long) fleet[0].getReputation();
+            });
+            concurrently("rate (" + threads + " threads)", threads, 200_000, (w, i) -> {
+                Driver d = fleet[(int) (((long) i * threads + w) * 40503L % n)];
+                index.rate(d, 1 + (i + w) % 5, 1_800_000_000_000L + i * 1_000L);
+            });
+
+            GeoPoint center = new GeoPoint(CityMap.CENTER_LAT, CityMap.CENTER_LON);
+            int zone = SurgeEngine.zoneOf(center.lat, center.lon);
+            measure("  top-10 SEDAN city-wide", 10_000, ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++) x += index.top(CarType.SEDAN, -1, 10).get(0).driverId();
+                return x;
+            });
+            measure("  top-10 SEDAN in one zone", 10_000, ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++) x += index.top(CarType.SEDAN, zone, 10).size();
+                return x;
+            });
+            java.util.function.IntToLongFunction scan = ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++) {
+                    List<Driver> all = new ArrayList<>();
+                    for (Driver d : fleet) if (d.getCar().getType() == CarType.SEDAN) all.add(d);
+                    all.sort(Comparator.comparingDouble(Driver::getReputation).reversed().thenComparingInt(Driver::getId));
+                    x += all.get(0).getId();
+                }
+                return x;
+            };
+            measure("  top-10 SEDAN by scan + sort", 1, scan);
+            List<Driver> all = new ArrayList<>();
+            for (Driver d : fleet) if (d.getCar().getType() == CarType.SEDAN) all.add(d);
+            all.sort(Comparator.comparingDouble(Driver::getReputation).reversed().thenComparingInt(Driver::getId));
+            List<ReputationIndex.Entry> top = index.top(CarType.SEDAN, -1, 10);
+            for (int i = 0; i < 10; i++) if (top.get(i).driverId() != all.get(i).getId()) throw new IllegalStateException("index disagrees with scan at " + i);
+        }
+    }
+
+    /*
+     Dashboard rollups: cost of accounting one booking transition, and of a 24 h and a 90-day
+     query, against scanning the bookings for the same totals. The rollup query must not
+     grow with the number of bookings; the scan does.
+    */
+    static void operationalRollups(Map<String, String> params) {
+        Driver d = new Driver(1, "D", new Car(1, "M", "P", CarType.SEDAN));
+        CarType[] types = CarType.values();
+        LocalDateTime end = LocalDateTime.of(2026, 4, 1, 0, 0), start = end.minusHours(Rollups.HOURS);
+        long toHour = Rollups.hourOf(end) - 1;
+        for (long n : longs(params, "bookings", 100_000, 1_000_000)) {
+            SplittableRandom rnd = new SplittableRandom(3);
+            List<Booking> history = new ArrayList<>((int) n);
+            Rollups rollups = new Rollups();
+            for (int i = 0; i < n; i++) {
+                LocalDateTime at = start.plusSeconds(rnd.nextLong((Rollups.HOURS - 1) * 3600L)); // closes before the ring wraps
+                Booking b = new Booking(i + 1, "r", "a", "b", d, 5, types[rnd.nextInt(types.length)], BookingStatus.ACTIVE, at);
+                b.setEstimatedFare(50 + rnd.nextInt(500) / 1.0);
+                b.setEstimatedFuelLiters(0.4);
+                rollups.created(b);
+                if (rnd.nextInt(10) == 0) {
+                    b.compareAndSetStatus(BookingStatus.ACTIVE, BookingStatus.CANCELLED);
+                    b.setCancelledAt(at.plusMinutes(3));
+                    b.setCancellationFee(20);
+                    rollups.cancelled(b);
+                } else {
+                    b.compareAndSetStatus(BookingStatus.ACTIVE, BookingStatus.COMPLETED);
+                    b.setCompletedAt(at.plusMinutes(25));
+                    rollups.completed(b);
+                }
+                history.add(b);
+            }
+            System.out.printf("%,d bookings over %d days%n", n, Rollups.HOURS / 24);
+            Rollups scratch = new Rollups();
+            measure("  account created + completed", 100_000, ops -> {
+                for (int i = 0; i < ops; i++) {
+                    Booking b = history.get(i);
+                    scratch.created(b);
+                    if (b.getStatus() == BookingStatus.COMPLETED) scratch.completed(b);
+                }
+                return scratch.query(toHour, toHour, null).created();
+            });
+            for (int hours : new int[] {24, Rollups.HOURS}) {
+                long fromHour = toHour - hours + 1;
+                measure("  rollup query, last " + hours + " h", 1_000, ops -> {
+                    long x = 0;
+                    for (int i = 0; i < ops; i++) x += rollups.query(fromHour, toHour, null).completed();
+                    return x;
+                });
+                LocalDateTime from = Rollups.startOf(fromHour);
+                measure("  scan bookings, last " + hours + " h", 1, ops -> {
+                    long completed = 0;
+                    double gross = 0;
+                    for (int i = 0; i < ops; i++) {
+                        for (Booking b : history) {
+                            if (b.getStatus() == BookingStatus.COMPLETED && !b.getCompletedAt().isBefore(from) && b.getCompletedAt().isBefore(end)) {
+                                completed++;
+                                gross += b.getEstimatedFare();
+                            }
+                        }
+                    }
+                    Rollups.Totals t = rollups.query(fromHour, toHour, null);
+                    if (completed != t.completed() * ops || Math.abs(gross - t.grossFare() * ops) > 0.01 * ops)
+                        throw new IllegalStateException("rollups disagree with the scan");
+                    return completed;
+                });
+            }
+        }
+    }
+
+    /*
+     End-of-day settlement over an archive of closed bookings spread across three days, settling
+     the middle one. The sequential ledger must match totals tallied while generating, and every
+     pool size must write the same settlement file byte for byte. Speedup is relative to a pool
+     of one; it can only show with that many cores (`cores` below).
+    */
+    static void settlement(Map<String, String> params) {
+        int total = (int) param(params, "bookings", 2_000_000);
+        int drivers = (int) param(params, "drivers", 20_000);
+        long[] pools = longs(params, "threads", 1, 2, 4, 8);
+        LocalDateTime day = LocalDateTime.of(2026, 4, 2, 0, 0), start = day.minusDays(1), end = day.plusDays(1);
+        try {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("crs-settle");
+            BookingArchive arc = new BookingArchive(dir);
+            Driver[] ds = new Driver[drivers + 1];
+            for (int i = 1; i <= drivers; i++) ds[i] = new Driver(i, "Driver " + i, new Car(i, "M", "TN" + i, CarType.values()[i % 3]));
+            SplittableRandom rnd = new SplittableRandom(11);
+            long[] expected = new long[Settlement.FIELDS];
+            List<Booking> batch = new ArrayList<>();
+            Booking[] hot = new Booking[Math.min(total, 10_000)];
+            long t0 = System.nanoTime();
+            for (int i = 0; i < total; i++) {
+                LocalDateTime at = start.plusSeconds(rnd.nextLong(3 * 86_400L)); // archive order = closing order
+                Booking b = new Booking(i + 1, "rider" + (i % 50_000), "a", "b", ds[1 + rnd.nextInt(drivers)], 5, CarType.MINI,
+                        BookingStatus.ACTIVE, at.minusMinutes(25));
+                boolean inDay = !at.isBefore(day) && at.isBefore(end);
+                if (rnd.nextInt(10) == 0) {
+                    b.compareAndSetStatus(BookingStatus.ACTIVE, BookingStatus.CANCELLED);
+                    b.setCancelledAt(at);
+                    b.setCancellationFee(rnd.nextInt(3) * 25);
+                    if (inDay) {
+                        expected[Settlement.CANCELLATIONS]++;
+                        expected[Settlement.FEES] += Math.round(b.getCancellationFee() * 100);
+                    }
+                } else {
+                    b.compareAndSetStatus(BookingStatus.ACTIVE, BookingStatus.COMPLETED);
+                    b.setCompletedAt(at);
+                    long fare = 5_000 + rnd.nextInt(50_000), discount = rnd.nextInt(5) == 0 ? fare / 5 : 0; // hundredths
+                    b.setEstimatedFare(fare / 100.0);
+                    b.setPromoDiscount(discount / 100.0);
+                    if (inDay) {
+                        expected[Settlement.TRIPS]++;
+                        expected[Settlement.FARES] += fare;
+                        expected[Settlement.SUBSIDY] += discount;
+                        expected[Settlement.COMMISSION] += ((fare + discount) * Settlement.COMMISSION_PCT + 50) / 100;
+                    }
+                }
+                if (i >= total - hot.length) hot[i - (total - hot.length)] = b; // the newest stay on the heap
+                else batch.add(b);
+                if (batch.size() == 100_000) {
+                    arc.append(batch);
+                    batch.clear();
+                }
+            }
+            arc.append(batch);
+            System.out.printf("bookings=%,d (archived %,d, hot %,d) drivers=%,d  built in %.1f s  cores=%d%n", total, arc.size(), hot.length,
+                    drivers, (System.nanoTime() - t0) / 1e9, Runtime.getRuntime().availableProcessors());
+            Settlement.Rows rows = new Settlement.Rows(arc.mappedChunks(), arc.size(), hot, day, end);
+
+            t0 = System.nanoTime();
+            Settlement.Ledger reference = Settlement.sequential(rows);
+            double seqSecs = (System.nanoTime() - t0) / 1e9;
+            if (!Arrays.equals(reference.totals(), expected)) throw new IllegalStateException("sequential ledger disagrees with the generator");
+            StringWriter refCsv = new StringWriter();
+            reference.write(refCsv);
+            System.out.printf("  %-22s %7.0f ms  %6.1f M rows/s  %,d drivers settled%n", "sequential reference", seqSecs * 1e3,
+                    rows.size() / seqSecs / 1e6, reference.drivers());
+
+            double base = 0;
+            for (long p : pools) {
+                Settlement.run(rows, (int) p); // warm-up
+                t0 = System.nanoTime();
+                Settlement.Ledger l = Settlement.run(rows, (int) p);
+                double secs = (System.nanoTime() - t0) / 1e9;
+                StringWriter csv = new StringWriter();
+                l.write(csv);
+                if (!csv.toString().equals(refCsv.toString())) throw new IllegalStateException("pool of " + p + " settled differently");
+                if (base == 0) base = secs;
+                System.out.printf("  %-22s %7.0f ms  %6.1f M rows/s  speedup x%.2f  (identical)%n", "fork/join, pool " + p,
+                        secs * 1e3, rows.size() / secs / 1e6, base / secs);
+            }
+            arc.close();
+            try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+                for (java.nio.file.Path f : files.toArray(java.nio.file.Path[]::new)) java.nio.file.Files.delete(f);
+            }
+            java.nio.file.Files.delete(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     Road routing on a city-sized synthetic grid (side x side nodes, written to and loaded back
+     from the text format). ALT must return the same travel time as plain Dijkstra on every
+     sampled pair; then per-query cost of each, and of route() with a cold and a warm cache
+     (riders drawn from a few hundred popular places).
+    */
+    static void roads(Map<String, String> params) {
+        int side = (int) param(params, "side", 501);
+        int places = (int) param(params, "places", 100);
+        try {
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("crs-roads", ".txt");
+            long t0 = System.nanoTime();
+            RoadGraph.grid(side, 1, 0, file);
+            double genSecs = (System.nanoTime() - t0) / 1e9;
+            t0 = System.nanoTime();
+            RoadGraph g = RoadGraph.load(file, 100_000);
+            double loadSecs = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("%s  file %,d KB  generated %.1f s, loaded + landmarks %.1f s%n", g.stats(),
+                    java.nio.file.Files.size(file) >> 10, genSecs, loadSecs);
+            java.nio.file.Files.delete(file);
+
+            int n = g.nodeCount();
+            SplittableRandom rnd = new SplittableRandom(9);
+            int[] src = new int[4096], dst = new int[4096];
+            for (int i = 0; i < src.length; i++) { src[i] = rnd.nextInt(n); dst[i] = rnd.nextInt(n); }
+            for (int i = 0; i < 200; i++)
+                if (g.shortest(src[i], dst[i], true) >>> 32 != g.shortest(src[i], dst[i], false) >>> 32)
+                    throw new IllegalStateException("ALT and Dijkstra disagree for " + src[i] + " -> " + dst[i]);
+            measure("Dijkstra, random pair", 10, ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++) x += g.shortest(src[i], dst[i], false);
+                return x;
+            });
+            measure("ALT A*, random pair", 100, ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++) x += g.shortest(src[i], dst[i], true);
+                return x;
+            });
+
+            Random r = new Random(4);
+            GeoPoint[] popular = new GeoPoint[places];
+            for (int i = 0; i < places; i++) popular[i] = CityMap.randomPoint(r);
+            GeoPoint[] anywhere = new GeoPoint[1 << 16];
+            for (int i = 0; i < anywhere.length; i++) anywhere[i] = CityMap.randomPoint(r);
+            int[] next = {0};
+            measure("route(), cold cache (new pairs)", 50, ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++, next[0] += 2) {
+                    RoadGraph.Route route = g.route(anywhere[next[0] & (anywhere.length - 1)], anywhere[(next[0] + 1) & (anywhere.length - 1)]);
+                    x += route == null ? 0 : (long) route.minutes();
+                }
+                return x;
+            });
+            long hits0 = g.cacheHits(), misses0 = g.cacheMisses();
+            measure("route(), popular places", 20_000, ops -> {
+                long x = 0;
+                for (int i = 0; i < ops; i++) {
+                    RoadGraph.Route route = g.route(popular[(int) (places * Math.pow(r.nextDouble(), 2))], popular[r.nextInt(places)]);
+                    x += route == null ? 0 : (long) route.minutes();
+                }
+                return x;
+            });
+            long hits = g.cacheHits() - hits0, misses = g.cacheMisses() - misses0;
+            System.out.printf("  popular places: cache hit rate %.1f%%  (%s)%n", 100.0 * hits / (hits + misses), g.stats());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     GPS ingestion. Gateway threads ping random drivers flat out while a ticker applies the
+     coalesced positions every LOCATION_TICK_MS and a matcher keeps querying candidates, as in
+     the server. Staleness is the age of a driver's latest ping when its tick applied it.
+     Afterwards every driver is pinged to a known spot and must be found there by matching.
+    */
+    static void locations(Map<String, String> params) {
+        int fleet = (int) param(params, "drivers", 100_000);
+        int pings = (int) param(params, "pings", 2_000_000);
+        RideService rs = new RideService();
+        Random r = new Random(8);
+        Driver[] ds = new Driver[fleet];
+        CarType[] types = CarType.values();
+        for (int i = 0; i < fleet; i++) {
+            GeoPoint g = CityMap.randomPoint(r);
+            ds[i] = rs.registerDriver("D" + i, "M", "P" + i, types[i % 3], g.lat, g.lon);
+        }
+        int mask = (1 << 20) - 1;
+        int[] ids = new int[mask + 1];
+        double[] lats = new double[mask + 1], lons = new double[mask + 1];
+        for (int j = 0; j <= mask; j++) {
+            Driver d = ds[r.nextInt(fleet)];
+            ids[j] = d.getId();
+            lats[j] = d.getLat() + (r.nextDouble() - 0.5) * 0.002; // a couple of hundred metres
+            lons[j] = d.getLon() + (r.nextDouble() - 0.5) * 0.002;
+        }
+        for (int round = 0; round < 3; round++) { // warm the apply path before timing it
+            for (int j = 0; j <= mask; j++) rs.ping(ids[j], lats[j], lons[j]);
+            rs.applyLocations();
+        }
+        System.out.printf("drivers=%,d  tick %d ms%n", fleet, RideService.LOCATION_TICK_MS);
+        for (long threads : longs(params, "threads", 1, 2, 4)) {
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong queries = new AtomicLong(), moved = new AtomicLong();
+            Thread ticker = new Thread(() -> {
+                long next = System.nanoTime();
+                while (!stop.get()) {
+                    next += RideService.LOCATION_TICK_MS * 1_000_000;
+                    java.util.concurrent.locks.LockSupport.parkNanos(next - System.nanoTime());
+                    moved.addAndGet(rs.applyLocations());
+                }
+            });
+            Thread matcher = new Thread(() -> {
+                SplittableRandom q = new SplittableRandom(3);
+                while (!stop.get()) {
+                    GeoPoint at = ds[q.nextInt(fleet)].getPosition();
+                    sink += rs.candidates(at.lat, at.lon, types[q.nextInt(3)], RideService.CLAIM_CANDIDATES).size();
+                    queries.incrementAndGet();
+                }
+            });
+            long[] stale0 = Metrics.LOCATION_STALENESS.snapshot();
+            long ticks0 = Metrics.LOCATION_TICK.count();
+            double tickNs0 = Metrics.LOCATION_TICK.meanNanos() * ticks0;
+            ticker.start();
+            matcher.start();
+            long t0 = System.nanoTime();
+            concurrently("ping, " + threads + " gateway thread(s)", (int) threads, pings, (w, i) -> {
+                int j = (w * 0x9E3779B9 + i) & mask;
+                rs.ping(ids[j], lats[j], lons[j]);
+            });
+            double secs = (System.nanoTime() - t0) / 1e9;
+            stop.set(true);
+            try { ticker.join(); matcher.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            moved.addAndGet(rs.applyLocations());
+            long[] stale = Metrics.LOCATION_STALENESS.snapshot();
+            for (int i = 0; i < stale.length; i++) stale[i] -= stale0[i];
+            long ticks = Metrics.LOCATION_TICK.count() - ticks0;
+            double tickMs = (Metrics.LOCATION_TICK.meanNanos() * Metrics.LOCATION_TICK.count() - tickNs0) / Math.max(1, ticks) / 1e6;
+            System.out.printf("    applied %,d moves in %d ticks (%.1f ms each; %.0f%% of pings coalesced away), matcher %,.0f queries/s%n",
+                    moved.get(), ticks, tickMs, 100.0 * (1 - moved.get() / ((double) threads * pings)), queries.get() / secs);
+            System.out.printf("    staleness at apply: p50 %.0f ms  p99 %.0f ms  max %.0f ms%n", Metrics.Histogram.quantile(stale, 0.5) / 1e6,
+                    Metrics.Histogram.quantile(stale, 0.99) / 1e6, Metrics.Histogram.quantile(stale, 1.0) / 1e6);
+        }
+
+        for (Driver d : ds) {
+            GeoPoint g = CityMap.randomPoint(r);
+            rs.ping(d.getId(), g.lat, g.lon);
+        }
+        rs.applyLocations();
+        for (int i = 0; i < fleet; i += Math.max(1, fleet / 2000)) {
+            Driver d = ds[i];
+            GeoPoint at = d.getPosition();
+            if (!rs.candidates(at.lat, at.lon, d.getCar().getType(), 1).contains(d))
+                throw new IllegalStateException("driver " + d.getId() + " not found at its last pinged position");
+        }
+        System.out.println("  every sampled driver is matched at its last pinged position");
+    }
+
+    /*
+     Waiting queue at a peak: more riders than drivers, each booking, riding tripMs and completing,
+     over and over. "retry" riders poll requestRide with a backoff, as before the queue; "queue"
+     riders wait on a ticket and get a driver the moment one completes. Reports rides/s, fleet
+     scans per ride and waits (one rider in ten has priority). Then, on a SimClock, a burst at one
+     spot overflows its queue: FIFO and priority order are checked as drivers free up, rejections
+     carry an estimate from the serve rate, and riders left at their deadline give up.
+    */
+    static void waitQueue(Map<String, String> params) {
+        int fleet = (int) param(params, "drivers", 100);
+        int riders = (int) param(params, "riders", 300);
+        int rides = (int) param(params, "rides", 5);
+        long tripMs = param(params, "tripMs", 100); // 100 drivers then manage 1,000 rides/s, a third of the demand
+        FareEstimate est = new FareEstimate();
+        System.out.printf("drivers=%d  riders=%d  trip %d ms%n", fleet, riders, tripMs);
+        for (String mode : new String[] {"retry", "queue"}) {
+            RideService rs = new RideService();
+            Random seed = new Random(5);
+            for (int i = 0; i < fleet; i++) {
+                GeoPoint p = CityMap.randomPoint(seed);
+                rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], p.lat, p.lon);
+            }
+            boolean queue = mode.equals("queue");
+            Metrics.Histogram waits = new Metrics.Histogram("wait", ""), priorityWaits = new Metrics.Histogram("priority_wait", "");
+            AtomicLong scans = new AtomicLong(), gaveUp = new AtomicLong(), doubleBooked = new AtomicLong();
+            ConcurrentHashMap<Integer, Integer> holder = new ConcurrentHashMap<>();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread ticker = new Thread(() -> { // what Main's booking-timers thread does, a bit faster
+                while (!stop.get()) {
+                    rs.runDueTimers();
+                    java.util.concurrent.locks.LockSupport.parkNanos(50_000_000);
+                }
+            });
+            ticker.start();
+            Thread[] ts = new Thread[riders];
+            long t0 = System.nanoTime();
+            for (int w = 0; w < riders; w++) {
+                int wid = w;
+                ts[w] = new Thread(() -> {
+                    Random r = new Random(wid);
+                    for (int i = 0; i < rides; i++) {
+                        GeoPoint p = CityMap.randomPoint(r);
+                        CarType type = CarType.values()[r.nextInt(3)];
+                        int priority = r.nextInt(10) == 0 ? 1 : 0;
+                        long start = System.nanoTime();
+                        Booking b;
+                        while (true) {
+                            scans.incrementAndGet();
+                            b = rs.requestRide("r" + wid, "A", p.lat, p.lon, "B", 3, type, est);
+                            if (b != null) break;
+                            if (!queue) {
+                                java.util.concurrent.locks.LockSupport.parkNanos(5_000_000);
+                                continue;
+                            }
+                            scans.incrementAndGet(); // waitForDriver looks once more before the rider waits
+                            WaitQueue.Ticket t = rs.waitForDriver("r" + wid, "A", p.lat, p.lon, "B", 3, type, est, priority, 10_000);
+                            b = t.result.join();
+                            if (b != null) break;
+                            gaveUp.incrementAndGet();
+                            if (t.rejected) java.util.concurrent.locks.LockSupport.parkNanos(Math.max(5, t.estimatedWaitMs) * 1_000_000);
+                        }
+                        long waited = System.nanoTime() - start;
+                        waits.record(waited);
+                        if (priority > 0) priorityWaits.record(waited);
+                        if (holder.putIfAbsent(b.getDriver().getId(), b.getId()) != null) doubleBooked.incrementAndGet();
+                        java.util.concurrent.locks.LockSupport.parkNanos(tripMs * 1_000_000);
+                        holder.remove(b.getDriver().getId());
+                        rs.completeBooking(b.getId());
+                    }
+                });
+                ts[w].start();
+            }
+            for (Thread t : ts) {
+                try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            double secs = (System.nanoTime() - t0) / 1e9;
+            stop.set(true);
+            try { ticker.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            long[] all = waits.snapshot(), pri = priorityWaits.snapshot();
+            System.out.printf("  %-5s  rides/s=%,.0f  scans/ride=%.2f  wait p50=%.1f ms p99=%.1f ms max=%.1f ms", mode,
+                    (double) riders * rides / secs, scans.get() / (double) waits.count(), Metrics.Histogram.quantile(all, 0.5) / 1e6,
+                    Metrics.Histogram.quantile(all, 0.99) / 1e6, waits.maxNanos() / 1e6);
+            if (queue) System.out.printf("  (priority p50=%.1f ms p99=%.1f ms)  gave up=%d", Metrics.Histogram.quantile(pri, 0.5) / 1e6,
+                    Metrics.Histogram.quantile(pri, 0.99) / 1e6, gaveUp.get());
+            System.out.printf("  doubleBooked=%d%n", doubleBooked.get());
+            if (doubleBooked.get() > 0) throw new IllegalStateException("driver double-booked");
+            if (rs.waitingCount() != 0) throw new IllegalStateException(rs.waitingCount() + " riders left queued");
+        }
+
+        // burst at one spot on simulated time: 20 busy drivers, then more riders than a queue holds
+        RideService rs = new RideService();
+        SimClock clock = new SimClock(LocalDateTime.of(2024, 1, 1, 18, 0));
+        rs.setClock(clock);
+        GeoPoint spot = CityMap.locate("T Nagar");
+        ArrayDeque<Booking> active = new ArrayDeque<>();
+        for (int i = 0; i < 20; i++) {
+            rs.registerDriver("D" + i, "M", "P" + i, CarType.MINI, spot.lat, spot.lon);
+            active.add(rs.requestRide("busy", "A", spot.lat, spot.lon, "B", 3, CarType.MINI, est));
+        }
+        long gapMs = 5_000, patienceMs = 50 * gapMs; // riders are all picked up, so no no-show or trip timeout fires
+        active.forEach(b -> rs.confirmPickup(b.getId()));
+        List<WaitQueue.Ticket> line = new ArrayList<>();
+        java.util.function.IntFunction<WaitQueue.Ticket> arrive = prio -> {
+            WaitQueue.Ticket t = rs.waitForDriver("w" + line.size(), "A", spot.lat, spot.lon, "B", 3, CarType.MINI, est, prio, patienceMs);
+            line.add(t);
+            return t;
+        };
+        // a driver is freed every gapMs; each completion must serve the next rider in line at once
+        java.util.function.IntConsumer serve = n -> {
+            for (int i = 0; i < n; i++) {
+                clock.set(clock.millis() + gapMs);
+                rs.completeBooking(active.poll().getId());
+                rs.runDueTimers();
+            }
+        };
+        for (int i = 0; i < 20; i++) arrive.apply(0);
+        serve.accept(20);
+        for (int i = 0; i < 20; i++) {
+            Booking b = line.get(i).result.getNow(null);
+            if (b == null || !b.getRiderName().equals("w" + i)) throw new IllegalStateException("rider w" + i + " not served in arrival order");
+            rs.confirmPickup(b.getId());
+            active.add(b);
+        }
+        int cap = RideService.WAIT_CAPACITY;
+        while (rs.waitingCount() < cap - 1) arrive.apply(0);
+        WaitQueue.Ticket vip = arrive.apply(1);
+        int rejected = 0;
+        long estimated = 0;
+        for (int i = 0; i < cap / 2; i++) {
+            WaitQueue.Ticket t = arrive.apply(0);
+            if (t.rejected) { rejected++; estimated = t.estimatedWaitMs; }
+        }
+        serve.accept(1);
+        if (vip.result.getNow(null) == null) throw new IllegalStateException("priority rider was not served first");
+        rs.confirmPickup(vip.result.join().getId());
+        active.add(vip.result.join());
+        int served = 0;
+        while (rs.waitingCount() > 0) {
+            WaitQueue.Ticket head = line.get(20 + served);
+            serve.accept(1);
+            if (rs.waitingCount() == 0 && head.result.getNow(null) == null) break; // the rest gave up
+            if (head.result.getNow(null) == null) throw new IllegalStateException(head.rider + " skipped");
+            rs.confirmPickup(head.result.join().getId());
+            active.add(head.result.join());
+            served++;
+        }
+        long abandoned = line.stream().filter(t -> !t.rejected && t.result.isDone() && t.result.join() == null).count();
+        if (line.stream().anyMatch(t -> !t.result.isDone())) throw new IllegalStateException("a queued rider never heard back");
+        System.out.printf("  burst: queue of %d full, %d turned away with estimated wait %.1f min (one driver freed every %d s);%n",
+                cap, rejected, estimated / 60_000.0, gapMs / 1000);
+        System.out.printf("         priority rider served first, %d more in arrival order, %d gave up after %.1f min%n",
+                served, abandoned, patienceMs / 60_000.0);
+    }
+
+    /*
+     FleetStore against List<Driver>: heap per driver, then the same radius filter (available,
+     requested type, within radiusKm of a random pickup) as a loop over Driver objects and as a
+     bitset walk over the store's columns. A full-city radius shows raw scan throughput. Answers
+     must agree except for drivers within a few metres of the circle (the store keeps floats).
+     Run larger fleets with a bigger heap, e.g. java -Xmx4g Main bench fleet drivers=4000000.
+    */
+    static void fleetStore(Map<String, String> params) {
+        int queries = (int) param(params, "queries", 50);
+        CarType[] types = CarType.values();
+        for (long n : longs(params, "drivers", 1_000_000, 2_000_000)) {
+            Random r = new Random(42);
+            long heap0 = usedHeap();
+            List<Driver> list = new ArrayList<>((int) n);
+            for (int i = 0; i < n; i++) {
+                Driver d = new Driver(i + 1, "D" + i, new Car(i + 1, "M", "P" + i, types[r.nextInt(types.length)]));
+                GeoPoint p = CityMap.randomPoint(r);
+                d.setPosition(p.lat, p.lon);
+                d.setAvailable(r.nextInt(4) != 0); // a quarter of the fleet is busy
+                list.add(d);
+            }
+            long heap1 = usedHeap();
+            FleetStore store = new FleetStore();
+            for (Driver d : list) {
+                store.add(d.getId(), d.getCar().getType(), d.getLat(), d.getLon(), d.getReputation());
+                store.setAvailable(d.getId(), d.isAvailable());
+            }
+            long heap2 = usedHeap();
+            System.out.printf("drivers=%,d  List<Driver> %.0f B/driver  FleetStore %.1f B/driver (%.1f by layout)%n", n,
+                    (heap1 - heap0) / (double) n, (heap2 - heap1) / (double) n, store.bytes() / (double) n);
+            GeoPoint[] pickups = new GeoPoint[queries];
+            for (int i = 0; i < queries; i++) pickups[i] = CityMap.randomPoint(r);
+            for (double radius : new double[] {param(params, "radiusKm", 2), 2 * CityMap.RADIUS_KM}) {
+                long mismatches = 0;
+                for (int i = 0; i < Math.min(queries, 10); i++) {
+                    GeoPoint q = pickups[i];
+                    CarType t = types[i % types.length];
+                    int[] a = listWithin(list, q, t, radius).stream().mapToInt(Driver::getId).toArray(), b = store.within(q.lat, q.lon, t, radius);
+                    int x = 0, y = 0;
+                    while (x < a.length || y < b.length) {
+                        int id = y == b.length || (x < a.length && a[x] < b[y]) ? a[x++] : x == a.length || b[y] < a[x] ? b[y++] : -1;
+                        if (id < 0) { x++; y++; continue; }
+                        if (Math.abs(list.get(id - 1).distanceKm(q.lat, q.lon) - radius) > 0.005) mismatches++;
+                    }
+                }
+                double[] ns = new double[2];
+                int[] found = new int[2];
+                for (int impl = 0; impl < 2; impl++) {
+                    int which = impl;
+                    for (int round = 0; round < 3; round++) { // the last round is timed
+                        long t0 = System.nanoTime(), hits = 0;
+                        for (int i = 0; i < queries; i++) {
+                            GeoPoint q = pickups[i];
+                            CarType t = types[i % types.length];
+                            hits += which == 0 ? listWithin(list, q, t, radius).size() : store.within(q.lat, q.lon, t, radius).length;
+                        }
+                        ns[which] = (System.nanoTime() - t0) / (double) queries;
+                        found[which] = (int) (hits / queries);
+                    }
+                }
+                System.out.printf("  radius %4.1f km (~%,d hits): List<Driver> %8.2f ms/query %6.0f M drivers/s | FleetStore %7.2f ms/query %6.0f M drivers/s | %.1fx  mismatches=%d%n",
+                        radius, found[1], ns[0] / 1e6, n / ns[0] * 1e3, ns[1] / 1e6, n / ns[1] * 1e3, ns[0] / ns[1], mismatches);
+                if (mismatches > 0) throw new IllegalStateException("FleetStore disagrees with the Driver scan");
+            }
+            sink += list.size() + store.size();
+        }
+    }
+
+    static List<Driver> listWithin(List<Driver> fleet, GeoPoint q, CarType type, double radiusKm) {
+        List<Driver> out = new ArrayList<>();
+        for (Driver d : fleet) {
+            if (d.isAvailable() && d.getCar().getType() == type && d.distanceKm(q.lat, q.lon) <= radiusKm) out.add(d);
+        }
+        return out;
+    }
+
+    /*
+     Zone-sharded dispatch. Producer threads request rides at random pickups and complete each
+     one a window of requests later, pipelined through the shard inboxes; the same load against
+     one shared RideService is the baseline. Every booking must show up exactly once, in id order,
+     in the fanned-out history, and every driver must be free again at the end. Then all drivers
+     sit in one strip and riders ask from the next one: every ride must be lent across shards,
+     and once closed the dispatch must refuse writes at once.
+    */
+    static void shardedDispatch(Map<String, String> params) {
+        int fleet = (int) param(params, "drivers", 20_000);
+        int ops = (int) param(params, "ops", 50_000);
+        int producers = (int) param(params, "producers", 4);
+        int window = 64;
+        FareEstimate est = new FareEstimate();
+        CarType[] types = CarType.values();
+        GeoPoint[] spots = new GeoPoint[1 << 16];
+        Random r = new Random(9);
+        for (int i = 0; i < spots.length; i++) spots[i] = CityMap.randomPoint(r);
+
+        RideService one = new RideService();
+        for (int i = 0; i < fleet; i++) one.registerDriver("D" + i, "M", "P" + i, types[i % 3], spots[i].lat, spots[i].lon);
+        double secs = produce(producers, ops, (w, i) -> {
+            GeoPoint p = spots[(w * 7919 + i) & (spots.length - 1)];
+            return CompletableFuture.completedFuture(one.requestRide("r" + w, "A", p.lat, p.lon, "B", 3, types[i % 3], est));
+        }, window, b -> one.completeBooking(b.getId()));
+        System.out.printf("  one RideService          %,10.0f requests/s  (%d producers)%n", producers * ops / secs, producers);
+
+        for (long n : longs(params, "shards", 1, 2, 4, 8)) {
+            try (ShardedDispatch sd = new ShardedDispatch((int) n, null)) {
+                List<CompletableFuture<Driver>> regs = new ArrayList<>();
+                for (int i = 0; i < fleet; i++) regs.add(sd.registerDriver("D" + i, "M", "P" + i, types[i % 3], spots[i].lat, spots[i].lon));
+                regs.forEach(CompletableFuture::join);
+                secs = produce(producers, ops, (w, i) -> {
+                    GeoPoint p = spots[(w * 7919 + i) & (spots.length - 1)];
+                    return sd.requestRide("r" + w, "A", p.lat, p.lon, "B", 3, types[i % 3], est);
+                }, window, b -> sd.completeBooking(b.getId()));
+                sd.runDueTimers().join(); // queued behind every completion
+                List<Booking> all = sd.getAllBookings();
+                for (int i = 1; i < all.size(); i++)
+                    if (all.get(i).getId() <= all.get(i - 1).getId()) throw new IllegalStateException("fan-out history out of order");
+                if (sd.availableDriverCount() != fleet) throw new IllegalStateException((fleet - sd.availableDriverCount()) + " drivers never released");
+                System.out.printf("  %d shard(s)               %,10.0f requests/s  %,d bookings  %s%n", n, producers * ops / secs, all.size(), sd.stats());
+            }
+        }
+
+        ShardedDispatch sd = new ShardedDispatch(4, null);
+        try {
+            Random q = new Random(4);
+            int lent = 200;
+            for (int i = 0; i < lent; i++) {
+                GeoPoint p = pointInShard(sd, 0, q);
+                sd.registerDriver("D" + i, "M", "P" + i, CarType.MINI, p.lat, p.lon).join();
+            }
+            for (int i = 0; i <= lent; i++) {
+                GeoPoint p = pointInShard(sd, 1, q);
+                Booking b = sd.requestRide("rider", "A", p.lat, p.lon, "B", 3, CarType.MINI, est).join();
+                if (i == lent) {
+                    if (b != null) throw new IllegalStateException("booked a driver that should not exist");
+                } else if (b == null || sd.ownerOf(b.getId()) != 0 || sd.ownerOf(b.getDriver().getId()) != 0) {
+                    throw new IllegalStateException("ride " + i + " was not lent by the neighbouring shard");
+                }
+            }
+            if (sd.getBookingsForRider("rider").size() != lent) throw new IllegalStateException("rider history lost bookings");
+            System.out.printf("  borrowing: %d rides in strip 1 served by strip 0's drivers, then none left  %s%n", sd.borrowedCount(), sd.stats());
+        } finally {
+            sd.close();
+        }
+        if (!sd.completeBooking(1).isCompletedExceptionally()) throw new IllegalStateException("a write after close was accepted");
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors());
+    }
+
+    interface RideSubmitter { CompletableFuture<Booking> submit(int worker, int i); }
+
+    // producers keep `window` requests in flight each, completing the oldest booking as a new one goes out
+    static double produce(int producers, int ops, RideSubmitter submit, int window, java.util.function.Consumer<Booking> complete) {
+        Thread[] ts = new Thread[producers];
+        long t0 = System.nanoTime();
+        for (int w = 0; w < producers; w++) {
+            int wid = w;
+            ts[w] = new Thread(() -> {
+                ArrayDeque<CompletableFuture<Booking>> inFlight = new ArrayDeque<>();
+                for (int i = 0; i < ops || !inFlight.isEmpty(); i++) {
+                    if (i < ops) inFlight.add(submit.submit(wid, i));
+                    if (inFlight.size() > window || i >= ops) {
+                        Booking b = inFlight.poll().join();
+                        if (b != null) complete.accept(b);
+                    }
+                }
+            });
+            ts[w].start();
+        }
+        for (Thread t : ts) {
+            try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        return (System.nanoTime() - t0) / 1e9;
+    }
+
+    static GeoPoint pointInShard(ShardedDispatch sd, int shard, Random r) {
+        while (true) {
+            GeoPoint p = CityMap.randomPoint(r);
+            if (sd.shardOf(p.lat, p.lon) == shard) return p;
+        }
+    }
+
+    /*
+     Authentication. What a request pays to prove who it is: a PBKDF2 check per request (the
+     cost Basic auth would carry without the cache), the credential cache, and a session token
+     lookup, each from many threads. Then sessions on a SimClock: issue them over a TTL, expire
+     half and time the sweep; and a lockout, which must refuse even the right password without
+     hashing until it lapses, and must let no more than MAX_FAILURES of many concurrent guesses
+     reach the hash.
+    */
+    static void auth(Map<String, String> params) {
+        int iterations = (int) param(params, "iterations", PasswordHash.ITERATIONS);
+        int users = (int) param(params, "users", 32);
+        int sessionCount = (int) param(params, "sessions", 200_000);
+        int threads = (int) param(params, "threads", 8);
+        SimClock clock = new SimClock(LocalDateTime.of(2024, 1, 1, 0, 0));
+        AuthService auth = new AuthService(iterations);
+        auth.setClock(clock);
+        long t0 = System.nanoTime();
+        for (int u = 0; u < users; u++) auth.register("u" + u, "pw" + u);
+        System.out.printf("  register (PBKDF2, %,d iterations)        %10.1f ms/user%n", iterations, (System.nanoTime() - t0) / 1e6 / users);
+
+        String stored = auth.getUsers().iterator().next().getPasswordHash();
+        int slow = Math.max(1, (int) param(params, "hashed", 16) / threads);
+        concurrently("PBKDF2 check per request", threads, slow, (w, i) -> sink += PasswordHash.verify("wrong", stored) ? 1 : 0);
+        concurrently("Basic auth, cached credentials", threads, 200_000, (w, i) -> {
+            int u = (w * 31 + i) % users;
+            sink += auth.login("u" + u, "pw" + u).getUsername().length();
+        });
+
+        String[] tokens = new String[sessionCount];
+        long start = clock.millis(), step = Math.max(1, AuthService.SESSION_TTL_MS / sessionCount);
+        t0 = System.nanoTime();
+        for (int i = 0; i < sessionCount; i++) {
+            clock.set(start + i * step);
+            int u = i % users;
+            tokens[i] = auth.openSession("u" + u, "pw" + u).token();
+        }
+        System.out.printf("  open session (cached login)              %10.1f us/op  %,d sessions%n", (System.nanoTime() - t0) / 1e3 / sessionCount, auth.sessionCount());
+        concurrently("Bearer token lookup", threads, 500_000, (w, i) -> {
+            User u = auth.validate(tokens[(w * 7919 + i) % sessionCount]);
+            if (u == null) throw new IllegalStateException("live session rejected");
+            sink += u.getUsername().length();
+        });
+
+        clock.set(start + AuthService.SESSION_TTL_MS + (sessionCount / 2) * step); // the older half is past its TTL
+        if (auth.validate(tokens[0]) != null) throw new IllegalStateException("expired session accepted before the sweep");
+        t0 = System.nanoTime();
+        int dropped = auth.sweep();
+        double sweepMs = (System.nanoTime() - t0) / 1e6;
+        if (dropped != sessionCount / 2 + 1 || auth.sessionCount() != sessionCount - dropped)
+            throw new IllegalStateException("sweep dropped " + dropped + " of " + sessionCount);
+        if (auth.validate(tokens[sessionCount - 1]) == null) throw new IllegalStateException("live session swept");
+        t0 = System.nanoTime();
+        int again = auth.sweep();
+        System.out.printf("  sweep: %,d expired in %.1f ms, then %d in %.3f ms (live sessions untouched)%n",
+                dropped, sweepMs, again, (System.nanoTime() - t0) / 1e6);
+        if (!auth.closeSession(tokens[sessionCount - 1]) || auth.validate(tokens[sessionCount - 1]) != null)
+            throw new IllegalStateException("closed session still valid");
+
+        AuthService fresh = new AuthService(iterations); // nothing cached: every check hashes
+        fresh.setClock(clock);
+        fresh.register("victim", "right");
+        t0 = System.nanoTime();
+        for (int i = 0; i < AuthService.MAX_FAILURES; i++) if (fresh.login("victim", "guess" + i) != null) throw new IllegalStateException();
+        double wrongMs = (System.nanoTime() - t0) / 1e6 / AuthService.MAX_FAILURES;
+        t0 = System.nanoTime();
+        if (fresh.login("nobody", "guess") != null) throw new IllegalStateException();
+        double unknownMs = (System.nanoTime() - t0) / 1e6;
+        t0 = System.nanoTime();
+        if (fresh.login("victim", "right") != null) throw new IllegalStateException("locked user logged in");
+        double lockedUs = (System.nanoTime() - t0) / 1e3;
+        long lockedFor = fresh.lockedForMillis("victim");
+        if (lockedFor != AuthService.LOCKOUT_MS) throw new IllegalStateException("locked for " + lockedFor);
+        clock.set(clock.millis() + lockedFor);
+        if (fresh.login("victim", "right") == null) throw new IllegalStateException("lockout never lapsed");
+        if (fresh.lockedForMillis("victim") != 0) throw new IllegalStateException("success left the counter set");
+        System.out.printf("  lockout after %d misses: wrong password %.1f ms, unknown user %.1f ms, locked refusal %.1f us; lapses after %d s%n",
+                AuthService.MAX_FAILURES, wrongMs, unknownMs, lockedUs, lockedFor / 1000);
+
+        fresh.register("target", "right");
+        long failed = Metrics.LOGIN_FAILURES.get();
+        concurrently("concurrent guesses at one name", threads, 4, (w, i) -> sink += fresh.login("target", "guess" + w + "-" + i) == null ? 0 : 1);
+        long hashed = Metrics.LOGIN_FAILURES.get() - failed;
+        if (hashed > AuthService.MAX_FAILURES) throw new IllegalStateException(hashed + " concurrent guesses got past the limit");
+        if (fresh.login("target", "right") != null) throw new IllegalStateException("guessed name not locked");
+        System.out.printf("  %d concurrent guesses: %d hashed, the rest refused without hashing%n", threads * 4, hashed);
+    }
+
+    /*
+     Booking export. An archive of `rows` closed bookings (10M by default) is written straight
+     to disk, then exported: first the old console path on a sample (pages rehydrated into
+     Booking objects, detailed() with String.format, println), then the streaming Writer as CSV
+     and JSON Lines into a FileChannel, with rows/s, MB/s and bytes allocated per row. The first
+     rows of each file are checked against a reference built from rehydrated bookings, and the
+     CSV line count against the archive. Then filtered exports (one rider; one status over one
+     day) and a deep history page read off the cursor.
+    */
+    static void export(Map<String, String> params) {
+        int total = (int) param(params, "rows", 10_000_000);
+        int riders = (int) param(params, "riders", 100_000);
+        int sample = (int) Math.min(total, param(params, "sample", 300_000));
+        long start = Persistence.epochMillis(LocalDateTime.of(2024, 1, 1, 0, 0)), stepMs = 250;
+        try {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("crs-export");
+            BookingArchive arc = new BookingArchive(dir);
+            RideService rs = new RideService();
+            rs.setArchive(arc);
+            Random r = new Random(25);
+            Driver[] drivers = new Driver[20_000];
+            for (int i = 0; i < drivers.length; i++)
+                drivers[i] = new Driver(i + 1, "Driver " + i, new Car(i + 1, "Model " + (i % 40), "TN" + i, CarType.values()[i % 3]));
+            long t0 = System.nanoTime();
+            List<Booking> batch = new ArrayList<>(BookingArchive.RECORDS_PER_CHUNK);
+            for (int i = 0; i < total; i++) {
+                boolean cancelled = i % 10 == 0;
+                LocalDateTime created = Persistence.dateTime(start + i * stepMs);
+                Booking b = new Booking(i + 1, "rider" + r.nextInt(riders), "Area " + (i % 500), i % 997 == 0 ? "Gate 3, \"North\"" : "Area " + (i % 377),
+                        drivers[r.nextInt(drivers.length)], 1 + r.nextInt(30), CarType.values()[i % 3],
+                        cancelled ? BookingStatus.CANCELLED : BookingStatus.COMPLETED, created);
+                if (cancelled) { b.setCancelledAt(created.plusMinutes(3)); b.setCancellationFee(50); }
+                else b.setCompletedAt(created.plusMinutes(20 + i % 40));
+                b.setEstimatedFare(80 + r.nextInt(40_000) / 100.0);
+                if (i % 7 == 0) { b.setAppliedPromo("SAVE10"); b.setPromoDiscount(12.5); }
+                b.setEtaMinutes(5 + i % 30);
+                b.setEstimatedFuelLiters(r.nextInt(500) / 100.0);
+                batch.add(b);
+                if (batch.size() == BookingArchive.RECORDS_PER_CHUNK || i == total - 1) {
+                    arc.append(batch);
+                    batch.clear();
+                }
+            }
+            System.out.printf("  archive of %,d bookings built in %.1f s%n", arc.size(), (System.nanoTime() - t0) / 1e9);
+
+            // before: what "View all bookings" did per row
+            PrintStream devNull = new PrintStream(OutputStream.nullOutputStream());
+            long tid = Thread.currentThread().getId(), a0 = THREADS.getThreadAllocatedBytes(tid);
+            t0 = System.nanoTime();
+            for (int off = 0; off < sample; off += Main.PAGE_SIZE)
+                for (Booking b : arc.page(off, Main.PAGE_SIZE, id -> null)) devNull.println(b.detailed());
+            double secs = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("  %-34s %,12.0f rows/s %10.0f B/row  (%,d rows)%n", "paged detailed() + println",
+                    sample / secs, (THREADS.getThreadAllocatedBytes(tid) - a0) / (double) sample, sample);
+
+            for (BookingExport.Format format : BookingExport.Format.values()) {
+                java.nio.file.Path file = dir.resolve("export." + format.name().toLowerCase(Locale.ROOT));
+                long rows;
+                a0 = THREADS.getThreadAllocatedBytes(tid);
+                t0 = System.nanoTime();
+                try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(file, java.nio.file.StandardOpenOption.CREATE,
+                        java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+                    rows = new BookingExport.Writer(format, ch).writeAll(rs.history(BookingExport.Filter.ALL));
+                }
+                secs = (System.nanoTime() - t0) / 1e9;
+                long bytes = java.nio.file.Files.size(file);
+                System.out.printf("  %-34s %,12.0f rows/s %10.1f B/row  %,.0f MB/s, %,d MB%n", "streamed " + format + " to a FileChannel",
+                        rows / secs, (THREADS.getThreadAllocatedBytes(tid) - a0) / (double) rows, bytes / 1e6 / secs, bytes >> 20);
+                if (rows != total) throw new IllegalStateException(format + " exported " + rows + " of " + total);
+                checkExport(file, format, arc, total);
+                java.nio.file.Files.delete(file);
+            }
+
+            java.nio.channels.WritableByteChannel discard = java.nio.channels.Channels.newChannel(OutputStream.nullOutputStream());
+            String rider = "rider" + riders / 2;
+            t0 = System.nanoTime();
+            long rows = new BookingExport.Writer(BookingExport.Format.CSV, discard).writeAll(rs.history(BookingExport.Filter.rider(rider)));
+            if (rows != arc.countForRider(rider)) throw new IllegalStateException("rider export " + rows + " of " + arc.countForRider(rider));
+            System.out.printf("  %-34s %,10d rows in %.2f ms%n", "one rider's history", rows, (System.nanoTime() - t0) / 1e6);
+            java.time.LocalDate day = Persistence.dateTime(start).toLocalDate().plusDays(3);
+            t0 = System.nanoTime();
+            rows = new BookingExport.Writer(BookingExport.Format.JSONL, discard)
+                    .writeAll(rs.history(BookingExport.Filter.of(null, BookingStatus.CANCELLED, day, day)));
+            secs = (System.nanoTime() - t0) / 1e9;
+            long perDay = 86_400_000L / stepMs;
+            if (total > 4 * perDay && Math.abs(rows - perDay / 10) > 1) throw new IllegalStateException("cancelled on " + day + ": " + rows);
+            System.out.printf("  %-34s %,10d rows in %.0f ms, %,.0f rows/s scanned%n", "cancelled on one day", rows, secs * 1e3, total / secs);
+
+            int q = 2_000;
+            t0 = System.nanoTime();
+            for (int i = 0; i < q; i++) rows += rs.getBookingsForRiderPage("rider" + (i * 7919 % riders), 40, Main.PAGE_SIZE).size();
+            System.out.printf("  %-34s %10.1f us/page%n", "rider history page 3 (cursor)", (System.nanoTime() - t0) / 1e3 / q);
+            arc.close();
+            try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+                for (java.nio.file.Path f : (Iterable<java.nio.file.Path>) files::iterator) java.nio.file.Files.delete(f);
+            }
+            java.nio.file.Files.delete(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // first rows against rehydrated bookings formatted the slow way; CSV line count against the archive
+    static void checkExport(java.nio.file.Path file, BookingExport.Format format, BookingArchive arc, int total) throws IOException {
+        DateTimeFormatter iso = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+        try (BufferedReader in = java.nio.file.Files.newBufferedReader(file)) {
+            if (format == BookingExport.Format.CSV && !in.readLine().equals(BookingExport.CSV_HEADER)) throw new IllegalStateException("CSV header");
+            for (int rec = 0; rec < Math.min(total, 2_000); rec++) {
+                Booking b = arc.read(rec, id -> null);
+                String line = in.readLine();
+                String closed = iso.format(b.getStatus() == BookingStatus.COMPLETED ? b.getCompletedAt() : b.getCancelledAt());
+                if (format == BookingExport.Format.CSV) {
+                    String want = String.join(",", String.valueOf(b.getId()), b.getRiderName(), b.getPickup(),
+                            BookingExport.Writer.csvField(b.getDrop()), String.valueOf(b.getDriver().getId()), b.getDriver().getName(),
+                            b.getDriver().getCar().getType().name(), b.getRequestedType().name(), String.valueOf(b.getKms()), b.getStatus().name(),
+                            iso.format(b.getCreatedAt()), closed, Settlement.money(Rollups.hundredths(b.getEstimatedFare())),
+                            b.getAppliedPromo() == null ? "" : b.getAppliedPromo(), Settlement.money(Rollups.hundredths(b.getPromoDiscount())),
+                            Settlement.money(Rollups.hundredths(b.getCancellationFee())), String.valueOf(b.getEtaMinutes()),
+                            Settlement.money(Rollups.hundredths(b.getEstimatedFuelLiters())));
+                    if (!want.equals(line)) throw new IllegalStateException("CSV row " + rec + ":\n  " + line + "\n  " + want);
+                } else {
+                    Map<String, String> row = Json.parseFlatObject(line);
+                    if (!row.get("id").equals(String.valueOf(b.getId())) || !row.get("drop").equals(b.getDrop())
+                            || !row.get("createdAt").equals(iso.format(b.getCreatedAt())) || !row.get("closedAt").equals(closed)
+                            || Double.parseDouble(row.get("fare")) != Rollups.hundredths(b.getEstimatedFare()) / 100.0)
+                        throw new IllegalStateException("JSON row " + rec + ": " + line);
+                }
+            }
+        }
+        if (format != BookingExport.Format.CSV) return;
+        long lines = 0;
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(file)) {
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocateDirect(1 << 20);
+            while (ch.read(buf.clear()) > 0) {
+                buf.flip();
+                while (buf.hasRemaining()) if (buf.get() == '\n') lines++;
+            }
+        }
+        if (lines != total + 1L) throw new IllegalStateException("CSV has " + lines + " lines for " + total + " rows");
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // removes a bench's flat temp directory and everything in it
+    static void deleteDir(java.nio.file.Path dir) throws IOException {
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            for (java.nio.file.Path f : files.toArray(java.nio.file.Path[]::new)) java.nio.file.Files.delete(f);
+        }
+        java.nio.file.Files.delete(dir);
+    }
+
+    static long dirBytes(java.nio.file.Path dir) throws IOException {
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            return files.mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    static Driver linearNearest(List<Driver> fleet, GeoPoint p, CarType type) {
+        Driver best = null;
+        double bestDist = Double.MAX_VALUE;
+        for (Driver d : fleet) {
+            if (!d.isAvailable() || d.getCar().getType() != type) continue;
+            double dist = d.distanceKm(p.lat, p.lon);
+            if (dist < bestDist) { bestDist = dist; best = d; }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,82 @@
+import java.time.LocalDateTime;
+import java.util.*;
+
+/*
+ Booking timers on a virtual clock. The wheel alone: timers scheduled over six hours and
+ advanced in random steps must each fire once, on their own tick (never early, never more
+ than a tick late), and cancelled ones never. Then RideService on a SimClock: a rider who
+ never shows is cancelled with a fee, a trip never closed is completed at its deadline, and
+ both drivers come back. Costs per timer are the "timers" bench.
+*/
+public class BookingTimersTest {
+    public static void main(String[] args) {
+        wheelFiresEachTimerOnItsTick();
+        rideServiceClosesAbandonedBookings();
+    }
+
+    static void wheelFiresEachTimerOnItsTick() {
+        int n = 200_000;
+        SplittableRandom rnd = new SplittableRandom(7);
+        long start = 1_700_000_000_000L, horizon = 6 * 3_600_000L;
+        long[] due = new long[n], handles = new long[n];
+        TimingWheel w = new TimingWheel(1000, start, 1024);
+        for (int i = 0; i < n; i++) {
+            due[i] = start + 1 + rnd.nextLong(horizon);
+            handles[i] = w.schedule(due[i], i, 1);
+        }
+        for (int i = 0; i < n; i += 2) check(w.cancel(handles[i]), "cancel lost timer " + i);
+        check(!w.cancel(handles[0]), "a timer was cancelled twice");
+        check(w.size() == n / 2, w.size() + " pending after cancelling half of " + n);
+
+        boolean[] fired = new boolean[n];
+        long now = start;
+        while (w.size() > 0) {
+            long prev = now;
+            now += 1 + rnd.nextLong(120_000);
+            for (long x : w.advanceTo(now)) {
+                int i = (int) (x >>> 8);
+                long tick = Math.floorDiv(due[i] + 999, 1000);
+                check(i % 2 == 1 && !fired[i], "timer " + i + " fired twice or after cancel");
+                check(tick <= now / 1000 && tick > prev / 1000, "timer " + i + " fired off its tick");
+                fired[i] = true;
+            }
+        }
+        for (int i = 1; i < n; i += 2) check(fired[i], "timer " + i + " never fired");
+        System.out.printf("BookingTimersTest: %,d timers fired on their tick, %,d cancelled ones never%n", n / 2, n / 2);
+    }
+
+    static void rideServiceClosesAbandonedBookings() {
+        SimClock clock = new SimClock(CitySimulation.START);
+        RideService rides = new RideService();
+        rides.setClock(clock);
+        Driver d1 = rides.registerDriver("T1", "Model", "TIM1", CarType.MINI, 12.97, 77.59);
+        Driver d2 = rides.registerDriver("T2", "Model", "TIM2", CarType.MINI, 12.98, 77.60);
+        FareEstimate est = FareCalculator.estimateFare(10, CarType.MINI, 1.0, new PromoService(), null, null);
+        Booking noShow = rides.requestRide("r1", "a", 12.97, 77.59, "b", 10, CarType.MINI, est);
+        Booking stuck = rides.requestRide("r2", "a", 12.98, 77.60, "b", 10, CarType.MINI, est);
+        clock.set(clock.millis() + 60_000);
+        rides.runDueTimers();
+        check(rides.confirmPickup(stuck.getId()), "pickup not confirmed");
+        check(rides.availableDriverCount() == 0, "a driver came free before its booking closed");
+        long until = rides.tripDeadline(stuck).atZone(clock.getZone()).toInstant().toEpochMilli() + 1000;
+        LocalDateTime noShowAt = null;
+        while (clock.millis() < until) {
+            clock.set(clock.millis() + 1000);
+            rides.runDueTimers();
+            if (noShowAt == null && noShow.getStatus() != BookingStatus.ACTIVE) noShowAt = rides.now();
+        }
+        check(noShow.getStatus() == BookingStatus.CANCELLED && noShow.getCancellationFee() > 0, "no-show not cancelled with a fee");
+        check(!noShowAt.isBefore(rides.noShowDeadline(noShow)) && !noShowAt.isAfter(rides.noShowDeadline(noShow).plusSeconds(1)),
+                "no-show cancelled at " + noShowAt + ", due " + rides.noShowDeadline(noShow));
+        check(stuck.getStatus() == BookingStatus.COMPLETED && !stuck.getCompletedAt().isBefore(rides.tripDeadline(stuck)),
+                "stuck trip not completed on time");
+        check(d1.isAvailable() && d2.isAvailable() && rides.availableDriverCount() == 2, "drivers not released");
+        check(rides.pendingTimers() == 0, rides.pendingTimers() + " timers left pending");
+        System.out.printf("BookingTimersTest: no-show cancelled at %s with fee %.2f, stuck trip closed at %s, drivers released%n",
+                Main.dtf.format(noShowAt), noShow.getCancellationFee(), Main.dtf.format(stuck.getCompletedAt()));
+    }
+
+    static void check(boolean ok, String failure) {
+        if (!ok) throw new AssertionError(failure);
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ Many threads requesting, completing and cancelling rides against one RideService while an
+ admin thread registers and removes drivers. No driver may ever be held by two active
+ bookings, and once every ride is closed the whole fleet must be free again, with the
+ booking counts and history matching what the riders saw. Throughput is the "stress" bench.
+*/
+public class ConcurrentRidesTest {
+    static final int FLEET = 500, THREADS = 8, OPS_PER_THREAD = 20_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        RideService rs = new RideService();
+        Random seed = new Random(11);
+        for (int i = 0; i < FLEET; i++) {
+            GeoPoint p = CityMap.randomPoint(seed);
+            rs.registerDriver("D" + i, "M", "P" + i, CarType.values()[i % 3], p.lat, p.lon);
+        }
+        FareEstimate est = new FareEstimate();
+        ConcurrentHashMap<Integer, Integer> holder = new ConcurrentHashMap<>(); // driver -> active booking
+        AtomicLong doubleBooked = new AtomicLong(), matched = new AtomicLong(), cancelled = new AtomicLong();
+        int keepActive = FLEET * 9 / 10 / THREADS; // keeps the fleet ~90% busy
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>(); // first check failed on another thread
+        Thread admin = new Thread(() -> {
+            Random r = new Random(3);
+            while (!done.get()) {
+                GeoPoint p = CityMap.randomPoint(r);
+                Driver d = rs.registerDriver("X", "M", "X", CarType.MINI, p.lat, p.lon);
+                while (!rs.removeDriver(d.getId())) Thread.yield(); // a rider got it first: wait for the ride to close
+            }
+        });
+        admin.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+        admin.start();
+        Thread[] workers = new Thread[THREADS];
+        for (int w = 0; w < THREADS; w++) {
+            int wid = w;
+            workers[w] = new Thread(() -> {
+                Random r = new Random(100 + wid);
+                ArrayDeque<Booking> mine = new ArrayDeque<>();
+                for (int i = 0; i < OPS_PER_THREAD || !mine.isEmpty(); i++) {
+                    Booking b = null;
+                    if (i < OPS_PER_THREAD) {
+                        GeoPoint p = CityMap.randomPoint(r);
+                        b = rs.requestRide("r" + wid, "A", p.lat, p.lon, "B", 3, CarType.values()[r.nextInt(3)], est);
+                        if (b != null) {
+                            matched.incrementAndGet();
+                            if (holder.putIfAbsent(b.getDriver().getId(), b.getId()) != null) doubleBooked.incrementAndGet();
+                            mine.add(b);
+                        }
+                    }
+                    if (mine.size() > keepActive || (b == null && !mine.isEmpty())) {
+                        Booking closing = mine.poll();
+                        holder.remove(closing.getDriver().getId());
+                        if (r.nextInt(4) == 0) {
+                            rs.cancelBooking(closing.getId());
+                            cancelled.incrementAndGet();
+                        } else {
+                            check(rs.completeBooking(closing.getId()), "booking #" + closing.getId() + " could not be completed");
+                        }
+                    }
+                }
+            });
+            workers[w].setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            workers[w].start();
+        }
+        for (Thread t : workers) t.join();
+        done.set(true);
+        admin.join();
+        if (failure.get() != null) throw new AssertionError("failed on a worker thread", failure.get());
+
+        check(doubleBooked.get() == 0, doubleBooked.get() + " bookings took a driver that was already busy");
+        check(matched.get() > 0, "no ride was ever matched");
+        check(rs.availableDriverCount() == FLEET, (FLEET - rs.availableDriverCount()) + " drivers never released");
+        check(rs.activeBookingCount() == 0, rs.activeBookingCount() + " bookings still active");
+        List<Booking> all = rs.getAllBookings();
+        check(all.size() == matched.get(), "history has " + all.size() + " bookings for " + matched.get() + " matched rides");
+        long cancelledSeen = 0;
+        for (int i = 0; i < all.size(); i++) {
+            Booking b = all.get(i);
+            check(i == 0 || b.getId() > all.get(i - 1).getId(), "history out of id order at #" + b.getId());
+            check(b.getStatus() != BookingStatus.ACTIVE, "booking #" + b.getId() + " still active");
+            if (b.getStatus() == BookingStatus.CANCELLED) cancelledSeen++;
+        }
+        check(cancelledSeen == cancelled.get(), cancelledSeen + " cancelled in history, " + cancelled.get() + " cancelled by riders");
+        System.out.printf("ConcurrentRidesTest: %d threads, %,d rides matched, none double-booked, fleet of %d free again%n",
+                THREADS, matched.get(), FLEET);
+    }
+
+    static void check(boolean ok, String failure) {
+        if (!ok) throw new AssertionError(failure);
+    }
+}